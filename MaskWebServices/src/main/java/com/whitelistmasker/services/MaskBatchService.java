@@ -0,0 +1,157 @@
+/**
+ * (c) Copyright 2020-2023 IBM Corporation
+ * 1 New Orchard Road, 
+ * Armonk, New York, 10504-1722
+ * United States
+ * +1 914 499 1900
+ * Nathaniel Mills wnm3@us.ibm.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.whitelistmasker.services;
+
+import javax.ws.rs.core.Response;
+import com.api.json.JSONArray;
+import com.api.json.JSONObject;
+import com.whitelistmasker.masker.MaskRequestEvent;
+import com.whitelistmasker.masker.Masker;
+import com.whitelistmasker.masker.MaskerContext;
+import com.whitelistmasker.masker.MaskerMetrics;
+
+/**
+ * Performs a large masker/doMasking batch as a series of chunks, each queued
+ * as a separate step in the bulk lane of the {@link MaskFairScheduler}, so the
+ * batch interleaves with the requests of other tenants rather than occupying a
+ * worker thread until it completes. The response is the same as the one
+ * produced by Masker.maskContent.
+ */
+public class MaskBatchService {
+
+	/**
+	 * State of a batch being masked in chunks
+	 */
+	static class BatchStep implements MaskRequestExecutor.Step {
+
+		final MaskerContext _context;
+		final JSONObject _counts = Masker.newCounts();
+		final String _endpoint;
+		final JSONArray _errors = new JSONArray();
+		final JSONArray _masked = new JSONArray();
+		int _next = 0;
+		final long _parseNanos;
+		final JSONObject _request;
+		final MaskRequestEvent _requestEvent = new MaskRequestEvent();
+		final long _requestStart = System.nanoTime();
+		final String _responseKey;
+		final long[] _stageNanos = new long[MaskerMetrics.STAGE_NAMES.length];
+		final JSONArray _unmasked;
+
+		BatchStep(String endpoint, String responseKey, JSONObject request, JSONArray unmasked, long parseNanos)
+				throws Exception {
+			_requestEvent.begin();
+			_endpoint = endpoint;
+			_responseKey = responseKey;
+			_request = request;
+			_unmasked = unmasked;
+			_parseNanos = parseNanos;
+			_context = Masker.createContext(request, _errors);
+		}
+
+		@Override
+		public Response perform(MaskRequestExecutor.MaskRequest request) throws Exception {
+			if (_context != null) {
+				int end = Math.min(_unmasked.size(), _next + MaskRequestExecutor.getChunkLines());
+				for (; _next < end; _next++) {
+					Object obj = _unmasked.get(_next);
+					if (obj == null) {
+						_masked.add("");
+					} else {
+						_masked.add(Masker.maskLine(_context, obj.toString(), _counts, _stageNanos));
+					}
+				}
+				if (_next < _unmasked.size()) {
+					request.schedule(MaskFairScheduler.LANE_BULK, this);
+					return null;
+				}
+				Masker.recordRequest(_context, _endpoint, _unmasked.size(), _counts, _stageNanos, _requestStart,
+						_requestEvent);
+				if (_requestEvent.shouldCommit()) {
+					_requestEvent.commit();
+				}
+			}
+			long serializeStart = System.nanoTime();
+			JSONObject actionResponses = new JSONObject();
+			JSONObject contentResponse = Masker.newContentResponse(_request, _masked, _errors, _counts);
+			if (_context != null) {
+				contentResponse.put("templateVersion", _context.getTemplateVersion());
+			}
+			actionResponses.put(_responseKey, contentResponse);
+			Response response = MaskServiceUtil.getResponse(actionResponses);
+			String tenantID = MaskServiceUtil.getTenantID(_request);
+			MaskerMetrics.record(tenantID, _endpoint, MaskerMetrics.STAGE_PARSE, _parseNanos);
+			MaskerMetrics.record(tenantID, _endpoint, MaskerMetrics.STAGE_SERIALIZE, System.nanoTime() - serializeStart);
+			return response;
+		}
+	}
+
+	/**
+	 * Determine whether a request should be masked in chunks
+	 * 
+	 * @param serviceLogic
+	 *                     service object from the schema (whose "chunked" value
+	 *                     names the array to be chunked)
+	 * @param body
+	 *                     request body
+	 * @return the array to be masked in chunks, or null if the service does not
+	 *         support chunking or the array fits in a single chunk
+	 */
+	static public JSONArray getChunkedArray(JSONObject serviceLogic, JSONObject body) {
+		Object chunked = serviceLogic.get(MaskWebServices.CHUNKED);
+		if (chunked == null || !(body.get("request") instanceof JSONObject)) {
+			return null;
+		}
+		Object array = ((JSONObject) body.get("request")).get(chunked);
+		if (array instanceof JSONArray && ((JSONArray) array).size() > MaskRequestExecutor.getChunkLines()) {
+			return (JSONArray) array;
+		}
+		return null;
+	}
+
+	/**
+	 * Mask the request's unmasked array in chunks, queuing the first chunk in the
+	 * bulk lane
+	 * 
+	 * @param maskRequest
+	 *                     request being performed
+	 * @param endpoint
+	 *                     service endpoint (e.g., masker/doMasking)
+	 * @param serviceLogic
+	 *                     service object from the schema
+	 * @param body
+	 *                     request body
+	 * @param unmasked
+	 *                     array of lines to be masked
+	 * @param parseNanos
+	 *                     time spent parsing the request body
+	 * @throws Exception
+	 *                   if the masking environment can not be initialized
+	 */
+	static public void maskInChunks(MaskRequestExecutor.MaskRequest maskRequest, String endpoint,
+			JSONObject serviceLogic, JSONObject body, JSONArray unmasked, long parseNanos) throws Exception {
+		BatchStep step = new BatchStep(endpoint, (String) serviceLogic.get(MaskWebServices.RESPONSE),
+				(JSONObject) body.get("request"), unmasked, parseNanos);
+		maskRequest.schedule(MaskFairScheduler.LANE_BULK, step);
+	}
+}
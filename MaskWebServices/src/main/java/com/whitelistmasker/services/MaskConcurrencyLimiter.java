@@ -0,0 +1,140 @@
+/**
+ * (c) Copyright 2020-2023 IBM Corporation
+ * 1 New Orchard Road, 
+ * Armonk, New York, 10504-1722
+ * United States
+ * +1 914 499 1900
+ * Nathaniel Mills wnm3@us.ibm.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.whitelistmasker.services;
+
+/**
+ * Adaptive concurrency limit for the masking requests using additive increase,
+ * multiplicative decrease (AIMD) on the measured request latency. While
+ * requests complete within the target latency and the limit is being used,
+ * the limit grows by one; each request exceeding the target latency shrinks
+ * the limit by the backoff ratio. Requests arriving while the number in
+ * flight is at the limit are rejected so they can be shed (e.g., with a 429)
+ * rather than queued with unbounded latency.
+ */
+public class MaskConcurrencyLimiter {
+
+	final double _backoffRatio;
+	int _inFlight = 0;
+	double _limit;
+	final int _maxLimit;
+	final int _minLimit;
+	long _rejected = 0L;
+	double _smoothedLatencyNanos = 0.0;
+	final long _targetLatencyNanos;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param initialLimit
+	 *                            starting concurrency limit
+	 * @param minLimit
+	 *                            smallest the limit may shrink to
+	 * @param maxLimit
+	 *                            largest the limit may grow to
+	 * @param targetLatencyMillis
+	 *                            request latency above which the limit is reduced
+	 * @param backoffRatio
+	 *                            ratio (between 0 and 1) applied to the limit when
+	 *                            a request exceeds the target latency
+	 */
+	public MaskConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit, long targetLatencyMillis,
+			double backoffRatio) {
+		_minLimit = Math.max(1, minLimit);
+		_maxLimit = Math.max(_minLimit, maxLimit);
+		_limit = Math.min(_maxLimit, Math.max(_minLimit, initialLimit));
+		_targetLatencyNanos = targetLatencyMillis * 1000000L;
+		_backoffRatio = backoffRatio;
+	}
+
+	/**
+	 * @return number of requests currently holding a permit
+	 */
+	synchronized public int getInFlight() {
+		return _inFlight;
+	}
+
+	/**
+	 * @return current concurrency limit
+	 */
+	synchronized public int getLimit() {
+		return (int) _limit;
+	}
+
+	/**
+	 * @return number of requests rejected because the limit was reached
+	 */
+	synchronized public long getRejected() {
+		return _rejected;
+	}
+
+	/**
+	 * Estimate how long a rejected client should wait before retrying, based on
+	 * the smoothed request latency
+	 * 
+	 * @return seconds to wait (at least 1)
+	 */
+	synchronized public int getRetryAfterSeconds() {
+		return (int) Math.max(1L, (long) Math.ceil(_smoothedLatencyNanos / 1000000000.0));
+	}
+
+	/**
+	 * Release a permit obtained by {@link #tryAcquire()}
+	 * 
+	 * @param latencyNanos
+	 *                     time the request held the permit
+	 * @param sample
+	 *                     true if the latency should adjust the limit (false for
+	 *                     requests whose duration depends on the client, e.g.,
+	 *                     streams)
+	 */
+	synchronized public void release(long latencyNanos, boolean sample) {
+		int inFlight = _inFlight;
+		_inFlight--;
+		if (!sample) {
+			return;
+		}
+		_smoothedLatencyNanos = (_smoothedLatencyNanos == 0.0 ? latencyNanos
+				: 0.9 * _smoothedLatencyNanos + 0.1 * latencyNanos);
+		if (latencyNanos > _targetLatencyNanos) {
+			_limit = Math.max(_minLimit, _limit * _backoffRatio);
+		} else if (inFlight * 2 >= (int) _limit) {
+			// only grow the limit when it is being used
+			_limit = Math.min(_maxLimit, _limit + 1.0);
+		}
+	}
+
+	/**
+	 * Try to obtain a permit to process a request
+	 * 
+	 * @return true if a permit was obtained (and must be released), false if the
+	 *         limit has been reached
+	 */
+	synchronized public boolean tryAcquire() {
+		if (_inFlight >= (int) _limit) {
+			_rejected++;
+			return false;
+		}
+		_inFlight++;
+		return true;
+	}
+}
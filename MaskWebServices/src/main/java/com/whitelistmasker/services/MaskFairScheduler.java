@@ -0,0 +1,306 @@
+/**
+ * (c) Copyright 2020-2023 IBM Corporation
+ * 1 New Orchard Road, 
+ * Armonk, New York, 10504-1722
+ * United States
+ * +1 914 499 1900
+ * Nathaniel Mills wnm3@us.ibm.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.whitelistmasker.services;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import com.whitelistmasker.masker.MaskerMetrics;
+
+/**
+ * Weighted fair queue of masking tasks feeding the worker threads. Tasks are
+ * queued per tenant in one of two lanes: an interactive lane for small
+ * requests (e.g., doMessageMasking) and a bulk lane for large batches and
+ * their chunks. Workers take tasks using deficit round robin, first across
+ * the lanes by their weights and then across the tenants waiting in the
+ * chosen lane by their weights, so a tenant submitting many chunks can not
+ * starve other tenants or the interactive lane.
+ * 
+ * Each tenant is also limited to a number of concurrently running tasks (its
+ * bulkhead), so one tenant never occupies every worker thread. Tasks of
+ * requests whose tenant is not known until their body is read are not
+ * limited; they are queued again for their tenant once it is known. Streamed
+ * responses, which are masked as they are written rather than on the worker
+ * threads, hold one of their tenant's running slots until they are written.
+ */
+public class MaskFairScheduler {
+
+	static public final int LANE_INTERACTIVE = 0;
+	static public final int LANE_BULK = 1;
+	static public final String[] LANE_NAMES = { "interactive", "bulk" };
+
+	/**
+	 * A task queued for a tenant in a lane
+	 */
+	static public class Task {
+		final int _lane;
+		final Runnable _runnable;
+		final String _tenantID;
+
+		/**
+		 * Constructor
+		 * 
+		 * @param tenantID
+		 *                 tenant the task is performed for
+		 * @param lane
+		 *                 LANE_INTERACTIVE or LANE_BULK
+		 * @param runnable
+		 *                 work to be performed
+		 */
+		public Task(String tenantID, int lane, Runnable runnable) {
+			_tenantID = tenantID;
+			_lane = lane;
+			_runnable = runnable;
+		}
+	}
+
+	/**
+	 * Tasks waiting for a tenant in a lane
+	 */
+	static class TenantQueue {
+		int _deficit = 0;
+		final ArrayDeque<Task> _tasks = new ArrayDeque<Task>();
+		final String _tenantID;
+
+		TenantQueue(String tenantID) {
+			_tenantID = tenantID;
+		}
+	}
+
+	/**
+	 * Tenants with tasks waiting in a lane, in round robin order
+	 */
+	static class Lane {
+		final ArrayDeque<TenantQueue> _active = new ArrayDeque<TenantQueue>();
+		int _deficit = 0;
+		final Map<String, TenantQueue> _queues = new HashMap<String, TenantQueue>();
+		int _size = 0;
+		final int _weight;
+
+		Lane(int weight) {
+			_weight = Math.max(1, weight);
+		}
+	}
+
+	final Lane[] _lanes;
+	int _laneIndex = 0;
+	final Map<String, Integer> _running = new HashMap<String, Integer>();
+	final int _tenantMaxRunning;
+	final Map<String, Integer> _tenantWeights;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param interactiveWeight
+	 *                          tasks taken from the interactive lane for each
+	 *                          round
+	 * @param bulkWeight
+	 *                          tasks taken from the bulk lane for each round
+	 * @param tenantMaxRunning
+	 *                          most tasks a tenant may have running at once
+	 * @param tenantWeights
+	 *                          tasks taken for a tenant for each round in a lane
+	 *                          (tenants not in the map have a weight of 1)
+	 */
+	public MaskFairScheduler(int interactiveWeight, int bulkWeight, int tenantMaxRunning,
+			Map<String, Integer> tenantWeights) {
+		_lanes = new Lane[] { new Lane(interactiveWeight), new Lane(bulkWeight) };
+		_tenantMaxRunning = Math.max(1, tenantMaxRunning);
+		_tenantWeights = tenantWeights;
+	}
+
+	/**
+	 * Mark a task taken by {@link #take()} as complete, releasing its tenant's
+	 * running slot
+	 * 
+	 * @param task
+	 *             completed task
+	 */
+	synchronized public void done(Task task) {
+		release(task._tenantID);
+	}
+
+	/**
+	 * Wait for a running slot of the tenant for work performed outside of the
+	 * worker threads (e.g., masking a streamed response as it is written). The
+	 * caller must call {@link #release(String)} once the work is complete.
+	 * 
+	 * @param tenantID
+	 *                 tenant the work is performed for
+	 * @throws InterruptedException
+	 *                              if interrupted while waiting
+	 */
+	synchronized public void acquire(String tenantID) throws InterruptedException {
+		while (!isRunnable(tenantID)) {
+			wait();
+		}
+		Integer running = _running.get(tenantID);
+		_running.put(tenantID, running == null ? 1 : running + 1);
+	}
+
+	/**
+	 * Release a running slot of the tenant
+	 * 
+	 * @param tenantID
+	 *                 tenant whose task or work is complete
+	 */
+	synchronized public void release(String tenantID) {
+		Integer running = _running.get(tenantID);
+		if (running == null || running <= 1) {
+			_running.remove(tenantID);
+		} else {
+			_running.put(tenantID, running - 1);
+		}
+		notifyAll();
+	}
+
+	/**
+	 * @param lane
+	 *             LANE_INTERACTIVE or LANE_BULK
+	 * @return number of tasks waiting in the lane
+	 */
+	synchronized public int getQueued(int lane) {
+		return _lanes[lane]._size;
+	}
+
+	/**
+	 * @param tenantID
+	 *                 tenant
+	 * @return the tenant's weight within a lane
+	 */
+	int getWeight(String tenantID) {
+		Integer weight = (_tenantWeights == null ? null : _tenantWeights.get(tenantID));
+		return (weight == null || weight < 1) ? 1 : weight;
+	}
+
+	/**
+	 * @param tenantID
+	 *                 tenant
+	 * @return true if the tenant has a free running slot (requests whose tenant
+	 *         is not yet known are not limited, since they are queued for their
+	 *         tenant once their body has been read)
+	 */
+	boolean isRunnable(String tenantID) {
+		if (MaskerMetrics.UNKNOWN_TENANT.equals(tenantID)) {
+			return true;
+		}
+		Integer running = _running.get(tenantID);
+		return running == null || running < _tenantMaxRunning;
+	}
+
+	/**
+	 * Select the next task to run, or null if no queued task may run now
+	 * 
+	 * @return the selected task (whose tenant's running count has been
+	 *         incremented)
+	 */
+	Task next() {
+		for (int i = 0; i < _lanes.length * 2; i++) {
+			Lane lane = _lanes[_laneIndex];
+			if (lane._deficit <= 0) {
+				lane._deficit += lane._weight;
+			}
+			Task task = next(lane);
+			if (task != null) {
+				if (--lane._deficit <= 0) {
+					_laneIndex = (_laneIndex + 1) % _lanes.length;
+				}
+				return task;
+			}
+			// nothing runnable in this lane so it keeps no credit
+			lane._deficit = 0;
+			_laneIndex = (_laneIndex + 1) % _lanes.length;
+		}
+		return null;
+	}
+
+	/**
+	 * Select the next task of a runnable tenant in a lane
+	 * 
+	 * @param lane
+	 *             lane to select from
+	 * @return the selected task, or null if no waiting tenant may run
+	 */
+	Task next(Lane lane) {
+		int tenants = lane._active.size();
+		for (int i = 0; i < tenants; i++) {
+			TenantQueue queue = lane._active.peekFirst();
+			if (!isRunnable(queue._tenantID)) {
+				lane._active.addLast(lane._active.pollFirst());
+				continue;
+			}
+			if (queue._deficit <= 0) {
+				queue._deficit += getWeight(queue._tenantID);
+			}
+			Task task = queue._tasks.pollFirst();
+			lane._size--;
+			Integer running = _running.get(queue._tenantID);
+			_running.put(queue._tenantID, running == null ? 1 : running + 1);
+			if (queue._tasks.isEmpty()) {
+				lane._active.pollFirst();
+				lane._queues.remove(queue._tenantID);
+			} else if (--queue._deficit <= 0) {
+				lane._active.addLast(lane._active.pollFirst());
+			}
+			return task;
+		}
+		return null;
+	}
+
+	/**
+	 * Queue a task
+	 * 
+	 * @param task
+	 *             task to be queued
+	 */
+	synchronized public void submit(Task task) {
+		Lane lane = _lanes[task._lane];
+		TenantQueue queue = lane._queues.get(task._tenantID);
+		if (queue == null) {
+			queue = new TenantQueue(task._tenantID);
+			lane._queues.put(task._tenantID, queue);
+			lane._active.addLast(queue);
+		}
+		queue._tasks.addLast(task);
+		lane._size++;
+		notifyAll();
+	}
+
+	/**
+	 * Wait for and return the next task to run. The caller must call
+	 * {@link #done(Task)} once the task has been performed.
+	 * 
+	 * @return the next task
+	 * @throws InterruptedException
+	 *                              if interrupted while waiting
+	 */
+	synchronized public Task take() throws InterruptedException {
+		while (true) {
+			Task task = next();
+			if (task != null) {
+				return task;
+			}
+			wait();
+		}
+	}
+}
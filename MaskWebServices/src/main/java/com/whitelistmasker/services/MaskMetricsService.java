@@ -0,0 +1,45 @@
+/**
+ * (c) Copyright 2020-2023 IBM Corporation
+ * 1 New Orchard Road, 
+ * Armonk, New York, 10504-1722
+ * United States
+ * +1 914 499 1900
+ * Nathaniel Mills wnm3@us.ibm.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.whitelistmasker.services;
+
+import com.whitelistmasker.masker.MaskerMetrics;
+import com.whitelistmasker.masker.MaskerRegexGuard;
+
+/**
+ * MaskMetricsService exposes the masking engine's per stage latency histograms
+ * and throughput counters, along with the request concurrency limit, for
+ * scraping by Prometheus
+ */
+public class MaskMetricsService {
+
+	/**
+	 * Return the collected metrics in the Prometheus text exposition format.
+	 * 
+	 * @return metrics text
+	 */
+	public static String getMetrics() {
+		return MaskerMetrics.getPrometheusText() + MaskRequestExecutor.getPrometheusText()
+				+ MaskRequestCoalescer.getPrometheusText() + MaskerRegexGuard.getPrometheusText();
+	}
+
+}
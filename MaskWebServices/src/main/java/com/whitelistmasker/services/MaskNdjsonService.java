@@ -0,0 +1,387 @@
+/**
+ * (c) Copyright 2020-2023 IBM Corporation
+ * 1 New Orchard Road, 
+ * Armonk, New York, 10504-1722
+ * United States
+ * +1 914 499 1900
+ * Nathaniel Mills wnm3@us.ibm.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.whitelistmasker.services;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.StreamingOutput;
+import com.api.json.JSONArray;
+import com.api.json.JSONObject;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.whitelistmasker.masker.MaskRequestEvent;
+import com.whitelistmasker.masker.Masker;
+import com.whitelistmasker.masker.MaskerContext;
+import com.whitelistmasker.masker.MaskerMetrics;
+
+/**
+ * Newline delimited JSON (application/x-ndjson) implementation of the
+ * masker/doMaskingStream service. Each line of the request is either a JSON
+ * string to be masked, or a message object whose utterance is to be masked.
+ * Each line is masked and written (and flushed) to the response as soon as it
+ * has been read, so only one line is held in memory however long the stream
+ * runs.
+ * 
+ * The tenantID is taken from the X-Tenant-ID header or from a configuration
+ * object on the first line, which may also provide the templates, maskNumbers
+ * and includeCounts used for the rest of the stream, e.g.:
+ * 
+ * <pre>
+ * {"tenantID":"companyA","maskNumbers":true,"templates":[{"template":"...","mask":"~phone~"}]}
+ * "this has a name: Nathaniel Mills"
+ * {"speaker":"client","utterance":"my number is 860-812-5089"}
+ * </pre>
+ * 
+ * A masked string is returned for each string line, and the message object
+ * with its utterance masked and a diffs array is returned for each message
+ * line. Problems with a line are returned as an {"error":...} line in its
+ * place, templates abandoned while masking a line are reported by an error
+ * line following it, and problems creating the masking context (e.g., an
+ * unknown tenantID) are returned as error lines before the stream is ended.
+ */
+public class MaskNdjsonService {
+
+	static final ObjectMapper _mapper = new ObjectMapper();
+	static public int _maxLineBytes = 1024 * 1024;
+
+	/**
+	 * State of a newline delimited JSON stream
+	 */
+	static class NdjsonState {
+
+		MaskerContext _context = null;
+		final JSONObject _counts = Masker.newCounts();
+		// errors of the stream, and how many have been written to the response
+		final JSONArray _errors = new JSONArray();
+		int _errorsWritten = 0;
+		boolean _includeCounts = false;
+		int _lines = 0;
+		final MaskRequestExecutor.MaskRequest _maskRequest;
+		final OutputStream _output;
+		final long[] _stageNanos = new long[MaskerMetrics.STAGE_NAMES.length];
+
+		NdjsonState(MaskRequestExecutor.MaskRequest maskRequest, OutputStream output) {
+			_maskRequest = maskRequest;
+			_output = output;
+		}
+
+		/**
+		 * Write the errors added since they were last written (e.g., templates
+		 * aborted while masking a line)
+		 * 
+		 * @throws IOException
+		 */
+		void writeErrors() throws IOException {
+			for (; _errorsWritten < _errors.size(); _errorsWritten++) {
+				writeLine(_errors.get(_errorsWritten).toString());
+			}
+		}
+
+		/**
+		 * Write a line to the response and flush it to the client
+		 * 
+		 * @param json
+		 *             serialized JSON value for the line
+		 * @throws IOException
+		 */
+		void writeLine(String json) throws IOException {
+			_output.write(json.getBytes("UTF-8"));
+			_output.write('\n');
+			_output.flush();
+		}
+
+		/**
+		 * Write an error line to the response
+		 * 
+		 * @param message
+		 *                error message
+		 * @throws IOException
+		 */
+		void writeError(String message) throws IOException {
+			JSONObject error = new JSONObject();
+			error.put("error", message);
+			writeLine(error.toString());
+		}
+	}
+
+	/**
+	 * Get the streaming output performing the masking of a newline delimited JSON
+	 * request
+	 * 
+	 * @param maskRequest
+	 *                     request admitted by the MaskRequestExecutor, admitted for
+	 *                     its tenant once the tenantID is known
+	 * @param tenantID
+	 *                     tenantID from the X-Tenant-ID header (may be null if it
+	 *                     is provided on the first line)
+	 * @param ndjsonRequest
+	 *                     request body
+	 * @return streaming output writing the response
+	 */
+	static public StreamingOutput getStreamingOutput(final MaskRequestExecutor.MaskRequest maskRequest,
+			final String tenantID, final InputStream ndjsonRequest) {
+		return new StreamingOutput() {
+			@Override
+			public void write(OutputStream output) throws IOException, WebApplicationException {
+				try {
+					streamMasking(maskRequest, tenantID, ndjsonRequest, output);
+				} catch (IOException e) {
+					throw e;
+				} catch (Exception e) {
+					throw new WebApplicationException(e);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Read the newline delimited JSON request from the input and write a masked
+	 * line to the output for each line read
+	 * 
+	 * @param maskRequest
+	 *                      request admitted by the MaskRequestExecutor, admitted
+	 *                      for its tenant once the tenantID is known (null if the
+	 *                      stream is not limited)
+	 * @param tenantID
+	 *                      tenantID from the X-Tenant-ID header (may be null if it
+	 *                      is provided on the first line)
+	 * @param ndjsonRequest
+	 *                      request body
+	 * @param output
+	 *                      response body
+	 * @throws Exception
+	 *                   if the response can not be written
+	 */
+	static public void streamMasking(MaskRequestExecutor.MaskRequest maskRequest, String tenantID,
+			InputStream ndjsonRequest, OutputStream output) throws Exception {
+		long requestStart = System.nanoTime();
+		MaskRequestEvent requestEvent = new MaskRequestEvent();
+		requestEvent.begin();
+		NdjsonState state = new NdjsonState(maskRequest, output);
+		JSONObject request = new JSONObject();
+		if (tenantID != null && tenantID.trim().length() > 0) {
+			request.put("tenantID", tenantID.trim());
+		}
+		InputStream input = new BufferedInputStream(ndjsonRequest);
+		LineBuffer line = new LineBuffer();
+		int lineNumber = 0;
+		boolean firstLine = true;
+		while (line.read(input)) {
+			lineNumber++;
+			if (line._overflow) {
+				state.writeError("line " + lineNumber + " exceeds the maximum of " + _maxLineBytes + " bytes.");
+				continue;
+			}
+			if (line.isBlank()) {
+				continue;
+			}
+			JsonNode node = null;
+			try {
+				node = _mapper.readTree(line._bytes, 0, line._length);
+			} catch (IOException e) {
+				state.writeError("line " + lineNumber + " is not valid JSON: " + e.getLocalizedMessage());
+				continue;
+			}
+			if (firstLine) {
+				firstLine = false;
+				if (node instanceof ObjectNode && node.get("utterance") == null) {
+					// configuration line
+					if (!configure((ObjectNode) node, request, state)) {
+						break;
+					}
+					continue;
+				}
+				if (!createContext(request, state)) {
+					break;
+				}
+			}
+			maskLine(node, lineNumber, state);
+		}
+		if (firstLine) {
+			// nothing but (possibly) blank lines were received
+			createContext(request, state);
+		}
+		if (state._context != null) {
+			Masker.recordRequest(state._context, MaskerMetrics.ENDPOINT_DO_MASKING_STREAM, state._lines, state._counts,
+					state._stageNanos, requestStart, requestEvent);
+			if (state._includeCounts) {
+				JSONObject counts = new JSONObject();
+				counts.put("counts", state._counts);
+				state.writeLine(counts.toString());
+			}
+			if (requestEvent.shouldCommit()) {
+				requestEvent.commit();
+			}
+		}
+	}
+
+	/**
+	 * Apply the configuration line and create the masking context
+	 * 
+	 * @param config
+	 *                configuration object from the first line
+	 * @param request
+	 *                request receiving the tenantID, maskNumbers and templates
+	 * @param state
+	 *                state of the stream
+	 * @return true if the masking context was created
+	 * @throws Exception
+	 */
+	static boolean configure(ObjectNode config, JSONObject request, NdjsonState state) throws Exception {
+		JsonNode value = config.get("tenantID");
+		if (value != null && value.isTextual()) {
+			request.put("tenantID", value.asText());
+		}
+		value = config.get("maskNumbers");
+		if (value != null && value.isBoolean()) {
+			request.put("maskNumbers", value.asBoolean());
+		}
+		value = config.get("templates");
+		if (value != null && value.isArray()) {
+			request.put("templates", JSONArray.parse(value.toString()));
+		}
+		value = config.get("includeCounts");
+		state._includeCounts = (value != null && value.asBoolean());
+		return createContext(request, state);
+	}
+
+	/**
+	 * Create the masking context for the stream once the stream is admitted for
+	 * its tenant, writing any errors preventing its creation to the response
+	 * 
+	 * @param request
+	 *                request holding the tenantID, maskNumbers and templates
+	 * @param state
+	 *                state of the stream
+	 * @return true if the masking context was created
+	 * @throws Exception
+	 */
+	static boolean createContext(JSONObject request, NdjsonState state) throws Exception {
+		Object tenantID = request.get("tenantID");
+		if (state._maskRequest != null && tenantID instanceof String
+				&& !state._maskRequest.admitStream((String) tenantID)) {
+			state.writeError(MaskRequestExecutor.getTenantLimitMessage((String) tenantID));
+			return false;
+		}
+		state._context = Masker.createContext(request, state._errors);
+		// templates that could not be used are reported even if masking proceeds
+		state.writeErrors();
+		return state._context != null;
+	}
+
+	/**
+	 * Mask a line of the stream and write its result to the response
+	 * 
+	 * @param node
+	 *                   JSON value read from the line
+	 * @param lineNumber
+	 *                   line number (one-based) in the stream
+	 * @param state
+	 *                   state of the stream
+	 * @throws Exception
+	 */
+	static void maskLine(JsonNode node, int lineNumber, NdjsonState state) throws Exception {
+		if (node.isTextual()) {
+			state._lines++;
+			String masked = Masker.maskLine(state._context, node.asText(), state._counts, state._stageNanos);
+			state.writeLine(_mapper.writeValueAsString(masked));
+			state.writeErrors();
+			return;
+		}
+		JsonNode utterance = (node instanceof ObjectNode ? node.get("utterance") : null);
+		if (utterance == null || utterance.isTextual() == false) {
+			state.writeError("line " + lineNumber + " is neither a string nor a message with an utterance.");
+			return;
+		}
+		state._lines++;
+		JSONArray diffs = new JSONArray();
+		String masked = Masker.maskUtterance(state._context, utterance.asText(), state._counts, state._stageNanos,
+				diffs);
+		ObjectNode message = (ObjectNode) node;
+		message.put("utterance", masked);
+		message.set("diffs", _mapper.readTree(diffs.toString()));
+		state.writeLine(_mapper.writeValueAsString(message));
+		state.writeErrors();
+	}
+
+	/**
+	 * Reusable buffer holding the bytes of one line of the request. Lines longer
+	 * than the maximum line length are skipped rather than buffered.
+	 */
+	static class LineBuffer {
+
+		byte[] _bytes = new byte[8192];
+		int _length = 0;
+		boolean _overflow = false;
+
+		/**
+		 * @return true if the line has only whitespace
+		 */
+		boolean isBlank() {
+			for (int i = 0; i < _length; i++) {
+				byte b = _bytes[i];
+				if (b != ' ' && b != '\t' && b != '\r') {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Read the next line (without its line feed) from the input
+		 * 
+		 * @param input
+		 *              buffered request body
+		 * @return false at the end of the input
+		 * @throws IOException
+		 */
+		boolean read(InputStream input) throws IOException {
+			_length = 0;
+			_overflow = false;
+			int b = input.read();
+			if (b == -1) {
+				return false;
+			}
+			while (b != -1 && b != '\n') {
+				if (_overflow == false) {
+					if (_length == _maxLineBytes) {
+						_overflow = true;
+					} else {
+						if (_length == _bytes.length) {
+							byte[] bytes = new byte[Math.min(_bytes.length * 2, _maxLineBytes)];
+							System.arraycopy(_bytes, 0, bytes, 0, _length);
+							_bytes = bytes;
+						}
+						_bytes[_length++] = (byte) b;
+					}
+				}
+				b = input.read();
+			}
+			return true;
+		}
+	}
+}
@@ -0,0 +1,322 @@
+/**
+ * (c) Copyright 2020-2023 IBM Corporation
+ * 1 New Orchard Road, 
+ * Armonk, New York, 10504-1722
+ * United States
+ * +1 914 499 1900
+ * Nathaniel Mills wnm3@us.ibm.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.whitelistmasker.services;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import javax.ws.rs.core.Response;
+import com.api.json.JSONObject;
+import com.whitelistmasker.masker.Masker;
+
+/**
+ * Single-flight coalescing of identical concurrent masking requests. Requests
+ * to services whose schema object has "coalesce": true (or "coalesce":
+ * {"ttlMillis": 2000}) are keyed by a SHA-256 hash of the endpoint, tenantID,
+ * the tenant's template version, the effective maskNumbers and the serialized
+ * request (or, for requests masked by the {@link MaskUtf8Pipeline}, the request
+ * body's bytes). The first request with a key performs the masking while identical
+ * requests arriving before it completes wait for (and share) its result. With
+ * a ttlMillis the result is also kept for that long to answer identical
+ * requests arriving after it completed. Changing the tenant's templates
+ * changes the key, so stale results are never shared.
+ */
+public class MaskRequestCoalescer {
+
+	/**
+	 * An in-flight (or recently completed) computation shared by identical
+	 * requests
+	 */
+	static class Flight {
+		JSONObject _actionResponses = null;
+		boolean _done = false;
+		Throwable _error = null;
+		long _expires = 0L;
+		byte[] _responseBody = null;
+		final List<MaskRequestExecutor.MaskRequest> _waiters = new ArrayList<MaskRequestExecutor.MaskRequest>();
+	}
+
+	static public final String COALESCE = "coalesce";
+	static public int _maxCachedResults = 1000;
+
+	static final LongAdder _coalesced = new LongAdder();
+	static final Map<String, Flight> _flights = new HashMap<String, Flight>();
+
+	/**
+	 * Complete the flight for the key, resuming the requests that were waiting
+	 * for it and caching its result if the service has a time to live
+	 * 
+	 * @param key
+	 *                        key of the flight
+	 * @param actionResponses
+	 *                        result of the masking (null if it failed)
+	 * @param error
+	 *                        reason the masking failed (null if it succeeded)
+	 * @param ttlMillis
+	 *                        milliseconds the result may be reused
+	 */
+	static public void complete(String key, JSONObject actionResponses, Throwable error, long ttlMillis) {
+		complete(key, actionResponses, null, error, ttlMillis);
+	}
+
+	/**
+	 * Complete the flight for the key with a response body already serialized
+	 * (e.g., by the {@link MaskUtf8Pipeline})
+	 * 
+	 * @param key
+	 *                     key of the flight
+	 * @param responseBody
+	 *                     UTF-8 bytes of the response (null if it failed)
+	 * @param error
+	 *                     reason the masking failed (null if it succeeded)
+	 * @param ttlMillis
+	 *                     milliseconds the result may be reused
+	 */
+	static public void completeBody(String key, byte[] responseBody, Throwable error, long ttlMillis) {
+		complete(key, null, responseBody, error, ttlMillis);
+	}
+
+	/**
+	 * Complete the flight for the key with either form of result
+	 * 
+	 * @param key
+	 *                        key of the flight
+	 * @param actionResponses
+	 *                        result of the masking (null if it failed or was
+	 *                        serialized)
+	 * @param responseBody
+	 *                        serialized result of the masking (null if it failed
+	 *                        or was not serialized)
+	 * @param error
+	 *                        reason the masking failed (null if it succeeded)
+	 * @param ttlMillis
+	 *                        milliseconds the result may be reused
+	 */
+	static void complete(String key, JSONObject actionResponses, byte[] responseBody, Throwable error,
+			long ttlMillis) {
+		List<MaskRequestExecutor.MaskRequest> waiters = null;
+		synchronized (_flights) {
+			Flight flight = _flights.get(key);
+			if (flight == null) {
+				return;
+			}
+			flight._done = true;
+			flight._actionResponses = actionResponses;
+			flight._responseBody = responseBody;
+			flight._error = error;
+			waiters = new ArrayList<MaskRequestExecutor.MaskRequest>(flight._waiters);
+			flight._waiters.clear();
+			if (error == null && ttlMillis > 0L && makeRoom()) {
+				flight._expires = System.currentTimeMillis() + ttlMillis;
+			} else {
+				_flights.remove(key);
+			}
+		}
+		for (MaskRequestExecutor.MaskRequest waiter : waiters) {
+			waiter.complete(getResponse(actionResponses, responseBody, error));
+		}
+	}
+
+	/**
+	 * Compute the coalescing key of a request
+	 * 
+	 * @param endpoint
+	 *                 service endpoint (e.g., masker/doMasking)
+	 * @param body
+	 *                 request body
+	 * @return hex encoded SHA-256 hash identifying the request
+	 * @throws Exception
+	 *                   if SHA-256 is not available
+	 */
+	static public String getKey(String endpoint, JSONObject body) throws Exception {
+		String tenantID = null;
+		Object maskNumbers = null;
+		Object request = body.get("request");
+		if (request instanceof JSONObject) {
+			tenantID = (String) ((JSONObject) request).get("tenantID");
+			maskNumbers = ((JSONObject) request).get("maskNumbers");
+		}
+		if (!(maskNumbers instanceof Boolean) && tenantID != null) {
+			maskNumbers = Masker._mapMaskNumbers.get(tenantID);
+		}
+		// API4JSON serializes keys in sorted order so equal requests match
+		return getKey(endpoint, tenantID, maskNumbers, body.toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Compute the coalescing key of a request from its body's bytes
+	 * 
+	 * @param endpoint
+	 *                    service endpoint (e.g., masker/doMasking)
+	 * @param tenantID
+	 *                    tenantID of the request (may be null)
+	 * @param maskNumbers
+	 *                    effective maskNumbers of the request
+	 * @param body
+	 *                    UTF-8 bytes of the request body
+	 * @return hex encoded SHA-256 hash identifying the request
+	 * @throws Exception
+	 *                   if SHA-256 is not available
+	 */
+	static public String getKey(String endpoint, String tenantID, Object maskNumbers, byte[] body)
+			throws Exception {
+		MessageDigest digest = MessageDigest.getInstance("SHA-256");
+		StringBuilder sb = new StringBuilder();
+		sb.append(endpoint).append('\u0000').append(tenantID).append('\u0000');
+		sb.append(tenantID == null ? 0L : Masker.getTemplateVersion(tenantID)).append('\u0000');
+		sb.append(maskNumbers).append('\u0000');
+		digest.update(sb.toString().getBytes(StandardCharsets.UTF_8));
+		byte[] hash = digest.digest(body);
+		sb.setLength(0);
+		for (byte b : hash) {
+			sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Return the coalescing state in the Prometheus text exposition format
+	 * 
+	 * @return metrics text
+	 */
+	static public String getPrometheusText() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("# HELP masker_coalesced_requests_total Requests answered by an identical request's result.\n");
+		sb.append("# TYPE masker_coalesced_requests_total counter\n");
+		sb.append("masker_coalesced_requests_total ").append(_coalesced.sum()).append("\n");
+		return sb.toString();
+	}
+
+	/**
+	 * Create the response for a shared result
+	 * 
+	 * @param actionResponses
+	 *                        result of the masking (null if it failed or was
+	 *                        serialized)
+	 * @param responseBody
+	 *                        serialized result of the masking (null if it failed
+	 *                        or was not serialized)
+	 * @param error
+	 *                        reason the masking failed (null if it succeeded)
+	 * @return response
+	 */
+	static Response getResponse(JSONObject actionResponses, byte[] responseBody, Throwable error) {
+		if (error != null) {
+			return MaskServiceUtil.getErrorResponse(error, MaskResponseCodes.Mask_UNEXPECTED_ERROR);
+		}
+		if (responseBody != null) {
+			return MaskServiceUtil.getResponse(responseBody);
+		}
+		return MaskServiceUtil.getResponse(actionResponses);
+	}
+
+	/**
+	 * Get the milliseconds a service's results may be reused
+	 * 
+	 * @param serviceLogic
+	 *                     service object from the schema
+	 * @return the time to live (0 if results are only shared while in flight)
+	 */
+	static public long getTTLMillis(JSONObject serviceLogic) {
+		Object coalesce = serviceLogic.get(COALESCE);
+		if (coalesce instanceof JSONObject) {
+			Object ttl = ((JSONObject) coalesce).get("ttlMillis");
+			if (ttl instanceof Number) {
+				return ((Number) ttl).longValue();
+			}
+		}
+		return 0L;
+	}
+
+	/**
+	 * Determine whether a service coalesces identical requests
+	 * 
+	 * @param serviceLogic
+	 *                     service object from the schema
+	 * @return true if the service's "coalesce" is true or an object
+	 */
+	static public boolean isCoalesced(JSONObject serviceLogic) {
+		Object coalesce = serviceLogic.get(COALESCE);
+		return Boolean.TRUE.equals(coalesce) || coalesce instanceof JSONObject;
+	}
+
+	/**
+	 * Join the flight for the key. If there is no flight the caller becomes its
+	 * leader and must call
+	 * {@link #complete(String, JSONObject, Throwable, long)} once the masking is
+	 * done. Otherwise the request shares the flight's result: it is completed
+	 * now if the result is cached, or when the leader completes.
+	 * 
+	 * @param key
+	 *                    key of the request
+	 * @param maskRequest
+	 *                    request joining the flight
+	 * @return true if the caller leads the flight, false if the request is (or
+	 *         will be) completed with the flight's result
+	 */
+	static public boolean join(String key, MaskRequestExecutor.MaskRequest maskRequest) {
+		Flight flight = null;
+		synchronized (_flights) {
+			flight = _flights.get(key);
+			if (flight != null && flight._done && flight._expires <= System.currentTimeMillis()) {
+				_flights.remove(key);
+				flight = null;
+			}
+			if (flight == null) {
+				_flights.put(key, new Flight());
+				return true;
+			}
+			_coalesced.increment();
+			if (!flight._done) {
+				flight._waiters.add(maskRequest);
+				return false;
+			}
+		}
+		maskRequest.complete(getResponse(flight._actionResponses, flight._responseBody, flight._error));
+		return false;
+	}
+
+	/**
+	 * Ensure there is room to cache another result, removing expired results
+	 * 
+	 * @return true if a result may be cached
+	 */
+	static boolean makeRoom() {
+		if (_flights.size() <= _maxCachedResults) {
+			return true;
+		}
+		long now = System.currentTimeMillis();
+		for (Iterator<Flight> it = _flights.values().iterator(); it.hasNext();) {
+			Flight flight = it.next();
+			if (flight._done && flight._expires <= now) {
+				it.remove();
+			}
+		}
+		return _flights.size() <= _maxCachedResults;
+	}
+}
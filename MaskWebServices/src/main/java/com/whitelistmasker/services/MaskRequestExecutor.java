@@ -0,0 +1,519 @@
+/**
+ * (c) Copyright 2020-2023 IBM Corporation
+ * 1 New Orchard Road, 
+ * Armonk, New York, 10504-1722
+ * United States
+ * +1 914 499 1900
+ * Nathaniel Mills wnm3@us.ibm.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.whitelistmasker.services;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import com.api.json.JSONObject;
+import com.whitelistmasker.masker.MaskerMetrics;
+
+/**
+ * Runs the masking requests of suspended (asynchronous) JAX-RS calls on a
+ * dedicated, bounded pool of worker threads rather than on the HTTP threads.
+ * Admission is controlled by a {@link MaskConcurrencyLimiter} so that during
+ * bursts requests beyond the adaptive limit are answered immediately with a
+ * 429 (Too Many Requests) and a Retry-After header instead of waiting in
+ * queues. Each tenant is also limited in the number of requests it may have
+ * admitted (its bulkhead).
+ * 
+ * Requests are performed as one or more steps queued in a
+ * {@link MaskFairScheduler}, so a large batch split into chunks interleaves
+ * with the requests of other tenants and with the interactive lane.
+ * 
+ * The pool, limiter and scheduler are configured by the optional "execution"
+ * object of the Masker schema in Masker_RESTServicesSchema.json:
+ * 
+ * <pre>
+ * "execution": {
+ *    "workerThreads": 8,
+ *    "initialLimit": 16,
+ *    "minLimit": 2,
+ *    "maxLimit": 64,
+ *    "targetLatencyMillis": 500,
+ *    "backoffRatio": 0.9,
+ *    "timeoutSeconds": 60,
+ *    "tenantMaxRequests": 32,
+ *    "tenantMaxWorkers": 4,
+ *    "tenantWeights": { "companyA": 2 },
+ *    "interactiveWeight": 4,
+ *    "bulkWeight": 1,
+ *    "bulkRequestBytes": 65536,
+ *    "chunkLines": 500
+ * }
+ * </pre>
+ * 
+ * where the number of worker threads defaults to the number of processors and
+ * the limits default to multiples of the worker threads.
+ */
+public class MaskRequestExecutor {
+
+	/**
+	 * A request admitted for execution, whose steps are performed on the worker
+	 * threads
+	 */
+	static public class MaskRequest {
+
+		final AsyncResponse _asyncResponse;
+		boolean _bulk = false;
+		int _lane = MaskFairScheduler.LANE_INTERACTIVE;
+		// tenant whose running slot is held while a streamed response is written
+		String _runningTenantID = null;
+		String _scheduledTenantID = null;
+		final long _start = System.nanoTime();
+		boolean _tenantAdmitted = false;
+		String _tenantID;
+
+		MaskRequest(AsyncResponse asyncResponse, String tenantID) {
+			_asyncResponse = asyncResponse;
+			_tenantID = tenantID;
+		}
+
+		/**
+		 * Admit the request for the tenant, once its tenantID is known
+		 * 
+		 * @param tenantID
+		 *                 tenant making the request
+		 * @return true if admitted, false if the tenant has reached its limit of
+		 *         admitted requests
+		 */
+		public boolean admitTenant(String tenantID) {
+			if (_tenantAdmitted) {
+				return true;
+			}
+			_tenantID = tenantID;
+			_tenantAdmitted = acquireTenant(tenantID);
+			return _tenantAdmitted;
+		}
+
+		/**
+		 * Admit a streamed request for its tenant once the tenantID has been read
+		 * from the stream, and wait for one of the tenant's running slots. The slot
+		 * is held until the stream has been written, as the masking is performed
+		 * while writing rather than on a worker thread.
+		 * 
+		 * @param tenantID
+		 *                 tenant making the request
+		 * @return true if admitted, false if the tenant has reached its limit of
+		 *         admitted requests
+		 * @throws InterruptedException
+		 *                              if interrupted while waiting for a slot
+		 */
+		public boolean admitStream(String tenantID) throws InterruptedException {
+			if (!admitTenant(tenantID)) {
+				return false;
+			}
+			if (_runningTenantID == null) {
+				_scheduler.acquire(_tenantID);
+				_runningTenantID = _tenantID;
+			}
+			return true;
+		}
+
+		/**
+		 * Resume the request with its response, releasing its permits (after the
+		 * output is written for streamed responses)
+		 * 
+		 * @param response
+		 *                 response to the request
+		 */
+		void complete(Response response) {
+			final Object entity = response.getEntity();
+			if (entity instanceof StreamingOutput) {
+				// the permits are released once the stream is written
+				response = Response.fromResponse(response).entity(new StreamingOutput() {
+					@Override
+					public void write(OutputStream output) throws IOException, WebApplicationException {
+						try {
+							((StreamingOutput) entity).write(output);
+						} finally {
+							release(false);
+						}
+					}
+				}).build();
+				if (!_asyncResponse.resume(response)) {
+					release(false);
+				}
+			} else {
+				release(!_bulk);
+				_asyncResponse.resume(response);
+			}
+		}
+
+		/**
+		 * @return the lane the request's last step was queued in
+		 */
+		public int getLane() {
+			return _lane;
+		}
+
+		/**
+		 * @return the tenant the request is performed for
+		 */
+		public String getTenantID() {
+			return _tenantID;
+		}
+
+		/**
+		 * @return true if the current step was queued for another tenant than the
+		 *         one admitted (i.e., as the unknown tenant before the tenantID was
+		 *         read from the request body), so the remaining work should be
+		 *         scheduled for the admitted tenant
+		 */
+		public boolean isRescheduleNeeded() {
+			return _tenantID.equals(_scheduledTenantID) == false;
+		}
+
+		/**
+		 * Release the request's permits
+		 * 
+		 * @param sample
+		 *               true if the request's latency should adjust the
+		 *               concurrency limit
+		 */
+		void release(boolean sample) {
+			_limiter.release(System.nanoTime() - _start, sample);
+			if (_runningTenantID != null) {
+				_scheduler.release(_runningTenantID);
+				_runningTenantID = null;
+			}
+			if (_tenantAdmitted) {
+				releaseTenant(_tenantID);
+				_tenantAdmitted = false;
+			}
+		}
+
+		/**
+		 * Queue the next step of the request
+		 * 
+		 * @param lane
+		 *             MaskFairScheduler.LANE_INTERACTIVE or LANE_BULK
+		 * @param step
+		 *             step to be performed
+		 */
+		public void schedule(int lane, Step step) {
+			if (lane == MaskFairScheduler.LANE_BULK) {
+				// batches are not expected to meet the interactive latency target
+				_bulk = true;
+			}
+			_lane = lane;
+			_scheduledTenantID = _tenantID;
+			_scheduler.submit(new MaskFairScheduler.Task(_tenantID, lane, new StepRunner(this, step)));
+		}
+	}
+
+	/**
+	 * A step of a request performed on a worker thread
+	 */
+	static public interface Step {
+
+		/**
+		 * Perform the step
+		 * 
+		 * @param request
+		 *                request the step belongs to
+		 * @return the response to the request, or null if the step scheduled a
+		 *         following step
+		 * @throws Exception
+		 */
+		Response perform(MaskRequest request) throws Exception;
+	}
+
+	/**
+	 * Performs a step, completing its request when the step returns a response
+	 */
+	static class StepRunner implements Runnable {
+		final MaskRequest _request;
+		final Step _step;
+
+		StepRunner(MaskRequest request, Step step) {
+			_request = request;
+			_step = step;
+		}
+
+		@Override
+		public void run() {
+			Response response = null;
+			try {
+				response = _step.perform(_request);
+			} catch (Throwable t) {
+				response = MaskServiceUtil.getErrorResponse(t, MaskResponseCodes.Mask_UNEXPECTED_ERROR);
+			}
+			if (response != null) {
+				_request.complete(response);
+			}
+		}
+	}
+
+	static public final String EXECUTION = "execution";
+
+	static final long _bulkRequestBytes;
+	static final int _chunkLines;
+	static final MaskConcurrencyLimiter _limiter;
+	static final MaskFairScheduler _scheduler;
+	static final int _tenantMaxRequests;
+	static final Map<String, Integer> _tenantRequests = new HashMap<String, Integer>();
+	static final long _timeoutSeconds;
+
+	static {
+		JSONObject config = ServicesManager.executionConfig;
+		if (config == null) {
+			config = new JSONObject();
+		}
+		int workerThreads = Math.max(1, getInt(config, "workerThreads", Runtime.getRuntime().availableProcessors()));
+		int maxLimit = getInt(config, "maxLimit", workerThreads * 8);
+		_limiter = new MaskConcurrencyLimiter(getInt(config, "initialLimit", workerThreads * 2),
+				getInt(config, "minLimit", 1), maxLimit, getInt(config, "targetLatencyMillis", 500),
+				getDouble(config, "backoffRatio", 0.9));
+		_timeoutSeconds = getInt(config, "timeoutSeconds", 60);
+		_tenantMaxRequests = Math.max(1, getInt(config, "tenantMaxRequests", Math.max(1, maxLimit / 2)));
+		_bulkRequestBytes = getInt(config, "bulkRequestBytes", 65536);
+		_chunkLines = Math.max(1, getInt(config, "chunkLines", 500));
+		Map<String, Integer> tenantWeights = new HashMap<String, Integer>();
+		Object test = config.get("tenantWeights");
+		if (test instanceof JSONObject) {
+			JSONObject weights = (JSONObject) test;
+			for (Iterator<?> it = weights.keySet().iterator(); it.hasNext();) {
+				String tenantID = (String) it.next();
+				tenantWeights.put(tenantID, getInt(weights, tenantID, 1));
+			}
+		}
+		_scheduler = new MaskFairScheduler(getInt(config, "interactiveWeight", 4), getInt(config, "bulkWeight", 1),
+				getInt(config, "tenantMaxWorkers", Math.max(1, (workerThreads + 1) / 2)), tenantWeights);
+		for (int i = 1; i <= workerThreads; i++) {
+			Thread worker = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					while (true) {
+						MaskFairScheduler.Task task = null;
+						try {
+							task = _scheduler.take();
+						} catch (InterruptedException e) {
+							return;
+						}
+						try {
+							task._runnable.run();
+						} finally {
+							_scheduler.done(task);
+						}
+					}
+				}
+			}, "masker-worker-" + i);
+			worker.setDaemon(true);
+			worker.start();
+		}
+	}
+
+	/**
+	 * Admit a request for a tenant if it is below its limit of admitted requests
+	 * 
+	 * @param tenantID
+	 *                 tenant making the request
+	 * @return true if admitted
+	 */
+	static boolean acquireTenant(String tenantID) {
+		synchronized (_tenantRequests) {
+			Integer count = _tenantRequests.get(tenantID);
+			if (count != null && count >= _tenantMaxRequests) {
+				return false;
+			}
+			_tenantRequests.put(tenantID, count == null ? 1 : count + 1);
+			return true;
+		}
+	}
+
+	/**
+	 * @return lines masked in each step of a chunked batch
+	 */
+	static public int getChunkLines() {
+		return _chunkLines;
+	}
+
+	/**
+	 * Get a double configuration value
+	 * 
+	 * @param config
+	 *                     execution configuration
+	 * @param key
+	 *                     name of the value
+	 * @param defaultValue
+	 *                     value to use if the key is missing or not a number
+	 * @return the configured value
+	 */
+	static double getDouble(JSONObject config, String key, double defaultValue) {
+		Object value = config.get(key);
+		if (value instanceof Number) {
+			return ((Number) value).doubleValue();
+		}
+		return defaultValue;
+	}
+
+	/**
+	 * Get an integer configuration value
+	 * 
+	 * @param config
+	 *                     execution configuration
+	 * @param key
+	 *                     name of the value
+	 * @param defaultValue
+	 *                     value to use if the key is missing or not a number
+	 * @return the configured value
+	 */
+	static int getInt(JSONObject config, String key, int defaultValue) {
+		Object value = config.get(key);
+		if (value instanceof Number) {
+			return ((Number) value).intValue();
+		}
+		return defaultValue;
+	}
+
+	/**
+	 * Determine the lane for a request from its size
+	 * 
+	 * @param contentLength
+	 *                      length of the request body (-1 if unknown)
+	 * @return LANE_BULK for requests larger than the bulk request size,
+	 *         otherwise LANE_INTERACTIVE
+	 */
+	static public int getLane(long contentLength) {
+		return contentLength > _bulkRequestBytes ? MaskFairScheduler.LANE_BULK : MaskFairScheduler.LANE_INTERACTIVE;
+	}
+
+	/**
+	 * @return the limiter controlling admission of requests
+	 */
+	static public MaskConcurrencyLimiter getLimiter() {
+		return _limiter;
+	}
+
+	/**
+	 * Return the limiter and scheduler state in the Prometheus text exposition
+	 * format
+	 * 
+	 * @return metrics text
+	 */
+	static public String getPrometheusText() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("# HELP masker_concurrency_limit Adaptive limit on masking requests in flight.\n");
+		sb.append("# TYPE masker_concurrency_limit gauge\n");
+		sb.append("masker_concurrency_limit ").append(_limiter.getLimit()).append("\n");
+		sb.append("# HELP masker_requests_in_flight Masking requests holding a permit.\n");
+		sb.append("# TYPE masker_requests_in_flight gauge\n");
+		sb.append("masker_requests_in_flight ").append(_limiter.getInFlight()).append("\n");
+		sb.append("# HELP masker_requests_rejected_total Masking requests shed with a 429.\n");
+		sb.append("# TYPE masker_requests_rejected_total counter\n");
+		sb.append("masker_requests_rejected_total ").append(_limiter.getRejected()).append("\n");
+		sb.append("# HELP masker_worker_queue_size Masking tasks waiting for a worker thread.\n");
+		sb.append("# TYPE masker_worker_queue_size gauge\n");
+		for (int lane = 0; lane < MaskFairScheduler.LANE_NAMES.length; lane++) {
+			sb.append("masker_worker_queue_size{lane=\"").append(MaskFairScheduler.LANE_NAMES[lane]).append("\"} ")
+					.append(_scheduler.getQueued(lane)).append("\n");
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Create the response for a request shed because a concurrency limit was
+	 * reached
+	 * 
+	 * @param tenantID
+	 *                 tenant whose limit was reached, or null if the service's
+	 *                 limit was reached
+	 * @return 429 response with a Retry-After header
+	 */
+	static Response getTooManyRequestsResponse(String tenantID) {
+		String message = (tenantID == null
+				? "The masking service is at its concurrency limit of " + _limiter.getLimit()
+						+ " requests, please retry later."
+				: getTenantLimitMessage(tenantID));
+		return MaskServiceUtil.getErrorResponse(message, MaskResponseCodes.Mask_TOO_MANY_REQUESTS,
+				_limiter.getRetryAfterSeconds());
+	}
+
+	/**
+	 * @param tenantID
+	 *                 tenant whose limit was reached
+	 * @return message for a request shed because its tenant reached its limit of
+	 *         admitted requests
+	 */
+	static public String getTenantLimitMessage(String tenantID) {
+		return "tenantID \"" + tenantID + "\" is at its limit of " + _tenantMaxRequests
+				+ " requests, please retry later.";
+	}
+
+	/**
+	 * Release a request admitted by {@link #acquireTenant(String)}
+	 * 
+	 * @param tenantID
+	 *                 tenant that made the request
+	 */
+	static void releaseTenant(String tenantID) {
+		synchronized (_tenantRequests) {
+			Integer count = _tenantRequests.get(tenantID);
+			if (count == null || count <= 1) {
+				_tenantRequests.remove(tenantID);
+			} else {
+				_tenantRequests.put(tenantID, count - 1);
+			}
+		}
+	}
+
+	/**
+	 * Admit a suspended request and queue its first step, or resume it with a
+	 * 429 response if the concurrency limit (or the tenant's limit) has been
+	 * reached. Responses whose entity is a StreamingOutput hold their permits
+	 * until the output has been written.
+	 * 
+	 * @param asyncResponse
+	 *                      suspended response of the request
+	 * @param tenantID
+	 *                      tenant making the request if known (e.g., from the
+	 *                      X-Tenant-ID header), otherwise null
+	 * @param lane
+	 *                      MaskFairScheduler.LANE_INTERACTIVE or LANE_BULK
+	 * @param step
+	 *                      first step of the request (performed on a worker
+	 *                      thread)
+	 */
+	static public void submit(AsyncResponse asyncResponse, String tenantID, int lane, Step step) {
+		if (!_limiter.tryAcquire()) {
+			asyncResponse.resume(getTooManyRequestsResponse(null));
+			return;
+		}
+		MaskRequest request = new MaskRequest(asyncResponse, tenantID == null ? MaskerMetrics.UNKNOWN_TENANT : tenantID);
+		if (tenantID != null && !request.admitTenant(tenantID)) {
+			_limiter.release(0L, false);
+			asyncResponse.resume(getTooManyRequestsResponse(tenantID));
+			return;
+		}
+		asyncResponse.setTimeout(_timeoutSeconds, TimeUnit.SECONDS);
+		request.schedule(lane, step);
+	}
+}
@@ -60,6 +60,8 @@ public enum MaskResponseCodes {
 			"Service name not recognized", Response.Status.BAD_REQUEST), //
 	Mask_SESSION_ID_NOT_FOUND(1011, "SESSION_ID_NOT_FOUND", //
 			"Session id not found", Response.Status.NOT_FOUND), //
+	Mask_TOO_MANY_REQUESTS(1016, "TOO_MANY_REQUESTS", //
+			"Too many requests", Response.Status.TOO_MANY_REQUESTS), //
 	Mask_UNEXPECTED_ERROR(1006, "UNEXPECTED_ERROR", //
 			"Unexpected error", Response.Status.BAD_REQUEST), //
 	Mask_UNSUPPORTED_ENCODING_TYPE(1005, "UNSUPPORTED_ENCODING_TYPE", //
@@ -36,10 +36,15 @@ import java.util.ArrayList;
 import java.util.EmptyStackException;
 import java.util.List;
 import java.util.Stack;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.ResponseBuilder;
+import javax.ws.rs.core.StreamingOutput;
 import com.api.json.JSONArray;
 import com.api.json.JSONObject;
+import com.whitelistmasker.masker.Masker;
+import com.whitelistmasker.masker.MaskerMetrics;
 import com.whitelistmasker.masker.MaskerUtils;
 
 /**
@@ -62,6 +67,10 @@ public class MaskServiceUtil implements Serializable {
 	static boolean debug = false; // true; // to turn on
 	// HTTP header extensions
 	public static final String HTTP_HEADER_SESSION_ID = "X-Session-ID";
+	// request a streamed response from services supporting streaming
+	public static final String HTTP_HEADER_STREAMING = "X-Mask-Streaming";
+	// tenantID for services whose request body does not carry it
+	public static final String HTTP_HEADER_TENANT_ID = "X-Tenant-ID";
 	// user id request header (including cookie) attributes
 	public static final String HTTP_HEADER_USER_ID = "X-User-ID";
 
@@ -96,6 +105,25 @@ public class MaskServiceUtil implements Serializable {
 	 * @return response
 	 */
 	public static Response getErrorResponse(String errorMessage, MaskResponseCodes maskResponseCode) {
+		return getErrorResponse(errorMessage, maskResponseCode, 0);
+	}
+
+	/**
+	 * Creates a response to contain an error message by the passed
+	 * ildResponseCodes object, and the passed errorMessage (if one exists (e.g., is
+	 * not null)), with a Retry-After header telling the client when it may retry.
+	 * 
+	 * @param errorMessage
+	 *                          description of the error
+	 * @param maskResponseCode
+	 *                          error response code
+	 * @param retryAfterSeconds
+	 *                          seconds the client should wait before retrying (no
+	 *                          Retry-After header is sent if not positive)
+	 * @return response
+	 */
+	public static Response getErrorResponse(String errorMessage, MaskResponseCodes maskResponseCode,
+			int retryAfterSeconds) {
 		if (maskResponseCode == null) {
 			maskResponseCode = MaskResponseCodes.Mask_UNEXPECTED_ERROR;
 		}
@@ -111,11 +139,15 @@ public class MaskServiceUtil implements Serializable {
 		JSONObject errorObj = new JSONObject();
 		errorObj.put("error", errorContentsObj);
 		JSONObject ildErrorObj = errorObj;
-		Response resp = Response.status(maskResponseCode.respCode()).header("Access-Control-Allow-Credentials", "true")
+		ResponseBuilder builder = Response.status(maskResponseCode.respCode())
+				.header("Access-Control-Allow-Credentials", "true")
 				.header("Access-Control-Allow-Headers", "origin, content-type, accept, authorization")
 				.header("Access-Control-Allow-Methods", "GET, POST, PUT, DELETE, OPTIONS, HEAD")
-				.header("Access-Control-Allow-Origin", "*").header("Access_Control_Max_Age", 43200)
-				.entity(ildErrorObj.toString()).type(MediaType.APPLICATION_JSON).build();
+				.header("Access-Control-Allow-Origin", "*").header("Access_Control_Max_Age", 43200);
+		if (retryAfterSeconds > 0) {
+			builder.header("Retry-After", retryAfterSeconds);
+		}
+		Response resp = builder.entity(ildErrorObj.toString()).type(MediaType.APPLICATION_JSON).build();
 		return resp;
 
 	}
@@ -229,6 +261,137 @@ public class MaskServiceUtil implements Serializable {
 		return resp;
 	}
 
+	/**
+	 * Create a response to the REST Request whose JSON has already been encoded
+	 * as UTF-8 bytes
+	 * 
+	 * @param responseBody
+	 *                     UTF-8 bytes of the JSON to be returned in the response
+	 * @return response
+	 */
+	public static Response getResponse(byte[] responseBody) {
+		Response resp = Response.status(MaskResponseCodes.Mask_OKAY.respCode())
+				.header("Access-Control-Allow-Credentials", "true")
+				.header("Access-Control-Allow-Headers", "origin, content-type, accept, authorization")
+				.header("Access-Control-Allow-Methods", "GET, POST, PUT, DELETE, OPTIONS, HEAD")
+				.header("Access-Control-Allow-Origin", "*").header("Access_Control_Max_Age", 43200)
+				.entity(responseBody).type(MediaType.APPLICATION_JSON).build();
+		return resp;
+	}
+
+	/**
+	 * Get the tenantID from the request body's request object, for use as a
+	 * metrics tag. Only known tenantIDs are returned to bound the number of
+	 * distinct tags.
+	 * 
+	 * @param request
+	 *                request body (containing a request object)
+	 * @return the tenantID of the request or MaskerMetrics.UNKNOWN_TENANT if it is
+	 *         missing or unknown
+	 */
+	public static String getTenantID(JSONObject request) {
+		if (request != null) {
+			Object reqObj = request.get("request");
+			if (reqObj instanceof JSONObject) {
+				Object tenantID = ((JSONObject) reqObj).get("tenantID");
+				if (tenantID instanceof String && Masker._setTenantIDs.contains(tenantID)) {
+					return (String) tenantID;
+				}
+			}
+		}
+		return MaskerMetrics.UNKNOWN_TENANT;
+	}
+
+	/**
+	 * Get the length of the request body from the Content-Length header
+	 * 
+	 * @param headers
+	 *                HTTP headers from request
+	 * @return length of the request body, or -1 if it is not known (e.g., for
+	 *         chunked transfers)
+	 */
+	public static long getContentLength(HttpHeaders headers) {
+		if (headers == null) {
+			return -1L;
+		}
+		String value = headers.getHeaderString(HttpHeaders.CONTENT_LENGTH);
+		if (value == null) {
+			return -1L;
+		}
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			return -1L;
+		}
+	}
+
+	/**
+	 * Create a response whose content is written by the supplied streaming output
+	 * 
+	 * @param output
+	 *               streaming output writing the JSON response
+	 * @return response
+	 */
+	public static Response getStreamingResponse(StreamingOutput output) {
+		return getStreamingResponse(output, MediaType.APPLICATION_JSON);
+	}
+
+	/**
+	 * Create a response of the supplied media type whose content is written by
+	 * the supplied streaming output
+	 * 
+	 * @param output
+	 *                  streaming output writing the response
+	 * @param mediaType
+	 *                  media type of the response (e.g., application/x-ndjson)
+	 * @return response
+	 */
+	public static Response getStreamingResponse(StreamingOutput output, String mediaType) {
+		Response resp = Response.status(MaskResponseCodes.Mask_OKAY.respCode())
+				.header("Access-Control-Allow-Credentials", "true")
+				.header("Access-Control-Allow-Headers", "origin, content-type, accept, authorization")
+				.header("Access-Control-Allow-Methods", "GET, POST, PUT, DELETE, OPTIONS, HEAD")
+				.header("Access-Control-Allow-Origin", "*").header("Access_Control_Max_Age", 43200).entity(output)
+				.type(mediaType).build();
+		return resp;
+	}
+
+	/**
+	 * Determine whether the client requested a streamed response by sending the
+	 * X-Mask-Streaming header with a value of true
+	 * 
+	 * @param headers
+	 *                HTTP headers from request
+	 * @return true if a streamed response was requested
+	 */
+	public static boolean isStreamingRequested(HttpHeaders headers) {
+		if (headers == null) {
+			return false;
+		}
+		String value = headers.getHeaderString(HTTP_HEADER_STREAMING);
+		return value != null && "true".equalsIgnoreCase(value.trim());
+	}
+
+	/**
+	 * Create a text response to the REST Request (e.g., for the Prometheus metrics
+	 * exposition)
+	 * 
+	 * @param text
+	 *                  content to be returned in the response
+	 * @param mediaType
+	 *                  media type of the content
+	 * @return response
+	 */
+	public static Response getTextResponse(String text, String mediaType) {
+		Response resp = Response.status(MaskResponseCodes.Mask_OKAY.respCode())
+				.header("Access-Control-Allow-Credentials", "true")
+				.header("Access-Control-Allow-Headers", "origin, content-type, accept, authorization")
+				.header("Access-Control-Allow-Methods", "GET, POST, PUT, DELETE, OPTIONS, HEAD")
+				.header("Access-Control-Allow-Origin", "*").header("Access_Control_Max_Age", 43200).entity(text)
+				.type(mediaType).build();
+		return resp;
+	}
+
 	/**
 	 * Helper function to read either the inputStream or errorStream depending on
 	 * the response code.
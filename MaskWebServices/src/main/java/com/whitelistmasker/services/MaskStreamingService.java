@@ -0,0 +1,327 @@
+/**
+ * (c) Copyright 2020-2023 IBM Corporation
+ * 1 New Orchard Road, 
+ * Armonk, New York, 10504-1722
+ * United States
+ * +1 914 499 1900
+ * Nathaniel Mills wnm3@us.ibm.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.whitelistmasker.services;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.StreamingOutput;
+import com.api.json.JSONArray;
+import com.api.json.JSONObject;
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.whitelistmasker.masker.MaskRequestEvent;
+import com.whitelistmasker.masker.Masker;
+import com.whitelistmasker.masker.MaskerContext;
+import com.whitelistmasker.masker.MaskerMetrics;
+
+/**
+ * Streaming implementation of the masker/doMasking and masker/doMessageMasking
+ * services. The request body is pull parsed so the tenantID, maskNumbers and
+ * templates are read first, then each element of the unmasked (or messages)
+ * array is masked and written to the response as soon as it is read. Neither
+ * the request nor the response is held in memory, so large batches do not
+ * need a request sized heap.
+ * 
+ * The response has the same results object as the non-streaming services
+ * except the request is not echoed back. The tenantID, maskNumbers and
+ * templates should precede the array being masked in the request; if the
+ * array arrives before the tenantID its elements are buffered until the end of
+ * the request, and templates or maskNumbers arriving after the array are
+ * reported as errors because they could not be applied.
+ */
+public class MaskStreamingService {
+
+	static public final String STREAM_MESSAGES = "messages";
+	static public final String STREAM_UNMASKED = "unmasked";
+	static final ObjectMapper _mapper = new ObjectMapper();
+
+	/**
+	 * State of a streamed request
+	 */
+	static class StreamState {
+
+		final JSONObject _counts = Masker.newCounts();
+		MaskerContext _context = null;
+		boolean _contextCreated = false;
+		final JSONArray _diffs = new JSONArray();
+		final String _endpoint;
+		final JSONArray _errors = new JSONArray();
+		final JsonGenerator _gen;
+		boolean _includeCounts = false;
+		int _lines = 0;
+		final MaskRequestExecutor.MaskRequest _maskRequest;
+		final long[] _stageNanos = new long[MaskerMetrics.STAGE_NAMES.length];
+		final String _streamed;
+
+		StreamState(MaskRequestExecutor.MaskRequest maskRequest, String endpoint, String streamed,
+				JsonGenerator gen) {
+			_maskRequest = maskRequest;
+			_endpoint = endpoint;
+			_streamed = streamed;
+			_gen = gen;
+		}
+
+		/**
+		 * Create the masking context from the request fields read so far, once the
+		 * request is admitted for its tenant
+		 * 
+		 * @param request
+		 *                object holding the tenantID, maskNumbers and templates
+		 * @throws Exception
+		 */
+		void createContext(JSONObject request) throws Exception {
+			_contextCreated = true;
+			Object tenantID = request.get("tenantID");
+			if (_maskRequest != null && tenantID instanceof String
+					&& !_maskRequest.admitStream((String) tenantID)) {
+				JSONObject error = new JSONObject();
+				error.put("error", MaskRequestExecutor.getTenantLimitMessage((String) tenantID));
+				_errors.add(error);
+				return;
+			}
+			_context = Masker.createContext(request, _errors);
+		}
+
+		/**
+		 * Mask an element of the streamed array and write it to the response
+		 * 
+		 * @param element
+		 *                element of the unmasked or messages array
+		 * @throws Exception
+		 */
+		void maskElement(JsonNode element) throws Exception {
+			_lines++;
+			if (STREAM_MESSAGES.equals(_streamed)) {
+				JsonNode utterance = (element instanceof ObjectNode ? element.get("utterance") : null);
+				if (utterance == null || utterance.isTextual() == false) {
+					JSONObject error = new JSONObject();
+					error.put("error", "message " + (_lines - 1) + " has no utterance.");
+					_errors.add(error);
+					_mapper.writeTree(_gen, element);
+					return;
+				}
+				String masked = Masker.maskUtterance(_context, utterance.asText(), _counts, _stageNanos, _diffs);
+				((ObjectNode) element).put("utterance", masked);
+				_mapper.writeTree(_gen, element);
+			} else {
+				if (element == null || element.isNull()) {
+					_gen.writeString("");
+				} else {
+					String line = (element.isValueNode() ? element.asText() : element.toString());
+					_gen.writeString(Masker.maskLine(_context, line, _counts, _stageNanos));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Get the streaming output performing the masking of a request
+	 * 
+	 * @param maskRequest
+	 *                    request admitted by the MaskRequestExecutor, admitted for
+	 *                    its tenant once the tenantID is read
+	 * @param endpoint
+	 *                    service endpoint (e.g., masker/doMasking)
+	 * @param streamed
+	 *                    name of the array to be masked (unmasked or messages)
+	 * @param responseKey
+	 *                    key of the results in the response (the service's
+	 *                    response)
+	 * @param jsonRequest
+	 *                    request body
+	 * @return streaming output writing the response
+	 */
+	static public StreamingOutput getStreamingOutput(final MaskRequestExecutor.MaskRequest maskRequest,
+			final String endpoint, final String streamed, final String responseKey, final InputStream jsonRequest) {
+		return new StreamingOutput() {
+			@Override
+			public void write(OutputStream output) throws IOException, WebApplicationException {
+				try {
+					streamMasking(maskRequest, endpoint, streamed, responseKey, jsonRequest, output);
+				} catch (IOException e) {
+					throw e;
+				} catch (Exception e) {
+					throw new WebApplicationException(e);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Read the masking request from the input and write the response to the
+	 * output, masking each element of the streamed array as it is read
+	 * 
+	 * @param maskRequest
+	 *                    request admitted by the MaskRequestExecutor, admitted for
+	 *                    its tenant once the tenantID is read (null if the
+	 *                    request is not limited)
+	 * @param endpoint
+	 *                    service endpoint (e.g., masker/doMasking)
+	 * @param streamed
+	 *                    name of the array to be masked (unmasked or messages)
+	 * @param responseKey
+	 *                    key of the results in the response (the service's
+	 *                    response)
+	 * @param jsonRequest
+	 *                    request body
+	 * @param output
+	 *                    response body
+	 * @throws Exception
+	 *                   if the response can not be written
+	 */
+	static public void streamMasking(MaskRequestExecutor.MaskRequest maskRequest, String endpoint, String streamed,
+			String responseKey, InputStream jsonRequest, OutputStream output) throws Exception {
+		long requestStart = System.nanoTime();
+		MaskRequestEvent requestEvent = new MaskRequestEvent();
+		requestEvent.begin();
+		JsonGenerator gen = _mapper.getFactory().createGenerator(output, JsonEncoding.UTF8);
+		StreamState state = new StreamState(maskRequest, endpoint, streamed, gen);
+		gen.writeStartObject();
+		gen.writeFieldName(responseKey);
+		gen.writeStartObject();
+		gen.writeFieldName(STREAM_MESSAGES.equals(streamed) ? "maskedMessages" : "masked");
+		gen.writeStartArray();
+		try (JsonParser parser = _mapper.getFactory().createParser(jsonRequest)) {
+			if (parser.nextToken() != JsonToken.START_OBJECT) {
+				throw new IOException("Request body is not a JSON object.");
+			}
+			boolean foundRequest = false;
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String name = parser.currentName();
+				JsonToken token = parser.nextToken();
+				if ("request".equals(name) && token == JsonToken.START_OBJECT) {
+					foundRequest = true;
+					streamRequest(parser, state);
+				} else {
+					parser.skipChildren();
+				}
+			}
+			if (!foundRequest) {
+				JSONObject error = new JSONObject();
+				error.put("error", "request is missing.");
+				state._errors.add(error);
+			}
+		} catch (IOException e) {
+			// report problems reading the request with the results masked so far
+			JSONObject error = new JSONObject();
+			error.put("error", "Can not read request: " + e.getLocalizedMessage());
+			state._errors.add(error);
+		}
+		gen.writeEndArray();
+		if (STREAM_MESSAGES.equals(streamed)) {
+			gen.writeFieldName("diffs");
+			gen.writeRawValue(state._diffs.toString());
+		}
+		gen.writeFieldName("errors");
+		gen.writeRawValue(state._errors.toString());
+		if (state._context != null) {
+			Masker.recordRequest(state._context, endpoint, state._lines, state._counts, state._stageNanos, requestStart,
+					requestEvent);
+		}
+		if (state._includeCounts) {
+			gen.writeFieldName("counts");
+			gen.writeRawValue(state._counts.toString());
+		}
+		if (state._context != null) {
+			gen.writeNumberField("templateVersion", state._context.getTemplateVersion());
+		}
+		gen.writeEndObject();
+		gen.writeEndObject();
+		gen.close();
+		if (state._context != null && requestEvent.shouldCommit()) {
+			requestEvent.commit();
+		}
+	}
+
+	/**
+	 * Process the fields of the request object, masking the streamed array
+	 * 
+	 * @param parser
+	 *               parser positioned at the start of the request object
+	 * @param state
+	 *               state of the streamed request
+	 * @throws Exception
+	 */
+	static void streamRequest(JsonParser parser, StreamState state) throws Exception {
+		JSONObject request = new JSONObject();
+		List<JsonNode> buffered = null;
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String name = parser.currentName();
+			JsonToken token = parser.nextToken();
+			if ("tenantID".equals(name)) {
+				request.put("tenantID", token == JsonToken.VALUE_STRING ? parser.getText() : null);
+			} else if ("includeCounts".equals(name)) {
+				state._includeCounts = (token == JsonToken.VALUE_TRUE);
+			} else if ("maskNumbers".equals(name) || "templates".equals(name)) {
+				JsonNode value = _mapper.readTree(parser);
+				if (state._contextCreated) {
+					JSONObject error = new JSONObject();
+					error.put("error", "\"" + name + "\" must precede \"" + state._streamed
+							+ "\" in a streamed request so it was ignored.");
+					state._errors.add(error);
+				} else if (value.isBoolean()) {
+					request.put(name, value.asBoolean());
+				} else if (value.isArray()) {
+					request.put(name, JSONArray.parse(value.toString()));
+				}
+			} else if (state._streamed.equals(name) && token == JsonToken.START_ARRAY) {
+				if (state._contextCreated == false && request.get("tenantID") == null) {
+					// can not mask until the tenantID is known
+					buffered = new ArrayList<JsonNode>();
+					while (parser.nextToken() != JsonToken.END_ARRAY) {
+						buffered.add(_mapper.readTree(parser));
+					}
+					continue;
+				}
+				if (state._contextCreated == false) {
+					state.createContext(request);
+				}
+				while (parser.nextToken() != JsonToken.END_ARRAY) {
+					if (state._context == null) {
+						parser.skipChildren();
+						continue;
+					}
+					state.maskElement(_mapper.readTree(parser));
+				}
+			} else {
+				parser.skipChildren();
+			}
+		}
+		if (state._contextCreated == false) {
+			state.createContext(request);
+		}
+		if (buffered != null && state._context != null) {
+			for (JsonNode element : buffered) {
+				state.maskElement(element);
+			}
+		}
+	}
+}
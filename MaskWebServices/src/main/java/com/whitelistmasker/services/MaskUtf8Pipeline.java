@@ -0,0 +1,788 @@
+/**
+ * (c) Copyright 2020-2023 IBM Corporation
+ * 1 New Orchard Road, 
+ * Armonk, New York, 10504-1722
+ * United States
+ * +1 914 499 1900
+ * Nathaniel Mills wnm3@us.ibm.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.whitelistmasker.services;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+import com.api.json.JSONArray;
+import com.api.json.JSONObject;
+import com.whitelistmasker.masker.MaskRequestEvent;
+import com.whitelistmasker.masker.Masker;
+import com.whitelistmasker.masker.MaskerContext;
+import com.whitelistmasker.masker.MaskerMetrics;
+
+/**
+ * UTF-8 implementation of the masker/doMasking service for services whose
+ * schema object has "utf8": "unmasked". The request body's bytes are scanned
+ * in place rather than being parsed into a JSONObject: only the tenantID,
+ * maskNumbers, includeCounts, compactResponse and templates are decoded, and
+ * the positions of the strings in the unmasked array are recorded. Each line
+ * is decoded once to be masked, and the response is written directly as UTF-8
+ * bytes. Lines left unchanged by masking and the echoed request are copied
+ * from the request body verbatim, and masked lines are encoded straight into
+ * the response, so no JSONObject, JSONArray or serialized response String is
+ * built.
+ * 
+ * Requests the scanner does not handle (malformed JSON, duplicate fields,
+ * unmasked elements other than strings or null, or more lines than the
+ * service's chunkLines when it is chunked) are declined, and are parsed and
+ * masked the usual way so their results and errors are unchanged.
+ */
+public class MaskUtf8Pipeline {
+
+	/**
+	 * A request body scanned by {@link MaskUtf8Pipeline#parse(byte[], String, int)}
+	 */
+	static public class Utf8Request {
+
+		final byte[] _body;
+		// the request fields used for masking (not including the lines)
+		final JSONObject _fields = new JSONObject();
+		// start and end of each line's string content, or -1 for a null line
+		int[] _lines = new int[64];
+		int _lineCount = 0;
+		int _requestEnd = -1;
+		int _requestStart = -1;
+		long _serializeNanos = 0L;
+
+		Utf8Request(byte[] body) {
+			_body = body;
+		}
+
+		/**
+		 * Record the position of a line
+		 * 
+		 * @param start
+		 *              start of the string content (-1 for null)
+		 * @param end
+		 *              end of the string content
+		 */
+		void addLine(int start, int end) {
+			if (_lines.length < 2 * _lineCount + 2) {
+				int[] lines = new int[_lines.length * 2];
+				System.arraycopy(_lines, 0, lines, 0, _lines.length);
+				_lines = lines;
+			}
+			_lines[2 * _lineCount] = start;
+			_lines[2 * _lineCount + 1] = end;
+			_lineCount++;
+		}
+
+		/**
+		 * @return the request body
+		 */
+		public byte[] getBody() {
+			return _body;
+		}
+
+		/**
+		 * @return the effective maskNumbers of the request (the request's
+		 *         maskNumbers, or the tenant's default)
+		 */
+		public Object getMaskNumbers() {
+			Object maskNumbers = _fields.get("maskNumbers");
+			String tenantID = getRequestTenantID();
+			if (!(maskNumbers instanceof Boolean) && tenantID != null) {
+				maskNumbers = Masker._mapMaskNumbers.get(tenantID);
+			}
+			return maskNumbers;
+		}
+
+		/**
+		 * @return the tenantID supplied in the request (null if missing)
+		 */
+		public String getRequestTenantID() {
+			return (String) _fields.get("tenantID");
+		}
+
+		/**
+		 * @return nanoseconds spent writing the response
+		 */
+		public long getSerializeNanos() {
+			return _serializeNanos;
+		}
+
+		/**
+		 * @return the tenantID for use as a metrics tag (see
+		 *         {@link MaskServiceUtil#getTenantID(JSONObject)})
+		 */
+		public String getTenantID() {
+			JSONObject body = new JSONObject();
+			body.put("request", _fields);
+			return MaskServiceUtil.getTenantID(body);
+		}
+	}
+
+	/**
+	 * Growable buffer receiving the UTF-8 bytes of the response
+	 */
+	static class Utf8Output {
+
+		byte[] _bytes;
+		int _length = 0;
+
+		Utf8Output(int capacity) {
+			_bytes = new byte[Math.max(capacity, 256)];
+		}
+
+		void ensure(int extra) {
+			if (_length + extra > _bytes.length) {
+				byte[] bytes = new byte[Math.max(_length + extra, _bytes.length * 2)];
+				System.arraycopy(_bytes, 0, bytes, 0, _length);
+				_bytes = bytes;
+			}
+		}
+
+		byte[] toByteArray() {
+			byte[] bytes = new byte[_length];
+			System.arraycopy(_bytes, 0, bytes, 0, _length);
+			return bytes;
+		}
+
+		void write(byte b) {
+			ensure(1);
+			_bytes[_length++] = b;
+		}
+
+		void write(byte[] bytes, int offset, int len) {
+			ensure(len);
+			System.arraycopy(bytes, offset, _bytes, _length, len);
+			_length += len;
+		}
+
+		/**
+		 * Write JSON text (e.g., a serialized JSONObject)
+		 * 
+		 * @param json
+		 *             JSON text
+		 */
+		void writeJSON(String json) {
+			byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+			write(bytes, 0, bytes.length);
+		}
+
+		/**
+		 * Write the value as a quoted JSON string encoded in UTF-8
+		 * 
+		 * @param value
+		 *              string to be written
+		 */
+		void writeString(String value) {
+			int len = value.length();
+			// at most 6 bytes per char (\\uXXXX), plus the quotes
+			ensure(6 * len + 2);
+			byte[] bytes = _bytes;
+			int pos = _length;
+			bytes[pos++] = '"';
+			for (int i = 0; i < len; i++) {
+				char c = value.charAt(i);
+				if (c >= 0x20 && c < 0x80) {
+					if (c == '"' || c == '\\') {
+						bytes[pos++] = '\\';
+					}
+					bytes[pos++] = (byte) c;
+				} else if (c < 0x20) {
+					bytes[pos++] = '\\';
+					switch (c) {
+						case '\b':
+							bytes[pos++] = 'b';
+							break;
+						case '\f':
+							bytes[pos++] = 'f';
+							break;
+						case '\n':
+							bytes[pos++] = 'n';
+							break;
+						case '\r':
+							bytes[pos++] = 'r';
+							break;
+						case '\t':
+							bytes[pos++] = 't';
+							break;
+						default:
+							pos = writeEscape(bytes, pos - 1, c);
+					}
+				} else if (c < 0x800) {
+					bytes[pos++] = (byte) (0xC0 | (c >> 6));
+					bytes[pos++] = (byte) (0x80 | (c & 0x3F));
+				} else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(value.charAt(i + 1))) {
+					int cp = Character.toCodePoint(c, value.charAt(++i));
+					bytes[pos++] = (byte) (0xF0 | (cp >> 18));
+					bytes[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+					bytes[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+					bytes[pos++] = (byte) (0x80 | (cp & 0x3F));
+				} else if (Character.isSurrogate(c)) {
+					// unpaired surrogates can only be escaped
+					pos = writeEscape(bytes, pos, c);
+				} else {
+					bytes[pos++] = (byte) (0xE0 | (c >> 12));
+					bytes[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+					bytes[pos++] = (byte) (0x80 | (c & 0x3F));
+				}
+			}
+			bytes[pos++] = '"';
+			_length = pos;
+		}
+
+		static int writeEscape(byte[] bytes, int pos, char c) {
+			bytes[pos++] = '\\';
+			bytes[pos++] = 'u';
+			for (int shift = 12; shift >= 0; shift -= 4) {
+				bytes[pos++] = (byte) Character.forDigit((c >> shift) & 0xF, 16);
+			}
+			return pos;
+		}
+	}
+
+	static final int MAX_DEPTH = 256;
+
+	/**
+	 * Decode the content of a JSON string
+	 * 
+	 * @param body
+	 *              request body
+	 * @param start
+	 *              start of the string's content (after the opening quote)
+	 * @param end
+	 *              end of the string's content (the closing quote)
+	 * @return the decoded string
+	 */
+	static String decodeString(byte[] body, int start, int end) {
+		int escape = start;
+		while (escape < end && body[escape] != '\\') {
+			escape++;
+		}
+		if (escape == end) {
+			return new String(body, start, end - start, StandardCharsets.UTF_8);
+		}
+		StringBuilder sb = new StringBuilder(end - start);
+		int segment = start;
+		int pos = escape;
+		while (pos < end) {
+			if (body[pos] != '\\') {
+				pos++;
+				continue;
+			}
+			sb.append(new String(body, segment, pos - segment, StandardCharsets.UTF_8));
+			byte b = body[pos + 1];
+			switch (b) {
+				case 'b':
+					sb.append('\b');
+					break;
+				case 'f':
+					sb.append('\f');
+					break;
+				case 'n':
+					sb.append('\n');
+					break;
+				case 'r':
+					sb.append('\r');
+					break;
+				case 't':
+					sb.append('\t');
+					break;
+				case 'u':
+					sb.append((char) Integer.parseInt(new String(body, pos + 2, 4, StandardCharsets.US_ASCII), 16));
+					pos += 4;
+					break;
+				default:
+					// quote, backslash or solidus
+					sb.append((char) b);
+			}
+			pos += 2;
+			segment = pos;
+		}
+		sb.append(new String(body, segment, end - segment, StandardCharsets.UTF_8));
+		return sb.toString();
+	}
+
+	/**
+	 * Mask the lines of the scanned request, producing the same results as
+	 * Masker.maskContent (the service's only action, as checked when the
+	 * ServicesManager loads the schema)
+	 * 
+	 * @param utf8Request
+	 *                    scanned request
+	 * @param endpoint
+	 *                    service endpoint the metrics are recorded against
+	 * @param responseKey
+	 *                    key of the results in the response (the service's
+	 *                    response)
+	 * @return the UTF-8 bytes of the response
+	 * @throws Exception
+	 *                   if the masking environment can not be initialized or a
+	 *                   template can not be used
+	 */
+	static public byte[] maskContent(Utf8Request utf8Request, String endpoint, String responseKey)
+			throws Exception {
+		long requestStart = System.nanoTime();
+		MaskRequestEvent requestEvent = new MaskRequestEvent();
+		requestEvent.begin();
+		long[] stageNanos = new long[MaskerMetrics.STAGE_NAMES.length];
+		JSONObject counts = Masker.newCounts();
+		JSONArray errors = new JSONArray();
+		JSONObject fields = utf8Request._fields;
+		byte[] body = utf8Request._body;
+		MaskerContext context = Masker.createContext(fields, errors);
+
+		// the masked lines are written apart since masking them may add errors
+		// (templates that were aborted) which precede them in the response
+		long serializeStart = System.nanoTime();
+		Utf8Output masked = new Utf8Output(body.length + 256);
+		long serializeNanos = System.nanoTime() - serializeStart;
+		if (context != null) {
+			int[] lines = utf8Request._lines;
+			for (int i = 0; i < utf8Request._lineCount; i++) {
+				int start = lines[2 * i];
+				int end = lines[2 * i + 1];
+				String line = (start < 0 ? null : decodeString(body, start, end));
+				String maskedLine = (line == null ? "" : Masker.maskLine(context, line, counts, stageNanos));
+				serializeStart = System.nanoTime();
+				if (i > 0) {
+					masked.write((byte) ',');
+				}
+				if (line != null && maskedLine.equals(line)) {
+					// unchanged, so the request's encoding can be reused
+					masked.write((byte) '"');
+					masked.write(body, start, end - start);
+					masked.write((byte) '"');
+				} else {
+					masked.writeString(maskedLine);
+				}
+				serializeNanos += System.nanoTime() - serializeStart;
+			}
+			Masker.recordRequest(context, endpoint, utf8Request._lineCount, counts, stageNanos, requestStart,
+					requestEvent);
+		}
+		serializeStart = System.nanoTime();
+		Utf8Output out = new Utf8Output(masked._length + 256);
+		out.write((byte) '{');
+		out.writeString(responseKey);
+		out.writeJSON(":{\"errors\":");
+		out.writeJSON(errors.toString());
+		out.writeJSON(",\"masked\":[");
+		out.write(masked._bytes, 0, masked._length);
+		out.write((byte) ']');
+		if (Masker.isIncludeCounts(fields)) {
+			out.writeJSON(",\"counts\":");
+			out.writeJSON(counts.toString());
+		}
+		if (!Masker.isCompactResponse(fields)) {
+			out.writeJSON(",\"request\":");
+			out.write(body, utf8Request._requestStart, utf8Request._requestEnd - utf8Request._requestStart);
+		}
+		if (context != null) {
+			out.writeJSON(",\"templateVersion\":" + context.getTemplateVersion());
+		}
+		out.writeJSON("}}");
+		byte[] response = out.toByteArray();
+		utf8Request._serializeNanos = serializeNanos + System.nanoTime() - serializeStart;
+		if (context != null && requestEvent.shouldCommit()) {
+			requestEvent.commit();
+		}
+		return response;
+	}
+
+	/**
+	 * Scan the request body
+	 * 
+	 * @param body
+	 *                 request body
+	 * @param streamed
+	 *                 name of the request's array of lines to be masked (e.g.,
+	 *                 unmasked)
+	 * @param maxLines
+	 *                 most lines the pipeline should mask (larger requests are
+	 *                 declined so they can be masked in chunks)
+	 * @return the scanned request, or null if the request must be parsed and
+	 *         masked the usual way
+	 */
+	static public Utf8Request parse(byte[] body, String streamed, int maxLines) {
+		Utf8Request utf8Request = new Utf8Request(body);
+		int pos = skipWhitespace(body, 0);
+		if (pos >= body.length || body[pos] != '{') {
+			return null;
+		}
+		pos = skipWhitespace(body, pos + 1);
+		if (pos < body.length && body[pos] == '}') {
+			// no request
+			return null;
+		}
+		while (true) {
+			if (pos >= body.length || body[pos] != '"') {
+				return null;
+			}
+			int nameEnd = scanString(body, pos + 1);
+			if (nameEnd < 0) {
+				return null;
+			}
+			String name = decodeString(body, pos + 1, nameEnd);
+			pos = skipWhitespace(body, nameEnd + 1);
+			if (pos >= body.length || body[pos] != ':') {
+				return null;
+			}
+			pos = skipWhitespace(body, pos + 1);
+			if ("request".equals(name)) {
+				if (utf8Request._requestStart >= 0) {
+					return null;
+				}
+				utf8Request._requestStart = pos;
+				pos = scanRequest(utf8Request, pos, streamed, maxLines);
+				utf8Request._requestEnd = pos;
+			} else {
+				pos = skipValue(body, pos, 0);
+			}
+			if (pos < 0) {
+				return null;
+			}
+			pos = skipWhitespace(body, pos);
+			if (pos >= body.length) {
+				return null;
+			}
+			if (body[pos] == '}') {
+				break;
+			}
+			if (body[pos] != ',') {
+				return null;
+			}
+			pos = skipWhitespace(body, pos + 1);
+		}
+		if (skipWhitespace(body, pos + 1) != body.length || utf8Request._requestStart < 0) {
+			return null;
+		}
+		return utf8Request;
+	}
+
+	/**
+	 * Scan the array of lines, recording the position of each line
+	 * 
+	 * @param utf8Request
+	 *                    request being scanned
+	 * @param pos
+	 *                    position of the array
+	 * @param maxLines
+	 *                    most lines allowed
+	 * @return position following the array, or -1 if it is not handled
+	 */
+	static int scanLines(Utf8Request utf8Request, int pos, int maxLines) {
+		byte[] body = utf8Request._body;
+		if (pos >= body.length || body[pos] != '[') {
+			return -1;
+		}
+		pos = skipWhitespace(body, pos + 1);
+		if (pos < body.length && body[pos] == ']') {
+			return pos + 1;
+		}
+		while (true) {
+			if (utf8Request._lineCount >= maxLines || pos >= body.length) {
+				return -1;
+			}
+			if (body[pos] == '"') {
+				int end = scanString(body, pos + 1);
+				if (end < 0) {
+					return -1;
+				}
+				utf8Request.addLine(pos + 1, end);
+				pos = end + 1;
+			} else if (matches(body, pos, "null")) {
+				utf8Request.addLine(-1, -1);
+				pos += 4;
+			} else {
+				// other values are masked as their serialization by the usual path
+				return -1;
+			}
+			pos = skipWhitespace(body, pos);
+			if (pos >= body.length) {
+				return -1;
+			}
+			if (body[pos] == ']') {
+				return pos + 1;
+			}
+			if (body[pos] != ',') {
+				return -1;
+			}
+			pos = skipWhitespace(body, pos + 1);
+		}
+	}
+
+	/**
+	 * Scan the request object, decoding the fields used for masking
+	 * 
+	 * @param utf8Request
+	 *                    request being scanned
+	 * @param pos
+	 *                    position of the request object
+	 * @param streamed
+	 *                    name of the array of lines
+	 * @param maxLines
+	 *                    most lines allowed
+	 * @return position following the request object, or -1 if it is not handled
+	 */
+	static int scanRequest(Utf8Request utf8Request, int pos, String streamed, int maxLines) {
+		byte[] body = utf8Request._body;
+		JSONObject fields = utf8Request._fields;
+		if (pos >= body.length || body[pos] != '{') {
+			return -1;
+		}
+		boolean foundLines = false;
+		Set<String> names = new HashSet<String>();
+		pos = skipWhitespace(body, pos + 1);
+		if (pos < body.length && body[pos] == '}') {
+			return -1;
+		}
+		while (true) {
+			if (pos >= body.length || body[pos] != '"') {
+				return -1;
+			}
+			int nameEnd = scanString(body, pos + 1);
+			if (nameEnd < 0) {
+				return -1;
+			}
+			String name = decodeString(body, pos + 1, nameEnd);
+			if (names.add(name) == false) {
+				// duplicates are left to the parser
+				return -1;
+			}
+			pos = skipWhitespace(body, nameEnd + 1);
+			if (pos >= body.length || body[pos] != ':') {
+				return -1;
+			}
+			pos = skipWhitespace(body, pos + 1);
+			if (pos >= body.length) {
+				return -1;
+			}
+			if (streamed.equals(name)) {
+				foundLines = true;
+				pos = scanLines(utf8Request, pos, maxLines);
+			} else if ("tenantID".equals(name)) {
+				if (body[pos] == '"') {
+					int end = scanString(body, pos + 1);
+					if (end < 0) {
+						return -1;
+					}
+					fields.put(name, decodeString(body, pos + 1, end));
+					pos = end + 1;
+				} else if (matches(body, pos, "null")) {
+					pos += 4;
+				} else {
+					return -1;
+				}
+			} else if ("maskNumbers".equals(name) || "includeCounts".equals(name)
+					|| "compactResponse".equals(name)) {
+				int start = pos;
+				pos = skipValue(body, pos, 0);
+				if (matches(body, start, "true")) {
+					fields.put(name, Boolean.TRUE);
+				} else if (matches(body, start, "false")) {
+					fields.put(name, Boolean.FALSE);
+				}
+			} else if ("templates".equals(name)) {
+				int start = pos;
+				pos = skipValue(body, pos, 0);
+				if (pos < 0) {
+					return -1;
+				}
+				if (body[start] == '[') {
+					try {
+						fields.put(name, JSONArray.parse(new String(body, start, pos - start, StandardCharsets.UTF_8)));
+					} catch (Exception e) {
+						return -1;
+					}
+				} else if (matches(body, start, "null") == false) {
+					return -1;
+				}
+			} else {
+				pos = skipValue(body, pos, 0);
+			}
+			if (pos < 0) {
+				return -1;
+			}
+			pos = skipWhitespace(body, pos);
+			if (pos >= body.length) {
+				return -1;
+			}
+			if (body[pos] == '}') {
+				return (foundLines ? pos + 1 : -1);
+			}
+			if (body[pos] != ',') {
+				return -1;
+			}
+			pos = skipWhitespace(body, pos + 1);
+		}
+	}
+
+	/**
+	 * Scan a JSON string's content
+	 * 
+	 * @param body
+	 *              request body
+	 * @param start
+	 *              start of the content (after the opening quote)
+	 * @return position of the closing quote, or -1 if the string is malformed
+	 */
+	static int scanString(byte[] body, int start) {
+		int pos = start;
+		while (pos < body.length) {
+			byte b = body[pos];
+			if (b == '"') {
+				return pos;
+			}
+			if (b >= 0 && b < 0x20) {
+				return -1;
+			}
+			if (b == '\\') {
+				if (pos + 1 >= body.length) {
+					return -1;
+				}
+				byte escaped = body[pos + 1];
+				if (escaped == 'u') {
+					if (pos + 5 >= body.length) {
+						return -1;
+					}
+					for (int i = pos + 2; i < pos + 6; i++) {
+						if (Character.digit(body[i], 16) < 0) {
+							return -1;
+						}
+					}
+					pos += 6;
+					continue;
+				}
+				if (escaped != '"' && escaped != '\\' && escaped != '/' && escaped != 'b' && escaped != 'f'
+						&& escaped != 'n' && escaped != 'r' && escaped != 't') {
+					return -1;
+				}
+				pos += 2;
+				continue;
+			}
+			pos++;
+		}
+		return -1;
+	}
+
+	/**
+	 * Skip a JSON value
+	 * 
+	 * @param body
+	 *              request body
+	 * @param pos
+	 *              position of the value
+	 * @param depth
+	 *              nesting depth of the value
+	 * @return position following the value, or -1 if it is malformed
+	 */
+	static int skipValue(byte[] body, int pos, int depth) {
+		if (pos >= body.length || depth > MAX_DEPTH) {
+			return -1;
+		}
+		byte b = body[pos];
+		if (b == '"') {
+			int end = scanString(body, pos + 1);
+			return (end < 0 ? -1 : end + 1);
+		}
+		if (b == '{' || b == '[') {
+			byte close = (byte) (b == '{' ? '}' : ']');
+			pos = skipWhitespace(body, pos + 1);
+			if (pos < body.length && body[pos] == close) {
+				return pos + 1;
+			}
+			while (true) {
+				if (b == '{') {
+					if (pos >= body.length || body[pos] != '"') {
+						return -1;
+					}
+					int end = scanString(body, pos + 1);
+					if (end < 0) {
+						return -1;
+					}
+					pos = skipWhitespace(body, end + 1);
+					if (pos >= body.length || body[pos] != ':') {
+						return -1;
+					}
+					pos = skipWhitespace(body, pos + 1);
+				}
+				pos = skipValue(body, pos, depth + 1);
+				if (pos < 0) {
+					return -1;
+				}
+				pos = skipWhitespace(body, pos);
+				if (pos >= body.length) {
+					return -1;
+				}
+				if (body[pos] == close) {
+					return pos + 1;
+				}
+				if (body[pos] != ',') {
+					return -1;
+				}
+				pos = skipWhitespace(body, pos + 1);
+			}
+		}
+		if (matches(body, pos, "true") || matches(body, pos, "null")) {
+			return pos + 4;
+		}
+		if (matches(body, pos, "false")) {
+			return pos + 5;
+		}
+		int start = pos;
+		while (pos < body.length && ((body[pos] >= '0' && body[pos] <= '9') || body[pos] == '-' || body[pos] == '+'
+				|| body[pos] == '.' || body[pos] == 'e' || body[pos] == 'E')) {
+			pos++;
+		}
+		return (pos > start ? pos : -1);
+	}
+
+	/**
+	 * @param body
+	 *             request body
+	 * @param pos
+	 *             position to start from
+	 * @return position of the next non-whitespace byte (or the body's length)
+	 */
+	static int skipWhitespace(byte[] body, int pos) {
+		while (pos < body.length && (body[pos] == ' ' || body[pos] == '\n' || body[pos] == '\r' || body[pos] == '\t')) {
+			pos++;
+		}
+		return pos;
+	}
+
+	/**
+	 * @param body
+	 *                request body
+	 * @param pos
+	 *                position to test
+	 * @param literal
+	 *                ASCII literal
+	 * @return true if the literal is found at the position
+	 */
+	static boolean matches(byte[] body, int pos, String literal) {
+		if (pos + literal.length() > body.length) {
+			return false;
+		}
+		for (int i = 0; i < literal.length(); i++) {
+			if (body[pos + i] != literal.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
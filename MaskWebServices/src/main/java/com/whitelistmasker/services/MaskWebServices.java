@@ -22,11 +22,11 @@
 
 package com.whitelistmasker.services;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.Serializable;
 import java.net.URI;
-import java.util.Iterator;
 import javax.inject.Inject;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.DELETE;
@@ -36,6 +36,8 @@ import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
@@ -43,6 +45,7 @@ import javax.ws.rs.core.Response;
 import javax.ws.rs.core.UriInfo;
 import com.api.json.JSONArray;
 import com.api.json.JSONObject;
+import com.whitelistmasker.masker.MaskerMetrics;
 import com.whitelistmasker.masker.MaskerUtils;
 import com.whitelistmasker.services.Patch.PATCH;
 
@@ -55,15 +58,21 @@ import com.whitelistmasker.services.Patch.PATCH;
 public class MaskWebServices implements Serializable {
 
 	static public final String ACTIONS = "actions";
+	static public final String APPLICATION_NDJSON = "application/x-ndjson";
+	static public final String CHUNKED = "chunked";
 	static final boolean debug = true; // false for no _debug messages
 	static public final String DELETE = "delete";
 	static public final String GET = "get";
 	static public final String JSON_REQUEST = "jsonRequest";
+	static public final String MEDIA_TYPE = "mediaType";
 	static public final String PATCH = "patch";
 	static public final String POST = "post";
 	static public final String PUT = "put";
+	static public final String RESPONSE = "response";
+	static public final String STREAMING = "streaming";
 	static public final String TOPIC = "topic";
 	static public final String TYPE = "type";
+	static public final String UTF8 = "utf8";
 
 	@Inject
 	public ServicesManager _servicesManager;
@@ -113,11 +122,7 @@ public class MaskWebServices implements Serializable {
 			// get what is to be returned
 			JSONObject actionResponses = new JSONObject();
 			// execute the actions
-			JSONArray actions = (JSONArray) serviceLogic.get(ACTIONS);
-			for (Iterator<?> it = actions.iterator(); it.hasNext();) {
-				JSONObject action = (JSONObject) it.next();
-				ServicesManager.performAction(DELETE, request, action, actionResponses);
-			}
+			ServicesManager.performActions(DELETE, serviceLogic, request, actionResponses);
 			return MaskServiceUtil.getResponse(actionResponses);
 		} catch (Exception e) {
 			return MaskServiceUtil.getErrorResponse(e, MaskResponseCodes.Mask_UNEXPECTED_ERROR);
@@ -164,11 +169,7 @@ public class MaskWebServices implements Serializable {
 			// get what is to be returned
 			JSONObject actionResponses = new JSONObject();
 			// execute the actions
-			JSONArray actions = (JSONArray) serviceLogic.get(ACTIONS);
-			for (Iterator<?> it = actions.iterator(); it.hasNext();) {
-				JSONObject action = (JSONObject) it.next();
-				ServicesManager.performAction(GET, request, action, actionResponses);
-			}
+			ServicesManager.performActions(GET, serviceLogic, request, actionResponses);
 			return MaskServiceUtil.getResponse(actionResponses);
 		} catch (Exception e) {
 			return MaskServiceUtil.getErrorResponse(e, MaskResponseCodes.Mask_UNEXPECTED_ERROR);
@@ -215,11 +216,7 @@ public class MaskWebServices implements Serializable {
 			// get what is to be returned
 			JSONObject actionResponses = new JSONObject();
 			// execute the actions
-			JSONArray actions = (JSONArray) serviceLogic.get(ACTIONS);
-			for (Iterator<?> it = actions.iterator(); it.hasNext();) {
-				JSONObject action = (JSONObject) it.next();
-				ServicesManager.performAction(GET, request, action, actionResponses);
-			}
+			ServicesManager.performActions(GET, serviceLogic, request, actionResponses);
 			return MaskServiceUtil.getResponse(actionResponses);
 		} catch (Exception e) {
 			return MaskServiceUtil.getErrorResponse(e, MaskResponseCodes.Mask_UNEXPECTED_ERROR);
@@ -257,10 +254,12 @@ public class MaskWebServices implements Serializable {
 			// get what is to be returned
 			JSONObject actionResponses = new JSONObject();
 			// execute the actions
-			JSONArray actions = (JSONArray) serviceLogic.get(ACTIONS);
-			for (Iterator<?> it = actions.iterator(); it.hasNext();) {
-				JSONObject action = (JSONObject) it.next();
-				ServicesManager.performAction(GET, request, action, actionResponses);
+			ServicesManager.performActions(GET, serviceLogic, request, actionResponses);
+			// services like metrics return text in the media type named by the schema
+			String mediaType = (String) serviceLogic.get(MEDIA_TYPE);
+			if (mediaType != null) {
+				Object text = actionResponses.get(serviceLogic.get(RESPONSE));
+				return MaskServiceUtil.getTextResponse(text == null ? "" : text.toString(), mediaType);
 			}
 			return MaskServiceUtil.getResponse(actionResponses);
 		} catch (Exception e) {
@@ -313,11 +312,7 @@ public class MaskWebServices implements Serializable {
 			// get what is to be returned
 			JSONObject actionResponses = new JSONObject();
 			// execute the actions
-			JSONArray actions = (JSONArray) serviceLogic.get(ACTIONS);
-			for (Iterator<?> it = actions.iterator(); it.hasNext();) {
-				JSONObject action = (JSONObject) it.next();
-				ServicesManager.performAction(PATCH, request, action, actionResponses);
-			}
+			ServicesManager.performActions(PATCH, serviceLogic, request, actionResponses);
 			return MaskServiceUtil.getResponse(actionResponses);
 		} catch (Exception e) {
 			return MaskServiceUtil.getErrorResponse(e, MaskResponseCodes.Mask_UNEXPECTED_ERROR);
@@ -325,56 +320,297 @@ public class MaskWebServices implements Serializable {
 	}
 
 	/**
-	 * POST request
+	 * POST request masking a newline delimited JSON stream of utterances or
+	 * messages, returning each masked line as soon as it completes (see
+	 * {@link MaskNdjsonService}). The stream is started on a masking worker thread
+	 * once admitted by the concurrency limit (see {@link MaskRequestExecutor}).
 	 * 
+	 * @param asyncResponse
+	 *                      suspended response resumed with the streamed result
 	 * @param headers
-	 *                    HTTP headers from request
+	 *                      HTTP headers from request (X-Tenant-ID may provide
+	 *                      the tenantID)
+	 * @param ndjsonRequest
+	 *                      request body
+	 */
+	@POST
+	@Consumes(APPLICATION_NDJSON)
+	@Produces(APPLICATION_NDJSON)
+	@Path("masker/doMaskingStream")
+	public void doMaskingStreamV1(@Suspended AsyncResponse asyncResponse, @Context HttpHeaders headers,
+			final InputStream ndjsonRequest) {
+		final String tenantID = (headers == null ? null
+				: headers.getHeaderString(MaskServiceUtil.HTTP_HEADER_TENANT_ID));
+		// streams may run indefinitely, so they are queued with the batches
+		MaskRequestExecutor.submit(asyncResponse, tenantID, MaskFairScheduler.LANE_BULK,
+				new MaskRequestExecutor.Step() {
+					@Override
+					public Response perform(MaskRequestExecutor.MaskRequest request) {
+						return MaskServiceUtil.getStreamingResponse(
+								MaskNdjsonService.getStreamingOutput(request, tenantID, ndjsonRequest),
+								APPLICATION_NDJSON);
+					}
+				});
+	}
+
+	/**
+	 * POST request, performed on a masking worker thread once admitted by the
+	 * concurrency limit (see {@link MaskRequestExecutor}). Requests larger than
+	 * the bulk request size, or asking for a streamed response, are queued in the
+	 * bulk lane, and the tenant may be identified up front by the X-Tenant-ID
+	 * header.
+	 * 
+	 * @param asyncResponse
+	 *                      suspended response resumed with the result
+	 * @param headers
+	 *                      HTTP headers from request
 	 * @param uriInfo
-	 *                    URI information from request
+	 *                      URI information from request
 	 * @param topic
-	 *                    request topic
+	 *                      request topic
 	 * @param type
-	 *                    request type
+	 *                      request type
 	 * @param jsonRequest
-	 *                    request body
-	 * @return response
+	 *                      request body
 	 */
 	@POST
 	@Consumes(MediaType.APPLICATION_JSON)
 	@Produces(MediaType.APPLICATION_JSON)
 	@Path("{topic}/{type}")
-	public Response doPostV1(@Context HttpHeaders headers, @Context UriInfo uriInfo, @PathParam(TOPIC) String topic,
-			@PathParam(TYPE) String type, InputStream jsonRequest) {
+	public void doPostV1(@Suspended AsyncResponse asyncResponse, @Context HttpHeaders headers,
+			@Context UriInfo uriInfo, @PathParam(TOPIC) String topic, @PathParam(TYPE) String type,
+			final InputStream jsonRequest) {
+		// resolve the request scoped values before leaving the HTTP thread
+		final String path = uriInfo.getAbsolutePath().getPath();
+		final boolean streamingRequested = MaskServiceUtil.isStreamingRequested(headers);
+		String tenantID = (headers == null ? null : headers.getHeaderString(MaskServiceUtil.HTTP_HEADER_TENANT_ID));
+		int lane = MaskRequestExecutor.getLane(MaskServiceUtil.getContentLength(headers));
+		String requestType = topic;
+		if (MaskerUtils.isUndefined(type) == false) {
+			requestType += "/" + type;
+		}
+		if (streamingRequested) {
+			JSONObject serviceLogic = (JSONObject) ServicesManager.postRequests.get(requestType);
+			if (serviceLogic != null && serviceLogic.get(STREAMING) != null) {
+				// streamed requests are of unknown (often unbounded) size
+				lane = MaskFairScheduler.LANE_BULK;
+			}
+		}
+		final String postType = requestType;
+		MaskRequestExecutor.submit(asyncResponse, tenantID, lane, new MaskRequestExecutor.Step() {
+			@Override
+			public Response perform(MaskRequestExecutor.MaskRequest request) {
+				return doPost(request, path, postType, streamingRequested, jsonRequest);
+			}
+		});
+	}
+
+	/**
+	 * Perform a POST request
+	 * 
+	 * @param maskRequest
+	 *                           request admitted by the MaskRequestExecutor
+	 * @param path
+	 *                           path of the request URI
+	 * @param requestType
+	 *                           request topic and type (e.g., masker/doMasking)
+	 * @param streamingRequested
+	 *                           true if the client asked for a streamed response
+	 * @param jsonRequest
+	 *                           request body
+	 * @return response, or null if the request is being masked in chunks, has
+	 *         been queued for its tenant, or is sharing the result of an
+	 *         identical request
+	 */
+	Response doPost(MaskRequestExecutor.MaskRequest maskRequest, String path, String requestType,
+			boolean streamingRequested, InputStream jsonRequest) {
+		// services supporting streaming mask the request as it is read when the
+		// client asks for a streamed response
+		if (streamingRequested) {
+			JSONObject serviceLogic = (JSONObject) ServicesManager.postRequests.get(requestType);
+			if (serviceLogic != null && serviceLogic.get(STREAMING) != null) {
+				return MaskServiceUtil.getStreamingResponse(MaskStreamingService.getStreamingOutput(maskRequest,
+						requestType, (String) serviceLogic.get(STREAMING), (String) serviceLogic.get(RESPONSE),
+						jsonRequest));
+			}
+		}
 		JSONObject request = null;
+		long parseStart = System.nanoTime();
 		try {
+			// services using the UTF-8 pipeline scan the request body's bytes
+			JSONObject serviceLogic = (JSONObject) ServicesManager.postRequests.get(requestType);
+			if (serviceLogic != null && serviceLogic.get(UTF8) != null) {
+				byte[] body = jsonRequest.readAllBytes();
+				int maxLines = (serviceLogic.get(CHUNKED) != null ? MaskRequestExecutor.getChunkLines()
+						: Integer.MAX_VALUE);
+				MaskUtf8Pipeline.Utf8Request utf8Request = MaskUtf8Pipeline.parse(body, (String) serviceLogic.get(UTF8),
+						maxLines);
+				if (utf8Request != null) {
+					return doUtf8Post(maskRequest, requestType, serviceLogic, utf8Request, System.nanoTime() - parseStart);
+				}
+				// otherwise parse the request as usual
+				jsonRequest = new ByteArrayInputStream(body);
+			}
 			request = JSONObject.parse(jsonRequest);
 		} catch (IOException e) {
 			return MaskServiceUtil.getErrorResponse(e, MaskResponseCodes.Mask_INVALID_JSON_GET_REQUEST);
 		}
+		return doParsedPost(maskRequest, path, requestType, request, System.nanoTime() - parseStart);
+	}
 
-		// based on the URI we received, parse out the reqTopic and reqType
+	/**
+	 * Perform a POST request whose body has been parsed
+	 * 
+	 * @param maskRequest
+	 *                    request admitted by the MaskRequestExecutor
+	 * @param path
+	 *                    path of the request URI
+	 * @param requestType
+	 *                    request topic and type (e.g., masker/doMasking)
+	 * @param request
+	 *                    parsed request body
+	 * @param parseNanos
+	 *                    time spent parsing the request body
+	 * @return response, or null if the request is being masked in chunks, has
+	 *         been queued for its tenant, or is sharing the result of an
+	 *         identical request
+	 */
+	Response doParsedPost(MaskRequestExecutor.MaskRequest maskRequest, final String path,
+			final String requestType, final JSONObject request, final long parseNanos) {
 		try {
-			URI uri = uriInfo.getAbsolutePath();
-			String path = uri.getPath();
-			String requestType = topic;
-			if (MaskerUtils.isUndefined(type) == false) {
-				requestType += "/" + type;
-			}
 			JSONObject serviceLogic = (JSONObject) ServicesManager.postRequests.get(requestType);
 			if (serviceLogic == null) {
 				return MaskServiceUtil.getErrorResponse(
 						"No POST service registered for \"" + requestType + "\" for path \"" + path + "\"",
 						MaskResponseCodes.Mask_CLASS_NOT_FOUND);
 			}
+			String tenantID = MaskServiceUtil.getTenantID(request);
+			if (!maskRequest.admitTenant(tenantID)) {
+				return MaskRequestExecutor.getTooManyRequestsResponse(tenantID);
+			}
+			// large batches are masked in chunks interleaved with other requests
+			JSONArray chunked = MaskBatchService.getChunkedArray(serviceLogic, request);
+			if (chunked != null) {
+				MaskBatchService.maskInChunks(maskRequest, requestType, serviceLogic, request, chunked, parseNanos);
+				return null;
+			}
+			// requests without an X-Tenant-ID header were queued as the unknown
+			// tenant to be parsed, so they are masked once queued for their tenant
+			if (maskRequest.isRescheduleNeeded()) {
+				maskRequest.schedule(maskRequest.getLane(), new MaskRequestExecutor.Step() {
+					@Override
+					public Response perform(MaskRequestExecutor.MaskRequest scheduled) {
+						return doParsedPost(scheduled, path, requestType, request, parseNanos);
+					}
+				});
+				return null;
+			}
+			// identical concurrent requests share a single computation
+			String coalesceKey = null;
+			if (MaskRequestCoalescer.isCoalesced(serviceLogic)) {
+				coalesceKey = MaskRequestCoalescer.getKey(requestType, request);
+				if (!MaskRequestCoalescer.join(coalesceKey, maskRequest)) {
+					return null;
+				}
+			}
 			// get what is to be returned
 			JSONObject actionResponses = new JSONObject();
 			// execute the actions
-			JSONArray actions = (JSONArray) serviceLogic.get(ACTIONS);
-			for (Iterator<?> it = actions.iterator(); it.hasNext();) {
-				JSONObject action = (JSONObject) it.next();
-				ServicesManager.performAction(POST, request, action, actionResponses);
+			Throwable failure = null;
+			try {
+				ServicesManager.performActions(POST, serviceLogic, request, actionResponses);
+			} catch (Throwable t) {
+				failure = t;
+				throw t;
+			} finally {
+				// the requests sharing this computation are resumed even if it failed
+				if (coalesceKey != null) {
+					if (failure == null) {
+						MaskRequestCoalescer.complete(coalesceKey, actionResponses, null,
+								MaskRequestCoalescer.getTTLMillis(serviceLogic));
+					} else {
+						MaskRequestCoalescer.complete(coalesceKey, null, failure, 0L);
+					}
+				}
 			}
-			return MaskServiceUtil.getResponse(actionResponses);
+			long serializeStart = System.nanoTime();
+			Response response = MaskServiceUtil.getResponse(actionResponses);
+			MaskerMetrics.record(tenantID, requestType, MaskerMetrics.STAGE_PARSE, parseNanos);
+			MaskerMetrics.record(tenantID, requestType, MaskerMetrics.STAGE_SERIALIZE, System.nanoTime() - serializeStart);
+			return response;
+		} catch (Exception e) {
+			if (debug) {
+				e.printStackTrace(System.err);
+			}
+			return MaskServiceUtil.getErrorResponse(e, MaskResponseCodes.Mask_UNEXPECTED_ERROR);
+		}
+	}
+
+	/**
+	 * Perform a POST request whose body has been scanned by the
+	 * {@link MaskUtf8Pipeline}
+	 * 
+	 * @param maskRequest
+	 *                    request admitted by the MaskRequestExecutor
+	 * @param requestType
+	 *                    request topic and type (e.g., masker/doMasking)
+	 * @param serviceLogic
+	 *                    service object from the schema
+	 * @param utf8Request
+	 *                    scanned request body
+	 * @param parseNanos
+	 *                    time spent scanning the request body
+	 * @return response, or null if the request has been queued for its tenant
+	 *         or is sharing the result of an identical request
+	 */
+	Response doUtf8Post(MaskRequestExecutor.MaskRequest maskRequest, final String requestType,
+			final JSONObject serviceLogic, final MaskUtf8Pipeline.Utf8Request utf8Request, final long parseNanos) {
+		try {
+			String tenantID = utf8Request.getTenantID();
+			if (!maskRequest.admitTenant(tenantID)) {
+				return MaskRequestExecutor.getTooManyRequestsResponse(tenantID);
+			}
+			// requests without an X-Tenant-ID header were queued as the unknown
+			// tenant to be scanned, so they are masked once queued for their tenant
+			if (maskRequest.isRescheduleNeeded()) {
+				maskRequest.schedule(maskRequest.getLane(), new MaskRequestExecutor.Step() {
+					@Override
+					public Response perform(MaskRequestExecutor.MaskRequest scheduled) {
+						return doUtf8Post(scheduled, requestType, serviceLogic, utf8Request, parseNanos);
+					}
+				});
+				return null;
+			}
+			// identical concurrent requests share a single computation
+			String coalesceKey = null;
+			if (MaskRequestCoalescer.isCoalesced(serviceLogic)) {
+				coalesceKey = MaskRequestCoalescer.getKey(requestType, utf8Request.getRequestTenantID(),
+						utf8Request.getMaskNumbers(), utf8Request.getBody());
+				if (!MaskRequestCoalescer.join(coalesceKey, maskRequest)) {
+					return null;
+				}
+			}
+			byte[] responseBody = null;
+			Throwable failure = null;
+			try {
+				responseBody = MaskUtf8Pipeline.maskContent(utf8Request, requestType, (String) serviceLogic.get(RESPONSE));
+			} catch (Throwable t) {
+				failure = t;
+				throw t;
+			} finally {
+				// the requests sharing this computation are resumed even if it failed
+				if (coalesceKey != null) {
+					if (failure == null) {
+						MaskRequestCoalescer.completeBody(coalesceKey, responseBody, null,
+								MaskRequestCoalescer.getTTLMillis(serviceLogic));
+					} else {
+						MaskRequestCoalescer.completeBody(coalesceKey, null, failure, 0L);
+					}
+				}
+			}
+			MaskerMetrics.record(tenantID, requestType, MaskerMetrics.STAGE_PARSE, parseNanos);
+			MaskerMetrics.record(tenantID, requestType, MaskerMetrics.STAGE_SERIALIZE, utf8Request.getSerializeNanos());
+			return MaskServiceUtil.getResponse(responseBody);
 		} catch (Exception e) {
 			if (debug) {
 				e.printStackTrace(System.err);
@@ -428,11 +664,7 @@ public class MaskWebServices implements Serializable {
 			// get what is to be returned
 			JSONObject actionResponses = new JSONObject();
 			// execute the actions
-			JSONArray actions = (JSONArray) serviceLogic.get(ACTIONS);
-			for (Iterator<?> it = actions.iterator(); it.hasNext();) {
-				JSONObject action = (JSONObject) it.next();
-				ServicesManager.performAction(PUT, request, action, actionResponses);
-			}
+			ServicesManager.performActions(PUT, serviceLogic, request, actionResponses);
 			return MaskServiceUtil.getResponse(actionResponses);
 		} catch (Exception e) {
 			return MaskServiceUtil.getErrorResponse(e, MaskResponseCodes.Mask_UNEXPECTED_ERROR);
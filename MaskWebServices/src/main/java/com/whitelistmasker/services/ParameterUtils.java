@@ -24,7 +24,11 @@ package com.whitelistmasker.services;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import com.api.json.JSONObject;
+import com.whitelistmasker.masker.MaskerServiceAction;
+import com.whitelistmasker.masker.MaskerServiceAction.ParameterExtractor;
 
 /**
  * Utility service to check for the existence of a list of parameters in a
@@ -34,6 +38,29 @@ import com.api.json.JSONObject;
 
 public class ParameterUtils {
 
+	static final Map<String, ParameterExtractor> _extractorCache = new ConcurrentHashMap<String, ParameterExtractor>();
+
+	/**
+	 * Parse a parameter definition and resolve its class
+	 * 
+	 * @param className
+	 *                   name of the class whose method receives the parameter
+	 * @param methodName
+	 *                   name of the method receiving the parameter
+	 * @param param
+	 *                   parameter definition: either a constant String, or a
+	 *                   slash delimited path and class name separated by a colon
+	 *                   (e.g., request:com.api.json.JSONObject)
+	 * @return extractor for the parameter
+	 * @throws Exception
+	 *                   if the definition is malformed or its class can not be
+	 *                   loaded
+	 */
+	static public ParameterExtractor compileParameter(String className, String methodName, String param)
+			throws Exception {
+		return MaskerServiceAction.compileParameter(className, methodName, param);
+	}
+
 	/**
 	 * Return the value of the key in the object
 	 * 
@@ -73,45 +100,13 @@ public class ParameterUtils {
 			throw new Exception(className + ":" + methodName + ": null parameter passed");
 		}
 		for (String param : params) {
-			String[] paramTypes = param.split(":");
-			if (paramTypes.length == 1) {
-				// just treat as a constant String
-				retList.add(paramTypes[0]);
-				continue;
-			}
-			if (paramTypes.length != 2) {
-				throw new Exception(className + ":" + methodName
-						+ ": Malformed parameter (missing class name or too many colon delimiters?)");
-			}
-			String[] parts = paramTypes[0].split("/");
-			String pastPart = "";
-			Object ret = json;
-			for (String part : parts) {
-				// first time below passes since original object is a JSONObject
-				if (ret instanceof JSONObject == false) {
-					throw new Exception(
-							className + ":" + methodName + ": No JSONObject for " + pastPart + " path \"" + param + "\"");
-				}
-				ret = getObj(json, part);
-				if (ret == null) {
-					throw new Exception(className + ":" + methodName + ": No entry for path \"" + param + "\" in " + json);
-				}
-				// ret might not be a JSONObject but if this is the last part of the
-				// path that is okay
-				pastPart = part;
-			}
-			try {
-				@SuppressWarnings("unused")
-				Class<?> cls = Class.forName(paramTypes[1]);
-				if (ret.getClass().getName().compareTo(paramTypes[1]) != 0) {
-					throw new Exception(className + ":" + methodName + ": Actual class \"" + ret.getClass().getName()
-							+ "\" differs from expected \"" + paramTypes[1] + "\"");
-				}
-				retList.add(ret);
-
-			} catch (ClassNotFoundException e) {
-				throw new Exception(className + ":" + methodName + ": Can not load \"" + paramTypes[1] + "\"", e);
+			String key = className + "\u0000" + methodName + "\u0000" + param;
+			ParameterExtractor extractor = _extractorCache.get(key);
+			if (extractor == null) {
+				extractor = compileParameter(className, methodName, param);
+				_extractorCache.put(key, extractor);
 			}
+			retList.add(extractor.extract(json));
 		}
 		return retList;
 	}
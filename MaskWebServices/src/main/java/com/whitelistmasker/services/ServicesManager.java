@@ -23,11 +23,10 @@
 package com.whitelistmasker.services;
 
 import java.io.Serializable;
-import java.lang.reflect.Method;
-import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
-import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import javax.annotation.ManagedBean;
 import javax.annotation.PostConstruct;
@@ -35,7 +34,10 @@ import javax.annotation.PreDestroy;
 import javax.inject.Singleton;
 import com.api.json.JSONArray;
 import com.api.json.JSONObject;
+import com.whitelistmasker.masker.Masker;
 import com.whitelistmasker.masker.MaskerConstants;
+import com.whitelistmasker.masker.MaskerServiceAction;
+import com.whitelistmasker.masker.MaskerTemplateJournal;
 import com.whitelistmasker.masker.MaskerUtils;
 
 /**
@@ -51,6 +53,12 @@ public class ServicesManager implements Serializable {
 
 	static public JSONObject deleteRequests = new JSONObject();
 
+	/**
+	 * optional configuration of the worker pool and concurrency limit used by
+	 * {@link MaskRequestExecutor}
+	 */
+	static public JSONObject executionConfig = new JSONObject();
+
 	static public JSONObject getRequests = new JSONObject();
 
 	static public JSONObject postRequests = new JSONObject();
@@ -59,6 +67,13 @@ public class ServicesManager implements Serializable {
 
 	static protected int responseToken = 0;
 
+	/**
+	 * resolved actions for each service defined in the schema (keyed by the
+	 * service's schema object)
+	 */
+	static final Map<JSONObject, MaskerServiceAction[]> serviceActions = new IdentityHashMap<JSONObject,
+			MaskerServiceAction[]>();
+
 	private static final long serialVersionUID = -2206805773040898651L;
 
 	/**
@@ -103,11 +118,107 @@ public class ServicesManager implements Serializable {
 				throw new Exception(
 						"Can not find delete requests for the Mask schema in " + MaskerConstants.schemaFileName);
 			}
+			JSONObject execution = (JSONObject) maskerSchema.get(MaskRequestExecutor.EXECUTION);
+			if (execution != null) {
+				executionConfig = execution;
+			}
+			// resolve every action now so schema errors are found at startup
+			// rather than on each request
+			compileServices(getRequests);
+			compileServices(putRequests);
+			compileServices(postRequests);
+			compileServices(deleteRequests);
+			// follow the template changes made by other replicas
+			MaskerTemplateJournal.start();
 		} catch (Exception e) {
 			throw new Error("Can not initialize ServicesManager due to errors:  " + e.getMessage(), e);
 		}
 	}
 
+	/**
+	 * Check that a service masked without performing its actions has the Masker
+	 * method it reproduces as its only action, returning the service's response
+	 * 
+	 * @param serviceLogic
+	 *                     service object from the schema
+	 * @param compiled
+	 *                     resolved actions of the service
+	 * @param feature
+	 *                     schema key of the feature masking without the actions
+	 *                     (e.g., utf8)
+	 * @param methodName
+	 *                     Masker method the feature reproduces
+	 * @throws Exception
+	 *                   if the service's actions differ
+	 */
+	static void checkSoleAction(JSONObject serviceLogic, MaskerServiceAction[] compiled, String feature,
+			String methodName) throws Exception {
+		Object response = serviceLogic.get(MaskWebServices.RESPONSE);
+		if (compiled.length != 1 || Masker.class.getName().equals(compiled[0].getClassName()) == false
+				|| methodName.equals(compiled[0].getMethodName()) == false || response == null
+				|| response.equals(compiled[0].getReturnKey()) == false) {
+			throw new Exception("The " + feature + " feature requires a single " + Masker.class.getName() + "."
+					+ methodName + " action returning the service's " + MaskWebServices.RESPONSE + " key");
+		}
+	}
+
+	/**
+	 * Resolve the actions of a service
+	 * 
+	 * @param serviceLogic
+	 *                     service object from the schema
+	 * @return resolved actions in the order they are to be performed
+	 * @throws Exception
+	 *                   if the service has no actions or an action can not be
+	 *                   resolved
+	 */
+	static MaskerServiceAction[] compileService(JSONObject serviceLogic) throws Exception {
+		JSONArray actions = (JSONArray) serviceLogic.get("actions");
+		if (actions == null) {
+			throw new Exception("Can not find actions in service " + serviceLogic);
+		}
+		MaskerServiceAction[] compiled = new MaskerServiceAction[actions.size()];
+		int i = 0;
+		for (Iterator<?> it = actions.iterator(); it.hasNext();) {
+			compiled[i++] = new MaskerServiceAction((JSONObject) it.next(), ServicesManager.class.getClassLoader());
+		}
+		// the UTF-8 pipeline and streaming produce the response of the Masker method
+		// in place of the actions, so they must be exactly that method
+		if (serviceLogic.get(MaskWebServices.UTF8) != null) {
+			checkSoleAction(serviceLogic, compiled, MaskWebServices.UTF8, "maskContent");
+		}
+		if (serviceLogic.get(MaskWebServices.STREAMING) != null) {
+			checkSoleAction(serviceLogic, compiled, MaskWebServices.STREAMING,
+					(MaskStreamingService.STREAM_MESSAGES.equals(serviceLogic.get(MaskWebServices.STREAMING))
+							? "maskMessageContent"
+							: "maskContent"));
+		}
+		return compiled;
+	}
+
+	/**
+	 * Resolve the actions of all services for a request type and add them to the
+	 * dispatch table
+	 * 
+	 * @param reqType
+	 *                services registered for a request type (e.g., post)
+	 * @throws Exception
+	 *                   if an action can not be resolved
+	 */
+	static void compileServices(JSONObject reqType) throws Exception {
+		for (Object key : reqType.keySet()) {
+			Object serviceLogic = reqType.get(key);
+			if (serviceLogic instanceof JSONObject == false) {
+				continue; // e.g., comments
+			}
+			try {
+				serviceActions.put((JSONObject) serviceLogic, compileService((JSONObject) serviceLogic));
+			} catch (Exception e) {
+				throw new Exception("Service \"" + key + "\": " + e.getLocalizedMessage(), e);
+			}
+		}
+	}
+
 	/**
 	 * Get the set of published topics for the specified request type
 	 * 
@@ -163,178 +274,75 @@ public class ServicesManager implements Serializable {
 		System.out.println("ServicesManager");
 	}
 
+	/**
+	 * Perform a single action from the services schema against the request
+	 * 
+	 * @param verb
+	 *                       HTTP verb of the request
+	 * @param request
+	 *                       request providing parameter values
+	 * @param action
+	 *                       action from the services schema
+	 * @param actionResponse
+	 *                       object receiving the result under the action's return
+	 *                       key
+	 * @throws Exception
+	 *                   if the action can not be resolved or performed
+	 */
 	public static void performAction(String verb, JSONObject request, JSONObject action, JSONObject actionResponse)
 			throws Exception {
 		// check inputs
 		if (request == null) {
 			throw new Exception("null request received.");
 		}
-		if (debug) {
-			System.out.println("Request: " + request.toString());
-		}
 		if (action == null) {
 			throw new Exception("null action received.");
 		}
-		if (debug) {
-			System.out.println("Action: " + action.toString());
-		}
 		if (actionResponse == null) {
 			throw new Exception("null actionResponse received.");
 		}
-		if (debug) {
-			System.out.println("Action Response: " + actionResponse.toString());
+		try {
+			new MaskerServiceAction(action, ServicesManager.class.getClassLoader()).perform(request, actionResponse);
+		} catch (Exception e) {
+			throw new Exception(e.getLocalizedMessage(), e);
 		}
-		// parse the action into its components
-		String className = (String) action.get("class"); // must exist
-		if (className == null) {
-			throw new Exception("Action is missing a class name.");
+	}
+
+	/**
+	 * Perform the actions of a service using the dispatch table resolved when the
+	 * schema was loaded
+	 * 
+	 * @param verb
+	 *                        HTTP verb of the request
+	 * @param serviceLogic
+	 *                        service object from the schema
+	 * @param request
+	 *                        request providing parameter values
+	 * @param actionResponses
+	 *                        object receiving the results under the actions'
+	 *                        return keys
+	 * @throws Exception
+	 *                   if an action can not be performed
+	 */
+	public static void performActions(String verb, JSONObject serviceLogic, JSONObject request,
+			JSONObject actionResponses) throws Exception {
+		if (request == null) {
+			throw new Exception("null request received.");
 		}
 		if (debug) {
-			System.out.println("Loading class " + className);
+			System.out.println(verb + " Request: " + request.toString());
 		}
-		Class<?> cls = null;
-		try {
-			cls = Class.forName(className);
-		} catch (ClassNotFoundException e) {
-			if (debug) {
-				System.err.println("Can not load class \"" + className + "\"");
-			}
-			throw new Exception("Can not load class \"" + className + "\"", e);
+		MaskerServiceAction[] actions = serviceActions.get(serviceLogic);
+		if (actions == null) {
+			// not from the loaded schema so resolve it now
+			actions = compileService(serviceLogic);
 		}
-		String methodName = (String) action.get("method"); // may be null
-		// get parameter class names
-		JSONArray paramArray = (JSONArray) action.get("params"); // may be null
-		Method method = null;
-		StringBuffer sb = new StringBuffer();
-		String retKey = (String) action.get("return"); // may be null..
-		if (paramArray != null) {
-			List<String> paramDefs = new ArrayList<String>();
+		for (MaskerServiceAction action : actions) {
 			try {
-				List<Class<?>> paramClasses = new ArrayList<Class<?>>();
-				// now get the other parameters for the method
-				for (Iterator<?> it = paramArray.iterator(); it.hasNext();) {
-					String param = it.next().toString();
-					paramDefs.add(param);
-					String[] paramParts = param.split(":");
-					if (paramParts.length == 1) {
-						paramClasses.add(String.class);
-						sb.append(String.class.getName());
-						continue;
-					}
-					if (paramParts.length != 2) {
-						throw new Exception(className + ":" + methodName
-								+ ": Malformed parameter definition. Should either be a single String or a String:ClassName. \""
-								+ param + "\"");
-					}
-					String paramClassName = param.split(":")[1].toString();
-					sb.append(paramClassName);
-					sb.append(",");
-					Class<?> paramCls = null;
-
-					if (debug) {
-						System.out.println(className + ":" + methodName + ": Loading Parameter class " + paramClassName);
-					}
-					try {
-						paramCls = Class.forName(paramClassName);
-					} catch (ClassNotFoundException e) {
-						throw new Exception(
-								className + ":" + methodName + ": Can not load class named \"" + paramClassName + "\"", e);
-					}
-					paramClasses.add(paramCls);
-				}
-				// collect the data values
-				List<Object> paramData = ParameterUtils.getParameterData(request, className, methodName,
-						paramDefs.toArray(new String[0]));
-				// see if the class has this method
-				if (methodName != null) {
-					StringBuffer sbCls = new StringBuffer();
-					try {
-						/**
-						 * Put in these classes in reverse to have method like (x, y, z) parameters
-						 */
-						for (Class<?> paramCls : paramClasses) {
-							sbCls.append(",");
-							sbCls.append(paramCls.getName());
-						}
-						if (debug) {
-							System.out.print("Loading method " + className + "." + methodName + "(");
-							System.out.print(sbCls);
-							System.out.println(")");
-						}
-						method = cls.getMethod(methodName, paramClasses.toArray(new Class<?>[0]));
-					} catch (Exception e) {
-						if (debug) {
-							System.err.println(className + ":" + methodName + ": Can not find method named \"" + methodName
-									+ "\" with parameters " + sbCls.substring(0, sbCls.length() - 1) + " in class "
-									+ cls.getName());
-						}
-						throw new Exception(className + ":" + methodName + ": Can not find method named \"" + methodName
-								+ "\" with parameters " + sb.substring(0, sb.length() - 1) + " in class " + cls.getName());
-					}
-					// try to execute the method
-					method.setAccessible(true);
-					Object retVal = null;
-					try {
-						retVal = method.invoke(null, paramData.toArray(new Object[0]));
-					} catch (Exception e) {
-						StringBuffer sbData = new StringBuffer();
-						for (Object obj : paramData) {
-							if (obj != null) {
-								sbData.append(obj.toString());
-							} else {
-								sbData.append("null");
-							}
-							sbData.append(",");
-						}
-						throw new Exception(
-								className + ":" + methodName + ": Error invoking method \"" + methodName + "\" with parameters "
-										+ sbData.substring(0, sbData.length() - 1) + "   Cause: " + e.getCause(),
-								e);
-					}
-					if (retKey != null) {
-						// check to see if the retKey is already in the retVal and
-						// return
-						// it
-						if (retVal instanceof JSONObject) {
-							if (((JSONObject) retVal).get(retKey) != null) {
-								actionResponse.put(retKey, ((JSONObject) retVal).get(retKey));
-							} else {
-								actionResponse.put(retKey, retVal);
-							}
-						} else {
-							// store whatever was returned
-							actionResponse.put(retKey, retVal);
-						}
-					}
-				}
-
+				action.perform(request, actionResponses);
 			} catch (Exception e) {
 				throw new Exception(e.getLocalizedMessage(), e);
 			}
-		} else {
-			try {
-				// default is to always have the sessionID and userID passed
-				method = cls.getMethod(methodName);
-				// try to execute the method
-				method.setAccessible(true);
-				Object retVal = method.invoke(null);
-				if (retKey != null) {
-					// check to see if the retKey is already in the retVal and return
-					// it
-					if (retVal instanceof JSONObject) {
-						if (((JSONObject) retVal).get(retKey) != null) {
-							actionResponse.put(retKey, ((JSONObject) retVal).get(retKey));
-						} else {
-							actionResponse.put(retKey, retVal);
-						}
-					} else {
-						// store whatever was returned
-						actionResponse.put(retKey, retVal);
-					}
-				}
-			} catch (Exception e) {
-				throw new Exception("Can not find method named \"" + methodName + "\" in class " + cls.getName());
-			}
 		}
 	}
 
@@ -0,0 +1,6 @@
+#! /bin/bash
+# Creates the Masker.jsa class data sharing archive used by runMaskerHttpServer.sh
+# by running the MaskerTraining workload. Rerun after changing the jar(s) or JDK.
+cd /store/WAAExec/Masker
+rm -f Masker.jsa
+java -XX:ArchiveClassesAtExit=Masker.jsa -cp "./*" com.whitelistmasker.masker.MaskerTraining "$@"
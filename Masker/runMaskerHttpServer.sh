@@ -0,0 +1,7 @@
+#! /bin/bash
+cd /store/WAAExec/Masker
+if [ -f Masker.jsa ]; then
+   java -XX:SharedArchiveFile=Masker.jsa -cp "./*" com.whitelistmasker.masker.MaskerHttpServer "$@"
+else
+   java -cp "./*" com.whitelistmasker.masker.MaskerHttpServer "$@"
+fi
@@ -0,0 +1,57 @@
+/**
+ * (c) Copyright 2020-2023 IBM Corporation
+ * 1 New Orchard Road, 
+ * Armonk, New York, 10504-1722
+ * United States
+ * +1 914 499 1900
+ * Nathaniel Mills wnm3@us.ibm.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.whitelistmasker.masker;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java Flight Recorder event committed for each maskContent and
+ * maskMessageContent request, carrying the tenant, line, word and masked word
+ * counts. The event duration covers the time spent in the masking engine.
+ */
+@Name("com.whitelistmasker.MaskRequest")
+@Label("Mask Request")
+@Category({ "WhitelistMasker" })
+@Description("Masking request processed by the masking engine")
+@StackTrace(false)
+public class MaskRequestEvent extends jdk.jfr.Event {
+
+	@Label("Tenant")
+	String tenant;
+
+	@Label("Endpoint")
+	String endpoint;
+
+	@Label("Lines")
+	int lines;
+
+	@Label("Words")
+	long words;
+
+	@Label("Masked")
+	@Description("Number of words masked")
+	long masked;
+}
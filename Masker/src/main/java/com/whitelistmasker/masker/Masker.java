@@ -29,6 +29,7 @@ import java.nio.file.FileSystems;
 import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
 import java.text.NumberFormat;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
@@ -39,7 +40,14 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
-import java.util.regex.Matcher;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.BiFunction;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
 import com.api.json.JSONArray;
@@ -55,6 +63,91 @@ import com.api.json.JSONObject;
  */
 public class Masker implements Serializable {
 
+	/**
+	 * A masked dialog awaiting its header statistics, with the counts of its
+	 * masked words and (when indexing) the tokens it referenced
+	 */
+	static class MaskedDialog {
+
+		final JSONObject _counts;
+		final JSONObject _dialogHeader;
+		final JSONObject _maskedDialog;
+		Set<String> _tokens = null;
+
+		MaskedDialog(JSONObject maskedDialog, JSONObject dialogHeader, JSONObject counts) {
+			_maskedDialog = maskedDialog;
+			_dialogHeader = dialogHeader;
+			_counts = counts;
+		}
+	}
+
+	/**
+	 * Words awaiting masking by processWords, either from an array or split from
+	 * a word on a delimiter as they are needed, with what remains to be appended
+	 * for the word they were split from once they have been masked
+	 */
+	static class WordFrame {
+
+		static final int FINISH_NONE = 0;
+		static final int FINISH_SUFFIX = 1;
+		static final int FINISH_URL = 2;
+
+		int _finish = FINISH_NONE;
+		String _mixedCaseCleansedWord = null;
+		int _next = 0;
+		final char _splitChar;
+		final String _splitStr;
+		final String _text;
+		int _urlIndex = -1;
+		String[] _wordParts = null;
+		final String[] _words;
+
+		WordFrame(String text, char splitChar) {
+			_text = text;
+			_splitChar = splitChar;
+			_splitStr = String.valueOf(splitChar);
+			_words = null;
+		}
+
+		WordFrame(String[] words, String splitStr) {
+			_words = words;
+			_splitStr = splitStr;
+			_text = null;
+			_splitChar = 0;
+		}
+
+		/**
+		 * @return the next word to be masked (splitting text as
+		 *         {@link Masker#splitWordsOnChar(String, Character)} does), or null
+		 *         once all have been returned
+		 */
+		String nextWord() {
+			if (_words != null) {
+				return (_next < _words.length ? _words[_next++] : null);
+			}
+			int length = _text.length();
+			if (_next >= length) {
+				if (length == 0 && _next == 0) {
+					_next++;
+					return "";
+				}
+				return null;
+			}
+			if (_text.charAt(_next) == _splitChar) {
+				// each occurrence of the split character is an empty word
+				_next++;
+				return "";
+			}
+			int end = _text.indexOf(_splitChar, _next);
+			if (end == -1) {
+				end = length;
+			}
+			String word = _text.substring(_next, end);
+			_next = end;
+			return word;
+		}
+	}
+
 	/**
 	 * Class to manage associations of reference counts to words being masked
 	 *
@@ -106,11 +199,24 @@ public class Masker implements Serializable {
 	}
 
 	public static boolean _maskCommonPatterns = false;
+	// threads masking the dialogs of a file (1 masks them on the calling thread)
+	public static int _dialogThreads = Runtime.getRuntime().availableProcessors();
+	// fewest dialogs in a file for them to be masked concurrently
+	public static int _minParallelDialogs = 16;
+	// longest cleaned word classified for masking (longer ones are masked as
+	// misc without being split or recorded, 0 classifies words of any length),
+	// set by the masker.maxTokenLength system property or the Masker's arguments
+	public static int _maxTokenLength = 4096;
+	public static final String MAX_TOKEN_LENGTH_PROPERTY = "masker.maxTokenLength";
+	// templates aborted while masking dialog files (each is reported once)
+	static final Set<String> _abortedTemplates = ConcurrentHashMap.newKeySet();
+	static ExecutorService _dialogExecutor = null;
 	public static String _domainPrefixesFile = "DomainPrefixes.txt";
 	public static String _domainSuffixesFile = "DomainSuffixes.txt";
 	public static String _geolocationsFileName = "geolocations.json";
 	public static String _initializing = "Initializing";
 	public static boolean _isInitialized = false;
+	public static final Map<String, Boolean> _mapCompactResponse = new HashMap<String, Boolean>();
 	public static final Map<String, List<String>> _mapDomainPrefixLists = new HashMap<String, List<String>>();
 	public static final Map<String, List<String>> _mapDomainSuffixLists = new HashMap<String, List<String>>();
 	public static final Map<String, JSONObject> _mapGeoLocationsObjs = new HashMap<String, JSONObject>();
@@ -120,9 +226,16 @@ public class Masker implements Serializable {
 	public static final Map<String, List<Pattern>> _mapPatternsList = new HashMap<String, List<Pattern>>();
 	public static final Map<String, JSONObject> _mapProfanityObjs = new HashMap<String, JSONObject>();
 	public static final Map<String, List<String>> _mapQueryStringLists = new HashMap<String, List<String>>();
+	public static final Map<String, Long> _mapTemplateVersions = new ConcurrentHashMap<String, Long>();
 	public static final Map<String, JSONObject> _mapWhitelistObjs = new HashMap<String, JSONObject>();
 	public static String _maskBad = "~bad~";
-	public static Map<String, Integer> _maskedWords = new HashMap<String, Integer>();
+	public static Map<String, Integer> _maskedWords = new ConcurrentHashMap<String, Integer>();
+	static final BiFunction<Integer, Integer, Integer> SUM_COUNTS = new BiFunction<Integer, Integer, Integer>() {
+		@Override
+		public Integer apply(Integer count, Integer increment) {
+			return count + increment;
+		}
+	};
 	public static String _maskGeo = "~geo~";
 	public static String _maskMisc = "~misc~";
 	public static String _maskName = "~name~";
@@ -240,6 +353,11 @@ public class Masker implements Serializable {
 	 */
 	static boolean init() {
 		synchronized (_initializing) {
+			// e.g., -Dmasker.maxTokenLength=8192 for the web services' JVM
+			String maxTokenLength = System.getProperty(MAX_TOKEN_LENGTH_PROPERTY);
+			if (maxTokenLength != null && setMaxTokenLength(maxTokenLength) == false) {
+				System.out.println("Using the maximum token length " + _maxTokenLength + " instead.");
+			}
 			// get the tenant IDs from the properties directory
 			File propsDir = new File("." + File.separator + MaskerConstants.Masker_DIR_PROPERTIES);
 			if (propsDir.exists() == false) {
@@ -255,6 +373,8 @@ public class Masker implements Serializable {
 			});
 			for (String tenantID : tenantIDs) {
 				Boolean _maskNumbers = Boolean.TRUE;
+				Boolean _compactResponse = Boolean.FALSE;
+				Long _templateVersion = 0L;
 				JSONObject _whitelist = new JSONObject();
 				JSONObject _names = new JSONObject();
 				JSONObject _geolocations = new JSONObject();
@@ -264,11 +384,15 @@ public class Masker implements Serializable {
 				List<String> _domainSuffixList = new ArrayList<String>();
 				List<Pattern> _patternsList = new ArrayList<Pattern>();
 				List<String> _masksList = new ArrayList<String>();
+				TenantLoadEvent loadEvent = null;
 
 				String filePrefix = "." + File.separator + MaskerConstants.Masker_DIR_PROPERTIES+ tenantID
 						+ File.separator;
 				try {
+					loadEvent = new TenantLoadEvent();
+					loadEvent.begin();
 					_whitelist = (JSONObject) MaskerUtils.loadJSONFile(filePrefix + _whitelistFileName);
+					commitTenantLoad(loadEvent, tenantID, filePrefix + _whitelistFileName, 0);
 					if (_whitelist == null) {
 						System.out.println("Can not find the whitelist key in the file " + filePrefix + _whitelistFileName);
 						System.out.println("Ignoring directory \""+filePrefix+"\" as an invalid tenantID directory.");
@@ -281,14 +405,20 @@ public class Masker implements Serializable {
 					continue;
 				}
 				try {
+					loadEvent = new TenantLoadEvent();
+					loadEvent.begin();
 					_names = (JSONObject) MaskerUtils.loadJSONFile(filePrefix + _namesFileName);
+					commitTenantLoad(loadEvent, tenantID, filePrefix + _namesFileName, 0);
 				} catch (Exception e) {
 					System.out.println("Error loading file " + filePrefix + _namesFileName + ": " + e.getLocalizedMessage());
 					System.out.println("Ignoring directory \""+filePrefix+"\" as an invalid tenantID directory.");
 					continue;
 				}
 				try {
+					loadEvent = new TenantLoadEvent();
+					loadEvent.begin();
 					_geolocations = (JSONObject) MaskerUtils.loadJSONFile(filePrefix + _geolocationsFileName);
+					commitTenantLoad(loadEvent, tenantID, filePrefix + _geolocationsFileName, 0);
 				} catch (Exception e) {
 					System.out.println(
 							"Error loading file " + filePrefix + _geolocationsFileName + ": " + e.getLocalizedMessage());
@@ -296,7 +426,10 @@ public class Masker implements Serializable {
 					continue;
 				}
 				try {
+					loadEvent = new TenantLoadEvent();
+					loadEvent.begin();
 					_profanities = (JSONObject) MaskerUtils.loadJSONFile(filePrefix + _profanitiesFileName);
+					commitTenantLoad(loadEvent, tenantID, filePrefix + _profanitiesFileName, 0);
 				} catch (Exception e) {
 					System.out.println(
 							"Error loading file " + filePrefix + _profanitiesFileName + ": " + e.getLocalizedMessage());
@@ -304,7 +437,10 @@ public class Masker implements Serializable {
 					continue;
 				}
 				try {
+					loadEvent = new TenantLoadEvent();
+					loadEvent.begin();
 					List<String> domainPrefixList = MaskerUtils.loadTextFile(filePrefix + _domainPrefixesFile);
+					commitTenantLoad(loadEvent, tenantID, filePrefix + _domainPrefixesFile, 0);
 					for (String domainPrefix : domainPrefixList) {
 						if (domainPrefix.startsWith("_")) {
 							continue;
@@ -318,7 +454,10 @@ public class Masker implements Serializable {
 					continue;
 				}
 				try {
+					loadEvent = new TenantLoadEvent();
+					loadEvent.begin();
 					List<String> domainSuffixList = MaskerUtils.loadTextFile(filePrefix + _domainSuffixesFile);
+					commitTenantLoad(loadEvent, tenantID, filePrefix + _domainSuffixesFile, 0);
 					for (String domainSuffix : domainSuffixList) {
 						if (domainSuffix.startsWith("_")) {
 							continue;
@@ -332,7 +471,10 @@ public class Masker implements Serializable {
 					continue;
 				}
 				try {
+					loadEvent = new TenantLoadEvent();
+					loadEvent.begin();
 					List<String> queryStringContainsList = MaskerUtils.loadTextFile(filePrefix + _queryStringContainsFile);
+					commitTenantLoad(loadEvent, tenantID, filePrefix + _queryStringContainsFile, 0);
 					for (String queryStringContains : queryStringContainsList) {
 						if (queryStringContains.startsWith("_")) {
 							continue;
@@ -347,54 +489,27 @@ public class Masker implements Serializable {
 				}
 
 				try {
+					loadEvent = new TenantLoadEvent();
+					loadEvent.begin();
 					JSONObject maskTemplates = MaskerUtils.loadJSONFile(filePrefix + _maskTemplatesFile);
 					Object test = maskTemplates.get("maskNumbers");
 					if (test != null && test instanceof Boolean) {
 						_maskNumbers = (Boolean) test;
 					}
+					test = maskTemplates.get("compactResponse");
+					if (test != null && test instanceof Boolean) {
+						_compactResponse = (Boolean) test;
+					}
 					JSONArray templates = (JSONArray) maskTemplates.get("templates");
 					if (templates == null) {
 						templates = new JSONArray();
 					}
-					String addPattern = "";
-					String addMask = "";
-					JSONObject jObj;
-					for (Object obj : templates) {
-						jObj = (JSONObject) obj;
-						addPattern = (String) jObj.get("template");
-						addMask = (String) jObj.get("mask");
-						if (addPattern != null && addMask != null) {
-							addPattern = addPattern.trim();
-							// ensure masks are lowercase to work with masking check
-							addMask = addMask.toLowerCase().trim();
-							// ensure there is no wrapper
-							if (addMask.startsWith(_maskPrefix) == true) {
-								addMask = addMask.substring(1);
-							}
-							if (addMask.endsWith(_maskPrefix) == true) {
-								addMask = addMask.substring(0, addMask.length() - 1);
-							}
-							if (addMask.length() > 0) {
-								try {
-									Pattern newPattern = Pattern.compile(addPattern);
-									_patternsList.add(newPattern);
-									_masksList.add(addMask);
-								} catch (PatternSyntaxException pse) {
-									System.out.println("Skipping \"" + addPattern + "\" because it did not compile: "
-											+ pse.getLocalizedMessage());
-								}
-							} else {
-								System.out.println("Skipping \"" + addPattern + "\" because its \"mask\" was empty.");
-							}
-						} else {
-							if (addPattern == null) {
-								System.out
-										.println("Skipping \"" + addMask + "\" because its \"template\" was missing or null.");
-							} else {
-								System.out.println("Skipping \"" + addPattern + "\" because its \"mask\" was missing or null.");
-							}
-						}
+					addTemplates(templates, _patternsList, _masksList);
+					test = maskTemplates.get("templateVersion");
+					if (test instanceof Number) {
+						_templateVersion = ((Number) test).longValue();
 					}
+					commitTenantLoad(loadEvent, tenantID, filePrefix + _maskTemplatesFile, _patternsList.size());
 				} catch (Exception e) {
 					System.out
 							.println("Error loading file " + filePrefix + _maskTemplatesFile + ": " + e.getLocalizedMessage());
@@ -404,6 +519,7 @@ public class Masker implements Serializable {
 				// if we reach here we found all the artifacts in this directory to consider it a valid tenantID
 				_setTenantIDs.add(tenantID);
 				_mapMaskNumbers.put(tenantID, _maskNumbers);
+				_mapCompactResponse.put(tenantID, _compactResponse);
 				_mapWhitelistObjs.put(tenantID, _whitelist);
 				_mapNameObjs.put(tenantID, _names);
 				_mapGeoLocationsObjs.put(tenantID, _geolocations);
@@ -413,14 +529,121 @@ public class Masker implements Serializable {
 				_mapDomainSuffixLists.put(tenantID, _domainSuffixList);
 				_mapPatternsList.put(tenantID, _patternsList);
 				_mapMasksList.put(tenantID, _masksList);
+				_mapTemplateVersions.put(tenantID, _templateVersion);
 
 			} // end while processing each tenantID
 			System.out.println("System initialized properly.");
 			_isInitialized = true;
+			// apply template changes journaled since the maskTemplates.json files were
+			// written (servers then follow those made by other replicas)
+			MaskerTemplateJournal.load(_setTenantIDs);
 		}
 		return true;
 	}
 
+	/**
+	 * Set the longest cleaned word classified for masking
+	 * 
+	 * @param maxTokenLength
+	 *                       number of characters, or 0 to classify words of any
+	 *                       length
+	 * @return true if the value was a non-negative integer and has been set
+	 */
+	static boolean setMaxTokenLength(String maxTokenLength) {
+		try {
+			int length = Integer.valueOf(maxTokenLength.trim());
+			if (length >= 0) {
+				_maxTokenLength = length;
+				return true;
+			}
+		} catch (NumberFormatException nfe) {
+			// reported below
+		}
+		System.out.println(
+				"Maximum token length must be 0 or a positive integer but received \"" + maxTokenLength + "\"");
+		return false;
+	}
+
+	/**
+	 * Compile the templates from a maskTemplates.json file, skipping (and
+	 * reporting) those that can not be used
+	 * 
+	 * @param templates
+	 *                  array of objects with a template and a mask
+	 * @param patterns
+	 *                  list receiving the compiled templates
+	 * @param masks
+	 *                  list receiving the masks (without their tilde wrappers)
+	 *                  for the patterns
+	 */
+	static void addTemplates(JSONArray templates, List<Pattern> patterns, List<String> masks) {
+		String addPattern = "";
+		String addMask = "";
+		JSONObject jObj;
+		for (Object obj : templates) {
+			jObj = (JSONObject) obj;
+			addPattern = MaskerDetectors.getTemplate(jObj);
+			addMask = MaskerDetectors.getMask(jObj);
+			if (addPattern != null && addMask != null) {
+				addPattern = addPattern.trim();
+				// ensure masks are lowercase to work with masking check
+				addMask = addMask.toLowerCase().trim();
+				// ensure there is no wrapper
+				if (addMask.startsWith(_maskPrefix) == true) {
+					addMask = addMask.substring(1);
+				}
+				if (addMask.endsWith(_maskPrefix) == true) {
+					addMask = addMask.substring(0, addMask.length() - 1);
+				}
+				if (addMask.length() > 0) {
+					try {
+						Pattern newPattern = MaskerDetectors.compile(addPattern);
+						String risk = MaskerRegexGuard.findBacktrackingRisk(addPattern);
+						if (risk != null) {
+							System.out.println("Warning: \"" + addPattern + "\" is prone to excessive backtracking because "
+									+ risk + ". Its matching is limited by the regex step budget.");
+						}
+						patterns.add(newPattern);
+						masks.add(addMask);
+					} catch (PatternSyntaxException pse) {
+						System.out.println("Skipping \"" + addPattern + "\" because it did not compile: "
+								+ pse.getLocalizedMessage());
+					}
+				} else {
+					System.out.println("Skipping \"" + addPattern + "\" because its \"mask\" was empty.");
+				}
+			} else {
+				if (addPattern == null) {
+					System.out.println("Skipping \"" + addMask + "\" because its \"template\" was missing or null.");
+				} else {
+					System.out.println("Skipping \"" + addPattern + "\" because its \"mask\" was missing or null.");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Commit the flight recorder event for a tenant resource that has been loaded
+	 * 
+	 * @param loadEvent
+	 *                  event begun before the resource was loaded
+	 * @param tenantID
+	 *                  tenant owning the resource
+	 * @param fileName
+	 *                  name of the loaded file
+	 * @param templates
+	 *                  number of active templates (for template resources)
+	 */
+	static void commitTenantLoad(TenantLoadEvent loadEvent, String tenantID, String fileName, int templates) {
+		if (loadEvent.shouldCommit()) {
+			loadEvent.tenant = tenantID;
+			loadEvent.file = fileName;
+			loadEvent.bytes = new File(fileName).length();
+			loadEvent.templates = templates;
+			loadEvent.commit();
+		}
+	}
+
 	/**
 	 * Tests whether the testWord comprises all number values
 	 * 
@@ -443,7 +666,18 @@ public class Masker implements Serializable {
 		return true;
 	}
 
-	static void getDifferences(String unmasked, String masked, JSONArray diffs) {
+	/**
+	 * Add the text replaced by each mask in the masked version of a message to the
+	 * diffs array as an object keyed by the mask
+	 * 
+	 * @param unmasked
+	 *                 original message (with tildes replaced by \u223C)
+	 * @param masked
+	 *                 masked message
+	 * @param diffs
+	 *                 array receiving the differences
+	 */
+	static public void getDifferences(String unmasked, String masked, JSONArray diffs) {
 		/**
 		 * for each mask, find its equivalent in the original string and save it as an
 		 * object
@@ -527,11 +761,20 @@ public class Masker implements Serializable {
 	 *             value, and a flag whether numbers should be masked. If these are
 	 *             not specified, the program will prompt for them and provide an
 	 *             opportunity to quit before execution of the filtering begins.
+	 *             These may be followed by the optional output format (pretty or
+	 *             compact, default pretty) and output compression (none, gzip or
+	 *             zstd, default none), whether to write the token index used
+	 *             by MaskerRemask (index or noindex, default noindex), the number
+	 *             of threads masking the dialogs of a file, and the longest word
+	 *             classified for masking (default 4096, 0 for any length). Input
+	 *             files ending with .json.gz or .json.zst are decompressed as they
+	 *             are read.
 	 */
 	public static void main(String[] args) {
 		Masker pgm = new Masker();
 		if (pgm.getParams(args)) {
-			System.out.println("\nFiles ending with ." + pgm._ext + " will be read from " + pgm._inputPath //
+			System.out.println("\nFiles ending with ." + pgm._ext + " (optionally followed by " + MaskerUtils.GZIP_EXTENSION
+					+ " or " + MaskerUtils.ZSTD_EXTENSION + ") will be read from " + pgm._inputPath //
 					+ "\nand content not in the " + _tenantID + " whitelist will be masked."//
 					+ "\nIf the dialog contains a reference to a URL" //
 					+ "\nwith a domain not ending with a suffix in the domain suffixes list" //
@@ -542,25 +785,40 @@ public class Masker implements Serializable {
 					+ "\nthe dialog content will be saved to the output directory " + pgm._outputPath); //
 			System.out.println("It is "+_mapMaskNumbers.get(_tenantID)+" that numbers will be masked.");
 			if (MaskerUtils.prompt("Press q to quit or press Enter to continue	").length() == 0) {
+				// skipped files whose masked words were not saved by the prior run
+				int uncounted = 0;
 				try {
 
-					JSONObject _whitelist = _mapWhitelistObjs.get(_tenantID);
-					JSONObject _names = _mapNameObjs.get(_tenantID);
-					JSONObject _geolocations = _mapGeoLocationsObjs.get(_tenantID);
-					JSONObject _profanities = _mapProfanityObjs.get(_tenantID);
-					List<Pattern> _patterns = _mapPatternsList.get(_tenantID);
-					List<String> _masks = _mapMasksList.get(_tenantID);
-					List<String> _queryStringContainsList = _mapQueryStringLists.get(_tenantID);
-					List<String> _domainPrefixList = _mapDomainPrefixLists.get(_tenantID);
-					List<String> _domainSuffixList = _mapDomainSuffixLists.get(_tenantID);
-					Boolean _maskNumbers = _mapMaskNumbers.get(_tenantID);
-
-					List<Path> files = MaskerUtils
-							.listSourceFiles(FileSystems.getDefault().getPath(pgm._inputPath.toString()), pgm._ext);
-					Collections.sort(files);
-					for (Path file : files) {
-						pgm.doWork(file, _whitelist, _names, _geolocations, _profanities, _queryStringContainsList,
-								_domainPrefixList, _domainSuffixList, _patterns, _masks, _maskNumbers);
+					List<Path> files = pgm.listInputFiles();
+					// checkpoint the run so a rerun skips the files already finished
+					MaskerRunManifest manifest = pgm.createRunManifest();
+					MaskerTokenIndex index = pgm.createTokenIndex(manifest);
+					int skipped = 0;
+					try {
+						for (Path file : files) {
+							if (manifest.isComplete(file)) {
+								skipped++;
+								// count the words masked when the file was finished
+								Map<String, Integer> counts = manifest.loadMaskedWords(file);
+								if (counts == null) {
+									uncounted++;
+								} else {
+									mergeCounts(Masker._maskedWords, counts);
+								}
+								continue;
+							}
+							pgm.maskFile(file, manifest, index);
+						}
+					} finally {
+						manifest.close();
+						if (index != null) {
+							index.close();
+						}
+					}
+					if (skipped != 0) {
+						System.out.println("Skipped " + skipped + " files completed by a prior run with the same content, "
+								+ "lexicon, templates and settings (see " + pgm._outputPath + MaskerRunManifest.MANIFEST_FILE
+								+ ")");
 					}
 					if (pgm._totalWords != 0L) {
 						Double pct = (100.0d * pgm._totalMasked) / pgm._totalWords;
@@ -582,8 +840,10 @@ public class Masker implements Serializable {
 
 					@Override
 					public int compare(Tuple o1, Tuple o2) {
-						// reverse sort largest first
-						return o2.getCount() - o1.getCount();
+						// reverse sort largest first, then by word as the order the words were
+						// masked in varies with the threads masking the dialogs
+						int diff = o2.getCount() - o1.getCount();
+						return (diff != 0 ? diff : o1._word.compareTo(o2._word));
 					}
 
 				});
@@ -592,11 +852,18 @@ public class Masker implements Serializable {
 					sb.append(elt.toString());
 					sb.append("\n");
 				}
-				try {
-					System.out.println("Writing blacklist to " + pgm._outputPath + "blacklist.txt");
-					MaskerUtils.saveTextFile(pgm._outputPath + "blacklist.txt", sb.toString());
-				} catch (Exception e) {
-					e.printStackTrace();
+				if (uncounted != 0) {
+					// a partial blacklist would replace the complete one of the prior run
+					System.out.println("Not writing " + pgm._outputPath + "blacklist.txt as the masked words of " + uncounted
+							+ " skipped files were not saved by the run that finished them (delete "
+							+ MaskerRunManifest.MANIFEST_FILE + " to mask every file again)");
+				} else {
+					try {
+						System.out.println("Writing blacklist to " + pgm._outputPath + "blacklist.txt");
+						MaskerUtils.saveTextFile(pgm._outputPath + "blacklist.txt", sb.toString());
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
 				}
 			}
 			System.out.println();
@@ -641,7 +908,10 @@ public class Masker implements Serializable {
 	 * matching the regex pattern. An optional maskNumbers boolean value can be
 	 * provided to control whether numbers are to be masked. A response JSON object
 	 * is returned containing an array of masked text lines, and any errors
-	 * encountered while attempting to perform the masking.
+	 * encountered while attempting to perform the masking. The request is echoed
+	 * in the response unless a compactResponse boolean value of true is provided
+	 * (or is the tenant's default in its maskTemplates.json), and an optional
+	 * includeCounts boolean value of true adds the word and masked word counts.
 	 * 
 	 * @param request
 	 *                (see above)
@@ -651,92 +921,150 @@ public class Masker implements Serializable {
 	 *                   or an invalid mask is provided.
 	 */
 	static public JSONObject maskContent(JSONObject request) throws Exception {
-		boolean maskNumbers = true; // default
-		JSONObject counts = new JSONObject();
-		counts.put("maskedBad", 0L);
-		counts.put("maskedGeo", 0L);
-		counts.put("maskedMisc", 0L);
-		counts.put("maskedName", 0L);
-		counts.put("maskedNum", 0L);
-		counts.put("maskedURL", 0L);
+		MaskRequestEvent requestEvent = new MaskRequestEvent();
+		requestEvent.begin();
+		JSONObject response = maskContent(request, MaskerMetrics.ENDPOINT_DO_MASKING, requestEvent);
+		if (requestEvent.shouldCommit()) {
+			requestEvent.commit();
+		}
+		return response;
+	}
 
-		counts.put("words", 0L);
-		counts.put("masked", 0L);
+	/**
+	 * Performs the masking described in {@link #maskContent(JSONObject)},
+	 * recording the stage latencies and throughput against the supplied endpoint
+	 *
+	 * @param request
+	 *                     (see {@link #maskContent(JSONObject)})
+	 * @param endpoint
+	 *                     service endpoint the metrics are recorded against
+	 * @param requestEvent
+	 *                     flight recorder event to be filled in with the tenant
+	 *                     and counts (committed by the caller)
+	 * @return response (see {@link #maskContent(JSONObject)})
+	 * @throws Exception
+	 *                   if a supplied regex pattern in a template fails to compile
+	 *                   or an invalid mask is provided.
+	 */
+	static JSONObject maskContent(JSONObject request, String endpoint, MaskRequestEvent requestEvent)
+			throws Exception {
+		long requestStart = System.nanoTime();
+		long[] stageNanos = new long[MaskerMetrics.STAGE_NAMES.length];
+		JSONObject counts = newCounts();
 
-		JSONObject response = new JSONObject();
 		if (!_isInitialized) {
 			if (!Masker.init()) {
 				throw new Exception("Can not initialize masking environment.");
 			}
 		}
+		JSONArray unmasked = (JSONArray) request.get("unmasked");
+		JSONArray masked = new JSONArray();
+		JSONArray errors = new JSONArray();
+		JSONObject response = newContentResponse(request, masked, errors, counts);
+		MaskerContext context = createContext(request, errors);
+		if (context == null) {
+			return response;
+		}
+		response.put("templateVersion", context.getTemplateVersion());
+
+		for (Object obj : unmasked) {
+			if (obj == null) {
+				masked.add("");
+			} else {
+				masked.add(maskLine(context, obj.toString(), counts, stageNanos));
+			}
+		}
+		recordRequest(context, endpoint, unmasked.size(), counts, stageNanos, requestStart, requestEvent);
+		return response;
+	}
+
+	/**
+	 * Create the context for masking a request's lines. The request's optional
+	 * maskNumbers Boolean and array of templates are combined with the tenant's
+	 * resources and templates.
+	 * 
+	 * @param request
+	 *                request containing the tenantID, and optionally maskNumbers
+	 *                and templates
+	 * @param errors
+	 *                array receiving errors for the tenantID and any templates
+	 *                that could not be used
+	 * @return the context for masking the request's lines, or null if the tenantID
+	 *         is missing, unknown or its resources are incomplete (in which case
+	 *         the reason has been added to the errors)
+	 * @throws Exception
+	 *                   if the masking environment can not be initialized
+	 */
+	static public MaskerContext createContext(JSONObject request, JSONArray errors) throws Exception {
+		if (!_isInitialized) {
+			if (!Masker.init()) {
+				throw new Exception("Can not initialize masking environment.");
+			}
+		}
+		MaskerContext context = new MaskerContext();
 		Object test = request.get("maskNumbers");
 		if (test != null && test instanceof Boolean) {
-			maskNumbers = (Boolean) test;
+			context._maskNumbers = (Boolean) test;
 		}
 		JSONArray templates = (JSONArray) request.get("templates");
-		JSONArray unmasked = (JSONArray) request.get("unmasked");
-		JSONArray masked = new JSONArray();
-		JSONArray errors = new JSONArray();
-		response.put("request", request);
-		response.put("masked", masked);
-		response.put("errors", errors);
 		String tenantID = (String) request.get("tenantID");
 		if (tenantID == null) {
 			JSONObject error = new JSONObject();
 			error.put("error", "tenantID is missing.");
 			errors.add(error);
-			return response;
+			return null;
 		}
 		if (_setTenantIDs.contains(tenantID) == false) {
 			JSONObject error = new JSONObject();
 			error.put("error", "tenantID \"" + tenantID + "\" is not a known tenantID.");
 			errors.add(error);
-			return response;
+			return null;
 		}
-		String line = "";
-		String maskedLine = "";
+		context._tenantID = tenantID;
+		context._templateMatchEnabled = new TemplateMatchEvent().isEnabled();
+		context._errors = errors;
 
 		JSONObject _whitelist = _mapWhitelistObjs.get(tenantID);
 		if (_whitelist == null) {
 			JSONObject error = new JSONObject();
 			error.put("error", "tenantID \"" + tenantID + "\" has no whitelist.");
 			errors.add(error);
-			return response;
+			return null;
 		}
 		JSONObject _names = _mapNameObjs.get(tenantID);
 		if (_names == null) {
 			JSONObject error = new JSONObject();
 			error.put("error", "tenantID \"" + tenantID + "\" has no names.");
 			errors.add(error);
-			return response;
+			return null;
 		}
 		JSONObject _geolocations = _mapGeoLocationsObjs.get(tenantID);
 		if (_geolocations == null) {
 			JSONObject error = new JSONObject();
 			error.put("error", "tenantID \"" + tenantID + "\" has no geolocations.");
 			errors.add(error);
-			return response;
+			return null;
 		}
 		JSONObject _profanities = _mapProfanityObjs.get(tenantID);
 		if (_profanities == null) {
 			JSONObject error = new JSONObject();
 			error.put("error", "tenantID \"" + tenantID + "\" has no profanities.");
 			errors.add(error);
-			return response;
+			return null;
 		}
 		List<Pattern> _patterns = _mapPatternsList.get(tenantID);
 		if (_patterns == null) {
 			JSONObject error = new JSONObject();
 			error.put("error", "tenantID \"" + tenantID + "\" has no patterns.");
 			errors.add(error);
-			return response;
+			return null;
 		}
 		List<String> _masks = _mapMasksList.get(tenantID);
 		if (_masks == null) {
 			JSONObject error = new JSONObject();
 			error.put("error", "tenantID \"" + tenantID + "\" has no masks.");
 			errors.add(error);
-			return response;
+			return null;
 		}
 
 		List<String> _queryStringContainsList = _mapQueryStringLists.get(tenantID);
@@ -744,7 +1072,7 @@ public class Masker implements Serializable {
 			JSONObject error = new JSONObject();
 			error.put("error", "tenantID \"" + tenantID + "\" has no QueryStringContains.");
 			errors.add(error);
-			return response;
+			return null;
 		}
 
 		List<String> _domainPrefixList = _mapDomainPrefixLists.get(tenantID);
@@ -752,7 +1080,7 @@ public class Masker implements Serializable {
 			JSONObject error = new JSONObject();
 			error.put("error", "tenantID \"" + tenantID + "\" has no DomainPrefixList.");
 			errors.add(error);
-			return response;
+			return null;
 		}
 
 		List<String> _domainSuffixList = _mapDomainSuffixLists.get(tenantID);
@@ -760,8 +1088,15 @@ public class Masker implements Serializable {
 			JSONObject error = new JSONObject();
 			error.put("error", "tenantID \"" + tenantID + "\" has no DomainSuffixList.");
 			errors.add(error);
-			return response;
+			return null;
 		}
+		context._whitelist = _whitelist;
+		context._names = _names;
+		context._geolocations = _geolocations;
+		context._profanities = _profanities;
+		context._queryStringContainsList = _queryStringContainsList;
+		context._domainPrefixList = _domainPrefixList;
+		context._domainSuffixList = _domainSuffixList;
 
 		List<Pattern> patterns = new ArrayList<Pattern>();
 		List<String> masks = new ArrayList<String>();
@@ -771,8 +1106,8 @@ public class Masker implements Serializable {
 					continue;
 				}
 				JSONObject template = (JSONObject) obj;
-				String pattern = (String) template.get("template");
-				String mask = (String) template.get("mask");
+				String pattern = MaskerDetectors.getTemplate(template);
+				String mask = MaskerDetectors.getMask(template);
 				if (pattern != null && mask != null) {
 					mask = mask.trim();
 					// ensure masks are lowercase to work with masking check
@@ -786,7 +1121,16 @@ public class Masker implements Serializable {
 					}
 					if (mask.length() > 0) {
 						try {
-							Pattern patternComp = Pattern.compile(pattern);
+							Pattern patternComp = MaskerDetectors.compile(pattern);
+							String risk = MaskerRegexGuard.findBacktrackingRisk(pattern);
+							if (risk != null) {
+								JSONObject error = new JSONObject();
+								error.put("template", pattern);
+								error.put("mask", mask);
+								error.put("error", "Rejected because " + risk + ".");
+								errors.add(error);
+								continue;
+							}
 							patterns.add(patternComp);
 							masks.add(mask);
 						} catch (PatternSyntaxException pse) {
@@ -821,73 +1165,303 @@ public class Masker implements Serializable {
 			}
 		}
 
-		// append the global masks to transactional masks
+		// append the global masks to transactional masks, getting them again as a
+		// journaled template change may have replaced them along with their version
 		synchronized (_initializing) {
-			patterns.addAll(_patterns);
-			masks.addAll(_masks);
+			patterns.addAll(_mapPatternsList.get(tenantID));
+			masks.addAll(_mapMasksList.get(tenantID));
+			context._templateVersion = getTemplateVersion(tenantID);
 		}
+		context._patterns = patterns;
+		context._masks = masks;
+		return context;
+	}
 
+	/**
+	 * Mask a single line using the templates and tenant resources of the context
+	 * 
+	 * @param context
+	 *                   context created for the request
+	 * @param line
+	 *                   text to be masked
+	 * @param counts
+	 *                   counts to be updated (see {@link #newCounts()})
+	 * @param stageNanos
+	 *                   array indexed by the MaskerMetrics STAGE_* values
+	 *                   accumulating the time spent in each stage
+	 * @return the masked line
+	 * @throws Exception
+	 */
+	static public String maskLine(MaskerContext context, String line, JSONObject counts, long[] stageNanos)
+			throws Exception {
+		List<Pattern> patterns = context._patterns;
+		List<String> masks = context._masks;
 		Pattern pattern = null;
-		Matcher matcher = null;
-		for (Object obj : unmasked) {
-			if (obj == null) {
-				maskedLine = "";
-			} else {
-				line = obj.toString();
 
-				// first apply request templates
-				for (int i = 0; i < patterns.size(); i++) {
-					pattern = patterns.get(i);
-					matcher = pattern.matcher(line);
-					if (matcher.find()) {
-						line = matcher.replaceAll(_maskPrefix + masks.get(i) + _maskPrefix);
+		// first apply request templates
+		long stageStart = System.nanoTime();
+		for (int i = 0; i < patterns.size(); i++) {
+			TemplateMatchEvent matchEvent = null;
+			if (context._templateMatchEnabled) {
+				matchEvent = new TemplateMatchEvent();
+				matchEvent.begin();
+			}
+			pattern = patterns.get(i);
+			String maskedLine = null;
+			try {
+				maskedLine = MaskerDetectors.replaceAll(pattern, line, _maskPrefix + masks.get(i) + _maskPrefix);
+			} catch (MaskerRegexGuard.BudgetExceededException e) {
+				if (Thread.currentThread().isInterrupted()) {
+					throw e;
+				}
+				// mask the line without the template rather than failing the request
+				context.addAbortedTemplate(e);
+			}
+			boolean matched = (maskedLine != null);
+			if (matched) {
+				line = maskedLine;
+			}
+			if (matchEvent != null && matchEvent.shouldCommit()) {
+				matchEvent.tenant = context._tenantID;
+				matchEvent.template = pattern.pattern();
+				matchEvent.mask = masks.get(i);
+				matchEvent.matched = matched;
+				matchEvent.commit();
+			}
+		}
+		stageNanos[MaskerMetrics.STAGE_TEMPLATES] += System.nanoTime() - stageStart;
+
+		// finally do standard masking, without splitting plain ASCII words into
+		// Strings when possible
+		stageStart = System.nanoTime();
+		String maskedAscii = MaskerAscii.maskMessage(line, counts, context._maskNumbers, context._whitelist,
+				context._names, context._geolocations, context._profanities, masks);
+		if (maskedAscii != null) {
+			stageNanos[MaskerMetrics.STAGE_CLASSIFY] += System.nanoTime() - stageStart;
+			return maskedAscii;
+		}
+		String[] mixedCaseWords = splitWordsOnChar(line, ' ');
+		// need to treat existing masks as words
+		List<String> withMasks = new ArrayList<String>();
+		boolean hasPrefix = false;
+		String saveWord = "";
+		for (String testWord : mixedCaseWords) {
+			if (testWord.contains("\u223C")) {
+				String[] mixedCaseTildeWords = splitWordsOnChar(testWord, '\u223C');
+				for (String splitWord : mixedCaseTildeWords) {
+					if (splitWord.length() == 0) {
+						if (!hasPrefix) {
+							hasPrefix = true;
+						} else {
+							saveWord = saveWord + "\u223C";
+							withMasks.add(saveWord);
+							hasPrefix = false;
+						}
+						continue;
+					}
+					if (hasPrefix == true) {
+						saveWord = "\u223C" + splitWord;
+						continue;
 					}
+					withMasks.add(splitWord);
 				}
+			} else {
+				withMasks.add(testWord);
+			}
+		}
+		mixedCaseWords = withMasks.toArray(new String[0]);
+		stageNanos[MaskerMetrics.STAGE_TOKENIZE] += System.nanoTime() - stageStart;
 
-				// finally do standard masking
-				String[] mixedCaseWords = splitWordsOnChar(line, ' ');
-			     // need to treat existing masks as words
-		      List<String> withMasks = new ArrayList<String>();
-		      boolean hasPrefix = false;
-		      String saveWord = "";
-		      for (String testWord : mixedCaseWords) {
-		         if (testWord.contains("\u223C")) {
-		            String[] mixedCaseTildeWords = splitWordsOnChar(testWord, '\u223C');
-		            for (String splitWord: mixedCaseTildeWords) {
-		               if (splitWord.length() == 0) {
-		                  if (!hasPrefix) {
-		                     hasPrefix = true;
-		                  } else {
-	                        saveWord = saveWord + "\u223C";
-	                        withMasks.add(saveWord);
-	                        hasPrefix = false;
-		                  }
-		                  continue;
-		               }
-		               if (hasPrefix == true) {
-		                  saveWord = "\u223C"+splitWord;
-		                  continue;
-		               }
-		               withMasks.add(splitWord);
-		            }
-		         } else {
-		            withMasks.add(testWord);
-		         }
-		      }
-		      mixedCaseWords = withMasks.toArray(new String[0]);
+		stageStart = System.nanoTime();
+		StringBuffer sb = new StringBuffer();
+		String lastWordMasked = "";
+		lastWordMasked = processWords(mixedCaseWords, " ", sb, lastWordMasked, counts, context._maskNumbers,
+				context._whitelist, context._names, context._geolocations, context._profanities,
+				context._queryStringContainsList, context._domainPrefixList, context._domainSuffixList, patterns, masks);
+		String maskedLine = MaskerUtils.trimSpaces(sb.toString());
+		stageNanos[MaskerMetrics.STAGE_CLASSIFY] += System.nanoTime() - stageStart;
+		return maskedLine;
+	}
 
-				StringBuffer sb = new StringBuffer();
-				String lastWordMasked = "";
-				lastWordMasked = processWords(mixedCaseWords, " ", sb, lastWordMasked, counts, maskNumbers, _whitelist,
-						_names, _geolocations, _profanities, _queryStringContainsList, _domainPrefixList, _domainSuffixList,
-						patterns, masks);
-				maskedLine = MaskerUtils.trimSpaces(sb.toString());
-			}
-			masked.add(maskedLine);
+	/**
+	 * Mask a message's utterance the way maskMessageContent does: tildes in the
+	 * utterance are protected from being treated as masks, the differences between
+	 * the utterance and its masked version are added to the diffs, and the masked
+	 * utterance is returned with the tildes restored.
+	 * 
+	 * @param context
+	 *                   context created for the request
+	 * @param utterance
+	 *                   utterance to be masked
+	 * @param counts
+	 *                   counts to be updated (see {@link #newCounts()})
+	 * @param stageNanos
+	 *                   array indexed by the MaskerMetrics STAGE_* values
+	 *                   accumulating the time spent in each stage
+	 * @param diffs
+	 *                   array receiving the differences
+	 * @return the masked utterance
+	 * @throws Exception
+	 */
+	static public String maskUtterance(MaskerContext context, String utterance, JSONObject counts, long[] stageNanos,
+			JSONArray diffs) throws Exception {
+		String unmaskedStr = utterance.replace("~", "\u223C");
+		String maskedStr = maskLine(context, unmaskedStr, counts, stageNanos);
+		long diffStart = System.nanoTime();
+		getDifferences(unmaskedStr, maskedStr, diffs);
+		stageNanos[MaskerMetrics.STAGE_DIFFS] += System.nanoTime() - diffStart;
+		return maskedStr.replace("\u223C", "~");
+	}
+
+	/**
+	 * Get the version of a tenant's templates, which is incremented each time
+	 * {@link #updateMaskTemplates(JSONObject)} changes them
+	 * 
+	 * @param tenantID
+	 *                 tenant whose templates are versioned
+	 * @return the template version (0 until the templates are first updated)
+	 */
+	static public long getTemplateVersion(String tenantID) {
+		Long version = _mapTemplateVersions.get(tenantID);
+		return version == null ? 0L : version;
+	}
+
+	/**
+	 * Determine whether the response to the request should omit the request
+	 * echo. The request's compactResponse boolean value is used if provided,
+	 * otherwise the default from the tenant's maskTemplates.json is used.
+	 * 
+	 * @param request
+	 *                request containing the tenantID, and optionally
+	 *                compactResponse
+	 * @return true if the request should not be echoed in the response
+	 */
+	static public boolean isCompactResponse(JSONObject request) {
+		Object test = request.get("compactResponse");
+		if (test != null && test instanceof Boolean) {
+			return (Boolean) test;
+		}
+		Object tenantID = request.get("tenantID");
+		if (tenantID == null) {
+			return false;
+		}
+		Boolean compactResponse = _mapCompactResponse.get(tenantID);
+		return compactResponse != null && compactResponse;
+	}
+
+	/**
+	 * Determine whether the response to the request should include the word and
+	 * masked word counts
+	 * 
+	 * @param request
+	 *                request containing an optional includeCounts
+	 * @return true if the counts should be added to the response
+	 */
+	static public boolean isIncludeCounts(JSONObject request) {
+		Object test = request.get("includeCounts");
+		return test != null && test instanceof Boolean && (Boolean) test;
+	}
+
+	/**
+	 * Create the response for a {@link #maskContent(JSONObject)} request, echoing
+	 * the request unless a compact response is wanted and including the counts
+	 * if requested
+	 * 
+	 * @param request
+	 *                request being masked
+	 * @param masked
+	 *                array receiving the masked lines
+	 * @param errors
+	 *                array receiving the errors
+	 * @param counts
+	 *                counts updated while masking the lines
+	 * @return the response
+	 */
+	static public JSONObject newContentResponse(JSONObject request, JSONArray masked, JSONArray errors,
+			JSONObject counts) {
+		JSONObject response = new JSONObject();
+		if (!isCompactResponse(request)) {
+			response.put("request", request);
+		}
+		response.put("masked", masked);
+		response.put("errors", errors);
+		if (isIncludeCounts(request)) {
+			response.put("counts", counts);
 		}
 		return response;
 	}
 
+	/**
+	 * @return a new counts object with the word and masked word counts updated by
+	 *         {@link #maskLine(MaskerContext, String, JSONObject, long[])} set to
+	 *         zero
+	 */
+	static public JSONObject newCounts() {
+		JSONObject counts = new JSONObject();
+		counts.put("maskedBad", 0L);
+		counts.put("maskedGeo", 0L);
+		counts.put("maskedMisc", 0L);
+		counts.put("maskedName", 0L);
+		counts.put("maskedNum", 0L);
+		counts.put("maskedURL", 0L);
+
+		counts.put("words", 0L);
+		counts.put("masked", 0L);
+		return counts;
+	}
+
+	/**
+	 * Record the metrics and fill in the flight recorder event for a request
+	 * whose lines have been masked
+	 * 
+	 * @param context
+	 *                     context used to mask the request
+	 * @param endpoint
+	 *                     service endpoint the metrics are recorded against
+	 * @param lines
+	 *                     number of lines masked
+	 * @param counts
+	 *                     counts updated while masking the lines
+	 * @param stageNanos
+	 *                     time spent in each stage
+	 * @param requestStart
+	 *                     System.nanoTime() when the request started
+	 * @param requestEvent
+	 *                     flight recorder event to be filled in (may be null)
+	 */
+	static public void recordRequest(MaskerContext context, String endpoint, int lines, JSONObject counts,
+			long[] stageNanos, long requestStart, MaskRequestEvent requestEvent) {
+		long maskedCount = (Long) counts.get("maskedBad") + (Long) counts.get("maskedGeo")
+				+ (Long) counts.get("maskedMisc") + (Long) counts.get("maskedName") + (Long) counts.get("maskedNum")
+				+ (Long) counts.get("maskedURL");
+		counts.put("masked", maskedCount);
+		if (requestEvent != null && requestEvent.isEnabled()) {
+			requestEvent.tenant = context._tenantID;
+			requestEvent.endpoint = endpoint;
+			requestEvent.lines = lines;
+			requestEvent.words = (Long) counts.get("words");
+			requestEvent.masked = maskedCount;
+		}
+		if (MaskerMetrics._enabled) {
+			String tenantID = context._tenantID;
+			MaskerMetrics.record(tenantID, endpoint, MaskerMetrics.STAGE_TEMPLATES,
+					stageNanos[MaskerMetrics.STAGE_TEMPLATES]);
+			// lines masked by the ASCII fast path are classified without being
+			// tokenized, so only requests having tokenized a line are observed
+			if (stageNanos[MaskerMetrics.STAGE_TOKENIZE] != 0L) {
+				MaskerMetrics.record(tenantID, endpoint, MaskerMetrics.STAGE_TOKENIZE,
+						stageNanos[MaskerMetrics.STAGE_TOKENIZE]);
+			}
+			MaskerMetrics.record(tenantID, endpoint, MaskerMetrics.STAGE_CLASSIFY,
+					stageNanos[MaskerMetrics.STAGE_CLASSIFY]);
+			if (stageNanos[MaskerMetrics.STAGE_DIFFS] != 0L) {
+				MaskerMetrics.record(tenantID, endpoint, MaskerMetrics.STAGE_DIFFS, stageNanos[MaskerMetrics.STAGE_DIFFS]);
+			}
+			MaskerMetrics.recordRequest(tenantID, endpoint, (Long) counts.get("words"), maskedCount,
+					System.nanoTime() - requestStart);
+		}
+	}
+
 	/**
 	 * Perform whitelist masking of the supplied message, updating masked word
 	 * counts where applicable.
@@ -931,15 +1505,13 @@ public class Masker implements Serializable {
 			Boolean maskNumbers) throws Exception {
 
 		Pattern pattern = null;
-		Matcher matcher = null;
-		synchronized (_initializing) {
-			// next apply global templates
-			for (int i = 0; i < patterns.size(); i++) {
-				pattern = patterns.get(i);
-				matcher = pattern.matcher(msg);
-				if (matcher.find()) {
-					msg = matcher.replaceAll(_maskPrefix + masks.get(i) + _maskPrefix);
-				}
+		// next apply global templates (template updates replace rather than change a
+		// tenant's lists, so no lock is needed while dialogs are masked concurrently)
+		for (int i = 0; i < patterns.size(); i++) {
+			pattern = patterns.get(i);
+			String maskedMsg = applyTemplate(pattern, msg, masks.get(i));
+			if (maskedMsg != null) {
+				msg = maskedMsg;
 			}
 		}
 
@@ -979,6 +1551,13 @@ public class Masker implements Serializable {
 			}
 		}
 
+		// messages of plain ASCII words are masked without splitting into Strings
+		String maskedMsg = MaskerAscii.maskMessage(msg, counts, maskNumbers, whitelist, names, geolocations,
+				profanities, masks);
+		if (maskedMsg != null) {
+			return maskedMsg;
+		}
+
 		// need to preserve newlines so only split on space
 		String[] mixedCaseWords = splitWordsOnChar(msg, ' ');
 		StringBuffer sb = new StringBuffer();
@@ -989,10 +1568,15 @@ public class Masker implements Serializable {
 	}
 
 	static public JSONObject maskMessageContent(JSONObject request) throws Exception {
+		MaskRequestEvent requestEvent = new MaskRequestEvent();
+		requestEvent.begin();
 		JSONObject newRequest = new JSONObject();
 		newRequest.put("tenantID", request.get("tenandID"));
 		newRequest.put("maskNumbers", request.get("maskNumbers"));
 		newRequest.put("templates", request.get("templates"));
+		newRequest.put("includeCounts", request.get("includeCounts"));
+		// the request is echoed below (if needed) rather than in the masked content
+		newRequest.put("compactResponse", Boolean.TRUE);
 		JSONArray unmasked = new JSONArray();
 		JSONArray messages = (JSONArray) request.get("messages");
 		JSONObject jObj = null;
@@ -1007,14 +1591,24 @@ public class Masker implements Serializable {
 		}
 		newRequest.put("unmasked", unmasked);
 		newRequest.put("tenantID", (String) request.get("tenantID"));
-		JSONObject newResponse = Masker.maskContent(newRequest);
+		JSONObject newResponse = Masker.maskContent(newRequest, MaskerMetrics.ENDPOINT_DO_MESSAGE_MASKING,
+				requestEvent);
 		JSONObject response = new JSONObject();
-		response.put("request", request);
+		if (!isCompactResponse(request)) {
+			response.put("request", request);
+		}
 		response.put("errors", newResponse.get("errors"));
+		if (newResponse.get("counts") != null) {
+			response.put("counts", newResponse.get("counts"));
+		}
+		if (newResponse.get("templateVersion") != null) {
+			response.put("templateVersion", newResponse.get("templateVersion"));
+		}
 		JSONArray masked = (JSONArray) newResponse.get("masked");
 		JSONArray diffs = new JSONArray();
 		response.put("diffs", diffs);
 		if (masked.size() == messages.size()) {
+			long diffStart = System.nanoTime();
 			int i = 0;
 			for (Object obj : messages) {
 				jObj = (JSONObject) obj;
@@ -1024,11 +1618,19 @@ public class Masker implements Serializable {
 				jObj.put("utterance", ((String) masked.get(i)).replace("\u223C", "~"));
 				i++;
 			}
+			String tenantID = (String) request.get("tenantID");
+			if (tenantID != null && _setTenantIDs.contains(tenantID)) {
+				MaskerMetrics.record(tenantID, MaskerMetrics.ENDPOINT_DO_MESSAGE_MASKING, MaskerMetrics.STAGE_DIFFS,
+						System.nanoTime() - diffStart);
+			}
 		} else {
 			throw new Exception(
 					"Masked content size " + masked.size() + " does not equal message size " + messages.size());
 		}
 		response.put("maskedMessages", messages);
+		if (requestEvent.shouldCommit()) {
+			requestEvent.commit();
+		}
 		return response;
 	}
 
@@ -1155,7 +1757,25 @@ public class Masker implements Serializable {
 		String cleanedWord = "";
 		int cleanedWordOffset = -1;
 		String mixedCaseCleansedWord = null;
-		for (String word : mixedCaseWords) {
+		// the parts of a word split on a delimiter (or before a URL) are masked
+		// before the words following it, so they are pushed rather than recursed on
+		ArrayDeque<WordFrame> frames = new ArrayDeque<WordFrame>();
+		frames.push(new WordFrame(mixedCaseWords, splitStr));
+		while (frames.isEmpty() == false) {
+			WordFrame frame = frames.peek();
+			String word = frame.nextWord();
+			if (word == null) {
+				// finish the word these parts were split from
+				frames.pop();
+				if (frame._finish == WordFrame.FINISH_URL) {
+					lastWordMasked = finishURL(frame, sb, lastWordMasked, counts, maskNumbers, whitelist,
+							queryStringContainsList, domainPrefixList, domainSuffixList);
+				} else if (frame._finish == WordFrame.FINISH_SUFFIX) {
+					lastWordMasked = finishWord(frame._wordParts, sb, lastWordMasked);
+				}
+				continue;
+			}
+			splitStr = frame._splitStr;
 			mixedCaseCleansedWord = word;
 			checkWord = word.toLowerCase();
 			if (checkWord.length() == 0) {
@@ -1199,58 +1819,19 @@ public class Masker implements Serializable {
 			// special case where a word has a URL like meeting:https://zoom.us
 			int urlIndex = wordParts[1].indexOf("http");
 			if (urlIndex > 0) { // if 0 then subsequent logic handles it
-				String url = wordParts[1].substring(urlIndex);
 				// handle processing anything before the URL first into the string
-				// buffer
-				wordParts[1] = wordParts[1].substring(0, urlIndex);
-				String[] urlPrefixWords = new String[] { wordParts[1] };
-				lastWordMasked = processWords(urlPrefixWords, splitStr, sb, lastWordMasked, counts, maskNumbers, whitelist,
-						names, geolocations, profanities, queryStringContainsList, domainPrefixList, domainSuffixList,
-						patterns, masks);
-				// now handle the URL part
-				if (acceptableURLReference(url, queryStringContainsList, domainPrefixList, domainSuffixList)) {
-					counts.put("words", ((Long) counts.get("words")) + 1L);
-					sb.append(url); // was mixedCaseWord
-					lastWordMasked = "";
-					sb.append(wordParts[2]);
-					sb.append(splitStr);
-					continue;
-				}
-				counts.put("words", ((Long) counts.get("words")) + 1L);
-				// just treat as a single word URL needing to be masked
-				if (whitelist.get(url) == null) {
-					updateMasked(url,maskNumbers);
-					counts.put("maskedURL", ((Long) counts.get("maskedURL")) + 1L);
-					// word should be masked unless last word was masked
-					if (lastWordMasked.equals(_maskURL) == false) {
-						sb.append(_maskURL);
-						lastWordMasked = _maskURL;
-					} else if (wordParts[0].length() > 0) {
-						// need to add mask after non-word characters
-						sb.append(_maskURL);
-						lastWordMasked = _maskURL;
-					} else {
-						/**
-						 * Back out last splitchar since we are reusing the same mask for a pattern like
-						 * namesplitcharname to result in "~name~" and not "~name~ " (assuming space is
-						 * the splitchar)
-						 */
-						sb.setLength(Math.max(sb.length() - 1, 0));
-						sb.append(wordParts[2]);
-						if (wordParts[2].length() > 0) {
-							lastWordMasked = "";
-						}
-						continue;
-					}
-				} else {
-					sb.append(mixedCaseCleansedWord.substring(urlIndex));
-					lastWordMasked = "";
-				}
-				sb.append(wordParts[2]);
+				// buffer, then the URL part when it has been
+				WordFrame urlPrefix = new WordFrame(new String[] { wordParts[1].substring(0, urlIndex) }, splitStr);
+				urlPrefix._finish = WordFrame.FINISH_URL;
+				urlPrefix._wordParts = wordParts;
+				urlPrefix._mixedCaseCleansedWord = mixedCaseCleansedWord;
+				urlPrefix._urlIndex = urlIndex;
+				frames.push(urlPrefix);
 				continue;
 			}
 
 			// is this referencing an acceptable URL
+			MaskerTokenIndex.collectURL(wordParts[1]);
 			if (acceptableURLReference(wordParts[1], queryStringContainsList, domainPrefixList, domainSuffixList)) {
 				counts.put("words", ((Long) counts.get("words")) + 1L);
 				sb.append(mixedCaseCleansedWord);
@@ -1267,6 +1848,7 @@ public class Masker implements Serializable {
 				if (whitelist.get(wordParts[1]) == null && masks.contains(wordParts[1]) == false) {
 					updateMasked(wordParts[1],maskNumbers);
 					counts.put("maskedURL", ((Long) counts.get("maskedURL")) + 1L);
+					MaskerVocabularyAnalyzer.collect(wordParts[1], MaskerVocabularyAnalyzer.URL);
 					// word should be masked unless last word was masked
 					if (lastWordMasked.equals(_maskURL) == false) {
 						sb.append(_maskURL);
@@ -1298,213 +1880,99 @@ public class Masker implements Serializable {
 				}
 				continue;
 			}
-			long processed = 0L;
-			// does this need to deal with newlines, carriage returns, tabs, or
-			// slashes
-         if (processed == 0L && wordParts[1].contains("\\n")) {
-            String[] mixedCaseNewline = splitWordsOnString(mixedCaseCleansedWord, "\\n");
-            try {
-            lastWordMasked = processWords(mixedCaseNewline, "\\n", sb, lastWordMasked, counts, maskNumbers,
-                  whitelist, names, geolocations, profanities, queryStringContainsList, domainPrefixList,
-                  domainSuffixList, patterns, masks);
-            processed |= INDEX_ESCNEWLINE;
-            } catch (Exception e) {
-               System.out.println(mixedCaseCleansedWord);
-               e.printStackTrace();
-            }
-         }
-			if (processed == 0L && wordParts[1].contains("\n")) {
-				String[] mixedCaseNLWords = splitWordsOnChar(mixedCaseCleansedWord, '\n');
-				lastWordMasked = processWords(mixedCaseNLWords, "\n", sb, lastWordMasked, counts, maskNumbers, whitelist,
-						names, geolocations, profanities, queryStringContainsList, domainPrefixList, domainSuffixList,
-						patterns, masks);
-				processed |= INDEX_NL;
-			}
-			if (processed == 0L && wordParts[1].contains("\r")) {
-				String[] mixedCaseCRWords = splitWordsOnChar(mixedCaseCleansedWord, '\r');
-				lastWordMasked = processWords(mixedCaseCRWords, "\r", sb, lastWordMasked, counts, maskNumbers, whitelist,
-						names, geolocations, profanities, queryStringContainsList, domainPrefixList, domainSuffixList,
-						patterns, masks);
-				processed |= INDEX_CR;
-			}
-			if (processed == 0L && wordParts[1].contains("\t")) {
-				String[] mixedCaseTabWords = splitWordsOnChar(mixedCaseCleansedWord, '\t');
-				lastWordMasked = processWords(mixedCaseTabWords, "\t", sb, lastWordMasked, counts, maskNumbers, whitelist,
-						names, geolocations, profanities, queryStringContainsList, domainPrefixList, domainSuffixList,
-						patterns, masks);
-				processed |= INDEX_TAB;
-			}
-			if (processed == 0L && wordParts[1].contains("/")) {
-				String[] mixedCaseSlashWords = splitWordsOnChar(mixedCaseCleansedWord, '/');
-				lastWordMasked = processWords(mixedCaseSlashWords, "/", sb, lastWordMasked, counts, maskNumbers, whitelist,
-						names, geolocations, profanities, queryStringContainsList, domainPrefixList, domainSuffixList,
-						patterns, masks);
-				processed |= INDEX_SLASH;
-			}
-			if (processed == 0L && wordParts[1].contains(".")) {
-				String[] mixedCasePeriodWords = splitWordsOnChar(mixedCaseCleansedWord, '.');
-				lastWordMasked = processWords(mixedCasePeriodWords, ".", sb, lastWordMasked, counts, maskNumbers, whitelist,
-						names, geolocations, profanities, queryStringContainsList, domainPrefixList, domainSuffixList,
-						patterns, masks);
-				processed |= INDEX_PERIOD;
-			}
-			if (processed == 0L && wordParts[1].contains("-")) {
-				String[] mixedCaseHyphenWords = splitWordsOnChar(mixedCaseCleansedWord, '-');
-				lastWordMasked = processWords(mixedCaseHyphenWords, "-", sb, lastWordMasked, counts, maskNumbers, whitelist,
-						names, geolocations, profanities, queryStringContainsList, domainPrefixList, domainSuffixList,
-						patterns, masks);
-				processed |= INDEX_HYPHEN;
-			}
-			if (processed == 0L && wordParts[1].contains("(")) {
-				String[] mixedCaseLParenWords = splitWordsOnChar(mixedCaseCleansedWord, '(');
-				lastWordMasked = processWords(mixedCaseLParenWords, "(", sb, lastWordMasked, counts, maskNumbers, whitelist,
-						names, geolocations, profanities, queryStringContainsList, domainPrefixList, domainSuffixList,
-						patterns, masks);
-				processed |= INDEX_LPAREN;
-			}
-			if (processed == 0L && wordParts[1].contains(":")) {
-				String[] mixedCaseColonWords = splitWordsOnChar(mixedCaseCleansedWord, ':');
-				lastWordMasked = processWords(mixedCaseColonWords, ":", sb, lastWordMasked, counts, maskNumbers, whitelist,
-						names, geolocations, profanities, queryStringContainsList, domainPrefixList, domainSuffixList,
-						patterns, masks);
-				processed |= INDEX_COLON;
-			}
-			if (processed == 0L && wordParts[1].contains("_")) {
-				String[] mixedCaseUnderscoreWords = splitWordsOnChar(mixedCaseCleansedWord, '_');
-				lastWordMasked = processWords(mixedCaseUnderscoreWords, "_", sb, lastWordMasked, counts, maskNumbers,
-						whitelist, names, geolocations, profanities, queryStringContainsList, domainPrefixList,
-						domainSuffixList, patterns, masks);
-				processed |= INDEX_UNDERSCORE;
-			}
-			if (processed == 0L && wordParts[1].contains(">")) {
-				String[] mixedCaseGTWords = splitWordsOnChar(mixedCaseCleansedWord, '>');
-				lastWordMasked = processWords(mixedCaseGTWords, ">", sb, lastWordMasked, counts, maskNumbers, whitelist,
-						names, geolocations, profanities, queryStringContainsList, domainPrefixList, domainSuffixList,
-						patterns, masks);
-				processed |= INDEX_GT;
-			}
-			if (processed == 0L && wordParts[1].contains(",")) {
-				String[] mixedCaseCommaWords = splitWordsOnChar(mixedCaseCleansedWord, ',');
-				lastWordMasked = processWords(mixedCaseCommaWords, ",", sb, lastWordMasked, counts, maskNumbers, whitelist,
-						names, geolocations, profanities, queryStringContainsList, domainPrefixList, domainSuffixList,
-						patterns, masks);
-				processed |= INDEX_COMMA;
-			}
-			if (processed == 0L && wordParts[1].contains("+")) {
-				String[] mixedCasePlusWords = splitWordsOnChar(mixedCaseCleansedWord, '+');
-				lastWordMasked = processWords(mixedCasePlusWords, "+", sb, lastWordMasked, counts, maskNumbers, whitelist,
-						names, geolocations, profanities, queryStringContainsList, domainPrefixList, domainSuffixList,
-						patterns, masks);
-				processed |= INDEX_PLUS;
-			}
-			if (processed == 0L && wordParts[1].contains(";")) {
-				String[] mixedCaseSemiColonWords = splitWordsOnChar(mixedCaseCleansedWord, ';');
-				lastWordMasked = processWords(mixedCaseSemiColonWords, ";", sb, lastWordMasked, counts, maskNumbers,
-						whitelist, names, geolocations, profanities, queryStringContainsList, domainPrefixList,
-						domainSuffixList, patterns, masks);
-				processed |= INDEX_SEMICOLON;
-			}
-			if (processed == 0L && wordParts[1].contains(")")) {
-				String[] mixedCaseRParenWords = splitWordsOnChar(mixedCaseCleansedWord, ')');
-				lastWordMasked = processWords(mixedCaseRParenWords, ")", sb, lastWordMasked, counts, maskNumbers, whitelist,
-						names, geolocations, profanities, queryStringContainsList, domainPrefixList, domainSuffixList,
-						patterns, masks);
-				processed |= INDEX_RPAREN;
-			}
-			if (processed == 0L && wordParts[1].contains("\\")) {
-				String[] mixedCaseBackslashWords = splitWordsOnChar(mixedCaseCleansedWord, '\\');
-				lastWordMasked = processWords(mixedCaseBackslashWords, "\\", sb, lastWordMasked, counts, maskNumbers,
-						whitelist, names, geolocations, profanities, queryStringContainsList, domainPrefixList,
-						domainSuffixList, patterns, masks);
-				processed |= INDEX_BACKSLASH;
-			}
-			if (processed == 0L && wordParts[1].contains("\u2014")) {
-				String[] mixedCaseEMDashWords = splitWordsOnChar(mixedCaseCleansedWord, '\u2014');
-				lastWordMasked = processWords(mixedCaseEMDashWords, "\u2014", sb, lastWordMasked, counts, maskNumbers,
-						whitelist, names, geolocations, profanities, queryStringContainsList, domainPrefixList,
-						domainSuffixList, patterns, masks);
-				processed |= INDEX_EM_DASH;
-			}
-
-//			// important this is last
-//         if (processed == 0L && wordParts[1].contains("\u223C")) {
-//            String[] mixedCaseTildeWords = splitWordsOnChar(mixedCaseCleansedWord, '~');
-//            lastWordMasked = processWords(mixedCaseTildeWords, "\u223C", sb, lastWordMasked, counts, maskNumbers,
-//                  whitelist, names, geolocations, profanities, queryStringContainsList, domainPrefixList,
-//                  domainSuffixList, patterns, masks);
-//            processed |= INDEX_TILDE;
-//         }
-			if (processed == 0L) {
-				// process as a normal word
+			// overlong tokens (e.g., encoded attachments) other than URLs are masked
+			// without being split or classified, and are not counted as masked words
+			if (_maxTokenLength > 0 && wordParts[1].length() > _maxTokenLength) {
 				counts.put("words", ((Long) counts.get("words")) + 1L);
-				String testWord = wordParts[1];
-				if (whitelist.get(testWord) == null && masks.contains(testWord) == false) {
-					updateMasked(testWord,maskNumbers);
-					// determine the type of mask to apply
-					if (names.get(testWord) != null) {
-						counts.put("maskedName", ((Long) counts.get("maskedName")) + 1L);
-						if (lastWordMasked.equals(_maskName) == false) {
-							sb.append(_maskName);
-						} else {
-							/**
-							 * Back out last splitchar since we are reusing the same mask for a pattern like
-							 * namesplitcharname to result in "~name~" and not "~name~ " (assuming space is
-							 * the splitchar)
-							 */
-							sb.setLength(Math.max(sb.length() - 1, 0));
-						}
-						lastWordMasked = _maskName;
-					} else if (geolocations.get(testWord) != null) {
-						counts.put("maskedGeo", ((Long) counts.get("maskedGeo")) + 1L);
-						if (lastWordMasked.equals(_maskGeo) == false) {
-							sb.append(_maskGeo);
-						} else {
-							/**
-							 * Back out last splitchar since we are reusing the same mask for a pattern like
-							 * namesplitcharname to result in "~name~" and not "~name~ " (assuming space is
-							 * the splitchar)
-							 */
-							sb.setLength(Math.max(sb.length() - 1, 0));
-						}
-						lastWordMasked = _maskGeo;
-					} else if (profanities.get(testWord) != null) {
-						counts.put("maskedBad", ((Long) counts.get("maskedBad")) + 1L);
-						if (lastWordMasked.equals(_maskBad) == false) {
-							sb.append(_maskBad);
-						} else {
-							/**
-							 * Back out last splitchar since we are reusing the same mask for a pattern like
-							 * namesplitcharname to result in "~name~" and not "~name~ " (assuming space is
-							 * the splitchar)
-							 */
-							sb.setLength(Math.max(sb.length() - 1, 0));
-						}
-						lastWordMasked = _maskBad;
+				counts.put("maskedMisc", ((Long) counts.get("maskedMisc")) + 1L);
+				if (lastWordMasked.equals(_maskMisc) == false) {
+					sb.append(_maskMisc);
+				} else {
+					sb.setLength(Math.max(sb.length() - 1, 0));
+				}
+				lastWordMasked = finishWord(wordParts, sb, _maskMisc);
+				continue;
+			}
+
+			// find the delimiters present in a single pass rather than one scan each,
+			// then split on the first of them found in newlines, carriage returns,
+			// tabs, slashes, ... order
+			long delimiters = MaskerCharClass.findDelimiters(wordParts[1]);
+			WordFrame split = null;
+			if ((delimiters & INDEX_ESCNEWLINE) != 0L) {
+				split = new WordFrame(splitWordsOnString(mixedCaseCleansedWord, "\\n"), "\\n");
+			} else {
+				for (int i = 1; i < MaskerCharClass._delimiters.length; i++) {
+					if ((delimiters & MaskerCharClass._delimiterBits[i]) != 0L) {
+						split = new WordFrame(mixedCaseCleansedWord, MaskerCharClass._delimiters[i]);
+						break;
+					}
+				}
+			}
+			if (split != null) {
+				split._finish = WordFrame.FINISH_SUFFIX;
+				split._wordParts = wordParts;
+				frames.push(split);
+				continue;
+			}
+
+			// process as a normal word
+			counts.put("words", ((Long) counts.get("words")) + 1L);
+			String testWord = wordParts[1];
+			MaskerTokenIndex.collect(testWord);
+			if (whitelist.get(testWord) == null && masks.contains(testWord) == false) {
+				updateMasked(testWord,maskNumbers);
+				// determine the type of mask to apply
+				if (names.get(testWord) != null) {
+					counts.put("maskedName", ((Long) counts.get("maskedName")) + 1L);
+					MaskerVocabularyAnalyzer.collect(testWord, MaskerVocabularyAnalyzer.NAME);
+					if (lastWordMasked.equals(_maskName) == false) {
+						sb.append(_maskName);
 					} else {
-						// is this all numbers?
-						if (isNumbers(testWord)) {
-							if (maskNumbers) {
-								counts.put("maskedNum", ((Long) counts.get("maskedNum")) + 1L);
-								if (lastWordMasked.equals(_maskNum) == false) {
-									sb.append(_maskNum);
-								} else {
-									/**
-									 * Back out last splitchar since we are reusing the same mask for a pattern like
-									 * namesplitcharname to result in "~name~" and not "~name~ " (assuming space is
-									 * the splitchar)
-									 */
-									sb.setLength(Math.max(sb.length() - 1, 0));
-								}
-								lastWordMasked = _maskNum;
-							} else {
-								// allow this word
-								sb.append(mixedCaseCleansedWord);
-								lastWordMasked = "";
-							}
-						} else {
-							counts.put("maskedMisc", ((Long) counts.get("maskedMisc")) + 1L);
-							if (lastWordMasked.equals(_maskMisc) == false) {
-								sb.append(_maskMisc);
+						/**
+						 * Back out last splitchar since we are reusing the same mask for a pattern like
+						 * namesplitcharname to result in "~name~" and not "~name~ " (assuming space is
+						 * the splitchar)
+						 */
+						sb.setLength(Math.max(sb.length() - 1, 0));
+					}
+					lastWordMasked = _maskName;
+				} else if (geolocations.get(testWord) != null) {
+					counts.put("maskedGeo", ((Long) counts.get("maskedGeo")) + 1L);
+					MaskerVocabularyAnalyzer.collect(testWord, MaskerVocabularyAnalyzer.GEO);
+					if (lastWordMasked.equals(_maskGeo) == false) {
+						sb.append(_maskGeo);
+					} else {
+						/**
+						 * Back out last splitchar since we are reusing the same mask for a pattern like
+						 * namesplitcharname to result in "~name~" and not "~name~ " (assuming space is
+						 * the splitchar)
+						 */
+						sb.setLength(Math.max(sb.length() - 1, 0));
+					}
+					lastWordMasked = _maskGeo;
+				} else if (profanities.get(testWord) != null) {
+					counts.put("maskedBad", ((Long) counts.get("maskedBad")) + 1L);
+					MaskerVocabularyAnalyzer.collect(testWord, MaskerVocabularyAnalyzer.BAD);
+					if (lastWordMasked.equals(_maskBad) == false) {
+						sb.append(_maskBad);
+					} else {
+						/**
+						 * Back out last splitchar since we are reusing the same mask for a pattern like
+						 * namesplitcharname to result in "~name~" and not "~name~ " (assuming space is
+						 * the splitchar)
+						 */
+						sb.setLength(Math.max(sb.length() - 1, 0));
+					}
+					lastWordMasked = _maskBad;
+				} else {
+					// is this all numbers?
+					if (isNumbers(testWord)) {
+						if (maskNumbers) {
+							counts.put("maskedNum", ((Long) counts.get("maskedNum")) + 1L);
+							MaskerVocabularyAnalyzer.collect(testWord, MaskerVocabularyAnalyzer.NUM);
+							if (lastWordMasked.equals(_maskNum) == false) {
+								sb.append(_maskNum);
 							} else {
 								/**
 								 * Back out last splitchar since we are reusing the same mask for a pattern like
@@ -1513,19 +1981,128 @@ public class Masker implements Serializable {
 								 */
 								sb.setLength(Math.max(sb.length() - 1, 0));
 							}
-							lastWordMasked = _maskMisc;
+							lastWordMasked = _maskNum;
+						} else {
+							// allow this word
+							sb.append(mixedCaseCleansedWord);
+							lastWordMasked = "";
 						}
+					} else {
+						counts.put("maskedMisc", ((Long) counts.get("maskedMisc")) + 1L);
+						MaskerVocabularyAnalyzer.collect(testWord, MaskerVocabularyAnalyzer.MISC);
+						if (lastWordMasked.equals(_maskMisc) == false) {
+							sb.append(_maskMisc);
+						} else {
+							/**
+							 * Back out last splitchar since we are reusing the same mask for a pattern like
+							 * namesplitcharname to result in "~name~" and not "~name~ " (assuming space is
+							 * the splitchar)
+							 */
+							sb.setLength(Math.max(sb.length() - 1, 0));
+						}
+						lastWordMasked = _maskMisc;
 					}
-				} else {
-					sb.append(mixedCaseCleansedWord);
-					lastWordMasked = "";
 				}
+			} else {
+				sb.append(mixedCaseCleansedWord);
+				lastWordMasked = "";
 			}
+			lastWordMasked = finishWord(wordParts, sb, lastWordMasked);
+		}
+		return lastWordMasked;
+	}
+
+	/**
+	 * Append the suffix of a masked word
+	 * 
+	 * @param wordParts
+	 *                       prefix, cleaned word and suffix of the word
+	 * @param sb
+	 *                       the string buffer receiving the masked content
+	 * @param lastWordMasked
+	 *                       the last type of mask applied
+	 * @return the last type of mask applied, reset if the suffix ends a line or
+	 *         is not blank
+	 */
+	static String finishWord(String[] wordParts, StringBuffer sb, String lastWordMasked) {
+		sb.append(wordParts[2]);
+		if ((wordParts[2].endsWith("\n")) || (wordParts[2].trim().length() > 0)) {
+			return "";
+		}
+		return lastWordMasked;
+	}
+
+	/**
+	 * Mask the URL of a word like meeting:https://zoom.us once the words before it
+	 * have been masked
+	 * 
+	 * @param urlPrefix
+	 *                                the masked words preceding the URL
+	 * @param sb
+	 *                                the string buffer receiving the masked
+	 *                                content
+	 * @param lastWordMasked
+	 *                                the last type of mask applied
+	 * @param counts
+	 *                                the counts of standard masks that were applied
+	 * @param maskNumbers
+	 *                                whether numbers should be masked
+	 * @param whitelist
+	 *                                whitelist for the current tenantID
+	 * @param queryStringContainsList
+	 *                                queryStringContainsList for the current
+	 *                                tenantID
+	 * @param domainPrefixList
+	 *                                domainPrefixList for the current tenantID
+	 * @param domainSuffixList
+	 *                                domainSuffixList for the current tenantID
+	 * @return the last type of mask applied
+	 */
+	static String finishURL(WordFrame urlPrefix, StringBuffer sb, String lastWordMasked, JSONObject counts,
+			boolean maskNumbers, JSONObject whitelist, List<String> queryStringContainsList,
+			List<String> domainPrefixList, List<String> domainSuffixList) {
+		String[] wordParts = urlPrefix._wordParts;
+		String url = wordParts[1].substring(urlPrefix._urlIndex);
+		MaskerTokenIndex.collectURL(url);
+		if (acceptableURLReference(url, queryStringContainsList, domainPrefixList, domainSuffixList)) {
+			counts.put("words", ((Long) counts.get("words")) + 1L);
+			sb.append(url); // was mixedCaseWord
 			sb.append(wordParts[2]);
-			if ((wordParts[2].endsWith("\n")) || (wordParts[2].trim().length() > 0)) {
-				lastWordMasked = "";
+			sb.append(urlPrefix._splitStr);
+			return "";
+		}
+		counts.put("words", ((Long) counts.get("words")) + 1L);
+		// just treat as a single word URL needing to be masked
+		if (whitelist.get(url) == null) {
+			updateMasked(url,maskNumbers);
+			counts.put("maskedURL", ((Long) counts.get("maskedURL")) + 1L);
+			MaskerVocabularyAnalyzer.collect(url, MaskerVocabularyAnalyzer.URL);
+			// word should be masked unless last word was masked
+			if (lastWordMasked.equals(_maskURL) == false) {
+				sb.append(_maskURL);
+				lastWordMasked = _maskURL;
+			} else if (wordParts[0].length() > 0) {
+				// need to add mask after non-word characters
+				sb.append(_maskURL);
+				lastWordMasked = _maskURL;
+			} else {
+				/**
+				 * Back out last splitchar since we are reusing the same mask for a pattern like
+				 * namesplitcharname to result in "~name~" and not "~name~ " (assuming space is
+				 * the splitchar)
+				 */
+				sb.setLength(Math.max(sb.length() - 1, 0));
+				sb.append(wordParts[2]);
+				if (wordParts[2].length() > 0) {
+					lastWordMasked = "";
+				}
+				return lastWordMasked;
 			}
+		} else {
+			sb.append(urlPrefix._mixedCaseCleansedWord.substring(urlPrefix._urlIndex));
+			lastWordMasked = "";
 		}
+		sb.append(wordParts[2]);
 		return lastWordMasked;
 	}
 
@@ -1590,20 +2167,29 @@ public class Masker implements Serializable {
          return new String[] { "" };
       }
       List<String> splitWords = new ArrayList<String>();
-      int index = word.toLowerCase().indexOf(splitStr.toLowerCase());
+      // the first occurrence ignores case (found on the word itself since
+      // lowercasing may change its length), and the search continues from the
+      // end of the last split rather than copying what remains
+      int index = -1;
+      for (int i = 0; i + splitStr.length() <= word.length(); i++) {
+         if (word.regionMatches(true, i, splitStr, 0, splitStr.length())) {
+            index = i;
+            break;
+         }
+      }
+      int start = 0;
       while (index != -1) {
-         if (index == 0) {
+         if (index == start) {
             splitWords.add("");
-            word = word.substring(splitStr.length());
          } else {
-            splitWords.add(word.substring(0,index));
+            splitWords.add(word.substring(start,index));
             splitWords.add("");
-            word = word.substring(index+splitStr.length());
          }
-         index = word.indexOf(splitStr);
+         start = index + splitStr.length();
+         index = word.indexOf(splitStr, start);
       }
-      if (word.length() > 0) {
-         splitWords.add(word);
+      if (start < word.length()) {
+         splitWords.add(word.substring(start));
       }
       return splitWords.toArray(new String[0]);
    }
@@ -1621,19 +2207,18 @@ public class Masker implements Serializable {
 	   if (!maskNumbers && isNumbers(masked)) {
 	      return;
 	   }
+		if (MaskerVocabularyAnalyzer.isCollecting()) {
+			// the analyzer counts the masked tokens itself in bounded memory
+			return;
+		}
 		if (masked != null && masked.trim().length() > 0) {
 			masked = masked.toLowerCase();
 			int index = masked.indexOf(" ");
 			if (index >= 0) {
 				masked = masked.substring(0, index);
 			}
-			Integer maskedCount = 0;
-			maskedCount = _maskedWords.get(masked);
-			if (maskedCount == null) {
-				maskedCount = 0;
-			}
-			maskedCount++;
-			_maskedWords.put(masked, maskedCount);
+			// dialogs may be masked concurrently
+			_maskedWords.merge(masked, 1, SUM_COUNTS);
 		}
 	}
 
@@ -1644,6 +2229,10 @@ public class Masker implements Serializable {
 	 * 
 	 * Removals are performed first, and reported in a removed array. Updates are
 	 * 
+	 * The changes are recorded in the tenant's template journal (see
+	 * {@link MaskerTemplateJournal}) so other replicas apply them too, and the
+	 * response includes the resulting templateVersion.
+	 * 
 	 * @param request
 	 *                the request specifying udpates and removals of templates for
 	 *                masking based on regex patterns and the mask to be used to
@@ -1660,62 +2249,124 @@ public class Masker implements Serializable {
 				throw new Exception("Can not initialize masking environment.");
 			}
 		}
-		synchronized (_initializing) {
-			JSONObject response = new JSONObject();
-			JSONArray updates = (JSONArray) request.get("updates");
-			JSONArray removals = (JSONArray) request.get("removals");
-			JSONArray updated = new JSONArray();
-			JSONArray removed = new JSONArray();
-			JSONArray errors = new JSONArray();
-			response.put("updated", updated);
-			response.put("removed", removed);
-			response.put("errors", errors);
+		TenantLoadEvent loadEvent = new TenantLoadEvent();
+		loadEvent.begin();
+		JSONObject response = new JSONObject();
+		JSONArray updates = (JSONArray) request.get("updates");
+		JSONArray removals = (JSONArray) request.get("removals");
+		JSONArray updated = new JSONArray();
+		JSONArray removed = new JSONArray();
+		JSONArray errors = new JSONArray();
+		response.put("updated", updated);
+		response.put("removed", removed);
+		response.put("errors", errors);
 
-			String tenantID = (String) request.get("tenantID");
-			if (tenantID == null) {
-				JSONObject error = new JSONObject();
-				error.put("error", "tenantID is null");
-				errors.add(error);
-				return response;
-			} else if (_setTenantIDs.contains(tenantID) == false) {
-				JSONObject error = new JSONObject();
-				error.put("error", "tenantID \"" + tenantID + "\" is a knonwn tenantID.");
-				errors.add(error);
-				return response;
+		String tenantID = (String) request.get("tenantID");
+		if (tenantID == null) {
+			JSONObject error = new JSONObject();
+			error.put("error", "tenantID is null");
+			errors.add(error);
+			return response;
+		} else if (_setTenantIDs.contains(tenantID) == false) {
+			JSONObject error = new JSONObject();
+			error.put("error", "tenantID \"" + tenantID + "\" is a knonwn tenantID.");
+			errors.add(error);
+			return response;
+		}
+		if (updates == null) {
+			updates = new JSONArray();
+		}
+		if (removals == null) {
+			removals = new JSONArray();
+		}
+		// the changes are journaled so other replicas (and this one after a restart)
+		// apply them too
+		long templateVersion = MaskerTemplateJournal.update(tenantID, removals, updates, removed, updated, errors);
+		response.put("templateVersion", templateVersion);
+		if (loadEvent.shouldCommit()) {
+			long bytes = 0L;
+			for (Object obj : updated) {
+				bytes += MaskerDetectors.getTemplate((JSONObject) obj).length();
 			}
-			List<Pattern> _patterns = _mapPatternsList.get(tenantID);
-			if (_patterns == null) {
+			loadEvent.tenant = tenantID;
+			loadEvent.file = "masker/updateMasks";
+			loadEvent.bytes = bytes;
+			List<Pattern> patterns = _mapPatternsList.get(tenantID);
+			loadEvent.templates = (patterns == null ? 0 : patterns.size());
+			loadEvent.commit();
+		}
+		return response;
+	}
+
+	/**
+	 * Apply removals and then updates to a tenant's templates. The tenant's
+	 * pattern and mask lists are never modified once published: changes are made
+	 * to copies which replace them, along with the new template version, while
+	 * holding the _initializing lock, so requests see either the prior or the new
+	 * templates in their entirety.
+	 * 
+	 * @param tenantID
+	 *                 tenant whose templates are changed
+	 * @param removals
+	 *                 array of templates to be removed
+	 * @param updates
+	 *                 array of objects with a template and a mask to be added
+	 *                 (replacing any existing template with the same pattern)
+	 * @param removed
+	 *                 array receiving the template and mask objects removed
+	 * @param updated
+	 *                 array receiving the update objects added
+	 * @param errors
+	 *                 array receiving the updates that could not be used
+	 * @param version
+	 *                 template version published if the templates are changed
+	 * @return true if the templates were changed
+	 */
+	static boolean applyTemplateChanges(String tenantID, JSONArray removals, JSONArray updates, JSONArray removed,
+			JSONArray updated, JSONArray errors, long version) {
+		synchronized (_initializing) {
+			List<Pattern> currentPatterns = _mapPatternsList.get(tenantID);
+			if (currentPatterns == null) {
 				JSONObject error = new JSONObject();
 				error.put("error", "tenantID \"" + tenantID + "\" has no patterns.");
 				errors.add(error);
-				return response;
+				return false;
 			}
-			List<String> _masks = _mapMasksList.get(tenantID);
-			if (_masks == null) {
+			List<String> currentMasks = _mapMasksList.get(tenantID);
+			if (currentMasks == null) {
 				JSONObject error = new JSONObject();
 				error.put("error", "tenantID \"" + tenantID + "\" has no masks.");
 				errors.add(error);
-				return response;
+				return false;
 			}
+			List<Pattern> _patterns = new ArrayList<Pattern>(currentPatterns);
+			List<String> _masks = new ArrayList<String>(currentMasks);
 
 			Set<String> deletePatterns = new HashSet<String>();
 			String delPattern = "";
 			String delMask = "";
 			JSONObject jObj = null;
 			for (Object obj : removals) {
-				delPattern = (String) obj;
+				// detectors may be removed by name, e.g. {"detector":"email"}
+				if (obj instanceof JSONObject) {
+					delPattern = MaskerDetectors.getTemplate((JSONObject) obj);
+				} else {
+					delPattern = (String) obj;
+				}
 				if (delPattern != null) {
 					deletePatterns.add(delPattern);
 				}
 			}
 			for (Object obj : updates) {
 				jObj = (JSONObject) obj;
-				delPattern = (String) jObj.get("template");
+				delPattern = MaskerDetectors.getTemplate(jObj);
 				if (delPattern != null) {
-					// ensure it compiles before removing it
+					// ensure it compiles and is accepted before removing it
 					try {
-						Pattern.compile(delPattern);
-						deletePatterns.add(delPattern);
+						MaskerDetectors.compile(delPattern);
+						if (MaskerRegexGuard.findBacktrackingRisk(delPattern.trim()) == null) {
+							deletePatterns.add(delPattern);
+						}
 					} catch (PatternSyntaxException pse) {
 						; // will be reported later
 					}
@@ -1731,18 +2382,23 @@ public class Masker implements Serializable {
 					delMask = _masks.remove(i);
 					jObj = new JSONObject();
 					jObj.put("template", patternStr);
+					if (MaskerDetectors.getDetector(pattern) != null) {
+						jObj.put("detector", MaskerDetectors.getDetector(pattern).getName());
+					}
 					jObj.put("mask", delMask);
 					removed.add(jObj);
+				} else {
+					// the next pattern's mask has moved to this index if this one was removed
+					i++;
 				}
-				i++;
 			}
 
 			String addPattern = "";
 			String addMask = "";
 			for (Object obj : updates) {
 				jObj = (JSONObject) obj;
-				addPattern = (String) jObj.get("template");
-				addMask = (String) jObj.get("mask");
+				addPattern = MaskerDetectors.getTemplate(jObj);
+				addMask = MaskerDetectors.getMask(jObj);
 				if (addPattern != null && addMask != null) {
 					addPattern = addPattern.trim();
 					addMask = addMask.trim();
@@ -1757,7 +2413,16 @@ public class Masker implements Serializable {
 					}
 					if (addMask.length() > 0) {
 						try {
-							Pattern newPattern = Pattern.compile(addPattern);
+							Pattern newPattern = MaskerDetectors.compile(addPattern);
+							String risk = MaskerRegexGuard.findBacktrackingRisk(addPattern);
+							if (risk != null) {
+								JSONObject error = new JSONObject();
+								error.put("template", addPattern);
+								error.put("mask", addMask);
+								error.put("error", "Rejected because " + risk + ".");
+								errors.add(error);
+								continue;
+							}
 							_patterns.add(newPattern);
 							_masks.add(addMask);
 							updated.add(jObj);
@@ -1791,18 +2456,105 @@ public class Masker implements Serializable {
 					}
 				}
 			}
-			return response;
+			if (updated.size() > 0 || removed.size() > 0) {
+				_mapPatternsList.put(tenantID, _patterns);
+				_mapMasksList.put(tenantID, _masks);
+				_mapTemplateVersions.put(tenantID, version);
+				return true;
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Get a tenant's templates in the form saved in its maskTemplates.json file
+	 * 
+	 * @param tenantID
+	 *                 tenant whose templates are returned
+	 * @return array of objects with a template and a mask
+	 */
+	static JSONArray getTemplates(String tenantID) {
+		JSONArray templates = new JSONArray();
+		synchronized (_initializing) {
+			List<Pattern> patterns = _mapPatternsList.get(tenantID);
+			List<String> masks = _mapMasksList.get(tenantID);
+			if (patterns != null && masks != null) {
+				for (int i = 0; i < patterns.size(); i++) {
+					JSONObject template = new JSONObject();
+					MaskerDetectors.Detector detector = MaskerDetectors.getDetector(patterns.get(i));
+					if (detector != null) {
+						template.put("detector", detector.getName());
+					} else {
+						template.put("template", patterns.get(i).pattern());
+					}
+					template.put("mask", _maskPrefix + masks.get(i) + _maskPrefix);
+					templates.add(template);
+				}
+			}
+		}
+		return templates;
+	}
+
+	/**
+	 * Replace a tenant's templates with those in its maskTemplates.json file
+	 * (e.g., after another replica has compacted the template journal into it)
+	 * 
+	 * @param tenantID
+	 *                 tenant whose templates are reloaded
+	 * @return the template version of the file
+	 * @throws Exception
+	 *                   if the file can not be read
+	 */
+	static long reloadTemplates(String tenantID) throws Exception {
+		String fileName = "." + File.separator + MaskerConstants.Masker_DIR_PROPERTIES + tenantID + File.separator
+				+ _maskTemplatesFile;
+		JSONObject maskTemplates = MaskerUtils.loadJSONFile(fileName);
+		JSONArray templates = (JSONArray) maskTemplates.get("templates");
+		if (templates == null) {
+			templates = new JSONArray();
+		}
+		List<Pattern> patterns = new ArrayList<Pattern>();
+		List<String> masks = new ArrayList<String>();
+		addTemplates(templates, patterns, masks);
+		long version = 0L;
+		Object test = maskTemplates.get("templateVersion");
+		if (test instanceof Number) {
+			version = ((Number) test).longValue();
+		}
+		synchronized (_initializing) {
+			_mapPatternsList.put(tenantID, patterns);
+			_mapMasksList.put(tenantID, masks);
+			_mapTemplateVersions.put(tenantID, version);
 		}
+		return version;
 	}
 
+	/**
+	 * Compression of the masked dialog files written (see
+	 * MaskerUtils.COMPRESSION_NONE, COMPRESSION_GZIP and COMPRESSION_ZSTD)
+	 */
+	public String _compression = MaskerUtils.COMPRESSION_NONE;
+
 	public String _ext = "json";
 
 	public NumberFormat _formatter = NumberFormat.getInstance(Locale.US);
 
+	/**
+	 * Whether the tokens of each masked file are added to the MaskerTokenIndex so
+	 * a lexicon change can be applied with MaskerRemask
+	 */
+	public boolean _indexTokens = false;
+
 	public Path _inputPath = null;
 
 	public String _outputPath = "." + File.separator + "Masked";
 
+	/**
+	 * Whether masked dialog files are indented for readability rather than
+	 * written as compact JSON
+	 */
+	public boolean _prettyOutput = true;
+
 	public MaskerDate _startDate = new MaskerDate();
 
 	public Long _totalDialogs = 0L;
@@ -1819,6 +2571,48 @@ public class Masker implements Serializable {
 		_formatter.setMinimumFractionDigits(2);
 	}
 
+	/**
+	 * Create the manifest checkpointing this run, identified by the current
+	 * tenant's lexicon, templates and settings
+	 * 
+	 * @return the run manifest (loaded from the output directory if present)
+	 * @throws Exception
+	 *                   if a lexicon file or the manifest can not be read
+	 */
+	public MaskerRunManifest createRunManifest() throws Exception {
+		List<Pattern> patterns = _mapPatternsList.get(_tenantID);
+		List<String> masks = _mapMasksList.get(_tenantID);
+		List<String> templates = new ArrayList<String>();
+		for (int i = 0; i < patterns.size(); i++) {
+			templates.add(patterns.get(i).pattern());
+			templates.add(masks.get(i));
+		}
+		Long templateVersion = _mapTemplateVersions.get(_tenantID);
+		return new MaskerRunManifest(_outputPath, MaskerRunManifest.hashFiles(getLexiconFileNames()),
+				MaskerRunManifest.hashStrings(templates), (templateVersion == null ? 0L : templateVersion),
+				"maskNumbers=" + _mapMaskNumbers.get(_tenantID) + ",minDialogs=" + _minDialogs + ",pretty="
+						+ _prettyOutput + ",compression=" + _compression + ",maxTokenLength=" + _maxTokenLength);
+	}
+
+	/**
+	 * Open the token index in the output directory if tokens are being indexed,
+	 * saving a snapshot of the lexicon the files will be masked with
+	 * 
+	 * @param manifest
+	 *                 manifest of the run
+	 * @return the token index, or null if tokens are not being indexed
+	 * @throws Exception
+	 *                   if the lexicon snapshot or index directory can not be
+	 *                   written
+	 */
+	public MaskerTokenIndex createTokenIndex(MaskerRunManifest manifest) throws Exception {
+		if (_indexTokens == false) {
+			return null;
+		}
+		TenantLexicon.saveSnapshot(_outputPath, manifest.getLexiconHash(), getLexiconFileNames());
+		return new MaskerTokenIndex(_outputPath);
+	}
+
 	/**
 	 * Given the provided fully qualified path to a JSON-based dialog file, perform
 	 * the masking and filtering based on volley counts to determine which (if any)
@@ -1849,8 +2643,10 @@ public class Masker implements Serializable {
 	 *                                the masks for the current tenantID
 	 * @param maskNumbers
 	 *                                whether numbers should be masked
+	 * @return the outcome of masking the file (one of the MaskerRunManifest
+	 *         STATUS_ values)
 	 */
-	public void doWork(Path file, JSONObject whitelist, JSONObject names, JSONObject geolocations,
+	public String doWork(Path file, JSONObject whitelist, JSONObject names, JSONObject geolocations,
 			JSONObject profanities, List<String> queryStringContainsList, List<String> domainPrefixList,
 			List<String> domainSuffixList, List<Pattern> patterns, List<String> masks, Boolean maskNumbers) {
 		JSONObject dialogsObj;
@@ -1861,8 +2657,9 @@ public class Masker implements Serializable {
 			shortFileName = shortFileName.substring(shortFileName.lastIndexOf(File.separator) + 1);
 			// get the date from the shortFileName
 			try {
-				int nameLen = shortFileName.length();
-				String fileDate = shortFileName.substring(nameLen - 10 - 1 - (_ext.length()));
+				String baseFileName = MaskerUtils.removeCompressionExtension(shortFileName);
+				int nameLen = baseFileName.length();
+				String fileDate = baseFileName.substring(nameLen - 10 - 1 - (_ext.length()));
 				fileDate = fileDate.substring(0, 10);
 				fileDate.replaceAll("\\/", "-");
 				try {
@@ -1874,13 +2671,46 @@ public class Masker implements Serializable {
 				e.printStackTrace();
 			}
 
-			maskDialogContent(dialogsObj, shortFileName, whitelist, names, geolocations, profanities,
+			return maskDialogContent(dialogsObj, shortFileName, whitelist, names, geolocations, profanities,
 					queryStringContainsList, domainPrefixList, domainSuffixList, patterns, masks, maskNumbers);
 		} catch (Exception e) {
 			e.printStackTrace();
+			return MaskerRunManifest.STATUS_FAILED;
 		}
 	}
 
+	/**
+	 * @return the fully qualified names of the current tenant's lexicon files
+	 *         (whitelist, names, geolocations, profanities and URL filters) used
+	 *         by the Masker program
+	 */
+	public List<String> getLexiconFileNames() {
+		String filePrefix = "." + File.separator + MaskerConstants.Masker_DIR_PROPERTIES + _tenantID + File.separator;
+		List<String> fileNames = new ArrayList<String>();
+		fileNames.add(filePrefix + _whitelistFileName);
+		fileNames.add(filePrefix + _namesFileName);
+		fileNames.add(filePrefix + _geolocationsFileName);
+		fileNames.add(filePrefix + _profanitiesFileName);
+		fileNames.add(filePrefix + _domainPrefixesFile);
+		fileNames.add(filePrefix + _domainSuffixesFile);
+		fileNames.add(filePrefix + _queryStringContainsFile);
+		return fileNames;
+	}
+
+	/**
+	 * Create the name of the masked dialog file written for an input file
+	 * 
+	 * @param fileName
+	 *                 name of the input file (without its directory)
+	 * @return fully qualified name of the output file
+	 * @throws Exception
+	 *                   if the output compression is not recognized
+	 */
+	public String getOutputFileName(String fileName) throws Exception {
+		return _outputPath + MaskerUtils.removeCompressionExtension(fileName)
+				+ MaskerUtils.getCompressionExtension(_compression);
+	}
+
 	/**
 	 * Load the parameters needed for execution from the passed arguments, prompting
 	 * for any missing arguments, and provide a way to quit the program.
@@ -2187,10 +3017,297 @@ public class Masker implements Serializable {
 		} else {
 			_maskNumbers = Boolean.valueOf(args[11]);
 		}
+		// optional output format and compression (not prompted)
+		if (args != null && args.length >= 13) {
+			String format = args[12].trim();
+			if ("compact".equalsIgnoreCase(format)) {
+				_prettyOutput = false;
+			} else if ("pretty".equalsIgnoreCase(format)) {
+				_prettyOutput = true;
+			} else {
+				System.out.println("Output format must be pretty or compact but received \"" + format + "\"");
+				return false;
+			}
+		}
+		if (args != null && args.length >= 14) {
+			_compression = args[13].trim().toLowerCase();
+			try {
+				MaskerUtils.getCompressionExtension(_compression);
+				if (MaskerUtils.COMPRESSION_ZSTD.equals(_compression)) {
+					MaskerUtils.getZstdClass("ZstdOutputStream");
+				}
+			} catch (Exception e) {
+				System.out.println(e.getLocalizedMessage());
+				return false;
+			}
+		}
+		if (args != null && args.length >= 15) {
+			String index = args[14].trim();
+			if ("index".equalsIgnoreCase(index)) {
+				_indexTokens = true;
+			} else if ("noindex".equalsIgnoreCase(index)) {
+				_indexTokens = false;
+			} else {
+				System.out.println("Token index must be index or noindex but received \"" + index + "\"");
+				return false;
+			}
+		}
+		if (args != null && args.length >= 16) {
+			try {
+				_dialogThreads = Integer.valueOf(args[15].trim());
+			} catch (NumberFormatException nfe) {
+				_dialogThreads = 0;
+			}
+			if (_dialogThreads < 1) {
+				System.out.println("Dialog threads must be a positive integer but received \"" + args[15] + "\"");
+				return false;
+			}
+		}
+		if (args != null && args.length >= 17) {
+			if (setMaxTokenLength(args[16]) == false) {
+				return false;
+			}
+		}
 		_isInitialized = true;
 		return true;
 	}
 
+	/**
+	 * @return the sorted input files (ending with the extension, optionally
+	 *         followed by a compression extension) in the input directory
+	 * @throws Exception
+	 *                   if the input directory can not be read
+	 */
+	public List<Path> listInputFiles() throws Exception {
+		List<Path> files = MaskerUtils.listSourceFiles(FileSystems.getDefault().getPath(_inputPath.toString()),
+				_ext + "," + _ext + MaskerUtils.GZIP_EXTENSION + "," + _ext + MaskerUtils.ZSTD_EXTENSION);
+		Collections.sort(files);
+		return files;
+	}
+
+	/**
+	 * Mask a dialog's volleys, rebasing their times to follow the masked start
+	 * date. The dialog's header statistics are added by
+	 * {@link #maskDialogContent(JSONObject, String, JSONObject, JSONObject, JSONObject, JSONObject, List, List, List, List, List, Boolean)}
+	 * in the order of the dialogs.
+	 * 
+	 * @param dialog
+	 *                                dialog with its dialogHeader and
+	 *                                dialogContent
+	 * @param whitelist
+	 *                                whitelist for the current tenantID
+	 * @param names
+	 *                                names for the current tenantID
+	 * @param geolocations
+	 *                                geolocations for the current tenantID
+	 * @param profanities
+	 *                                profanities for the current tenantID
+	 * @param queryStringContainsList
+	 *                                queryStringContainsList for the current
+	 *                                tenantID
+	 * @param domainPrefixList
+	 *                                domainPrefixList for the current tenantID
+	 * @param domainSuffixList
+	 *                                domainSuffixList for the current tenantID
+	 * @param patterns
+	 *                                the patterns for the current tenantID
+	 * @param masks
+	 *                                the masks for the current tenantID
+	 * @param maskNumbers
+	 *                                whether numbers should be masked
+	 * @return the masked dialog, or null if the dialog has no dialogContent
+	 * @throws Exception
+	 */
+	MaskedDialog maskDialog(JSONObject dialog, JSONObject whitelist, JSONObject names, JSONObject geolocations,
+			JSONObject profanities, List<String> queryStringContainsList, List<String> domainPrefixList,
+			List<String> domainSuffixList, List<Pattern> patterns, List<String> masks, Boolean maskNumbers)
+			throws Exception {
+		JSONObject dialogContent = (JSONObject) dialog.get("dialogContent");
+		if (dialogContent == null) {
+			return null;
+		}
+		/**
+		 * Ensure 3 seconds between dialogs within the day. Note that timeOffset is
+		 * incremented for each volley by its duration from the prior volley
+		 */
+		Long timeOffset = 0L;
+		MaskerDate maskedDialogStartDate = new MaskerDate(_startDate.getTime() + timeOffset);
+		JSONObject dialogHeader = (JSONObject) dialog.get("dialogHeader");
+		MaskerDate conversationDateTime = new MaskerDate();
+		try {
+			conversationDateTime = new MaskerDate((String) dialogHeader.get("conversationDateTime"));
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+		MaskerDate lastVolleyDate = conversationDateTime;
+		dialogHeader.put("conversationDateTime",
+				maskedDialogStartDate.toString(MaskerDate.CREATE_DATE_FORMAT_12, "GMT"));
+		// remove reference to emails before saving to the new dialog
+		dialogHeader.remove("agentEmails");
+		dialogHeader.remove("clientEmail");
+		JSONArray dialogVolleysArray = (JSONArray) dialogContent.get("dialog");
+		JSONObject counts = new JSONObject();
+		counts.put("maskedBad", 0L);
+		counts.put("maskedGeo", 0L);
+		counts.put("maskedMisc", 0L);
+		counts.put("maskedName", 0L);
+		counts.put("maskedNum", 0L);
+		counts.put("maskedURL", 0L);
+
+		counts.put("words", 0L); // word count
+		counts.put("masked", 0L); // masked count
+		MaskerDate maskedVolleyDate = null;
+		MaskerDate volleyDate = null;
+		int volleyCount = 0;
+		JSONArray maskedDialogVolleysArray = new JSONArray();
+		for (Object volleyObject : dialogVolleysArray) {
+			JSONObject volleyObj = (JSONObject) volleyObject;
+			// change the datetime of the volley
+			try {
+				volleyDate = new MaskerDate((String) volleyObj.get("datetime"));
+				long volleyOffset = MaskerDuration.elapsedTime(lastVolleyDate, volleyDate);
+				lastVolleyDate = volleyDate;
+				timeOffset += volleyOffset;
+				maskedVolleyDate = new MaskerDate(_startDate.getTime() + timeOffset);
+				volleyObj.put("datetime", maskedVolleyDate.toStringDateTime());
+
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+
+			JSONObject maskedVolley = maskVolley(volleyObj, counts, volleyCount, whitelist, names, geolocations,
+					profanities, queryStringContainsList, domainPrefixList, domainSuffixList, patterns, masks,
+					maskNumbers);
+			maskedDialogVolleysArray.add(maskedVolley);
+			volleyCount++;
+		}
+		JSONObject maskedDialogObject = new JSONObject();
+		JSONObject maskedDialogContent = new JSONObject();
+		maskedDialogContent.put("dialog", maskedDialogVolleysArray);
+		maskedDialogObject.put("dialogContent", maskedDialogContent);
+		return new MaskedDialog(maskedDialogObject, dialogHeader, counts);
+	}
+
+	/**
+	 * Mask the dialogs of a file, concurrently using {@link #_dialogThreads}
+	 * threads when there are at least {@link #_minParallelDialogs} dialogs. The
+	 * tokens referenced by the dialogs are added to the calling thread's token
+	 * index collection, if any.
+	 * 
+	 * @param dialogs
+	 *                                dialogs of the file
+	 * @param whitelist
+	 *                                whitelist for the current tenantID
+	 * @param names
+	 *                                names for the current tenantID
+	 * @param geolocations
+	 *                                geolocations for the current tenantID
+	 * @param profanities
+	 *                                profanities for the current tenantID
+	 * @param queryStringContainsList
+	 *                                queryStringContainsList for the current
+	 *                                tenantID
+	 * @param domainPrefixList
+	 *                                domainPrefixList for the current tenantID
+	 * @param domainSuffixList
+	 *                                domainSuffixList for the current tenantID
+	 * @param patterns
+	 *                                the patterns for the current tenantID
+	 * @param masks
+	 *                                the masks for the current tenantID
+	 * @param maskNumbers
+	 *                                whether numbers should be masked
+	 * @return the masked dialogs in the order of the dialogs (null for those
+	 *         without dialogContent)
+	 * @throws Exception
+	 *                   if a dialog can not be masked
+	 */
+	List<MaskedDialog> maskDialogs(JSONArray dialogs, final JSONObject whitelist, final JSONObject names,
+			final JSONObject geolocations, final JSONObject profanities, final List<String> queryStringContainsList,
+			final List<String> domainPrefixList, final List<String> domainSuffixList, final List<Pattern> patterns,
+			final List<String> masks, final Boolean maskNumbers) throws Exception {
+		List<MaskedDialog> maskedDialogs = new ArrayList<MaskedDialog>(dialogs.size());
+		if (_dialogThreads <= 1 || dialogs.size() < _minParallelDialogs) {
+			for (Object dialogObject : dialogs) {
+				maskedDialogs.add(maskDialog((JSONObject) dialogObject, whitelist, names, geolocations, profanities,
+						queryStringContainsList, domainPrefixList, domainSuffixList, patterns, masks, maskNumbers));
+			}
+			return maskedDialogs;
+		}
+		final boolean collecting = MaskerTokenIndex.isCollecting();
+		ExecutorService executor = getDialogExecutor();
+		List<Future<MaskedDialog>> futures = new ArrayList<Future<MaskedDialog>>(dialogs.size());
+		try {
+			for (Object dialogObject : dialogs) {
+				final JSONObject dialog = (JSONObject) dialogObject;
+				futures.add(executor.submit(new Callable<MaskedDialog>() {
+					@Override
+					public MaskedDialog call() throws Exception {
+						if (collecting) {
+							MaskerTokenIndex.startCollecting();
+						}
+						MaskedDialog maskedDialog = null;
+						Set<String> tokens = null;
+						try {
+							maskedDialog = maskDialog(dialog, whitelist, names, geolocations, profanities,
+									queryStringContainsList, domainPrefixList, domainSuffixList, patterns, masks, maskNumbers);
+						} finally {
+							if (collecting) {
+								tokens = MaskerTokenIndex.stopCollecting();
+							}
+						}
+						if (maskedDialog != null) {
+							maskedDialog._tokens = tokens;
+						}
+						return maskedDialog;
+					}
+				}));
+			}
+			for (Future<MaskedDialog> future : futures) {
+				MaskedDialog maskedDialog = null;
+				try {
+					maskedDialog = future.get();
+				} catch (ExecutionException ee) {
+					if (ee.getCause() instanceof Exception) {
+						throw (Exception) ee.getCause();
+					}
+					throw ee;
+				}
+				if (maskedDialog != null && maskedDialog._tokens != null) {
+					MaskerTokenIndex.collectAll(maskedDialog._tokens);
+					maskedDialog._tokens = null;
+				}
+				maskedDialogs.add(maskedDialog);
+			}
+		} finally {
+			// stop masking the remaining dialogs if one failed
+			for (Future<MaskedDialog> future : futures) {
+				future.cancel(false);
+			}
+		}
+		return maskedDialogs;
+	}
+
+	/**
+	 * @return the shared pool of threads masking dialogs, created with
+	 *         {@link #_dialogThreads} threads when first needed
+	 */
+	static synchronized ExecutorService getDialogExecutor() {
+		if (_dialogExecutor == null) {
+			_dialogExecutor = Executors.newFixedThreadPool(_dialogThreads, new ThreadFactory() {
+				int _count = 0;
+
+				@Override
+				public synchronized Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "masker-dialog-" + (++_count));
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return _dialogExecutor;
+	}
+
 	/**
 	 * Create a new daily dialog object and populate its masked dialog content based
 	 * on the allowed words in the identified whitelist and only allow URL's that do
@@ -2224,14 +3341,16 @@ public class Masker implements Serializable {
 	 *                                the masks for the current tenantID
 	 * @param maskNumbers
 	 *                                whether numbers should be masked
+	 * @return the outcome of masking the dialogs (one of the MaskerRunManifest
+	 *         STATUS_ values)
 	 * @throws Exception
 	 */
-	protected void maskDialogContent(JSONObject dialogsObj, String fileName, JSONObject whitelist, JSONObject names,
+	protected String maskDialogContent(JSONObject dialogsObj, String fileName, JSONObject whitelist, JSONObject names,
 			JSONObject geolocations, JSONObject profanities, List<String> queryStringContainsList,
 			List<String> domainPrefixList, List<String> domainSuffixList, List<Pattern> patterns, List<String> masks,
 			Boolean maskNumbers) throws Exception {
 		if (dialogsObj == null) {
-			return;
+			return MaskerRunManifest.STATUS_NO_DIALOGS;
 		}
 		JSONObject maskedDialogObj = new JSONObject();
 		JSONArray maskedDialogVolleys = new JSONArray();
@@ -2239,96 +3358,48 @@ public class Masker implements Serializable {
 		JSONArray originalDialogs = (JSONArray) dialogsObj.get("dialogs");
 		if (originalDialogs == null || originalDialogs.size() == 0) {
 			// nothing to mask so no point in saving this dialog
-			return;
+			return MaskerRunManifest.STATUS_NO_DIALOGS;
 		}
 		JSONObject dialogsHeader = (JSONObject) dialogsObj.get("header");
 		maskedDialogObj.put("header", dialogsHeader);
 
-		JSONObject dialog = null;
-		JSONObject maskedVolley = null;
-		Long timeOffset = Long.valueOf(0L);
-		MaskerDate lastVolleyDate = null;
-		JSONObject fileCounts = new JSONObject();
-		fileCounts.put("words", 0L); // file word count
-		fileCounts.put("maskedBad", 0L);
-		fileCounts.put("maskedGeo", 0L);
-		fileCounts.put("maskedMisc", 0L);
-		fileCounts.put("maskedName", 0L);
-		fileCounts.put("maskedNum", 0L);
-		fileCounts.put("maskedURL", 0L);
+		// check the dialog headers before masking any dialog
 		for (Object dialogObject : originalDialogs) {
-			/**
-			 * Ensure 3 seconds between dialogs within the day. Note that timeOffset is
-			 * incremented for each volley by its duration from the prior volley
-			 */
-			timeOffset = 0L;
-			MaskerDate maskedDialogStartDate = new MaskerDate(_startDate.getTime() + timeOffset);
-			dialog = (JSONObject) dialogObject;
-			JSONObject dialogContent = (JSONObject) dialog.get("dialogContent");
-			if (dialogContent == null) {
+			JSONObject dialog = (JSONObject) dialogObject;
+			if (dialog.get("dialogContent") == null) {
 				continue;
 			}
 			JSONObject dialogHeader = (JSONObject) dialog.get("dialogHeader");
 			if (dialogHeader == null) {
 				System.out.println("Missing \"dialogHeader\" key");
-				return;
-			}
-			MaskerDate conversationDateTime = new MaskerDate();
-			try {
-				conversationDateTime = new MaskerDate((String) dialogHeader.get("conversationDateTime"));
-			} catch (Exception e) {
-				e.printStackTrace();
+				return MaskerRunManifest.STATUS_FAILED;
 			}
-			lastVolleyDate = conversationDateTime;
-			dialogHeader.put("conversationDateTime",
-					maskedDialogStartDate.toString(MaskerDate.CREATE_DATE_FORMAT_12, "GMT"));
-			// remove reference to emails before saving to the new dialog
-			dialogHeader.remove("agentEmails");
-			dialogHeader.remove("clientEmail");
 			String sessionID = (String) dialogHeader.get("sessionID");
 			if (sessionID == null) {
 				System.out.println("Missing \"sessionID\" key in dialogHeader");
-				return;
-			}
-			JSONArray dialogVolleysArray = (JSONArray) dialogContent.get("dialog");
-			JSONObject counts = new JSONObject();
-			counts.put("maskedBad", 0L);
-			counts.put("maskedGeo", 0L);
-			counts.put("maskedMisc", 0L);
-			counts.put("maskedName", 0L);
-			counts.put("maskedNum", 0L);
-			counts.put("maskedURL", 0L);
-
-			counts.put("words", 0L); // word count
-			counts.put("masked", 0L); // masked count
-			MaskerDate maskedVolleyDate = null;
-			MaskerDate volleyDate = null;
-			int volleyCount = 0;
-			JSONArray maskedDialogVolleysArray = new JSONArray();
-			for (Object volleyObject : dialogVolleysArray) {
-				JSONObject volleyObj = (JSONObject) volleyObject;
-				// change the datetime of the volley
-				try {
-					volleyDate = new MaskerDate((String) volleyObj.get("datetime"));
-					long volleyOffset = MaskerDuration.elapsedTime(lastVolleyDate, volleyDate);
-					lastVolleyDate = volleyDate;
-					timeOffset += volleyOffset;
-					maskedVolleyDate = new MaskerDate(_startDate.getTime() + timeOffset);
-					volleyObj.put("datetime", maskedVolleyDate.toStringDateTime());
+				return MaskerRunManifest.STATUS_FAILED;
+			}
+		}
 
-				} catch (Exception e) {
-					e.printStackTrace();
-				}
+		List<MaskedDialog> maskedDialogs = maskDialogs(originalDialogs, whitelist, names, geolocations, profanities,
+				queryStringContainsList, domainPrefixList, domainSuffixList, patterns, masks, maskNumbers);
 
-				maskedVolley = maskVolley(volleyObj, counts, volleyCount, whitelist, names, geolocations, profanities,
-						queryStringContainsList, domainPrefixList, domainSuffixList, patterns, masks, maskNumbers);
-				maskedDialogVolleysArray.add(maskedVolley);
-				volleyCount++;
+		JSONObject fileCounts = new JSONObject();
+		fileCounts.put("words", 0L); // file word count
+		fileCounts.put("maskedBad", 0L);
+		fileCounts.put("maskedGeo", 0L);
+		fileCounts.put("maskedMisc", 0L);
+		fileCounts.put("maskedName", 0L);
+		fileCounts.put("maskedNum", 0L);
+		fileCounts.put("maskedURL", 0L);
+		// add the statistics in the order of the dialogs
+		for (MaskedDialog maskedDialog : maskedDialogs) {
+			if (maskedDialog == null) {
+				continue;
 			}
-			JSONObject maskedDialogObject = new JSONObject();
-			JSONObject maskedDialogContent = new JSONObject();
-			maskedDialogContent.put("dialog", maskedDialogVolleysArray);
-			maskedDialogObject.put("dialogContent", maskedDialogContent);
+			JSONObject maskedDialogObject = maskedDialog._maskedDialog;
+			JSONObject dialogHeader = maskedDialog._dialogHeader;
+			JSONObject counts = maskedDialog._counts;
 			Long count = (Long) counts.get("words");
 			Long maskedBad = (Long) counts.get("maskedBad");
 			Long maskedGeo = (Long) counts.get("maskedGeo");
@@ -2378,21 +3449,119 @@ public class Masker implements Serializable {
 		dialogsHeader.put("fileMaskedURL", maskedURL);
 		dialogsHeader.put("filePctMasked", (_formatter.format(filePctMasked)) + "%");
 		if (maskedDialogVolleys.size() > 0) {
-			String outputFileName = _outputPath + fileName;
 			try {
+				String outputFileName = getOutputFileName(fileName);
 				if (maskedDialogVolleys.size() >= _minDialogs) {
-					MaskerUtils.saveJSONFile(outputFileName, maskedDialogObj);
+					MaskerUtils.saveJSONFile(outputFileName, maskedDialogObj, _prettyOutput, _compression);
 					System.out
 							.println("Wrote " + outputFileName + " with " + maskedDialogVolleys.size() + " dialogs. Masked "
 									+ maskedCount + " of " + wordCount + " words (" + _formatter.format(filePctMasked) + "%)");
+					return MaskerRunManifest.STATUS_COMPLETED;
 				} else {
 					System.out.println("Not enough dialogs. Need at least " + _minDialogs + " but found only "
 							+ maskedDialogVolleys.size() + ".");
+					return MaskerRunManifest.STATUS_TOO_FEW_DIALOGS;
 				}
 			} catch (Exception e) {
 				e.printStackTrace();
+				return MaskerRunManifest.STATUS_FAILED;
 			}
 		}
+		return MaskerRunManifest.STATUS_NO_DIALOGS;
+	}
+
+
+	/**
+	 * Replace the matches of a template in a message of a dialog file. If the
+	 * template is aborted, the message is masked without it (and the template is
+	 * reported the first time) rather than failing the file.
+	 * 
+	 * @param pattern
+	 *                template
+	 * @param msg
+	 *                message
+	 * @param mask
+	 *                mask of the template (without its prefix and suffix)
+	 * @return the message with the matches replaced, or null if the template was
+	 *         not found or was aborted
+	 */
+	static String applyTemplate(Pattern pattern, String msg, String mask) {
+		try {
+			return MaskerDetectors.replaceAll(pattern, msg, _maskPrefix + mask + _maskPrefix);
+		} catch (MaskerRegexGuard.BudgetExceededException e) {
+			if (Thread.currentThread().isInterrupted()) {
+				throw e;
+			}
+			if (_abortedTemplates.add(e.getTemplate())) {
+				System.out.println(e.getLocalizedMessage() + " It was not applied to the messages where it was aborted.");
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Add the counts to the totals
+	 * 
+	 * @param totals
+	 *               counts of masked words receiving the counts
+	 * @param counts
+	 *               counts of masked words to be added
+	 */
+	static void mergeCounts(Map<String, Integer> totals, Map<String, Integer> counts) {
+		for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+			totals.merge(entry.getKey(), entry.getValue(), SUM_COUNTS);
+		}
+	}
+
+	/**
+	 * Mask the input file with the current tenant's lexicon and templates,
+	 * adding its tokens to the index (if any) and saving the counts of its masked
+	 * words before recording the outcome in the run manifest
+	 * 
+	 * @param file
+	 *                 input file
+	 * @param manifest
+	 *                 manifest of the run
+	 * @param index
+	 *                 token index, or null if tokens are not being indexed
+	 * @return the outcome of masking the file (one of the MaskerRunManifest
+	 *         STATUS_ values)
+	 * @throws Exception
+	 *                   if the index or manifest can not be written
+	 */
+	public String maskFile(Path file, MaskerRunManifest manifest, MaskerTokenIndex index) throws Exception {
+		if (index != null) {
+			MaskerTokenIndex.startCollecting();
+		}
+		String status = null;
+		Set<String> tokens = null;
+		// count the file's masked words apart so they can be saved for reruns
+		Map<String, Integer> runWords = _maskedWords;
+		Map<String, Integer> fileWords = new ConcurrentHashMap<String, Integer>();
+		_maskedWords = fileWords;
+		try {
+			status = doWork(file, _mapWhitelistObjs.get(_tenantID), _mapNameObjs.get(_tenantID),
+					_mapGeoLocationsObjs.get(_tenantID), _mapProfanityObjs.get(_tenantID),
+					_mapQueryStringLists.get(_tenantID), _mapDomainPrefixLists.get(_tenantID),
+					_mapDomainSuffixLists.get(_tenantID), _mapPatternsList.get(_tenantID), _mapMasksList.get(_tenantID),
+					_mapMaskNumbers.get(_tenantID));
+		} finally {
+			if (index != null) {
+				tokens = MaskerTokenIndex.stopCollecting();
+			}
+			_maskedWords = runWords;
+			mergeCounts(runWords, fileWords);
+		}
+		if (MaskerRunManifest.STATUS_FAILED.equals(status) == false) {
+			manifest.saveMaskedWords(file, fileWords);
+		}
+		boolean completed = MaskerRunManifest.STATUS_COMPLETED.equals(status);
+		if (index != null && completed) {
+			index.add(file.getFileName().toString(), tokens);
+		}
+		manifest.record(file, status, (completed ? getOutputFileName(file.getFileName().toString()) : null),
+				index != null);
+		return status;
 	}
 
 }
@@ -0,0 +1,600 @@
+/**
+ * (c) Copyright 2020-2023 IBM Corporation
+ * 1 New Orchard Road, 
+ * Armonk, New York, 10504-1722
+ * United States
+ * +1 914 499 1900
+ * Nathaniel Mills wnm3@us.ibm.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package com.whitelistmasker.masker;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import com.api.json.JSONObject;
+
+/**
+ * Fast path masking messages made only of ASCII characters on byte arrays.
+ * The message is copied once into a reusable buffer (detecting non-ASCII
+ * characters and folding case in place), its words are looked up in an
+ * open addressing table of the lexicon by hashing their byte slices, and the
+ * masked message is written into a reusable output buffer, so the only
+ * allocations per message are the result and the words being masked. The
+ * words are treated exactly as Masker.processWords treats them, and messages
+ * with anything the fast path does not handle (non-ASCII characters, URLs,
+ * words split on interior delimiters, backslashes, token indexing or vocabulary
+ * analysis) are declined so the caller masks them with the general path, as are
+ * messages longer than {@link #MAX_MESSAGE_CHARS} so the buffers kept by each
+ * thread stay small.
+ */
+public class MaskerAscii {
+
+	/**
+	 * Lexicon words (with ASCII keys and non-null values) in an open addressing
+	 * table of byte keys, each with the flags of the lexicons containing it
+	 */
+	static class Lexicon {
+
+		final byte[] _flags;
+		final JSONObject _geolocations;
+		final int[] _hashes;
+		final byte[] _keyBytes;
+		final int[] _keyLengths;
+		final int[] _keyOffsets;
+		final int _mask;
+		final JSONObject _names;
+		final JSONObject _profanities;
+		final JSONObject _whitelist;
+
+		/**
+		 * Build the table for the tenant's lexicon
+		 * 
+		 * @param whitelist
+		 *                     whitelist
+		 * @param names
+		 *                     names
+		 * @param geolocations
+		 *                     geolocations
+		 * @param profanities
+		 *                     profanities
+		 */
+		Lexicon(JSONObject whitelist, JSONObject names, JSONObject geolocations, JSONObject profanities) {
+			_whitelist = whitelist;
+			_names = names;
+			_geolocations = geolocations;
+			_profanities = profanities;
+			JSONObject[] lexicons = new JSONObject[] { whitelist, names, geolocations, profanities };
+			int keys = 0;
+			int keyChars = 0;
+			for (JSONObject lexicon : lexicons) {
+				for (Object key : lexicon.keySet()) {
+					keys++;
+					keyChars += ((String) key).length();
+				}
+			}
+			int capacity = Integer.highestOneBit(Math.max(keys, 8) * 2 - 1) << 1;
+			_mask = capacity - 1;
+			_flags = new byte[capacity];
+			_hashes = new int[capacity];
+			_keyOffsets = new int[capacity];
+			_keyLengths = new int[capacity];
+			_keyBytes = new byte[keyChars];
+			int keyOffset = 0;
+			for (int i = 0; i < lexicons.length; i++) {
+				byte flag = (byte) (1 << i);
+				for (Object keyObj : lexicons[i].keySet()) {
+					String key = (String) keyObj;
+					if (lexicons[i].get(key) == null || isASCII(key) == false) {
+						// never found by get(), or never equal to an ASCII word
+						continue;
+					}
+					int hash = key.hashCode();
+					int slot = mix(hash) & _mask;
+					while (_flags[slot] != 0) {
+						if (_hashes[slot] == hash && equals(slot, key)) {
+							break;
+						}
+						slot = (slot + 1) & _mask;
+					}
+					if (_flags[slot] == 0) {
+						_hashes[slot] = hash;
+						_keyOffsets[slot] = keyOffset;
+						_keyLengths[slot] = key.length();
+						for (int j = 0; j < key.length(); j++) {
+							_keyBytes[keyOffset++] = (byte) key.charAt(j);
+						}
+					}
+					_flags[slot] |= flag;
+				}
+			}
+		}
+
+		/**
+		 * @param slot
+		 *             occupied slot
+		 * @param key
+		 *             ASCII key
+		 * @return true if the slot holds the key
+		 */
+		boolean equals(int slot, String key) {
+			int len = _keyLengths[slot];
+			if (len != key.length()) {
+				return false;
+			}
+			int offset = _keyOffsets[slot];
+			for (int i = 0; i < len; i++) {
+				if (_keyBytes[offset + i] != (byte) key.charAt(i)) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Find the flags of the word
+		 * 
+		 * @param bytes
+		 *               buffer holding the lowercase word
+		 * @param offset
+		 *               start of the word in the buffer
+		 * @param len
+		 *               length of the word
+		 * @return the flags of the lexicons containing the word (0 if none)
+		 */
+		int lookup(byte[] bytes, int offset, int len) {
+			// same as String.hashCode for ASCII
+			int hash = 0;
+			for (int i = 0; i < len; i++) {
+				hash = 31 * hash + bytes[offset + i];
+			}
+			int slot = mix(hash) & _mask;
+			while (_flags[slot] != 0) {
+				if (_hashes[slot] == hash && _keyLengths[slot] == len) {
+					int keyOffset = _keyOffsets[slot];
+					int i = 0;
+					while (i < len && _keyBytes[keyOffset + i] == bytes[offset + i]) {
+						i++;
+					}
+					if (i == len) {
+						return _flags[slot];
+					}
+				}
+				slot = (slot + 1) & _mask;
+			}
+			return 0;
+		}
+
+		/**
+		 * @param hash
+		 *             String hash code
+		 * @return hash with its high bits spread into the low bits
+		 */
+		static int mix(int hash) {
+			hash *= 0x9E3779B9;
+			return hash ^ (hash >>> 16);
+		}
+	}
+
+	/**
+	 * Reusable per thread buffers
+	 */
+	static class Buffers {
+		byte[] _lower = new byte[256];
+		int[] _masked = new int[32];
+		byte[] _out = new byte[512];
+		byte[] _text = new byte[256];
+	}
+
+	static final byte FLAG_GEO = 4;
+
+	static final byte FLAG_NAME = 2;
+
+	static final byte FLAG_PROFANITY = 8;
+
+	static final byte FLAG_WHITELIST = 1;
+
+	static final int MAX_LEXICONS = 16;
+
+	// longest message masked here, bounding the buffers each thread keeps (longer
+	// messages are left to the general path)
+	static final int MAX_MESSAGE_CHARS = 64 * 1024;
+
+	static final ThreadLocal<Buffers> _buffers = new ThreadLocal<Buffers>() {
+		@Override
+		protected Buffers initialValue() {
+			return new Buffers();
+		}
+	};
+
+	// most recently built lexicons (replaced as a whole, never modified)
+	static volatile Lexicon[] _lexicons = new Lexicon[0];
+
+	/**
+	 * Append the mask to the output
+	 * 
+	 * @param buffers
+	 *                buffers of this thread
+	 * @param outLen
+	 *                length of the output
+	 * @param mask
+	 *                ASCII mask
+	 * @return new length of the output
+	 */
+	static int append(Buffers buffers, int outLen, String mask) {
+		int len = mask.length();
+		byte[] out = ensureOut(buffers, outLen + len);
+		for (int i = 0; i < len; i++) {
+			out[outLen + i] = (byte) mask.charAt(i);
+		}
+		return outLen + len;
+	}
+
+	/**
+	 * Append a slice of the buffer to the output
+	 * 
+	 * @param buffers
+	 *                buffers of this thread
+	 * @param outLen
+	 *                length of the output
+	 * @param bytes
+	 *                buffer holding the slice
+	 * @param offset
+	 *                start of the slice
+	 * @param len
+	 *                length of the slice
+	 * @return new length of the output
+	 */
+	static int append(Buffers buffers, int outLen, byte[] bytes, int offset, int len) {
+		byte[] out = ensureOut(buffers, outLen + len);
+		System.arraycopy(bytes, offset, out, outLen, len);
+		return outLen + len;
+	}
+
+	/**
+	 * @param masks
+	 *              the template masks
+	 * @param bytes
+	 *              buffer holding the lowercase word
+	 * @param offset
+	 *              start of the word
+	 * @param len
+	 *              length of the word
+	 * @return true if the word equals one of the masks
+	 */
+	static boolean containsMask(List<String> masks, byte[] bytes, int offset, int len) {
+		for (String mask : masks) {
+			if (mask == null || mask.length() != len) {
+				continue;
+			}
+			int i = 0;
+			while (i < len && mask.charAt(i) == bytes[offset + i]) {
+				i++;
+			}
+			if (i == len) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @param counts
+	 *               counts of the message
+	 * @param key
+	 *               count to be incremented
+	 * @param value
+	 *               amount to be added
+	 */
+	static void addCount(JSONObject counts, String key, long value) {
+		if (value != 0L) {
+			counts.put(key, ((Long) counts.get(key)) + value);
+		}
+	}
+
+	/**
+	 * @param buffers
+	 *                buffers of this thread
+	 * @param size
+	 *                size needed
+	 * @return the output buffer, grown if needed
+	 */
+	static byte[] ensureOut(Buffers buffers, int size) {
+		if (size > buffers._out.length) {
+			byte[] out = new byte[Math.max(size, buffers._out.length * 2)];
+			System.arraycopy(buffers._out, 0, out, 0, buffers._out.length);
+			buffers._out = out;
+		}
+		return buffers._out;
+	}
+
+	/**
+	 * Find (or build) the table for the tenant's lexicon, matching the lexicon
+	 * objects by identity
+	 * 
+	 * @param whitelist
+	 *                     whitelist
+	 * @param names
+	 *                     names
+	 * @param geolocations
+	 *                     geolocations
+	 * @param profanities
+	 *                     profanities
+	 * @return the lexicon table
+	 */
+	static Lexicon getLexicon(JSONObject whitelist, JSONObject names, JSONObject geolocations,
+			JSONObject profanities) {
+		Lexicon[] lexicons = _lexicons;
+		for (Lexicon lexicon : lexicons) {
+			if (lexicon._whitelist == whitelist && lexicon._names == names && lexicon._geolocations == geolocations
+					&& lexicon._profanities == profanities) {
+				return lexicon;
+			}
+		}
+		synchronized (MaskerAscii.class) {
+			lexicons = _lexicons;
+			for (Lexicon lexicon : lexicons) {
+				if (lexicon._whitelist == whitelist && lexicon._names == names
+						&& lexicon._geolocations == geolocations && lexicon._profanities == profanities) {
+					return lexicon;
+				}
+			}
+			Lexicon lexicon = new Lexicon(whitelist, names, geolocations, profanities);
+			int keep = Math.min(lexicons.length, MAX_LEXICONS - 1);
+			Lexicon[] newLexicons = new Lexicon[keep + 1];
+			newLexicons[0] = lexicon;
+			System.arraycopy(lexicons, 0, newLexicons, 1, keep);
+			_lexicons = newLexicons;
+			return lexicon;
+		}
+	}
+
+	/**
+	 * @param value
+	 *              string to be tested
+	 * @return true if the string only holds ASCII characters
+	 */
+	static boolean isASCII(String value) {
+		for (int i = 0; i < value.length(); i++) {
+			if (value.charAt(i) > 0x7F) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Mask the message with the ASCII fast path if it can, producing the same
+	 * result and counts as splitting the message on spaces and calling
+	 * Masker.processWords
+	 * 
+	 * @param msg
+	 *                    message (after templates have been applied)
+	 * @param counts
+	 *                    counts to be updated
+	 * @param maskNumbers
+	 *                    whether numbers should be masked
+	 * @param whitelist
+	 *                    whitelist for the tenant
+	 * @param names
+	 *                    names for the tenant
+	 * @param geolocations
+	 *                    geolocations for the tenant
+	 * @param profanities
+	 *                    profanities for the tenant
+	 * @param masks
+	 *                    the template masks
+	 * @return the masked message with leading and trailing spaces trimmed, or
+	 *         null if the message must be masked by the general path (in which
+	 *         case nothing has been updated)
+	 */
+	static public String maskMessage(String msg, JSONObject counts, boolean maskNumbers, JSONObject whitelist,
+			JSONObject names, JSONObject geolocations, JSONObject profanities, List<String> masks) {
+		if (msg == null || msg.length() > MAX_MESSAGE_CHARS || MaskerTokenIndex._collector.get() != null
+				|| MaskerVocabularyAnalyzer.isCollecting()) {
+			return null;
+		}
+		String maskName = Masker._maskName;
+		String maskGeo = Masker._maskGeo;
+		String maskBad = Masker._maskBad;
+		String maskNum = Masker._maskNum;
+		String maskMisc = Masker._maskMisc;
+		if (isASCII(maskName) == false || isASCII(maskGeo) == false || isASCII(maskBad) == false
+				|| isASCII(maskNum) == false || isASCII(maskMisc) == false) {
+			return null;
+		}
+		Buffers buffers = _buffers.get();
+		int msgLen = msg.length();
+		if (buffers._text.length < msgLen) {
+			buffers._text = new byte[Math.min(Math.max(msgLen, buffers._text.length * 2), MAX_MESSAGE_CHARS)];
+			buffers._lower = new byte[buffers._text.length];
+		}
+		byte[] text = buffers._text;
+		byte[] lower = buffers._lower;
+		for (int i = 0; i < msgLen; i++) {
+			char c = msg.charAt(i);
+			if (c > 0x7F || c == '\\') {
+				return null;
+			}
+			text[i] = (byte) c;
+			lower[i] = (byte) (c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c);
+		}
+		Lexicon lexicon = getLexicon(whitelist, names, geolocations, profanities);
+		long words = 0L;
+		long maskedName = 0L;
+		long maskedGeo = 0L;
+		long maskedBad = 0L;
+		long maskedNum = 0L;
+		long maskedMisc = 0L;
+		int maskedWords = 0;
+		int outLen = 0;
+		String lastWordMasked = "";
+		int start = 0;
+		while (start <= msgLen) {
+			if (start == msgLen || text[start] == ' ') {
+				// the empty word before each space adds the space
+				if (start < msgLen) {
+					outLen = append(buffers, outLen, " ");
+				}
+				start++;
+				continue;
+			}
+			int end = start;
+			while (end < msgLen && text[end] != ' ') {
+				end++;
+			}
+			// clean the word as MaskerUtils.cleanWord does
+			int wordStart = start;
+			int wordEnd = end;
+			start = end;
+			int coreStart = wordStart;
+			while (coreStart < wordEnd && MaskerCharClass.isCleanable((char) lower[coreStart])) {
+				coreStart++;
+			}
+			if (coreStart == wordEnd) {
+				// only non-word characters
+				words++;
+				outLen = append(buffers, outLen, text, wordStart, wordEnd - wordStart);
+				lastWordMasked = "";
+				continue;
+			}
+			int coreEnd = wordEnd;
+			while (coreEnd - 1 > coreStart && MaskerCharClass.isCleanable((char) lower[coreEnd - 1])) {
+				coreEnd--;
+			}
+			if (coreStart - wordStart == 1 && lower[wordStart] == '~' && wordEnd - coreEnd == 1
+					&& lower[coreEnd] == '~') {
+				// already masked
+				words++;
+				outLen = append(buffers, outLen, text, wordStart, wordEnd - wordStart);
+				lastWordMasked = "";
+				continue;
+			}
+			int coreLen = coreEnd - coreStart;
+			if (Masker._maxTokenLength > 0 && coreLen > Masker._maxTokenLength) {
+				// overlong words are left to the general path
+				return null;
+			}
+			for (int i = coreStart; i < coreEnd; i++) {
+				if ((MaskerCharClass._classes[lower[i]] & MaskerCharClass.DELIMITER_MASK) != 0
+						|| (lower[i] == 'h' && i + 3 < coreEnd && lower[i + 1] == 't' && lower[i + 2] == 't'
+								&& lower[i + 3] == 'p')) {
+					// split on delimiters or a URL, left to the general path
+					return null;
+				}
+			}
+			outLen = append(buffers, outLen, lower, wordStart, coreStart - wordStart);
+			words++;
+			int flags = lexicon.lookup(lower, coreStart, coreLen);
+			if ((flags & FLAG_WHITELIST) == 0 && containsMask(masks, lower, coreStart, coreLen) == false) {
+				// record the word to update the masked words when finished
+				if (buffers._masked.length < 2 * maskedWords + 2) {
+					int[] masked = new int[buffers._masked.length * 2];
+					System.arraycopy(buffers._masked, 0, masked, 0, buffers._masked.length);
+					buffers._masked = masked;
+				}
+				buffers._masked[2 * maskedWords] = coreStart;
+				buffers._masked[2 * maskedWords + 1] = coreLen;
+				maskedWords++;
+				String mask = null;
+				if ((flags & FLAG_NAME) != 0) {
+					maskedName++;
+					mask = maskName;
+				} else if ((flags & FLAG_GEO) != 0) {
+					maskedGeo++;
+					mask = maskGeo;
+				} else if ((flags & FLAG_PROFANITY) != 0) {
+					maskedBad++;
+					mask = maskBad;
+				} else if (isNumbers(lower, coreStart, coreEnd)) {
+					if (maskNumbers) {
+						maskedNum++;
+						mask = maskNum;
+					}
+				} else {
+					maskedMisc++;
+					mask = maskMisc;
+				}
+				if (mask == null) {
+					// allow this number
+					outLen = append(buffers, outLen, text, coreStart, coreLen);
+					lastWordMasked = "";
+				} else {
+					if (lastWordMasked.equals(mask) == false) {
+						outLen = append(buffers, outLen, mask);
+					} else {
+						// reuse the same mask rather than repeating it
+						outLen = Math.max(outLen - 1, 0);
+					}
+					lastWordMasked = mask;
+				}
+			} else {
+				outLen = append(buffers, outLen, text, coreStart, coreLen);
+				lastWordMasked = "";
+			}
+			outLen = append(buffers, outLen, lower, coreEnd, wordEnd - coreEnd);
+			if (wordEnd > coreEnd) {
+				boolean reset = (lower[wordEnd - 1] == '\n');
+				for (int i = coreEnd; reset == false && i < wordEnd; i++) {
+					reset = lower[i] > ' ';
+				}
+				if (reset) {
+					lastWordMasked = "";
+				}
+			}
+		}
+		for (int i = 0; i < maskedWords; i++) {
+			Masker.updateMasked(new String(lower, buffers._masked[2 * i], buffers._masked[2 * i + 1],
+					StandardCharsets.ISO_8859_1), maskNumbers);
+		}
+		addCount(counts, "words", words);
+		addCount(counts, "maskedName", maskedName);
+		addCount(counts, "maskedGeo", maskedGeo);
+		addCount(counts, "maskedBad", maskedBad);
+		addCount(counts, "maskedNum", maskedNum);
+		addCount(counts, "maskedMisc", maskedMisc);
+		// trim spaces as MaskerUtils.trimSpaces does
+		byte[] out = buffers._out;
+		int outStart = 0;
+		while (outStart < outLen && out[outStart] == ' ') {
+			outStart++;
+		}
+		while (outLen > outStart && out[outLen - 1] == ' ') {
+			outLen--;
+		}
+		return new String(out, outStart, outLen - outStart, StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * @param bytes
+	 *              buffer holding the word
+	 * @param start
+	 *              start of the word
+	 * @param end
+	 *              end of the word
+	 * @return true if the word is only digits
+	 */
+	static boolean isNumbers(byte[] bytes, int start, int end) {
+		for (int i = start; i < end; i++) {
+			if (bytes[i] < '0' || bytes[i] > '9') {
+				return false;
+			}
+		}
+		return end > start;
+	}
+
+}
@@ -0,0 +1,110 @@
+/**
+ * (c) Copyright 2020-2023 IBM Corporation
+ * 1 New Orchard Road, 
+ * Armonk, New York, 10504-1722
+ * United States
+ * +1 914 499 1900
+ * Nathaniel Mills wnm3@us.ibm.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package com.whitelistmasker.masker;
+
+/**
+ * Table driven character classification for the innermost loops of masking:
+ * trimming the non-word characters cleanWord removes from each end of a word,
+ * and finding which of the delimiters processWords splits words on are
+ * present. Each char's classes are held in one byte of a 64K table so a
+ * character is classified by a single load rather than a chain of range and
+ * equality tests, and a word's delimiters are found in a single pass rather
+ * than one scan per delimiter.
+ */
+public class MaskerCharClass {
+
+	/**
+	 * Class bit of non-word characters (not numbers, letters or @) trimmed from
+	 * the ends of words
+	 */
+	static final byte CLEANABLE = 0x40;
+
+	/**
+	 * Mask of the delimiter number (1 to {@link #_delimiterBits} length - 1) of
+	 * characters words are split on
+	 */
+	static final byte DELIMITER_MASK = 0x1F;
+
+	static final byte[] _classes = new byte[Character.MAX_VALUE + 1];
+
+	// character of each delimiter number, in the order processWords splits on them
+	static final char[] _delimiters = new char[] { 0, '\n', '\r', '\t', '/', '.', '-', '(', ':', '_', '>', ',', '+',
+			';', ')', '\\', '\u2014' };
+
+	// Masker INDEX_ bit of each delimiter number
+	static final long[] _delimiterBits = new long[] { 0L, Masker.INDEX_NL, Masker.INDEX_CR, Masker.INDEX_TAB,
+			Masker.INDEX_SLASH, Masker.INDEX_PERIOD, Masker.INDEX_HYPHEN, Masker.INDEX_LPAREN, Masker.INDEX_COLON,
+			Masker.INDEX_UNDERSCORE, Masker.INDEX_GT, Masker.INDEX_COMMA, Masker.INDEX_PLUS, Masker.INDEX_SEMICOLON,
+			Masker.INDEX_RPAREN, Masker.INDEX_BACKSLASH, Masker.INDEX_EM_DASH };
+
+	static {
+		for (int c = 0; c <= Character.MAX_VALUE; c++) {
+			// numbers, letters, some quotes, but not @ (to block emails)
+			if (c < 0x0030 || (c > 0x0039 && c < 0x0061 && c != 0x0040) || (c > 0x007a && c <= 0x007f)
+					|| c == '\u2003' || c == '\u2013' || c == '\u2018' || c == '\u2019' || c == '\u201C'
+					|| c == '\u201D' || c == '\u2022' || c == '\u2026' || c == '\u2028' || c == '\u202A'
+					|| c == '\u202C' || c == '\u202F' || c == '\u223C') {
+				_classes[c] = CLEANABLE;
+			}
+		}
+		for (int i = 1; i < _delimiters.length; i++) {
+			_classes[_delimiters[i]] |= (byte) i;
+		}
+	}
+
+	/**
+	 * Find which of the delimiters processWords splits words on are present in
+	 * the word
+	 * 
+	 * @param word
+	 *             word to be scanned
+	 * @return the Masker INDEX_ bits of the delimiters found, including
+	 *         INDEX_ESCNEWLINE for an escaped newline (backslash followed by n)
+	 */
+	static public long findDelimiters(String word) {
+		long found = 0L;
+		int len = word.length();
+		for (int i = 0; i < len; i++) {
+			char c = word.charAt(i);
+			int delimiter = _classes[c] & DELIMITER_MASK;
+			if (delimiter != 0) {
+				found |= _delimiterBits[delimiter];
+				if (c == '\\' && i + 1 < len && word.charAt(i + 1) == 'n') {
+					found |= Masker.INDEX_ESCNEWLINE;
+				}
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * @param c
+	 *          character to be tested
+	 * @return true if cleanWord trims the character from the ends of words
+	 */
+	static public boolean isCleanable(char c) {
+		return (_classes[c] & CLEANABLE) != 0;
+	}
+
+}
@@ -0,0 +1,720 @@
+/**
+ * (c) Copyright 2020-2023 IBM Corporation
+ * 1 New Orchard Road, 
+ * Armonk, New York, 10504-1722
+ * United States
+ * +1 914 499 1900
+ * Nathaniel Mills wnm3@us.ibm.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package com.whitelistmasker.masker;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+import com.api.json.JSONArray;
+import com.api.json.JSONObject;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Client for the MaskWebServices (or the {@link MaskerHttpServer}) built on a
+ * single java.net.http.HttpClient so connections are kept alive and reused
+ * (using HTTP/2 when the server supports it). Requests are sent asynchronously
+ * returning CompletableFutures, responses are parsed once into typed results,
+ * and single utterances submitted by {@link #maskUtterance(String, String)} are
+ * gathered into doMasking batches per tenant.
+ */
+public class MaskerClient implements AutoCloseable {
+
+	/**
+	 * Typed result of a doMasking request
+	 */
+	static public class MaskResult {
+
+		final Map<String, Long> _counts;
+		final List<String> _errors;
+		final List<String> _masked;
+
+		MaskResult(List<String> masked, List<String> errors, Map<String, Long> counts) {
+			_masked = masked;
+			_errors = errors;
+			_counts = counts;
+		}
+
+		/**
+		 * @return the word counts, or null if they were not requested
+		 */
+		public Map<String, Long> getCounts() {
+			return _counts;
+		}
+
+		/**
+		 * @return the errors reported for the request
+		 */
+		public List<String> getErrors() {
+			return _errors;
+		}
+
+		/**
+		 * @return the masked lines in the order they were submitted
+		 */
+		public List<String> getMasked() {
+			return _masked;
+		}
+	}
+
+	/**
+	 * Typed result of a doMessageMasking request
+	 */
+	static public class MessageMaskResult {
+
+		final Map<String, Long> _counts;
+		final List<Map<String, String>> _diffs;
+		final List<String> _errors;
+		final List<Map<String, Object>> _maskedMessages;
+
+		MessageMaskResult(List<Map<String, Object>> maskedMessages, List<Map<String, String>> diffs,
+				List<String> errors, Map<String, Long> counts) {
+			_maskedMessages = maskedMessages;
+			_diffs = diffs;
+			_errors = errors;
+			_counts = counts;
+		}
+
+		/**
+		 * @return the word counts, or null if they were not requested
+		 */
+		public Map<String, Long> getCounts() {
+			return _counts;
+		}
+
+		/**
+		 * @return the masks and the original content they replaced, in the order
+		 *         they occur in the messages
+		 */
+		public List<Map<String, String>> getDiffs() {
+			return _diffs;
+		}
+
+		/**
+		 * @return the errors reported for the request
+		 */
+		public List<String> getErrors() {
+			return _errors;
+		}
+
+		/**
+		 * @return the messages with their utterances masked
+		 */
+		public List<Map<String, Object>> getMaskedMessages() {
+			return _maskedMessages;
+		}
+	}
+
+	/**
+	 * An utterance waiting to be sent in a batch
+	 */
+	static class PendingUtterance {
+		final CompletableFuture<String> _future = new CompletableFuture<String>();
+		final String _utterance;
+
+		PendingUtterance(String utterance) {
+			_utterance = utterance;
+		}
+	}
+
+	static public final String DO_MASKING = "masker/doMasking";
+	static public final String DO_MESSAGE_MASKING = "masker/doMessageMasking";
+	static final ObjectMapper s_mapper = new ObjectMapper();
+
+	/**
+	 * Create a client from the settings of a MaskWebService.properties file
+	 * (protocol, hostname, port, servletname, version, username, password and
+	 * apitimeout in milliseconds)
+	 * 
+	 * @param props
+	 *              web service properties
+	 * @return client for the service
+	 * @throws Exception
+	 *                   if the properties do not describe a valid URI or timeout
+	 */
+	static public MaskerClient fromProperties(Properties props) throws Exception {
+		String baseURI = props.getProperty("protocol", "http") + "://" + props.getProperty("hostname", "localhost")
+				+ ":" + props.getProperty("port", "9080") + "/" + props.getProperty("servletname", "MaskWebServices")
+				+ "/" + props.getProperty("version", "v1") + "/";
+		long timeout = 100000L;
+		try {
+			timeout = Long.valueOf(props.getProperty("apitimeout", "100000"));
+		} catch (NumberFormatException nfe) {
+			throw new Exception("The apitimeout is not a positive integer of milliseconds.");
+		}
+		if (timeout < 0L) {
+			throw new Exception("The apitimeout is less than zero milliseconds.");
+		}
+		return new MaskerClient(new URI(baseURI), props.getProperty("username", "mask"),
+				props.getProperty("password", "password"), Duration.ofMillis(timeout));
+	}
+
+	/**
+	 * Wait for a future's result, unwrapping the exception it completed with
+	 * 
+	 * @param future
+	 *               future to be waited upon
+	 * @return the future's result
+	 * @throws Exception
+	 *                   the exception the future completed with
+	 */
+	static <T> T get(CompletableFuture<T> future) throws Exception {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof Exception) {
+				throw (Exception) cause;
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * @param node
+	 *             response array of error objects (may be null)
+	 * @return the error messages
+	 */
+	static List<String> getErrors(JsonNode node) {
+		List<String> errors = new ArrayList<String>();
+		if (node != null) {
+			for (JsonNode error : node) {
+				JsonNode message = error.get("error");
+				errors.add(message == null ? error.toString() : message.asText());
+			}
+		}
+		return errors;
+	}
+
+	/**
+	 * @param node
+	 *             response counts object (may be null)
+	 * @return the counts, or null if none were returned
+	 */
+	static Map<String, Long> getCounts(JsonNode node) {
+		if (node == null || node.isObject() == false) {
+			return null;
+		}
+		Map<String, Long> counts = new LinkedHashMap<String, Long>();
+		for (Map.Entry<String, JsonNode> entry : node.properties()) {
+			counts.put(entry.getKey(), entry.getValue().asLong());
+		}
+		return counts;
+	}
+
+	/**
+	 * Parse a doMasking response
+	 * 
+	 * @param response
+	 *                 response body
+	 * @return typed result
+	 * @throws Exception
+	 *                   if the response is not a doMasking response
+	 */
+	static MaskResult parseMaskResult(JsonNode response) throws Exception {
+		JsonNode results = response.get("results");
+		if (results == null) {
+			throw new Exception("The response is missing its results: " + response);
+		}
+		List<String> masked = new ArrayList<String>();
+		JsonNode maskedNode = results.get("masked");
+		if (maskedNode != null) {
+			for (JsonNode line : maskedNode) {
+				masked.add(line.asText());
+			}
+		}
+		return new MaskResult(masked, getErrors(results.get("errors")), getCounts(results.get("counts")));
+	}
+
+	/**
+	 * Parse a doMessageMasking response
+	 * 
+	 * @param response
+	 *                 response body
+	 * @return typed result
+	 * @throws Exception
+	 *                   if the response is not a doMessageMasking response
+	 */
+	@SuppressWarnings("unchecked")
+	static MessageMaskResult parseMessageMaskResult(JsonNode response) throws Exception {
+		JsonNode results = response.get("results");
+		if (results == null) {
+			throw new Exception("The response is missing its results: " + response);
+		}
+		List<Map<String, Object>> maskedMessages = new ArrayList<Map<String, Object>>();
+		JsonNode messagesNode = results.get("maskedMessages");
+		if (messagesNode != null) {
+			for (JsonNode message : messagesNode) {
+				maskedMessages.add(s_mapper.convertValue(message, Map.class));
+			}
+		}
+		List<Map<String, String>> diffs = new ArrayList<Map<String, String>>();
+		JsonNode diffsNode = results.get("diffs");
+		if (diffsNode != null) {
+			for (JsonNode diff : diffsNode) {
+				diffs.add(s_mapper.convertValue(diff, Map.class));
+			}
+		}
+		return new MessageMaskResult(maskedMessages, diffs, getErrors(results.get("errors")),
+				getCounts(results.get("counts")));
+	}
+
+	final String _authorization;
+	final URI _baseURI;
+	long _batchDelayMillis = 5L;
+	final HttpClient _client;
+	int _maxBatchSize = 100;
+	final Map<String, List<PendingUtterance>> _pending = new HashMap<String, List<PendingUtterance>>();
+	final ScheduledExecutorService _scheduler;
+	final Duration _timeout;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param baseURI
+	 *                 URI of the services (e.g.,
+	 *                 http://localhost:9080/MaskWebServices/v1/)
+	 * @param username
+	 *                 user for basic authentication (null if none)
+	 * @param password
+	 *                 password for basic authentication
+	 * @param timeout
+	 *                 time allowed to connect and for each request to complete
+	 */
+	public MaskerClient(URI baseURI, String username, String password, Duration timeout) {
+		String base = baseURI.toString();
+		_baseURI = (base.endsWith("/") ? baseURI : URI.create(base + "/"));
+		_timeout = timeout;
+		if (username != null && password != null) {
+			// Note: do not use the Base64.getUrlEncoder for authentication
+			_authorization = "Basic " + Base64.getEncoder()
+					.encodeToString((username + ":" + password).getBytes(StandardCharsets.UTF_8));
+		} else {
+			_authorization = null;
+		}
+		_client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_2).connectTimeout(timeout)
+				.followRedirects(HttpClient.Redirect.NORMAL).build();
+		_scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "masker-client-batcher");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Send the utterances waiting to be batched and stop the batching thread
+	 */
+	@Override
+	public void close() {
+		List<String> tenantIDs = null;
+		synchronized (_pending) {
+			tenantIDs = new ArrayList<String>(_pending.keySet());
+		}
+		for (String tenantID : tenantIDs) {
+			flush(tenantID);
+		}
+		_scheduler.shutdown();
+	}
+
+	/**
+	 * Send the utterances waiting to be batched for a tenant in a single doMasking
+	 * request, completing each utterance's future with its masked line
+	 * 
+	 * @param tenantID
+	 *                 tenant whose utterances are to be sent
+	 */
+	void flush(String tenantID) {
+		final List<PendingUtterance> batch;
+		synchronized (_pending) {
+			batch = _pending.remove(tenantID);
+		}
+		if (batch == null || batch.isEmpty()) {
+			return;
+		}
+		List<String> unmasked = new ArrayList<String>(batch.size());
+		for (PendingUtterance pending : batch) {
+			unmasked.add(pending._utterance);
+		}
+		maskAsync(tenantID, unmasked, null, null).whenComplete(new BiConsumer<MaskResult, Throwable>() {
+			@Override
+			public void accept(MaskResult result, Throwable t) {
+				if (t == null && result.getMasked().size() != batch.size()) {
+					t = new Exception("Expected " + batch.size() + " masked lines but received "
+							+ result.getMasked().size() + " errors: " + result.getErrors());
+				}
+				for (int i = 0; i < batch.size(); i++) {
+					if (t != null) {
+						batch.get(i)._future.completeExceptionally(t);
+					} else {
+						batch.get(i)._future.complete(result.getMasked().get(i));
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * @return the time an utterance may wait for others to be batched with it
+	 */
+	public long getBatchDelayMillis() {
+		return _batchDelayMillis;
+	}
+
+	/**
+	 * @return the maximum number of utterances sent in a batch
+	 */
+	public int getMaxBatchSize() {
+		return _maxBatchSize;
+	}
+
+	/**
+	 * Mask lines of text
+	 * 
+	 * @param tenantID
+	 *                    tenant whose whitelist is used
+	 * @param unmasked
+	 *                    lines to be masked
+	 * @param maskNumbers
+	 *                    whether numbers are masked (null for the tenant's
+	 *                    default)
+	 * @param templates
+	 *                    additional templates of template and mask objects (may
+	 *                    be null)
+	 * @return the masked lines
+	 * @throws Exception
+	 *                   if the request fails or its response can not be parsed
+	 */
+	public MaskResult mask(String tenantID, List<String> unmasked, Boolean maskNumbers, JSONArray templates)
+			throws Exception {
+		return get(maskAsync(tenantID, unmasked, maskNumbers, templates));
+	}
+
+	/**
+	 * Mask lines of text asynchronously
+	 * 
+	 * @param tenantID
+	 *                    tenant whose whitelist is used
+	 * @param unmasked
+	 *                    lines to be masked
+	 * @param maskNumbers
+	 *                    whether numbers are masked (null for the tenant's
+	 *                    default)
+	 * @param templates
+	 *                    additional templates of template and mask objects (may
+	 *                    be null)
+	 * @return future completed with the masked lines
+	 */
+	public CompletableFuture<MaskResult> maskAsync(String tenantID, List<String> unmasked, Boolean maskNumbers,
+			JSONArray templates) {
+		ObjectNode request = newRequest(tenantID, maskNumbers, templates);
+		ArrayNode unmaskedNode = request.putArray("unmasked");
+		for (String line : unmasked) {
+			unmaskedNode.add(line);
+		}
+		return sendAsync(DO_MASKING, request, new Function<JsonNode, MaskResult>() {
+			@Override
+			public MaskResult apply(JsonNode response) {
+				try {
+					return parseMaskResult(response);
+				} catch (Exception e) {
+					throw new CompletionException(e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Mask the utterances of a conversation
+	 * 
+	 * @param tenantID
+	 *                    tenant whose whitelist is used
+	 * @param messages
+	 *                    message objects (with speaker, time and utterance)
+	 * @param maskNumbers
+	 *                    whether numbers are masked (null for the tenant's
+	 *                    default)
+	 * @param templates
+	 *                    additional templates of template and mask objects (may
+	 *                    be null)
+	 * @return the masked messages and their differences
+	 * @throws Exception
+	 *                   if the request fails or its response can not be parsed
+	 */
+	public MessageMaskResult maskMessages(String tenantID, JSONArray messages, Boolean maskNumbers,
+			JSONArray templates) throws Exception {
+		return get(maskMessagesAsync(tenantID, messages, maskNumbers, templates));
+	}
+
+	/**
+	 * Mask the utterances of a conversation asynchronously
+	 * 
+	 * @param tenantID
+	 *                    tenant whose whitelist is used
+	 * @param messages
+	 *                    message objects (with speaker, time and utterance)
+	 * @param maskNumbers
+	 *                    whether numbers are masked (null for the tenant's
+	 *                    default)
+	 * @param templates
+	 *                    additional templates of template and mask objects (may
+	 *                    be null)
+	 * @return future completed with the masked messages and their differences
+	 */
+	public CompletableFuture<MessageMaskResult> maskMessagesAsync(String tenantID, JSONArray messages,
+			Boolean maskNumbers, JSONArray templates) {
+		ObjectNode request = newRequest(tenantID, maskNumbers, templates);
+		try {
+			request.set("messages", s_mapper.readTree(messages.toString()));
+		} catch (IOException e) {
+			CompletableFuture<MessageMaskResult> failed = new CompletableFuture<MessageMaskResult>();
+			failed.completeExceptionally(e);
+			return failed;
+		}
+		return sendAsync(DO_MESSAGE_MASKING, request, new Function<JsonNode, MessageMaskResult>() {
+			@Override
+			public MessageMaskResult apply(JsonNode response) {
+				try {
+					return parseMessageMaskResult(response);
+				} catch (Exception e) {
+					throw new CompletionException(e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Mask a single utterance. Utterances for the same tenant submitted within the
+	 * batch delay of one another are sent together in one doMasking request (using
+	 * the tenant's default for masking numbers).
+	 * 
+	 * @param tenantID
+	 *                  tenant whose whitelist is used
+	 * @param utterance
+	 *                  utterance to be masked
+	 * @return future completed with the masked utterance
+	 */
+	public CompletableFuture<String> maskUtterance(final String tenantID, String utterance) {
+		PendingUtterance pending = new PendingUtterance(utterance);
+		boolean first = false;
+		boolean full = false;
+		synchronized (_pending) {
+			List<PendingUtterance> batch = _pending.get(tenantID);
+			if (batch == null) {
+				batch = new ArrayList<PendingUtterance>();
+				_pending.put(tenantID, batch);
+				first = true;
+			}
+			batch.add(pending);
+			full = batch.size() >= _maxBatchSize;
+		}
+		if (full) {
+			flush(tenantID);
+		} else if (first) {
+			_scheduler.schedule(new Runnable() {
+				@Override
+				public void run() {
+					flush(tenantID);
+				}
+			}, _batchDelayMillis, TimeUnit.MILLISECONDS);
+		}
+		return pending._future;
+	}
+
+	/**
+	 * Create the request object common to the masking requests
+	 * 
+	 * @param tenantID
+	 *                    tenant whose whitelist is used
+	 * @param maskNumbers
+	 *                    whether numbers are masked (null for the tenant's
+	 *                    default)
+	 * @param templates
+	 *                    additional templates (may be null)
+	 * @return request object to receive the content to be masked
+	 */
+	ObjectNode newRequest(String tenantID, Boolean maskNumbers, JSONArray templates) {
+		ObjectNode request = s_mapper.createObjectNode();
+		request.put("tenantID", tenantID);
+		if (maskNumbers != null) {
+			request.put("maskNumbers", maskNumbers);
+		}
+		if (templates != null) {
+			ArrayNode templatesNode = request.putArray("templates");
+			for (Object template : templates) {
+				JSONObject templateObj = (JSONObject) template;
+				ObjectNode templateNode = templatesNode.addObject();
+				templateNode.put("template", (String) templateObj.get("template"));
+				templateNode.put("mask", (String) templateObj.get("mask"));
+			}
+		}
+		return request;
+	}
+
+	/**
+	 * Send a request to a service, returning the response as a JSONObject. As with
+	 * MaskerUtils.sendRequest, an unsuccessful response returns an object with its
+	 * errorCode and errorMsg.
+	 * 
+	 * @param serviceName
+	 *                    service relative to the base URI (e.g.,
+	 *                    masker/doMasking)
+	 * @param body
+	 *                    request body
+	 * @return the response
+	 * @throws Exception
+	 *                   if the request can not be sent or the response parsed
+	 */
+	public JSONObject post(String serviceName, JSONObject body) throws Exception {
+		return get(postAsync(serviceName, body));
+	}
+
+	/**
+	 * Send a request to a service asynchronously, returning the response as a
+	 * JSONObject. As with MaskerUtils.sendRequest, an unsuccessful response returns
+	 * an object with its errorCode and errorMsg.
+	 * 
+	 * @param serviceName
+	 *                    service relative to the base URI (e.g.,
+	 *                    masker/doMasking)
+	 * @param body
+	 *                    request body
+	 * @return future completed with the response
+	 */
+	public CompletableFuture<JSONObject> postAsync(String serviceName, JSONObject body) {
+		return _client.sendAsync(newPost(serviceName, body.toString()), HttpResponse.BodyHandlers.ofString())
+				.thenApply(new Function<HttpResponse<String>, JSONObject>() {
+					@Override
+					public JSONObject apply(HttpResponse<String> response) {
+						if (response.statusCode() < 200 || response.statusCode() > 299) {
+							JSONObject errorObj = new JSONObject();
+							errorObj.put("errorCode", response.statusCode());
+							errorObj.put("errorMsg", response.body());
+							return errorObj;
+						}
+						try {
+							return JSONObject.parse(response.body());
+						} catch (IOException e) {
+							throw new CompletionException(e);
+						}
+					}
+				});
+	}
+
+	/**
+	 * Create a POST request for a service
+	 * 
+	 * @param serviceName
+	 *                    service relative to the base URI
+	 * @param body
+	 *                    request body
+	 * @return the request
+	 */
+	HttpRequest newPost(String serviceName, String body) {
+		HttpRequest.Builder builder = HttpRequest.newBuilder(_baseURI.resolve(serviceName)).timeout(_timeout)
+				.header("Content-Type", "application/json").header("Accept", "application/json")
+				.POST(HttpRequest.BodyPublishers.ofString(body, StandardCharsets.UTF_8));
+		if (_authorization != null) {
+			builder.header("Authorization", _authorization);
+		}
+		return builder.build();
+	}
+
+	/**
+	 * Send a masking request, parsing its response directly from the response
+	 * bytes
+	 * 
+	 * @param serviceName
+	 *                    service relative to the base URI
+	 * @param request
+	 *                    request object (placed in the body's request)
+	 * @param parser
+	 *                    converts the parsed response to its typed result
+	 * @return future completed with the typed result, or exceptionally if the
+	 *         service returns an error
+	 */
+	<T> CompletableFuture<T> sendAsync(String serviceName, ObjectNode request, final Function<JsonNode, T> parser) {
+		ObjectNode body = s_mapper.createObjectNode();
+		body.set("request", request);
+		return _client.sendAsync(newPost(serviceName, body.toString()), HttpResponse.BodyHandlers.ofByteArray())
+				.thenApply(new Function<HttpResponse<byte[]>, T>() {
+					@Override
+					public T apply(HttpResponse<byte[]> response) {
+						try {
+							if (response.statusCode() < 200 || response.statusCode() > 299) {
+								throw new Exception("Returned code " + response.statusCode() + " "
+										+ new String(response.body(), StandardCharsets.UTF_8));
+							}
+							return parser.apply(s_mapper.readTree(response.body()));
+						} catch (CompletionException e) {
+							throw e;
+						} catch (Exception e) {
+							throw new CompletionException(e);
+						}
+					}
+				});
+	}
+
+	/**
+	 * @param batchDelayMillis
+	 *                         time an utterance may wait for others to be batched
+	 *                         with it
+	 */
+	public void setBatchDelayMillis(long batchDelayMillis) {
+		_batchDelayMillis = batchDelayMillis;
+	}
+
+	/**
+	 * @param maxBatchSize
+	 *                     maximum number of utterances sent in a batch
+	 */
+	public void setMaxBatchSize(int maxBatchSize) {
+		_maxBatchSize = maxBatchSize;
+	}
+}
@@ -0,0 +1,102 @@
+/**
+ * (c) Copyright 2020-2023 IBM Corporation
+ * 1 New Orchard Road, 
+ * Armonk, New York, 10504-1722
+ * United States
+ * +1 914 499 1900
+ * Nathaniel Mills wnm3@us.ibm.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.whitelistmasker.masker;
+
+import java.io.Serializable;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+import com.api.json.JSONArray;
+import com.api.json.JSONObject;
+
+/**
+ * The tenant resources and the combined request and tenant templates used to
+ * mask the lines of a request. A context is created once per request by
+ * {@link Masker#createContext(JSONObject, com.api.json.JSONArray)} and may be
+ * shared by threads masking different lines of the request, each using their
+ * own counts.
+ */
+public class MaskerContext implements Serializable {
+
+	private static final long serialVersionUID = 4962297035871208215L;
+
+	// templates aborted while masking a line of the request
+	final Set<String> _abortedTemplates = new HashSet<String>();
+	List<String> _domainPrefixList;
+	List<String> _domainSuffixList;
+	// errors of the request, receiving the templates aborted while masking
+	JSONArray _errors = null;
+	JSONObject _geolocations;
+	boolean _maskNumbers = true;
+	List<String> _masks;
+	JSONObject _names;
+	List<Pattern> _patterns;
+	JSONObject _profanities;
+	List<String> _queryStringContainsList;
+	// whether TemplateMatch events are recorded (checked once per request)
+	boolean _templateMatchEnabled = false;
+	long _templateVersion = 0L;
+	String _tenantID;
+	JSONObject _whitelist;
+
+	MaskerContext() {
+	}
+
+	/**
+	 * Report a template aborted while masking a line, which is masked without it.
+	 * Each template is reported once per request.
+	 * 
+	 * @param e
+	 *          exception naming the aborted template
+	 */
+	synchronized void addAbortedTemplate(MaskerRegexGuard.BudgetExceededException e) {
+		if (_errors == null || _abortedTemplates.add(e.getTemplate()) == false) {
+			return;
+		}
+		JSONObject error = new JSONObject();
+		error.put("template", e.getTemplate());
+		error.put("error", e.getLocalizedMessage() + " It was not applied to the lines where it was aborted.");
+		_errors.add(error);
+	}
+
+	/**
+	 * @return whether numbers are masked
+	 */
+	public boolean getMaskNumbers() {
+		return _maskNumbers;
+	}
+
+	/**
+	 * @return the version of the tenant's templates used for masking
+	 */
+	public long getTemplateVersion() {
+		return _templateVersion;
+	}
+
+	/**
+	 * @return the tenantID whose resources are used for masking
+	 */
+	public String getTenantID() {
+		return _tenantID;
+	}
+}
@@ -25,6 +25,12 @@ package com.whitelistmasker.masker;
 import java.text.DateFormatSymbols;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
@@ -32,6 +38,7 @@ import java.util.Collections;
 import java.util.Date;
 import java.util.GregorianCalendar;
 import java.util.HashMap;
+import java.util.Locale;
 import java.util.SimpleTimeZone;
 import java.util.TimeZone;
 import java.util.Vector;
@@ -130,6 +137,75 @@ public class MaskerDate extends Date {
 	// --------
 	// statics
 	// --------
+	/**
+	 * Days from 0000/01/01 (proleptic Gregorian) to the 1970/01/01 epoch used by
+	 * {@link #toEpochDay(int, int, int)}
+	 */
+	static private final long DAYS_0000_TO_1970 = 719528L;
+
+	/**
+	 * Immutable java.time formatters keyed by the SimpleDateFormat pattern they
+	 * reproduce. Populated once during class initialization (before any
+	 * MaskerDate is formatted) and only read afterward, so no locking is needed.
+	 * Patterns not found here are formatted with a SimpleDateFormat created for
+	 * the call.
+	 */
+	static private final HashMap<String, DateTimeFormatter> _formatters = new HashMap<String, DateTimeFormatter>();
+
+	/**
+	 * Earliest epoch millisecond (1900/01/01-00:00:00.000(+0000)) formatted by
+	 * the cached formatters. Earlier dates fall into the Julian calendar and
+	 * local mean time offsets handled differently by SimpleDateFormat.
+	 */
+	static private final long FORMATTER_MIN_MILLIS = -2208988800000L;
+
+	/**
+	 * First epoch millisecond of the year 10000, which no longer fits the 4 digit
+	 * year of the cached formatters
+	 */
+	static private final long FORMATTER_MAX_MILLIS = 253402300800000L;
+
+	static {
+		// SimpleDateFormat pattern -> equivalent java.time pattern
+		String[][] patterns = new String[][] { //
+				{ "yyyy/MM/dd-HH:mm:ss.SSS(Z)", "yyyy/MM/dd-HH:mm:ss.SSS(xx)" }, //
+				{ "yyyy/MM/dd-HH:mm:ss.SSS", "yyyy/MM/dd-HH:mm:ss.SSS" }, //
+				{ "yyyy/MM/dd-HH:mm:ss", "yyyy/MM/dd-HH:mm:ss" }, //
+				{ "yyyy/MM/dd-HH:mm", "yyyy/MM/dd-HH:mm" }, //
+				{ "yyyy/MM/dd-HH", "yyyy/MM/dd-HH" }, //
+				{ "yyyy/MM/dd", "yyyy/MM/dd" }, //
+				{ "yyyy/MM/dd-HH:mm:ss(Z)", "yyyy/MM/dd-HH:mm:ss(xx)" }, //
+				{ "yyyy/MM/dd-HH:mm(Z)", "yyyy/MM/dd-HH:mm(xx)" }, //
+				{ "yyyy/MM/dd-HH(Z)", "yyyy/MM/dd-HH(xx)" }, //
+				{ "yyyy/MM/dd(Z)", "yyyy/MM/dd(xx)" }, //
+				// SimpleDateFormat pads milliseconds to the 6 S's
+				{ "yyyy/MM/dd HH:mm:ss.SSSSSS", "yyyy/MM/dd HH:mm:ss.'000'SSS" }, //
+				{ "E, dd MMM yyyy HH:mm:ss", "E, dd MMM yyyy HH:mm:ss" }, //
+				{ "MMMM dd yyyy HH:mm:ss", "MMMM dd yyyy HH:mm:ss" } };
+		// sample each month and weekday in a leap year, with and without an offset
+		long[] samples = new long[24];
+		for (int i = 0; i < 12; i++) {
+			samples[i] = (toEpochDay(2024, i + 1, i + 1) * 86400000L) + (i * 3723004L);
+			samples[i + 12] = (toEpochDay(1999, 12 - i, 28 - i) * 86400000L) + 86399999L - (i * 3723004L);
+		}
+		for (String[] pattern : patterns) {
+			DateTimeFormatter formatter = DateTimeFormatter.ofPattern(pattern[1]);
+			// only trust the formatter if it reproduces SimpleDateFormat's output
+			// for the default locale
+			boolean matches = true;
+			for (int i = 0; i < samples.length && matches; i++) {
+				int iTZMillisecs = ((i % 3) - 1) * 19800000; // -0530, +0000, +0530
+				SimpleDateFormat sdFormat = new SimpleDateFormat(pattern[0], new DateFormatSymbols());
+				sdFormat.setTimeZone(new SimpleTimeZone(iTZMillisecs, "sample"));
+				matches = sdFormat.format(new Date(samples[i])).equals(formatter.format(
+						Instant.ofEpochMilli(samples[i]).atOffset(ZoneOffset.ofTotalSeconds(iTZMillisecs / 1000))));
+			}
+			if (matches) {
+				_formatters.put(pattern[0], formatter);
+			}
+		}
+	}
+
 	static public String m_strClassName = MaskerUtils.getNameFromClass(MaskerDate.class);
 
 	static private final long serialVersionUID = -1235455818943814022L;
@@ -199,6 +275,33 @@ public class MaskerDate extends Date {
 		return strDateTime;
 	}
 
+	/**
+	 * Parse a fixed width run of decimal digits without allocating
+	 * 
+	 * @param strDate
+	 *                string containing the digits
+	 * @param iOffset
+	 *                offset of the first digit
+	 * @param iCount
+	 *                number of digits to parse
+	 * @return the value of the digits, or -1 if the string is too short or a
+	 *         character in the run is not a digit
+	 */
+	static int digits(String strDate, int iOffset, int iCount) {
+		if (iOffset < 0 || iOffset + iCount > strDate.length()) {
+			return -1;
+		}
+		int value = 0;
+		for (int i = iOffset; i < iOffset + iCount; i++) {
+			char c = strDate.charAt(i);
+			if (c < '0' || c > '9') {
+				return -1;
+			}
+			value = (value * 10) + (c - '0');
+		}
+		return value;
+	}
+
 	/*
 	 * @see com.whitelistmasker.masker.MaskerDuration#elapsedTime(Date, Date)
 	 */
@@ -410,10 +513,15 @@ public class MaskerDate extends Date {
 	 * @see #CREATE_DATE_FORMAT_11
 	 * @see #CREATE_DATE_FORMAT_12
 	 */
-	static synchronized public Date makeDate(String strDate) throws Exception {
+	static public Date makeDate(String strDate) throws Exception {
 		if (strDate == null || strDate.length() == 0) {
 			return new Date();
 		}
+		// most dates arrive as xs:dateTime or database Timestamps
+		Date date = parseISO8601(strDate);
+		if (date != null) {
+			return date;
+		}
 		// check for odd formats first
 		String[] parts = strDate.split(" ");
 		if (parts.length == 4) {
@@ -705,6 +813,11 @@ public class MaskerDate extends Date {
 				}
 			}
 		}
+		date = parseNormalizedDate(strDate);
+		if (date != null) {
+			return date;
+		}
+		// fall back to the patterns for anything else SimpleDateFormat accepts
 		try {
 			if (iTimeOffset == -1) {
 				SimpleDateFormat sdFormat = null;
@@ -776,8 +889,16 @@ public class MaskerDate extends Date {
 	 * @return a formatted string showing the local date in the Masker date format
 	 * @see #CREATE_DATE_FORMAT
 	 */
-	static synchronized public String makeFormattedDate(Date date, String strFormat, String strTimeZone) {
+	static public String makeFormattedDate(Date date, String strFormat, String strTimeZone) {
 		int iTZMillisecs = MaskerUtils.convertTimeZoneToMilliseconds(strTimeZone);
+		DateTimeFormatter formatter = (strFormat == null ? null : _formatters.get(strFormat));
+		long lLocalMillis = date.getTime() + iTZMillisecs;
+		if (formatter != null && strTimeZone != null && lLocalMillis >= FORMATTER_MIN_MILLIS && lLocalMillis < FORMATTER_MAX_MILLIS
+				&& Math.abs(iTZMillisecs) <= 64800000
+				&& formatter.getLocale().equals(Locale.getDefault(Locale.Category.FORMAT))) {
+			return formatter.format(
+					Instant.ofEpochMilli(date.getTime()).atOffset(ZoneOffset.ofTotalSeconds(iTZMillisecs / 1000)));
+		}
 		// TimeZone tz = TimeZone.getTimeZone(strTimeZone);
 		SimpleDateFormat dateformat;
 		try {
@@ -797,7 +918,15 @@ public class MaskerDate extends Date {
 	 * @return a formatted string showing the local date in the Masker date format
 	 * @see #CREATE_DATE_FORMAT
 	 */
-	static synchronized public String makeFormattedLocalDate(Date date) {
+	static public String makeFormattedLocalDate(Date date) {
+		DateTimeFormatter formatter = _formatters.get(CREATE_DATE_FORMAT);
+		if (formatter != null && date.getTime() >= FORMATTER_MIN_MILLIS && date.getTime() < FORMATTER_MAX_MILLIS
+				&& formatter.getLocale().equals(Locale.getDefault(Locale.Category.FORMAT))) {
+			ZonedDateTime local = Instant.ofEpochMilli(date.getTime()).atZone(TimeZone.getDefault().toZoneId());
+			if (local.getYear() <= 9999 && local.getOffset().getTotalSeconds() % 60 == 0) {
+				return formatter.format(local);
+			}
+		}
 		return new SimpleDateFormat(CREATE_DATE_FORMAT, new DateFormatSymbols()).format(date);
 	}
 
@@ -825,6 +954,143 @@ public class MaskerDate extends Date {
 		return new MaskerDate(0L);
 	}
 
+	/**
+	 * Hand written parser for the ISO-8601 forms exchanged in dialogs:
+	 * yyyy-MM-ddTHH:mm:ss[.S...][Z|+/-hh:mm|+/-hhmm] where the T may also be a
+	 * space (database Timestamp format). Dates without a timezone are treated as
+	 * Zulu (UTC) time, as convertDateTime does. Fractions longer than 3 digits are
+	 * rounded to milliseconds the same way makeDate does.
+	 * 
+	 * @param strDate
+	 *                date to be parsed
+	 * @return the parsed date, or null if the string is not in one of these
+	 *         forms or has a field out of the range makeDate accepts, leaving
+	 *         it to the general makeDate processing
+	 */
+	static Date parseISO8601(String strDate) {
+		int iLength = strDate.length();
+		if (iLength < 19 || strDate.charAt(4) != '-' || strDate.charAt(7) != '-' || strDate.charAt(13) != ':'
+				|| strDate.charAt(16) != ':' || (strDate.charAt(10) != 'T' && strDate.charAt(10) != ' ')) {
+			return null;
+		}
+		int iYear = digits(strDate, 0, 4);
+		int iMonth = digits(strDate, 5, 2);
+		int iDay = digits(strDate, 8, 2);
+		int iHours = digits(strDate, 11, 2);
+		int iMinutes = digits(strDate, 14, 2);
+		int iSeconds = digits(strDate, 17, 2);
+		if (iYear < 1900 || iYear > 2500 || iMonth < 1 || iMonth > 12 || iDay < 1 || iDay > 31 || iHours < 0
+				|| iHours > 23 || iMinutes < 0 || iMinutes > 59 || iSeconds < 0 || iSeconds > 59) {
+			return null;
+		}
+		int iOffset = 19;
+		int iMilliseconds = 0;
+		if (iOffset < iLength && strDate.charAt(iOffset) == '.') {
+			int iMSOffset = ++iOffset;
+			while (iOffset < iLength && strDate.charAt(iOffset) >= '0' && strDate.charAt(iOffset) <= '9') {
+				iOffset++;
+			}
+			int iMSLen = iOffset - iMSOffset;
+			if (iMSLen == 0) {
+				return null;
+			}
+			if (iMSLen <= 3) {
+				iMilliseconds = digits(strDate, iMSOffset, iMSLen);
+				for (int i = iMSLen; i < 3; i++) {
+					iMilliseconds *= 10;
+				}
+			} else {
+				// round and right pad as makeDate does (e.g., .9996 becomes 1000
+				// milliseconds and .0641 becomes 640)
+				iMilliseconds = Math.round(Float.valueOf(strDate.substring(iMSOffset, iMSOffset + 3) + "."
+						+ strDate.substring(iMSOffset + 3, iOffset)));
+				if (iMilliseconds < 10) {
+					iMilliseconds *= 100;
+				} else if (iMilliseconds < 100) {
+					iMilliseconds *= 10;
+				}
+			}
+		}
+		long lTZMillisecs = 0L;
+		if (iOffset < iLength) {
+			char c = strDate.charAt(iOffset);
+			if (c == 'Z' || c == 'z') {
+				if (iOffset + 1 != iLength) {
+					return null;
+				}
+			} else if (c == '+' || c == '-') {
+				int iTZHours = digits(strDate, iOffset + 1, 2);
+				iOffset += 3;
+				if (iOffset < iLength && strDate.charAt(iOffset) == ':') {
+					iOffset++;
+				}
+				int iTZMinutes = digits(strDate, iOffset, 2);
+				if (iOffset + 2 != iLength || iTZHours < 0 || iTZHours > 23 || iTZMinutes < 0 || iTZMinutes > 59) {
+					return null;
+				}
+				lTZMillisecs = (iTZHours * 3600000L) + (iTZMinutes * 60000L);
+				if (c == '-') {
+					lTZMillisecs = -lTZMillisecs;
+				}
+			} else {
+				return null;
+			}
+		}
+		return new Date(
+				toLocalMillis(iYear, iMonth, iDay, iHours, iMinutes, iSeconds, iMilliseconds) - lTZMillisecs);
+	}
+
+	/**
+	 * Parse the normalized form makeDate builds before choosing a format:
+	 * yyyy/MM/dd[-HH[:mm[:ss[.SSS]]]][(+/-hhmm)]. Fields are combined leniently
+	 * (e.g., 2019/02/31 is 2019/03/03) and dates without a timezone use the
+	 * default timezone, as the SimpleDateFormat patterns did.
+	 * 
+	 * @param strDate
+	 *                normalized date to be parsed
+	 * @return the parsed date, or null if the string is not exactly in this form,
+	 *         leaving it to the SimpleDateFormat patterns
+	 */
+	static Date parseNormalizedDate(String strDate) {
+		int iLength = strDate.length();
+		if (iLength < 10 || strDate.charAt(4) != '/' || strDate.charAt(7) != '/') {
+			return null;
+		}
+		int iYear = digits(strDate, 0, 4);
+		int iMonth = digits(strDate, 5, 2);
+		int iDay = digits(strDate, 8, 2);
+		if (iYear < 0 || iMonth < 1 || iMonth > 12 || iDay < 0) {
+			return null;
+		}
+		int[] time = new int[] { 0, 0, 0, 0 };
+		char[] separators = new char[] { '-', ':', ':', '.' };
+		int iOffset = 10;
+		for (int i = 0; i < time.length && iOffset < iLength && strDate.charAt(iOffset) == separators[i]; i++) {
+			int iWidth = (i == 3 ? 3 : 2);
+			time[i] = digits(strDate, iOffset + 1, iWidth);
+			if (time[i] < 0) {
+				return null;
+			}
+			iOffset += iWidth + 1;
+		}
+		long lLocalMillis = toLocalMillis(iYear, iMonth, iDay, time[0], time[1], time[2], time[3]);
+		if (iOffset == iLength) {
+			return new Date(toEpochMillis(lLocalMillis, TimeZone.getDefault().toZoneId()));
+		}
+		// only a (+/-hhmm) timezone may follow
+		if (iOffset + 7 != iLength || strDate.charAt(iOffset) != '(' || strDate.charAt(iLength - 1) != ')') {
+			return null;
+		}
+		char cSign = strDate.charAt(iOffset + 1);
+		int iTZHours = digits(strDate, iOffset + 2, 2);
+		int iTZMinutes = digits(strDate, iOffset + 4, 2);
+		if ((cSign != '+' && cSign != '-') || iTZHours < 0 || iTZHours > 23 || iTZMinutes < 0 || iTZMinutes > 59) {
+			return null;
+		}
+		long lTZMillisecs = (iTZHours * 3600000L) + (iTZMinutes * 60000L);
+		return new Date(lLocalMillis - (cSign == '-' ? -lTZMillisecs : lTZMillisecs));
+	}
+
 	/**
 	 * Find the timezone string by parsing the timezone list entry formed by the
 	 * getTimeZoneList routine.
@@ -861,6 +1127,77 @@ public class MaskerDate extends Date {
 		return strTimeZone;
 	}
 
+	/**
+	 * Compute the days since the 1970/01/01 epoch for a proleptic Gregorian date.
+	 * Days past the end of the month carry into the following month.
+	 * 
+	 * @param iYear
+	 *               year (non-negative)
+	 * @param iMonth
+	 *               month (1-12)
+	 * @param iDay
+	 *               day of the month
+	 * @return days since the epoch
+	 */
+	static long toEpochDay(int iYear, int iMonth, int iDay) {
+		long lYear = iYear;
+		long lTotal = (365L * lYear) + ((lYear + 3) / 4) - ((lYear + 99) / 100) + ((lYear + 399) / 400);
+		lTotal += ((367 * iMonth) - 362) / 12;
+		lTotal += iDay - 1;
+		if (iMonth > 2) {
+			lTotal--;
+			if ((iYear % 4 != 0) || (iYear % 100 == 0 && iYear % 400 != 0)) {
+				lTotal--;
+			}
+		}
+		return lTotal - DAYS_0000_TO_1970;
+	}
+
+	/**
+	 * Convert a local time to epoch milliseconds in the supplied timezone.
+	 * Times skipped by a daylight savings transition move forward by the length
+	 * of the transition and repeated times use standard time, matching a lenient
+	 * GregorianCalendar.
+	 * 
+	 * @param lLocalMillis
+	 *                     local time as milliseconds since 1970/01/01-00:00:00.000
+	 * @param zone
+	 *                     timezone of the local time
+	 * @return milliseconds since the epoch
+	 */
+	static long toEpochMillis(long lLocalMillis, ZoneId zone) {
+		LocalDateTime local = LocalDateTime.ofEpochSecond(Math.floorDiv(lLocalMillis, 1000L),
+				(int) Math.floorMod(lLocalMillis, 1000L) * 1000000, ZoneOffset.UTC);
+		return ZonedDateTime.ofLocal(local, zone, null).withLaterOffsetAtOverlap().toInstant().toEpochMilli();
+	}
+
+	/**
+	 * Combine date and time fields leniently into local epoch milliseconds (i.e.,
+	 * as if the timezone were +0000). Fields beyond their normal range carry into
+	 * the next larger field.
+	 * 
+	 * @param iYear
+	 *                      year (non-negative)
+	 * @param iMonth
+	 *                      month (1-12)
+	 * @param iDay
+	 *                      day of the month
+	 * @param iHours
+	 *                      hours of the day
+	 * @param iMinutes
+	 *                      minutes of the hour
+	 * @param iSeconds
+	 *                      seconds of the minute
+	 * @param iMilliseconds
+	 *                      milliseconds of the second
+	 * @return local milliseconds since 1970/01/01-00:00:00.000
+	 */
+	static long toLocalMillis(int iYear, int iMonth, int iDay, int iHours, int iMinutes, int iSeconds,
+			int iMilliseconds) {
+		return (toEpochDay(iYear, iMonth, iDay) * 86400000L) + (iHours * 3600000L) + (iMinutes * 60000L)
+				+ (iSeconds * 1000L) + iMilliseconds;
+	}
+
 	/**
 	 * Converts the input MaskerDate to an undefined MaskerDate if the input
 	 * MaskerDate is null.
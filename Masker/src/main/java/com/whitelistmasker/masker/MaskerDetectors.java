@@ -0,0 +1,688 @@
+/**
+ * (c) Copyright 2020-2023 IBM Corporation
+ * 1 New Orchard Road, 
+ * Armonk, New York, 10504-1722
+ * United States
+ * +1 914 499 1900
+ * Nathaniel Mills wnm3@us.ibm.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package com.whitelistmasker.masker;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import com.api.json.JSONObject;
+
+/**
+ * Built-in detectors for email addresses, payment card numbers and phone
+ * numbers, each scanning the text once without backtracking. A tenant enables
+ * a detector in its maskTemplates.json (or masker/updateMasks, or a request's
+ * templates) with an entry like {"detector":"email","mask":"~email~"} in place
+ * of a template. The mask defaults to the detector's name.
+ * 
+ * A detector is held in the tenant's templates as a reserved template (e.g.,
+ * (?!)detector:email) that never matches as a regular expression, so it is
+ * journaled, versioned and removed like any other template.
+ */
+public class MaskerDetectors {
+
+	/**
+	 * Finds the spans of text to be masked
+	 */
+	static public abstract class Detector {
+
+		final String _name;
+
+		Detector(String name) {
+			_name = name;
+		}
+
+		/**
+		 * Find the next match
+		 * 
+		 * @param text
+		 *             text to be searched
+		 * @param from
+		 *             offset where the search starts
+		 * @param span
+		 *             receives the start and end offsets of the match
+		 * @return true if a match was found
+		 */
+		abstract boolean find(String text, int from, int[] span);
+
+		/**
+		 * @return the detector's name
+		 */
+		public String getName() {
+			return _name;
+		}
+
+		/**
+		 * Replace the matches in the text
+		 * 
+		 * @param text
+		 *                    text to be masked
+		 * @param replacement
+		 *                    literal replacement for the matches
+		 * @return the text with the matches replaced, or null if nothing was found
+		 */
+		public String replaceAll(String text, String replacement) {
+			int[] span = new int[2];
+			if (find(text, 0, span) == false) {
+				return null;
+			}
+			StringBuilder sb = new StringBuilder(text.length());
+			int copied = 0;
+			do {
+				sb.append(text, copied, span[0]).append(replacement);
+				copied = span[1];
+			} while (find(text, copied, span));
+			sb.append(text, copied, text.length());
+			return sb.toString();
+		}
+	}
+
+	/**
+	 * Payment card numbers of 13 to 19 digits, written together or in groups
+	 * separated by one of space, hyphen, slash or backslash, with the issuer
+	 * prefix and length of Visa, Mastercard, American Express, Diners Club,
+	 * Discover or JCB and a valid Luhn check digit
+	 */
+	static class CardDetector extends Detector {
+
+		static final int MAX_GROUPS = 5;
+
+		CardDetector() {
+			super("ccard");
+		}
+
+		@Override
+		boolean find(String text, int from, int[] span) {
+			int n = text.length();
+			int[] groupEnds = new int[MAX_GROUPS];
+			int[] groupLengths = new int[MAX_GROUPS];
+			int i = from;
+			while (i < n) {
+				char c = text.charAt(i);
+				if (isDigit(c) == false) {
+					i++;
+					continue;
+				}
+				if (i > 0 && isWordChar(text.charAt(i - 1))) {
+					// within a word or longer number
+					i = skipDigits(text, i);
+					continue;
+				}
+				// collect the groups of digits starting here
+				int p = i;
+				int groups = 0;
+				int digits = 0;
+				char separator = 0;
+				boolean tooLong = false;
+				while (true) {
+					int start = p;
+					p = skipDigits(text, p);
+					if (p - start > 19) {
+						tooLong = true;
+						break;
+					}
+					digits += p - start;
+					groupEnds[groups] = p;
+					groupLengths[groups] = p - start;
+					groups++;
+					if (groups == MAX_GROUPS || digits >= 19 || p + 1 >= n) {
+						break;
+					}
+					c = text.charAt(p);
+					if (isCardSeparator(c) && (separator == 0 || c == separator) && isDigit(text.charAt(p + 1))) {
+						separator = c;
+						p++;
+						continue;
+					}
+					break;
+				}
+				if (tooLong) {
+					i = p;
+					continue;
+				}
+				// prefer the most groups forming a card number
+				for (int k = groups; k > 0; k--) {
+					int length = 0;
+					boolean grouped = true;
+					for (int g = 0; g < k; g++) {
+						length += groupLengths[g];
+						if (k > 1 && (groupLengths[g] < 3 || groupLengths[g] > 6)) {
+							grouped = false;
+						}
+					}
+					if (length < 13 || length > 19 || grouped == false || (k > 1 && groupLengths[0] != 4)) {
+						continue;
+					}
+					int end = groupEnds[k - 1];
+					if (end < n && isWordChar(text.charAt(end))) {
+						continue;
+					}
+					if (isCardNumber(text, i, end, length)) {
+						span[0] = i;
+						span[1] = end;
+						return true;
+					}
+				}
+				// try the next group
+				i = (groups > 1 ? groupEnds[0] + 1 : groupEnds[0]);
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Email addresses whose local part holds letters, digits and _ % + - in
+	 * atoms separated by single dots, and whose domain has at least two labels
+	 * of letters, digits and inner hyphens, ending with a label of at least two
+	 * letters
+	 */
+	static class EmailDetector extends Detector {
+
+		EmailDetector() {
+			super("email");
+		}
+
+		/**
+		 * @param text
+		 *             text being searched
+		 * @param start
+		 *              offset following the @
+		 * @return the end of the domain, or -1 if there is no valid domain
+		 */
+		int domainEnd(String text, int start) {
+			int n = text.length();
+			int i = start;
+			int labels = 0;
+			int end = -1;
+			while (true) {
+				int labelStart = i;
+				boolean letters = true;
+				char c = 0;
+				while (i < n && (isAlphanumeric(c = text.charAt(i)) || c == '-')) {
+					if (isLetter(c) == false) {
+						letters = false;
+					}
+					i++;
+				}
+				if (i == labelStart || text.charAt(labelStart) == '-' || text.charAt(i - 1) == '-'
+						|| i - labelStart > 63) {
+					break;
+				}
+				labels++;
+				if (labels >= 2 && letters && i - labelStart >= 2) {
+					end = i;
+				}
+				if (i + 1 < n && text.charAt(i) == '.' && isAlphanumeric(text.charAt(i + 1))) {
+					i++;
+					continue;
+				}
+				break;
+			}
+			if (end == i && end < n && isWordChar(text.charAt(end))) {
+				// the last label continues with characters not allowed in a domain
+				return -1;
+			}
+			return end;
+		}
+
+		@Override
+		boolean find(String text, int from, int[] span) {
+			int at = text.indexOf('@', from);
+			while (at >= 0) {
+				// the local part before the @, starting after any consecutive dots
+				int start = at;
+				int afterDots = -1;
+				while (start > from) {
+					char c = text.charAt(start - 1);
+					if (isLocalChar(c) == false) {
+						break;
+					}
+					if (c == '.' && start - 2 >= from && text.charAt(start - 2) == '.' && afterDots < 0) {
+						afterDots = start;
+					}
+					start--;
+				}
+				if (afterDots >= 0) {
+					start = afterDots;
+				}
+				while (start < at && isAlphanumeric(text.charAt(start)) == false) {
+					start++;
+				}
+				if (start < at && text.charAt(at - 1) != '.') {
+					int end = domainEnd(text, at + 1);
+					if (end > 0) {
+						span[0] = start;
+						span[1] = end;
+						return true;
+					}
+				}
+				at = text.indexOf('@', at + 1);
+			}
+			return false;
+		}
+
+		boolean isLocalChar(char c) {
+			return isAlphanumeric(c) || c == '.' || c == '_' || c == '%' || c == '+' || c == '-';
+		}
+	}
+
+	/**
+	 * North American (NANP) phone numbers, optionally preceded by +1 or 1, with
+	 * the area code optionally in parentheses and the parts optionally separated
+	 * by a space, hyphen or dot (e.g., 860.812-5089 or +1 (860)812-5089), and
+	 * international (E.164) numbers of 8 to 15 digits following a + with the
+	 * same separators and an optional parenthesized group (e.g., +44 20 7946
+	 * 0958)
+	 */
+	static class PhoneDetector extends Detector {
+
+		PhoneDetector() {
+			super("phone");
+		}
+
+		/**
+		 * @param text
+		 *             text being searched
+		 * @param end
+		 *             offset following the number
+		 * @return true if the number is not continued by a word or more digits
+		 */
+		boolean endsNumber(String text, int end) {
+			int n = text.length();
+			if (end >= n) {
+				return true;
+			}
+			char c = text.charAt(end);
+			if (isWordChar(c)) {
+				return false;
+			}
+			return (isPhoneSeparator(c) && end + 1 < n && isDigit(text.charAt(end + 1))) == false;
+		}
+
+		@Override
+		boolean find(String text, int from, int[] span) {
+			int n = text.length();
+			int i = from;
+			while (i < n) {
+				char c = text.charAt(i);
+				if (c != '+' && c != '(' && isDigit(c) == false) {
+					i++;
+					continue;
+				}
+				if (i > 0) {
+					char prior = text.charAt(i - 1);
+					if (isWordChar(prior) || prior == '+' || ((prior == '-' || prior == '.') && i > 1
+							&& isDigit(text.charAt(i - 2)))) {
+						// within a word or longer number
+						i = (isDigit(c) ? skipDigits(text, i) : i + 1);
+						continue;
+					}
+				}
+				int end = -1;
+				if (c == '+' && i + 1 < n && text.charAt(i + 1) == '1') {
+					int p = i + 2;
+					if (p < n && isPhoneSeparator(text.charAt(p))) {
+						p++;
+					}
+					end = parseNational(text, p);
+				} else if (c == '+') {
+					end = parseInternational(text, i + 1);
+				} else if (c == '1') {
+					int p = i + 1;
+					if (p < n && isPhoneSeparator(text.charAt(p))) {
+						p++;
+					}
+					end = parseNational(text, p);
+				} else {
+					end = parseNational(text, i);
+				}
+				if (end > 0) {
+					span[0] = i;
+					span[1] = end;
+					return true;
+				}
+				i = (isDigit(c) ? skipDigits(text, i) : i + 1);
+			}
+			return false;
+		}
+
+		/**
+		 * @param text
+		 *              text being searched
+		 * @param start
+		 *              offset following the +
+		 * @return the end of the number, or -1 if it is not an E.164 number
+		 */
+		int parseInternational(String text, int start) {
+			int n = text.length();
+			if (start >= n || text.charAt(start) < '1' || text.charAt(start) > '9') {
+				return -1;
+			}
+			int p = start;
+			int digits = 0;
+			int end = -1;
+			boolean parenthesized = false;
+			while (true) {
+				int groupStart = p;
+				p = skipDigits(text, p);
+				digits += p - groupStart;
+				if (digits > 15) {
+					return -1;
+				}
+				end = p;
+				if (p + 1 >= n) {
+					break;
+				}
+				char c = text.charAt(p);
+				if (isPhoneSeparator(c) && isDigit(text.charAt(p + 1))) {
+					p++;
+					continue;
+				}
+				int q = (c == ' ' ? p + 1 : p);
+				if (parenthesized || q >= n || text.charAt(q) != '(') {
+					break;
+				}
+				// a parenthesized group, e.g. +44 (20) 7946 0958
+				int groupEnd = skipDigits(text, q + 1);
+				if (groupEnd == q + 1 || groupEnd >= n || text.charAt(groupEnd) != ')') {
+					break;
+				}
+				digits += groupEnd - q - 1;
+				parenthesized = true;
+				q = groupEnd + 1;
+				if (q < n && (text.charAt(q) == ' ' || text.charAt(q) == '-')) {
+					q++;
+				}
+				if (q >= n || isDigit(text.charAt(q)) == false) {
+					return -1;
+				}
+				p = q;
+			}
+			if (digits < 8 || endsNumber(text, end) == false) {
+				return -1;
+			}
+			return end;
+		}
+
+		/**
+		 * @param text
+		 *              text being searched
+		 * @param start
+		 *              offset of the area code
+		 * @return the end of the number, or -1 if it is not a NANP number
+		 */
+		int parseNational(String text, int start) {
+			int n = text.length();
+			int p = start;
+			boolean parenthesized = (p < n && text.charAt(p) == '(');
+			if (parenthesized) {
+				p++;
+			}
+			if (isNXX(text, p) == false) {
+				return -1;
+			}
+			p += 3;
+			if (parenthesized) {
+				if (p >= n || text.charAt(p) != ')') {
+					return -1;
+				}
+				p++;
+				if (p < n && (text.charAt(p) == ' ' || text.charAt(p) == '-')) {
+					p++;
+				}
+			} else if (p < n && isPhoneSeparator(text.charAt(p))) {
+				p++;
+			}
+			if (isNXX(text, p) == false) {
+				return -1;
+			}
+			p += 3;
+			if (p < n && isPhoneSeparator(text.charAt(p))) {
+				p++;
+			}
+			if (p + 4 > n || skipDigits(text, p) < p + 4) {
+				return -1;
+			}
+			p += 4;
+			return (endsNumber(text, p) ? p : -1);
+		}
+
+		/**
+		 * @param text
+		 *              text being searched
+		 * @param start
+		 *              offset of the area code or exchange
+		 * @return true if three digits, the first 2 through 9, start at the offset
+		 */
+		boolean isNXX(String text, int start) {
+			return start + 3 <= text.length() && text.charAt(start) >= '2' && text.charAt(start) <= '9'
+					&& isDigit(text.charAt(start + 1)) && isDigit(text.charAt(start + 2));
+		}
+	}
+
+	/**
+	 * Reserved prefix of the template holding a detector
+	 */
+	static public final String DETECTOR_TEMPLATE_PREFIX = "(?!)detector:";
+
+	static final Map<String, Detector> _detectors = new HashMap<String, Detector>();
+
+	static {
+		register(new CardDetector());
+		register(new EmailDetector());
+		register(new PhoneDetector());
+	}
+
+	/**
+	 * Compile a template, which may hold a detector
+	 * 
+	 * @param template
+	 *                 template (see {@link #getTemplate(JSONObject)})
+	 * @return the compiled template
+	 * @throws PatternSyntaxException
+	 *                                if the template does not compile or names an
+	 *                                unknown detector
+	 */
+	static public Pattern compile(String template) throws PatternSyntaxException {
+		if (template.startsWith(DETECTOR_TEMPLATE_PREFIX) && _detectors.containsKey(template) == false) {
+			String name = template.substring(DETECTOR_TEMPLATE_PREFIX.length());
+			throw new PatternSyntaxException("\"" + name + "\" is not a known detector (ccard, email or phone)", name,
+					-1);
+		}
+		return Pattern.compile(template);
+	}
+
+	/**
+	 * @param pattern
+	 *                compiled template
+	 * @return the detector held by the template, or null if it is a regular
+	 *         expression
+	 */
+	static public Detector getDetector(Pattern pattern) {
+		return _detectors.get(pattern.pattern());
+	}
+
+	/**
+	 * Get the mask of a template entry
+	 * 
+	 * @param entry
+	 *              object with a template or detector and a mask
+	 * @return the mask, defaulting to the name of a detector, or null if missing
+	 */
+	static public String getMask(JSONObject entry) {
+		Object mask = entry.get("mask");
+		if (mask == null && entry.get("detector") instanceof String) {
+			return ((String) entry.get("detector")).trim().toLowerCase();
+		}
+		return (String) mask;
+	}
+
+	/**
+	 * Get the template of a template entry
+	 * 
+	 * @param entry
+	 *              object with a template or detector and a mask
+	 * @return the template, the reserved template of a detector, or null if
+	 *         neither is present
+	 */
+	static public String getTemplate(JSONObject entry) {
+		Object template = entry.get("template");
+		if (template == null && entry.get("detector") instanceof String) {
+			return DETECTOR_TEMPLATE_PREFIX + ((String) entry.get("detector")).trim().toLowerCase();
+		}
+		return (String) template;
+	}
+
+	static boolean isAlphanumeric(char c) {
+		return isLetter(c) || isDigit(c);
+	}
+
+	/**
+	 * Check the issuer prefix, length and Luhn check digit of a card number
+	 * 
+	 * @param text
+	 *               text holding the number
+	 * @param start
+	 *               offset of the number's first digit
+	 * @param end
+	 *               offset following the number's last digit
+	 * @param length
+	 *               number of digits
+	 * @return true if the digits form a card number
+	 */
+	static boolean isCardNumber(String text, int start, int end, int length) {
+		int prefix = 0;
+		int prefixDigits = 0;
+		int sum = 0;
+		int position = 0;
+		for (int i = start; i < end; i++) {
+			char c = text.charAt(i);
+			if (isDigit(c) && prefixDigits < 4) {
+				prefix = prefix * 10 + (c - '0');
+				prefixDigits++;
+			}
+		}
+		for (int i = end - 1; i >= start; i--) {
+			char c = text.charAt(i);
+			if (isDigit(c) == false) {
+				continue;
+			}
+			int digit = c - '0';
+			if ((position & 1) == 1) {
+				digit *= 2;
+				if (digit > 9) {
+					digit -= 9;
+				}
+			}
+			sum += digit;
+			position++;
+		}
+		if (sum % 10 != 0) {
+			return false;
+		}
+		int prefix2 = prefix / 100;
+		int prefix3 = prefix / 10;
+		if (prefix / 1000 == 4) {
+			// Visa
+			return length == 13 || length == 16 || length == 19;
+		}
+		if ((prefix2 >= 51 && prefix2 <= 55) || (prefix >= 2221 && prefix <= 2720)) {
+			// Mastercard
+			return length == 16;
+		}
+		if (prefix2 == 34 || prefix2 == 37) {
+			// American Express
+			return length == 15;
+		}
+		if ((prefix3 >= 300 && prefix3 <= 305) || prefix2 == 36 || prefix2 == 38 || prefix2 == 39) {
+			// Diners Club
+			return length >= 14;
+		}
+		if (prefix == 6011 || (prefix3 >= 644 && prefix3 <= 649) || prefix2 == 65
+				|| (prefix >= 3528 && prefix <= 3589)) {
+			// Discover and JCB
+			return length >= 16;
+		}
+		return false;
+	}
+
+	static boolean isCardSeparator(char c) {
+		return c == ' ' || c == '-' || c == '/' || c == '\\';
+	}
+
+	static boolean isDigit(char c) {
+		return c >= '0' && c <= '9';
+	}
+
+	static boolean isLetter(char c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+	}
+
+	static boolean isPhoneSeparator(char c) {
+		return c == ' ' || c == '-' || c == '.';
+	}
+
+	/**
+	 * @param c
+	 *          character
+	 * @return true if the character continues a word (a letter, digit or
+	 *         underscore in any script)
+	 */
+	static boolean isWordChar(char c) {
+		return isAlphanumeric(c) || c == '_' || (c > 0x7F && Character.isLetterOrDigit(c));
+	}
+
+	static void register(Detector detector) {
+		_detectors.put(DETECTOR_TEMPLATE_PREFIX + detector.getName(), detector);
+	}
+
+	/**
+	 * Replace the matches of a template, using its detector or, for a regular
+	 * expression, within the step budget of {@link MaskerRegexGuard}
+	 * 
+	 * @param pattern
+	 *                    compiled template
+	 * @param text
+	 *                    text to be masked
+	 * @param replacement
+	 *                    replacement for the matches
+	 * @return the text with the matches replaced, or null if nothing was found
+	 */
+	static public String replaceAll(Pattern pattern, String text, String replacement) {
+		Detector detector = _detectors.get(pattern.pattern());
+		if (detector != null) {
+			return detector.replaceAll(text, replacement);
+		}
+		return MaskerRegexGuard.replaceAll(pattern, text, replacement);
+	}
+
+	static int skipDigits(String text, int start) {
+		int i = start;
+		while (i < text.length() && isDigit(text.charAt(i))) {
+			i++;
+		}
+		return i;
+	}
+}
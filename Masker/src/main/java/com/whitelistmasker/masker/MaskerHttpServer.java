@@ -0,0 +1,510 @@
+/**
+ * (c) Copyright 2020-2023 IBM Corporation
+ * 1 New Orchard Road, 
+ * Armonk, New York, 10504-1722
+ * United States
+ * +1 914 499 1900
+ * Nathaniel Mills wnm3@us.ibm.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package com.whitelistmasker.masker;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.api.json.JSONArray;
+import com.api.json.JSONObject;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Standalone launcher serving the /MaskWebServices/v1/ routes defined in the
+ * Masker_RESTServicesSchema.json file using the JDK's built in HTTP server, so
+ * the masker can be started in well under a second without an application
+ * server (e.g., as a scale to zero sidecar). Only routes whose action classes
+ * are on the classpath are served (the MaskWebServices classes are not part of
+ * this module), and the metrics route is served directly from
+ * {@link MaskerMetrics}. Requests are handled on virtual threads when the JDK
+ * provides them (JDK 21+), otherwise on a fixed pool of threads.
+ */
+public class MaskerHttpServer {
+
+	static public final String CONTEXT_ROOT = "/MaskWebServices/v1/";
+	static public final int DEFAULT_PORT = 9080;
+	static public final String DEFAULT_SCHEMA = MaskerConstants.Masker_DIR_PROPERTIES
+			+ MaskerConstants.schemaFileName;
+	static public final String DELETE = "DELETE";
+	static public final String GET = "GET";
+	static public final String METRICS = "metrics";
+	static public final String METRICS_MEDIA_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+	static public final String PATCH = "PATCH";
+	static public final String POST = "POST";
+	static public final String PUT = "PUT";
+	// verbs with services, in the order listed in Allow headers
+	static final String[] VERBS = { GET, POST, PUT, DELETE };
+	static final String JSON_MEDIA_TYPE = "application/json";
+
+	/**
+	 * Create the executor running the request handlers: a virtual thread per task
+	 * executor when running on JDK 21+, otherwise a fixed pool of threads
+	 * 
+	 * @param threads
+	 *                size of the fixed pool used when virtual threads are not
+	 *                available
+	 * @return the executor
+	 */
+	static ExecutorService createExecutor(int threads) {
+		try {
+			// resolved reflectively so this still compiles and runs on JDK 11
+			Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			ExecutorService executor = (ExecutorService) method.invoke(null);
+			System.out.println("Handling requests on virtual threads.");
+			return executor;
+		} catch (Exception e) {
+			// not available before JDK 21
+		}
+		System.out.println("Handling requests on a pool of " + threads + " threads.");
+		return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			final AtomicInteger _count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "masker-http-" + _count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Create the error object returned for failed requests, matching the errors
+	 * returned by the MaskWebServices
+	 * 
+	 * @param code
+	 *                    error code
+	 * @param type
+	 *                    error type
+	 * @param description
+	 *                    description of the error code
+	 * @param detail
+	 *                    description of the error (may be null)
+	 * @return error object
+	 */
+	static JSONObject getErrorObject(int code, String type, String description, String detail) {
+		JSONObject errorContentsObj = new JSONObject();
+		errorContentsObj.put("code", code);
+		errorContentsObj.put("description", description);
+		errorContentsObj.put("src", "Mask");
+		errorContentsObj.put("type", type);
+		if (!MaskerUtils.isUndefined(detail)) {
+			errorContentsObj.put("detail", detail);
+		}
+		JSONObject errorObj = new JSONObject();
+		errorObj.put("error", errorContentsObj);
+		return errorObj;
+	}
+
+	/**
+	 * Launch the embedded server
+	 * 
+	 * @param args
+	 *             optional port (default 9080), services schema file (default
+	 *             properties/Masker_RESTServicesSchema.json) and number of
+	 *             handler threads used when virtual threads are not available
+	 *             (default twice the number of processors)
+	 */
+	public static void main(String[] args) {
+		long startNanos = System.nanoTime();
+		int port = DEFAULT_PORT;
+		String schemaFileName = DEFAULT_SCHEMA;
+		int threads = Runtime.getRuntime().availableProcessors() * 2;
+		try {
+			if (args.length > 0) {
+				port = Integer.parseInt(args[0]);
+			}
+			if (args.length > 1) {
+				schemaFileName = args[1];
+			}
+			if (args.length > 2) {
+				threads = Integer.parseInt(args[2]);
+			}
+		} catch (NumberFormatException e) {
+			System.out.println("Usage: MaskerHttpServer [port [schemaFile [threads]]] " + e.getLocalizedMessage());
+			System.exit(1);
+		}
+		try {
+			MaskerHttpServer server = new MaskerHttpServer(schemaFileName);
+			server.start(port, threads);
+			System.out.println("MaskerHttpServer listening on port " + port + " at " + CONTEXT_ROOT + " started in "
+					+ ((System.nanoTime() - startNanos) / 1000000L) + " ms");
+		} catch (Exception e) {
+			System.out.println("Can not start MaskerHttpServer: " + e.getLocalizedMessage());
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Read the request body
+	 * 
+	 * @param in
+	 *           request body stream
+	 * @return request body
+	 * @throws IOException
+	 */
+	static String readBody(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int read = 0;
+		while ((read = in.read(buffer)) != -1) {
+			out.write(buffer, 0, read);
+		}
+		return new String(out.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	ExecutorService _executor = null;
+	HttpServer _server = null;
+	// verb -> service name -> resolved actions
+	final Map<String, Map<String, MaskerServiceAction[]>> _services = new HashMap<String, Map<String, MaskerServiceAction[]>>();
+
+	/**
+	 * Load the services whose action classes are available from the services
+	 * schema
+	 * 
+	 * @param schemaFileName
+	 *                       fully qualified name of the services schema file
+	 * @throws Exception
+	 *                   if the schema can not be read or is malformed
+	 */
+	public MaskerHttpServer(String schemaFileName) throws Exception {
+		JSONObject services = MaskerUtils.loadJSONFile(schemaFileName);
+		JSONObject schema = (JSONObject) services.get("schema");
+		if (schema == null) {
+			throw new Exception("Request is missing schema object.");
+		}
+		JSONObject maskerSchema = (JSONObject) schema.get("Masker");
+		if (maskerSchema == null) {
+			throw new Exception("Request is missing Masker object.");
+		}
+		JSONObject requests = (JSONObject) maskerSchema.get("requests");
+		if (requests == null || requests.size() == 0) {
+			throw new Exception("Can not find requests for the Mask schema in " + schemaFileName);
+		}
+		loadServices(GET, (JSONObject) requests.get("get"));
+		loadServices(PUT, (JSONObject) requests.get("put"));
+		// patch requests are handled as put requests by the MaskWebServices
+		loadServices(PUT, (JSONObject) requests.get("patch"));
+		loadServices(POST, (JSONObject) requests.get("post"));
+		loadServices(DELETE, (JSONObject) requests.get("delete"));
+	}
+
+	/**
+	 * @param requestType
+	 *                    name of the service requested
+	 * @return the verbs serving the service (or, if none do, every verb with
+	 *         services) for the Allow header of a 405 response
+	 */
+	String getAllowedVerbs(String requestType) {
+		StringBuffer sb = new StringBuffer();
+		for (int pass = 0; pass < 2 && sb.length() == 0; pass++) {
+			for (String verb : VERBS) {
+				Map<String, MaskerServiceAction[]> verbServices = _services.get(verb);
+				if (verbServices == null) {
+					continue;
+				}
+				boolean allowed = (pass == 0 ? verbServices.containsKey(requestType)
+						|| (GET.equals(verb) && METRICS.equals(requestType)) : verbServices.isEmpty() == false);
+				if (allowed) {
+					sb.append(sb.length() == 0 ? "" : ", ").append(verb);
+					if (PUT.equals(verb)) {
+						// patch requests are handled as put requests
+						sb.append(", ").append(PATCH);
+					}
+				}
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @return the port the server is bound to (useful when started on port 0), or
+	 *         -1 if it is not running
+	 */
+	public int getPort() {
+		return (_server == null ? -1 : _server.getAddress().getPort());
+	}
+
+	/**
+	 * Handle a request: routes are resolved from the path following the context
+	 * root, GET requests take their JSON request from the last path segment when
+	 * it begins with a brace, and other requests from the request body
+	 * 
+	 * @param exchange
+	 *                 request and response exchange
+	 * @throws IOException
+	 */
+	void handle(HttpExchange exchange) throws IOException {
+		String verb = exchange.getRequestMethod().toUpperCase();
+		if (PATCH.equals(verb)) {
+			verb = PUT;
+		}
+		String path = exchange.getRequestURI().getRawPath();
+		String requestType = path.substring(Math.min(path.length(), CONTEXT_ROOT.length()));
+		int status = 200;
+		String mediaType = JSON_MEDIA_TYPE;
+		String responseText = null;
+		Headers headers = exchange.getResponseHeaders();
+		try {
+			Map<String, MaskerServiceAction[]> verbServices = _services.get(verb);
+			if (verbServices == null) {
+				// e.g., OPTIONS or HEAD
+				status = 405;
+				headers.set("Allow", getAllowedVerbs(requestType));
+				responseText = getErrorObject(1008, "METHOD_NOT_FOUND", "Method not found",
+						"No " + verb + " services are provided for path \"" + path + "\"").toString();
+			} else {
+				String jsonRequest = null;
+				if (GET.equals(verb)) {
+					int index = requestType.lastIndexOf('/');
+					String last = URLDecoder.decode(requestType.substring(index + 1), "UTF-8");
+					if (last.startsWith("{")) {
+						jsonRequest = last;
+						requestType = (index < 0 ? "" : requestType.substring(0, index));
+					}
+				} else {
+					jsonRequest = readBody(exchange.getRequestBody());
+				}
+				if (GET.equals(verb) && METRICS.equals(requestType)) {
+					mediaType = METRICS_MEDIA_TYPE;
+					responseText = MaskerMetrics.getPrometheusText();
+				} else {
+					MaskerServiceAction[] actions = verbServices.get(requestType);
+					if (actions == null) {
+						status = 400;
+						responseText = getErrorObject(1007, "CLASS_NOT_FOUND", "Class not found",
+								"No " + verb + " service registered for \"" + requestType + "\" for path \"" + path
+										+ "\"").toString();
+					} else {
+						responseText = perform(requestType, jsonRequest, actions);
+					}
+				}
+			}
+		} catch (Exception e) {
+			status = 400;
+			responseText = getErrorObject(1006, "UNEXPECTED_ERROR", "Unexpected error", e.getLocalizedMessage())
+					.toString();
+		}
+		sendResponse(exchange, status, mediaType, responseText);
+	}
+
+	/**
+	 * Resolve the services of one verb from the schema, skipping those whose
+	 * action classes are not available
+	 * 
+	 * @param verb
+	 *                 HTTP verb of the services
+	 * @param requests
+	 *                 services of the verb from the schema (may be null)
+	 * @throws Exception
+	 *                   if an available action can not be resolved
+	 */
+	void loadServices(String verb, JSONObject requests) throws Exception {
+		Map<String, MaskerServiceAction[]> verbServices = _services.get(verb);
+		if (verbServices == null) {
+			verbServices = new HashMap<String, MaskerServiceAction[]>();
+			_services.put(verb, verbServices);
+		}
+		if (requests == null) {
+			return;
+		}
+		for (Iterator<?> it = requests.keySet().iterator(); it.hasNext();) {
+			String serviceName = it.next().toString();
+			Object serviceObj = requests.get(serviceName);
+			if (serviceObj instanceof JSONObject == false) {
+				continue;
+			}
+			JSONArray actionArray = (JSONArray) ((JSONObject) serviceObj).get("actions");
+			if (actionArray == null || actionArray.size() == 0) {
+				continue;
+			}
+			List<MaskerServiceAction> actions = new ArrayList<MaskerServiceAction>();
+			try {
+				for (Object action : actionArray) {
+					actions.add(new MaskerServiceAction((JSONObject) action, MaskerHttpServer.class.getClassLoader()));
+				}
+			} catch (ClassNotFoundException e) {
+				// served by the MaskWebServices only
+				continue;
+			}
+			verbServices.put(serviceName, actions.toArray(new MaskerServiceAction[0]));
+			System.out.println("Serving " + verb + " " + CONTEXT_ROOT + serviceName);
+		}
+	}
+
+	/**
+	 * Perform a service's actions for a request
+	 * 
+	 * @param requestType
+	 *                    name of the service
+	 * @param jsonRequest
+	 *                    request body
+	 * @param actions
+	 *                    resolved actions of the service
+	 * @return serialized action responses
+	 * @throws Exception
+	 *                   if the request can not be parsed or an action fails
+	 */
+	String perform(String requestType, String jsonRequest, MaskerServiceAction[] actions) throws Exception {
+		long parseStart = System.nanoTime();
+		JSONObject request = (MaskerUtils.isUndefined(jsonRequest) ? new JSONObject()
+				: JSONObject.parse(jsonRequest));
+		long parseNanos = System.nanoTime() - parseStart;
+		JSONObject actionResponses = new JSONObject();
+		for (MaskerServiceAction action : actions) {
+			action.perform(request, actionResponses);
+		}
+		long serializeStart = System.nanoTime();
+		String responseText = actionResponses.toString();
+		if (requestType.startsWith("masker/")) {
+			String tenantID = MaskerMetrics.UNKNOWN_TENANT;
+			Object reqObj = request.get("request");
+			if (reqObj instanceof JSONObject) {
+				Object tenant = ((JSONObject) reqObj).get("tenantID");
+				if (tenant instanceof String && Masker._setTenantIDs.contains(tenant)) {
+					tenantID = (String) tenant;
+				}
+			}
+			MaskerMetrics.record(tenantID, requestType, MaskerMetrics.STAGE_PARSE, parseNanos);
+			MaskerMetrics.record(tenantID, requestType, MaskerMetrics.STAGE_SERIALIZE,
+					System.nanoTime() - serializeStart);
+		}
+		return responseText;
+	}
+
+	/**
+	 * Send the response
+	 * 
+	 * @param exchange
+	 *                     request and response exchange
+	 * @param status
+	 *                     HTTP status code
+	 * @param mediaType
+	 *                     content type of the response
+	 * @param responseText
+	 *                     response body
+	 * @throws IOException
+	 */
+	void sendResponse(HttpExchange exchange, int status, String mediaType, String responseText) throws IOException {
+		byte[] bytes = responseText.getBytes(StandardCharsets.UTF_8);
+		Headers headers = exchange.getResponseHeaders();
+		headers.set("Content-Type", mediaType);
+		headers.set("Access-Control-Allow-Origin", "*");
+		exchange.sendResponseHeaders(status, bytes.length);
+		OutputStream out = exchange.getResponseBody();
+		try {
+			out.write(bytes);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Bind the server and begin handling requests. The tenants are loaded in the
+	 * background so the port is available immediately; requests arriving before
+	 * loading completes wait for it.
+	 * 
+	 * @param port
+	 *                port to listen on
+	 * @param threads
+	 *                size of the fixed pool used when virtual threads are not
+	 *                available
+	 * @throws IOException
+	 *                     if the port can not be bound
+	 */
+	public void start(int port, int threads) throws IOException {
+		_server = HttpServer.create(new InetSocketAddress(port), 0);
+		_executor = createExecutor(threads);
+		_server.setExecutor(_executor);
+		_server.createContext(CONTEXT_ROOT, new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					MaskerHttpServer.this.handle(exchange);
+				} finally {
+					exchange.close();
+				}
+			}
+		});
+		_server.start();
+		Thread loader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				long loadStart = System.nanoTime();
+				try {
+					// the tenants are loaded by the Masker's static initializer, which
+					// requests referencing the Masker wait upon
+					Class.forName(Masker.class.getName(), true, MaskerHttpServer.class.getClassLoader());
+				} catch (ClassNotFoundException e) {
+					// not possible as it is part of this module
+				}
+				if (Masker._isInitialized) {
+					System.out.println("Tenants loaded in " + ((System.nanoTime() - loadStart) / 1000000L) + " ms");
+					// follow the template changes made by other replicas
+					MaskerTemplateJournal.start();
+				} else {
+					System.out.println("Tenants could not be loaded.");
+				}
+			}
+		}, "masker-init");
+		loader.setDaemon(true);
+		loader.start();
+	}
+
+	/**
+	 * Stop the server, allowing in flight requests up to the supplied delay to
+	 * complete
+	 * 
+	 * @param delaySeconds
+	 *                     maximum seconds to wait for in flight requests
+	 */
+	public void stop(int delaySeconds) {
+		if (_server != null) {
+			_server.stop(delaySeconds);
+			_server = null;
+		}
+		if (_executor != null) {
+			_executor.shutdown();
+			_executor = null;
+		}
+	}
+}
@@ -0,0 +1,330 @@
+/**
+ * (c) Copyright 2020-2023 IBM Corporation
+ * 1 New Orchard Road, 
+ * Armonk, New York, 10504-1722
+ * United States
+ * +1 914 499 1900
+ * Nathaniel Mills wnm3@us.ibm.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.whitelistmasker.masker;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histograms and throughput counters for the stages of a masking
+ * request (JSON parse, template matching, tokenization, dictionary
+ * classification, diff generation and serialization), tagged by tenant and
+ * endpoint. Recording is lock free (fixed buckets held in atomic arrays) so it
+ * can stay enabled in production. The collected values are rendered in the
+ * Prometheus text exposition format by {@link #getPrometheusText()}.
+ */
+public class MaskerMetrics implements Serializable {
+
+	/**
+	 * Fixed bucket latency histogram
+	 */
+	static public class Histogram {
+
+		final AtomicLongArray _buckets = new AtomicLongArray(BUCKET_BOUNDS_NANOS.length + 1);
+		final LongAdder _count = new LongAdder();
+		final LongAdder _sumNanos = new LongAdder();
+
+		/**
+		 * Record an observation
+		 *
+		 * @param nanos
+		 *              elapsed time in nanoseconds
+		 */
+		public void observe(long nanos) {
+			if (nanos < 0L) {
+				nanos = 0L;
+			}
+			int index = 0;
+			while (index < BUCKET_BOUNDS_NANOS.length && nanos > BUCKET_BOUNDS_NANOS[index]) {
+				index++;
+			}
+			_buckets.incrementAndGet(index);
+			_count.increment();
+			_sumNanos.add(nanos);
+		}
+
+		/**
+		 * Estimate the requested quantile by interpolating within the bucket holding
+		 * the quantile's rank
+		 *
+		 * @param quantile
+		 *                 value between 0.0 and 1.0 (e.g., 0.99)
+		 * @return estimated latency in seconds for the quantile, or 0.0 if no
+		 *         observations have been recorded
+		 */
+		public double getQuantileSeconds(double quantile) {
+			long[] counts = new long[_buckets.length()];
+			long total = 0L;
+			for (int i = 0; i < counts.length; i++) {
+				counts[i] = _buckets.get(i);
+				total += counts[i];
+			}
+			if (total == 0L) {
+				return 0.0d;
+			}
+			double rank = quantile * total;
+			long cumulative = 0L;
+			for (int i = 0; i < counts.length; i++) {
+				if (counts[i] == 0L) {
+					continue;
+				}
+				if (cumulative + counts[i] >= rank) {
+					if (i == BUCKET_BOUNDS.length) {
+						// overflow bucket, report the largest finite bound
+						return BUCKET_BOUNDS[BUCKET_BOUNDS.length - 1];
+					}
+					double lower = (i == 0 ? 0.0d : BUCKET_BOUNDS[i - 1]);
+					double upper = BUCKET_BOUNDS[i];
+					return lower + (upper - lower) * ((rank - cumulative) / counts[i]);
+				}
+				cumulative += counts[i];
+			}
+			return BUCKET_BOUNDS[BUCKET_BOUNDS.length - 1];
+		}
+	}
+
+	/**
+	 * Stage histograms and throughput counters for a tenant and endpoint pair
+	 */
+	static public class EndpointMetrics {
+
+		final Histogram[] _stages = new Histogram[STAGE_NAMES.length];
+		final LongAdder _masked = new LongAdder();
+		final LongAdder _requests = new LongAdder();
+		final LongAdder _words = new LongAdder();
+
+		EndpointMetrics() {
+			for (int i = 0; i < _stages.length; i++) {
+				_stages[i] = new Histogram();
+			}
+		}
+	}
+
+	static public final String ENDPOINT_DO_MASKING = "masker/doMasking";
+	static public final String ENDPOINT_DO_MASKING_STREAM = "masker/doMaskingStream";
+	static public final String ENDPOINT_DO_MESSAGE_MASKING = "masker/doMessageMasking";
+	static public final int STAGE_PARSE = 0;
+	static public final int STAGE_TEMPLATES = 1;
+	static public final int STAGE_TOKENIZE = 2;
+	static public final int STAGE_CLASSIFY = 3;
+	static public final int STAGE_DIFFS = 4;
+	static public final int STAGE_SERIALIZE = 5;
+	static public final int STAGE_TOTAL = 6;
+	static public final String[] STAGE_NAMES = { "parse", "templates", "tokenize", "classify", "diffs", "serialize",
+		"total" };
+	static public final String UNKNOWN_TENANT = "unknown";
+
+	/**
+	 * bucket upper bounds in seconds
+	 */
+	static public final double[] BUCKET_BOUNDS = { 0.00005d, 0.0001d, 0.00025d, 0.0005d, 0.001d, 0.0025d, 0.005d,
+		0.01d, 0.025d, 0.05d, 0.1d, 0.25d, 0.5d, 1.0d, 2.5d, 5.0d, 10.0d };
+	static final long[] BUCKET_BOUNDS_NANOS = new long[BUCKET_BOUNDS.length];
+	static public boolean _enabled = true;
+	static final Map<String, Map<String, EndpointMetrics>> _metrics = new ConcurrentHashMap<String, Map<String, EndpointMetrics>>();
+	static final double[] QUANTILES = { 0.5d, 0.99d };
+	private static final long serialVersionUID = -1954375320640387265L;
+
+	static {
+		for (int i = 0; i < BUCKET_BOUNDS.length; i++) {
+			BUCKET_BOUNDS_NANOS[i] = Math.round(BUCKET_BOUNDS[i] * 1.0e9d);
+		}
+	}
+
+	/**
+	 * Escape a Prometheus label value
+	 *
+	 * @param value
+	 *              label value
+	 * @return value with backslash, double quote and newline escaped
+	 */
+	static String escapeLabel(String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+
+	static String formatSeconds(double seconds) {
+		return Double.toString(seconds);
+	}
+
+	/**
+	 * Get (creating if needed) the metrics for the tenant and endpoint
+	 *
+	 * @param tenantID
+	 *                 tenant identifier (null is reported as unknown)
+	 * @param endpoint
+	 *                 service endpoint (e.g., masker/doMasking)
+	 * @return metrics for the tenant and endpoint
+	 */
+	static EndpointMetrics getEndpointMetrics(String tenantID, String endpoint) {
+		if (tenantID == null) {
+			tenantID = UNKNOWN_TENANT;
+		}
+		Map<String, EndpointMetrics> tenantMetrics = _metrics.get(tenantID);
+		if (tenantMetrics == null) {
+			tenantMetrics = _metrics.computeIfAbsent(tenantID, k -> new ConcurrentHashMap<String, EndpointMetrics>());
+		}
+		EndpointMetrics endpointMetrics = tenantMetrics.get(endpoint);
+		if (endpointMetrics == null) {
+			endpointMetrics = tenantMetrics.computeIfAbsent(endpoint, k -> new EndpointMetrics());
+		}
+		return endpointMetrics;
+	}
+
+	/**
+	 * Render the collected metrics in the Prometheus text exposition format
+	 * (version 0.0.4)
+	 *
+	 * @return metrics text
+	 */
+	static public String getPrometheusText() {
+		StringBuilder sbHist = new StringBuilder();
+		StringBuilder sbQuant = new StringBuilder();
+		StringBuilder sbRequests = new StringBuilder();
+		StringBuilder sbWords = new StringBuilder();
+		StringBuilder sbMasked = new StringBuilder();
+		StringBuilder sbRate = new StringBuilder();
+		List<String> tenantIDs = new ArrayList<String>(_metrics.keySet());
+		Collections.sort(tenantIDs);
+		for (String tenantID : tenantIDs) {
+			Map<String, EndpointMetrics> tenantMetrics = _metrics.get(tenantID);
+			List<String> endpoints = new ArrayList<String>(tenantMetrics.keySet());
+			Collections.sort(endpoints);
+			for (String endpoint : endpoints) {
+				EndpointMetrics endpointMetrics = tenantMetrics.get(endpoint);
+				String labels = "tenant=\"" + escapeLabel(tenantID) + "\",endpoint=\"" + escapeLabel(endpoint) + "\"";
+				for (int stage = 0; stage < STAGE_NAMES.length; stage++) {
+					Histogram histogram = endpointMetrics._stages[stage];
+					long count = histogram._count.sum();
+					if (count == 0L) {
+						continue;
+					}
+					String stageLabels = labels + ",stage=\"" + STAGE_NAMES[stage] + "\"";
+					long cumulative = 0L;
+					for (int i = 0; i < BUCKET_BOUNDS.length; i++) {
+						cumulative += histogram._buckets.get(i);
+						sbHist.append("masker_stage_latency_seconds_bucket{").append(stageLabels).append(",le=\"")
+							.append(BUCKET_BOUNDS[i]).append("\"} ").append(cumulative).append("\n");
+					}
+					cumulative += histogram._buckets.get(BUCKET_BOUNDS.length);
+					sbHist.append("masker_stage_latency_seconds_bucket{").append(stageLabels).append(",le=\"+Inf\"} ")
+						.append(cumulative).append("\n");
+					sbHist.append("masker_stage_latency_seconds_sum{").append(stageLabels).append("} ")
+						.append(formatSeconds(histogram._sumNanos.sum() / 1.0e9d)).append("\n");
+					sbHist.append("masker_stage_latency_seconds_count{").append(stageLabels).append("} ").append(count)
+						.append("\n");
+					for (double quantile : QUANTILES) {
+						sbQuant.append("masker_stage_latency_quantile_seconds{").append(stageLabels).append(",quantile=\"")
+							.append(quantile).append("\"} ").append(formatSeconds(histogram.getQuantileSeconds(quantile)))
+							.append("\n");
+					}
+				}
+				long words = endpointMetrics._words.sum();
+				sbRequests.append("masker_requests_total{").append(labels).append("} ")
+					.append(endpointMetrics._requests.sum()).append("\n");
+				sbWords.append("masker_words_total{").append(labels).append("} ").append(words).append("\n");
+				sbMasked.append("masker_masked_words_total{").append(labels).append("} ")
+					.append(endpointMetrics._masked.sum()).append("\n");
+				long totalNanos = endpointMetrics._stages[STAGE_TOTAL]._sumNanos.sum();
+				double rate = (totalNanos == 0L ? 0.0d : words / (totalNanos / 1.0e9d));
+				sbRate.append("masker_words_per_second{").append(labels).append("} ").append(rate).append("\n");
+			}
+		}
+		StringBuilder sb = new StringBuilder();
+		sb.append("# HELP masker_stage_latency_seconds Latency of the masking request stages.\n");
+		sb.append("# TYPE masker_stage_latency_seconds histogram\n");
+		sb.append(sbHist);
+		sb.append("# HELP masker_stage_latency_quantile_seconds Estimated p50 and p99 latency of the masking request stages.\n");
+		sb.append("# TYPE masker_stage_latency_quantile_seconds gauge\n");
+		sb.append(sbQuant);
+		sb.append("# HELP masker_requests_total Masking requests processed.\n");
+		sb.append("# TYPE masker_requests_total counter\n");
+		sb.append(sbRequests);
+		sb.append("# HELP masker_words_total Words examined by the masking engine.\n");
+		sb.append("# TYPE masker_words_total counter\n");
+		sb.append(sbWords);
+		sb.append("# HELP masker_masked_words_total Words masked by the masking engine.\n");
+		sb.append("# TYPE masker_masked_words_total counter\n");
+		sb.append(sbMasked);
+		sb.append("# HELP masker_words_per_second Words examined per second of engine time.\n");
+		sb.append("# TYPE masker_words_per_second gauge\n");
+		sb.append(sbRate);
+		return sb.toString();
+	}
+
+	/**
+	 * Record the elapsed time for a stage of a request
+	 *
+	 * @param tenantID
+	 *                 tenant identifier
+	 * @param endpoint
+	 *                 service endpoint
+	 * @param stage
+	 *                 one of the STAGE_* values
+	 * @param nanos
+	 *                 elapsed time in nanoseconds
+	 */
+	static public void record(String tenantID, String endpoint, int stage, long nanos) {
+		if (!_enabled) {
+			return;
+		}
+		getEndpointMetrics(tenantID, endpoint)._stages[stage].observe(nanos);
+	}
+
+	/**
+	 * Record the completion of a request processed by the masking engine
+	 *
+	 * @param tenantID
+	 *                 tenant identifier
+	 * @param endpoint
+	 *                 service endpoint
+	 * @param words
+	 *                 number of words examined
+	 * @param masked
+	 *                 number of words masked
+	 * @param nanos
+	 *                 total elapsed engine time in nanoseconds
+	 */
+	static public void recordRequest(String tenantID, String endpoint, long words, long masked, long nanos) {
+		if (!_enabled) {
+			return;
+		}
+		EndpointMetrics endpointMetrics = getEndpointMetrics(tenantID, endpoint);
+		endpointMetrics._requests.increment();
+		endpointMetrics._words.add(words);
+		endpointMetrics._masked.add(masked);
+		endpointMetrics._stages[STAGE_TOTAL].observe(nanos);
+	}
+
+	/**
+	 * Clear all collected metrics
+	 */
+	static public void reset() {
+		_metrics.clear();
+	}
+}
@@ -0,0 +1,1042 @@
+/**
+ * (c) Copyright 2020-2023 IBM Corporation
+ * 1 New Orchard Road, 
+ * Armonk, New York, 10504-1722
+ * United States
+ * +1 914 499 1900
+ * Nathaniel Mills wnm3@us.ibm.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package com.whitelistmasker.masker;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Guards the masking templates against catastrophic backtracking.
+ * 
+ * Templates are matched through a CharSequence counting the characters the
+ * regex engine reads: a template exceeding its step budget for a line (or
+ * exhausting the thread's stack, or running on an interrupted thread) is
+ * aborted with a {@link BudgetExceededException} naming the template, rather
+ * than occupying the thread indefinitely.
+ * 
+ * Before templates are accepted from masker/updateMasks or a request, they are
+ * checked by {@link #findBacktrackingRisk(String)} for the forms prone to
+ * exponential backtracking: a repeated group containing a variable repetition
+ * that is not separated from the next iteration by a required character it can
+ * not match (e.g., (\w+\s?)+ or (a+)+), and repeated alternatives able to match
+ * the same text (e.g., (\w|\d)+).
+ */
+public class MaskerRegexGuard {
+
+	/**
+	 * Thrown when a template is aborted
+	 */
+	static public class BudgetExceededException extends RuntimeException {
+
+		private static final long serialVersionUID = -2719350466839316522L;
+
+		final String _template;
+
+		BudgetExceededException(String template, String reason) {
+			super("Template \"" + template + "\" was aborted because it " + reason + ".");
+			_template = template;
+		}
+
+		/**
+		 * @return the template that was aborted
+		 */
+		public String getTemplate() {
+			return _template;
+		}
+	}
+
+	/**
+	 * Text being matched, counting the characters read by the regex engine
+	 */
+	static class BudgetedCharSequence implements CharSequence {
+
+		final long _budget;
+		final Pattern _pattern;
+		long _steps = 0L;
+		final CharSequence _text;
+
+		BudgetedCharSequence(CharSequence text, Pattern pattern, long budget) {
+			_text = text;
+			_pattern = pattern;
+			_budget = budget;
+		}
+
+		@Override
+		public char charAt(int index) {
+			if (++_steps > _budget) {
+				_aborted.increment();
+				throw new BudgetExceededException(_pattern.pattern(),
+						"exceeded its budget of " + _budget + " steps on a line of " + _text.length() + " characters");
+			}
+			if ((_steps & 0xFFFL) == 0L && Thread.currentThread().isInterrupted()) {
+				_aborted.increment();
+				throw new BudgetExceededException(_pattern.pattern(), "was interrupted");
+			}
+			return _text.charAt(index);
+		}
+
+		@Override
+		public int length() {
+			return _text.length();
+		}
+
+		@Override
+		public CharSequence subSequence(int start, int end) {
+			return _text.subSequence(start, end);
+		}
+
+		@Override
+		public String toString() {
+			return _text.toString();
+		}
+	}
+
+	/**
+	 * Parsed element of a regular expression
+	 */
+	static class Node {
+
+		static final int ALT = 2;
+		static final int EMPTY = 5;
+		static final int GROUP = 4;
+		static final int REPEAT = 3;
+		static final int SEQ = 1;
+		static final int SET = 0;
+
+		boolean _atomic = false;
+		final List<Node> _children = new ArrayList<Node>();
+		int _end = 0;
+		int _max = 1;
+		int _min = 1;
+		boolean _possessive = false;
+		BitSet _set = null;
+		int _start = 0;
+		final int _type;
+		boolean _zeroWidth = false;
+
+		Node(int type, int start) {
+			_type = type;
+			_start = start;
+		}
+	}
+
+	/**
+	 * Recursive descent parser building the Nodes of a regular expression
+	 */
+	static class Parser {
+
+		boolean _caseInsensitive = false;
+		int _pos = 0;
+		final String _regex;
+
+		Parser(String regex) {
+			_regex = regex;
+		}
+
+		/**
+		 * @param c
+		 *          character
+		 * @return the set for the character (both cases if case insensitive)
+		 */
+		BitSet charSet(int c) {
+			BitSet set = new BitSet(ALL_BITS);
+			addChar(set, c);
+			return set;
+		}
+
+		void addChar(BitSet set, int c) {
+			if (c > 0x7F) {
+				set.set(NON_ASCII + Character.getType(c));
+				return;
+			}
+			set.set(c);
+			if (_caseInsensitive && Character.isLetter(c)) {
+				set.set(Character.toLowerCase(c));
+				set.set(Character.toUpperCase(c));
+			}
+		}
+
+		void addRange(BitSet set, int from, int to) {
+			for (int c = from; c <= to && c <= Character.MAX_VALUE; c++) {
+				addChar(set, c);
+			}
+		}
+
+		/**
+		 * Add the characters of a set, in both cases if case insensitive
+		 * 
+		 * @param set
+		 *            set to be added to
+		 * @param chars
+		 *            characters to be added
+		 */
+		void addSet(BitSet set, BitSet chars) {
+			for (int i = chars.nextSetBit(0); i >= 0; i = chars.nextSetBit(i + 1)) {
+				if (i < NON_ASCII) {
+					addChar(set, i);
+				} else if (_caseInsensitive && isCased(i - NON_ASCII)) {
+					set.set(NON_ASCII + Character.UPPERCASE_LETTER);
+					set.set(NON_ASCII + Character.LOWERCASE_LETTER);
+					set.set(NON_ASCII + Character.TITLECASE_LETTER);
+				} else {
+					set.set(i);
+				}
+			}
+		}
+
+		boolean atEnd() {
+			return _pos >= _regex.length();
+		}
+
+		char next() {
+			return _regex.charAt(_pos++);
+		}
+
+		char peek() {
+			return _regex.charAt(_pos);
+		}
+
+		/**
+		 * @return the alternation (or sequence) up to a closing parenthesis or
+		 *         the end of the expression
+		 */
+		Node parseAlternation() {
+			int start = _pos;
+			Node first = parseSequence();
+			if (atEnd() || peek() != '|') {
+				return first;
+			}
+			Node alt = new Node(Node.ALT, start);
+			alt._children.add(first);
+			while (!atEnd() && peek() == '|') {
+				_pos++;
+				alt._children.add(parseSequence());
+			}
+			alt._end = _pos;
+			return alt;
+		}
+
+		/**
+		 * @return the atom at the current position, or null for an inline flag
+		 *         setting
+		 */
+		Node parseAtom() {
+			int start = _pos;
+			char c = next();
+			Node node = null;
+			switch (c) {
+				case '(':
+					node = new Node(Node.GROUP, start);
+					if (!atEnd() && peek() == '?') {
+						_pos++;
+						char kind = next();
+						if (kind == '=' || kind == '!') {
+							node._zeroWidth = true;
+						} else if (kind == '<' && (peek() == '=' || peek() == '!')) {
+							_pos++;
+							node._zeroWidth = true;
+						} else if (kind == '>') {
+							node._atomic = true;
+						} else if (kind == '<') {
+							// named group
+							while (next() != '>') {
+							}
+						} else if (kind != ':') {
+							// inline flags, alone (?i) or for a group (?i:X)
+							_pos--;
+							while (peek() != ')' && peek() != ':') {
+								if (peek() == 'i') {
+									_caseInsensitive = true;
+								}
+								if (peek() == 'x') {
+									throw new IllegalStateException("comments mode is not analyzed");
+								}
+								_pos++;
+							}
+							if (next() == ')') {
+								return null;
+							}
+						}
+					}
+					node._children.add(parseAlternation());
+					// closing parenthesis
+					_pos++;
+					break;
+				case '[':
+					node = new Node(Node.SET, start);
+					node._set = parseClass();
+					break;
+				case '\\':
+					node = parseEscape(start, false);
+					break;
+				case '.':
+					node = new Node(Node.SET, start);
+					node._set = all();
+					break;
+				case '^':
+				case '$':
+					node = new Node(Node.EMPTY, start);
+					break;
+				default:
+					node = new Node(Node.SET, start);
+					node._set = charSet(Character.isHighSurrogate(c) ? _regex.codePointAt(_pos - 1) : c);
+			}
+			node._end = _pos;
+			return node;
+		}
+
+		/**
+		 * @return the set of a character class (the opening bracket has been read)
+		 */
+		BitSet parseClass() {
+			BitSet set = new BitSet(ALL_BITS);
+			boolean negated = false;
+			boolean intersected = false;
+			if (peek() == '^') {
+				negated = true;
+				_pos++;
+			}
+			boolean first = true;
+			while (peek() != ']' || first) {
+				first = false;
+				char c = next();
+				if (c == '[') {
+					set.or(parseClass());
+					continue;
+				}
+				if (c == '&' && peek() == '&') {
+					intersected = true;
+					_pos++;
+					continue;
+				}
+				int from = c;
+				if (c == '\\') {
+					Node escaped = parseEscape(_pos - 1, true);
+					if (escaped._type != Node.SET || escaped._set.cardinality() != 1 || escaped._set.nextSetBit(NON_ASCII) >= 0) {
+						if (escaped._set != null) {
+							set.or(escaped._set);
+						}
+						continue;
+					}
+					from = escaped._set.nextSetBit(0);
+				}
+				if (peek() == '-' && _pos + 1 < _regex.length() && _regex.charAt(_pos + 1) != ']') {
+					_pos++;
+					int to = next();
+					if (to == '\\') {
+						Node escaped = parseEscape(_pos - 1, true);
+						to = (escaped._set == null || escaped._set.nextSetBit(NON_ASCII) >= 0 ? 0xFFFF : escaped._set.nextSetBit(0));
+					}
+					addRange(set, from, to);
+				} else {
+					addRange(set, from, from);
+				}
+			}
+			_pos++;
+			if (intersected) {
+				// intersections are not evaluated, so assume any character
+				return all();
+			}
+			if (negated) {
+				set = complement(set);
+			}
+			return set;
+		}
+
+		/**
+		 * Parse an escape (the backslash has been read)
+		 * 
+		 * @param start
+		 *                position of the backslash
+		 * @param inClass
+		 *                true within a character class
+		 * @return the node for the escape
+		 */
+		Node parseEscape(int start, boolean inClass) {
+			char c = next();
+			Node node = new Node(Node.SET, start);
+			switch (c) {
+				case 'd':
+					node._set = new BitSet(ALL_BITS);
+					addRange(node._set, '0', '9');
+					break;
+				case 'D':
+					node._set = complement(DIGITS);
+					break;
+				case 'w':
+					node._set = (BitSet) WORD.clone();
+					break;
+				case 'W':
+					node._set = complement(WORD);
+					break;
+				case 's':
+					node._set = (BitSet) SPACE.clone();
+					break;
+				case 'S':
+					node._set = complement(SPACE);
+					break;
+				case 'h':
+				case 'v':
+				case 'H':
+				case 'V':
+				case 'R':
+				case 'X':
+				case 'N':
+					if (c == 'N' && !atEnd() && peek() == '{') {
+						while (next() != '}') {
+						}
+					}
+					node._set = all();
+					break;
+				case 'p':
+				case 'P':
+					if (peek() == '{') {
+						while (next() != '}') {
+						}
+					} else {
+						_pos++;
+					}
+					node._set = new BitSet(ALL_BITS);
+					addSet(node._set, propertySet(_regex.substring(start, _pos)));
+					break;
+				case 'b':
+					if (inClass) {
+						node._set = charSet('\b');
+					} else {
+						return new Node(Node.EMPTY, start);
+					}
+					break;
+				case 'B':
+				case 'A':
+				case 'z':
+				case 'Z':
+				case 'G':
+					return new Node(Node.EMPTY, start);
+				case 'Q': {
+					int end = _regex.indexOf("\\E", _pos);
+					if (end < 0) {
+						end = _regex.length();
+					}
+					Node seq = new Node(Node.SEQ, start);
+					for (int i = _pos; i < end; i++) {
+						Node literal = new Node(Node.SET, i);
+						literal._set = charSet(_regex.charAt(i));
+						literal._end = i + 1;
+						seq._children.add(literal);
+					}
+					_pos = Math.min(end + 2, _regex.length());
+					return seq;
+				}
+				case 'k':
+					while (next() != '>') {
+					}
+					return backReference(start);
+				case 't':
+					node._set = charSet('\t');
+					break;
+				case 'n':
+					node._set = charSet('\n');
+					break;
+				case 'r':
+					node._set = charSet('\r');
+					break;
+				case 'f':
+					node._set = charSet('\f');
+					break;
+				case 'a':
+					node._set = charSet(0x07);
+					break;
+				case 'e':
+					node._set = charSet(0x1B);
+					break;
+				case 'c':
+					node._set = charSet(next() ^ 64);
+					break;
+				case 'x':
+					if (peek() == '{') {
+						int end = _regex.indexOf('}', _pos);
+						node._set = charSet(Integer.parseInt(_regex.substring(_pos + 1, end), 16));
+						_pos = end + 1;
+					} else {
+						node._set = charSet(Integer.parseInt(_regex.substring(_pos, _pos + 2), 16));
+						_pos += 2;
+					}
+					break;
+				case 'u':
+					node._set = charSet(Integer.parseInt(_regex.substring(_pos, _pos + 4), 16));
+					_pos += 4;
+					break;
+				case '0': {
+					int value = 0;
+					while (!atEnd() && peek() >= '0' && peek() <= '7' && value < 0x20) {
+						value = value * 8 + (next() - '0');
+					}
+					node._set = charSet(value);
+					break;
+				}
+				default:
+					if (c >= '1' && c <= '9' && !inClass) {
+						while (!atEnd() && Character.isDigit(peek())) {
+							_pos++;
+						}
+						return backReference(start);
+					}
+					node._set = charSet(c);
+			}
+			return node;
+		}
+
+		/**
+		 * @param start
+		 *              position of the back reference
+		 * @return a node matching any text, as the referenced group may
+		 */
+		Node backReference(int start) {
+			Node repeat = new Node(Node.REPEAT, start);
+			Node any = new Node(Node.SET, start);
+			any._set = all();
+			repeat._children.add(any);
+			repeat._min = 0;
+			repeat._max = -1;
+			repeat._end = _pos;
+			return repeat;
+		}
+
+		/**
+		 * @param atom
+		 *             atom possibly followed by a quantifier
+		 * @return the atom, or a repeat of it if it is quantified
+		 */
+		Node parseQuantifier(Node atom) {
+			if (atEnd()) {
+				return atom;
+			}
+			int min;
+			int max;
+			char c = peek();
+			if (c == '*') {
+				min = 0;
+				max = -1;
+				_pos++;
+			} else if (c == '+') {
+				min = 1;
+				max = -1;
+				_pos++;
+			} else if (c == '?') {
+				min = 0;
+				max = 1;
+				_pos++;
+			} else if (c == '{') {
+				int end = _regex.indexOf('}', _pos);
+				String[] bounds = _regex.substring(_pos + 1, end).split(",", -1);
+				min = Integer.parseInt(bounds[0].trim());
+				if (bounds.length == 1) {
+					max = min;
+				} else if (bounds[1].trim().length() == 0) {
+					max = -1;
+				} else {
+					max = Integer.parseInt(bounds[1].trim());
+				}
+				_pos = end + 1;
+			} else {
+				return atom;
+			}
+			Node repeat = new Node(Node.REPEAT, atom._start);
+			repeat._children.add(atom);
+			repeat._min = min;
+			repeat._max = max;
+			if (!atEnd() && peek() == '+') {
+				repeat._possessive = true;
+				_pos++;
+			} else if (!atEnd() && peek() == '?') {
+				// reluctant quantifiers still backtrack
+				_pos++;
+			}
+			repeat._end = _pos;
+			// quantifiers may be stacked (e.g., a{2}+)
+			return parseQuantifier(repeat);
+		}
+
+		/**
+		 * @return the sequence up to an alternation, closing parenthesis or the
+		 *         end of the expression
+		 */
+		Node parseSequence() {
+			Node seq = new Node(Node.SEQ, _pos);
+			while (!atEnd() && peek() != '|' && peek() != ')') {
+				Node atom = parseAtom();
+				if (atom != null) {
+					seq._children.add(parseQuantifier(atom));
+				}
+			}
+			seq._end = _pos;
+			return seq;
+		}
+	}
+
+	static final BitSet DIGITS = new BitSet();
+
+	// first of the bits of the sets standing for the characters outside of
+	// ASCII, one bit per Unicode general category (Character.getType)
+	static final int NON_ASCII = 128;
+
+	// number of bits of the sets
+	static final int ALL_BITS = NON_ASCII + Character.FINAL_QUOTE_PUNCTUATION + 1;
+
+	static final BitSet SPACE = new BitSet();
+
+	static final BitSet WORD = new BitSet();
+
+	static public long _minSteps = 1000000L;
+
+	static public long _stepsPerChar = 10000L;
+
+	static final LongAdder _aborted = new LongAdder();
+
+	// characters matched by the character property escapes analyzed
+	static final Map<String, BitSet> _properties = new ConcurrentHashMap<String, BitSet>();
+
+	static {
+		DIGITS.set('0', '9' + 1);
+		WORD.set('a', 'z' + 1);
+		WORD.set('A', 'Z' + 1);
+		WORD.or(DIGITS);
+		WORD.set('_');
+		SPACE.set(' ');
+		SPACE.set('\t', '\r' + 1);
+	}
+
+	static BitSet all() {
+		BitSet set = new BitSet(ALL_BITS);
+		set.set(0, ALL_BITS);
+		return set;
+	}
+
+	/**
+	 * @param node
+	 *             node to be examined
+	 * @return the characters the node can match
+	 */
+	static BitSet chars(Node node) {
+		if (node._type == Node.SET) {
+			return node._set;
+		}
+		BitSet set = new BitSet(ALL_BITS);
+		if (node._zeroWidth) {
+			return set;
+		}
+		for (Node child : node._children) {
+			set.or(chars(child));
+		}
+		return set;
+	}
+
+	/**
+	 * @param escape
+	 *               character property escape (e.g., \p{Alpha}, \P{Lu} or \pL)
+	 * @return the characters matched by the property, in or out of the Unicode
+	 *         character class mode, or all characters (with a warning) if the
+	 *         property is not known
+	 */
+	static BitSet propertySet(String escape) {
+		BitSet set = _properties.get(escape);
+		if (set != null) {
+			return set;
+		}
+		set = new BitSet(ALL_BITS);
+		try {
+			Matcher ascii = Pattern.compile(escape).matcher("");
+			Matcher unicode = Pattern.compile(escape, Pattern.UNICODE_CHARACTER_CLASS).matcher("");
+			for (char c = 0; c <= 0x7F; c++) {
+				String text = String.valueOf(c);
+				if (ascii.reset(text).matches() || unicode.reset(text).matches()) {
+					set.set(c);
+				}
+			}
+			for (int c = 0x80; c <= Character.MAX_VALUE; c++) {
+				int bit = NON_ASCII + Character.getType(c);
+				if (set.get(bit) || Character.isSurrogate((char) c)) {
+					continue;
+				}
+				String text = String.valueOf((char) c);
+				if (ascii.reset(text).matches() || unicode.reset(text).matches()) {
+					set.set(bit);
+				}
+			}
+		} catch (RuntimeException e) {
+			System.out.println("Warning: character property " + escape
+				+ " is not known, so it is analyzed as matching any character.");
+			set = all();
+		}
+		_properties.put(escape, set);
+		return set;
+	}
+
+	/**
+	 * @param set
+	 *            set of characters
+	 * @return the ASCII characters not in the set, and all characters outside of
+	 *         ASCII (as the bits for them stand for more characters than the set
+	 *         may have)
+	 */
+	static BitSet complement(BitSet set) {
+		BitSet complement = (BitSet) set.clone();
+		complement.flip(0, NON_ASCII);
+		complement.set(NON_ASCII, ALL_BITS);
+		return complement;
+	}
+
+	/**
+	 * @param type
+	 *             Unicode general category
+	 * @return whether the category's letters have other cases
+	 */
+	static boolean isCased(int type) {
+		return type == Character.UPPERCASE_LETTER || type == Character.LOWERCASE_LETTER
+			|| type == Character.TITLECASE_LETTER;
+	}
+
+	/**
+	 * Find the risks within the node
+	 * 
+	 * @param regex
+	 *              regular expression
+	 * @param node
+	 *              node to be examined
+	 * @return description of the first risk found, or null
+	 */
+	static String findRisk(String regex, Node node) {
+		// counted repetitions (e.g., (.*a){20}) are not memoized by the regex engine
+		// so are examined as well as unbounded ones
+		if (node._type == Node.REPEAT && !node._possessive && (node._max == -1 || node._max > 1)) {
+			Node body = node._children.get(0);
+			List<Node> path = new ArrayList<Node>();
+			String risk = findInnerRisk(regex, node, body, path);
+			if (risk != null) {
+				return risk;
+			}
+		}
+		for (Node child : node._children) {
+			String risk = findRisk(regex, child);
+			if (risk != null) {
+				return risk;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Find a variable repetition, or alternatives matching the same text, within
+	 * the body of a repetition that can backtrack into each iteration
+	 * 
+	 * @param regex
+	 *              regular expression
+	 * @param outer
+	 *              repetition being examined
+	 * @param node
+	 *              node within the repetition's body
+	 * @param path
+	 *              nodes from the body to the node's parent
+	 * @return description of the risk, or null
+	 */
+	static String findInnerRisk(String regex, Node outer, Node node, List<Node> path) {
+		if (node._zeroWidth || node._atomic || node._possessive || node._type == Node.SET) {
+			// nothing consumed, or nothing given back to the outer repetition
+			return null;
+		}
+		if (node._type == Node.REPEAT && isVariable(node) && node._max != 1) {
+			BitSet inner = chars(node);
+			boolean separated = false;
+			for (int i = 0; i < path.size() && !separated; i++) {
+				Node ancestor = path.get(i);
+				if (ancestor._type != Node.SEQ) {
+					continue;
+				}
+				Node onPath = (i + 1 < path.size() ? path.get(i + 1) : node);
+				for (Node sibling : ancestor._children) {
+					if (sibling == onPath) {
+						continue;
+					}
+					for (BitSet required : mandatory(sibling)) {
+						if (!required.intersects(inner)) {
+							separated = true;
+						}
+					}
+				}
+			}
+			if (!separated) {
+				return "the repetition \"" + regex.substring(node._start, node._end) + "\" within the repeated \""
+						+ regex.substring(outer._start, outer._end) + "\" can match the same text in many ways";
+			}
+		}
+		if (node._type == Node.ALT) {
+			for (int i = 0; i < node._children.size(); i++) {
+				for (int j = i + 1; j < node._children.size(); j++) {
+					Node a = node._children.get(i);
+					Node b = node._children.get(j);
+					boolean same = regex.substring(a._start, a._end).equals(regex.substring(b._start, b._end));
+					if (same || (first(a).intersects(first(b)) && isFlexible(a) && isFlexible(b))) {
+						return "the alternatives \"" + regex.substring(node._start, node._end)
+								+ "\" within the repeated \"" + regex.substring(outer._start, outer._end)
+								+ "\" can match the same text";
+					}
+				}
+			}
+		}
+		path.add(node);
+		for (Node child : node._children) {
+			String risk = findInnerRisk(regex, outer, child, path);
+			if (risk != null) {
+				return risk;
+			}
+		}
+		path.remove(path.size() - 1);
+		return null;
+	}
+
+	/**
+	 * Find the part of a template prone to exponential backtracking
+	 * 
+	 * @param regex
+	 *              the template's regular expression (which compiles)
+	 * @return a description of the first part of the template prone to
+	 *         exponential backtracking, or null if none is found
+	 */
+	static public String findBacktrackingRisk(String regex) {
+		Node root = null;
+		try {
+			Parser parser = new Parser(regex);
+			root = parser.parseAlternation();
+			if (!parser.atEnd()) {
+				return null;
+			}
+		} catch (RuntimeException e) {
+			// forms not analyzed are still limited by the step budget
+			return null;
+		}
+		return findRisk(regex, root);
+	}
+
+	/**
+	 * @param node
+	 *             node to be examined
+	 * @return the characters the node can start with
+	 */
+	static BitSet first(Node node) {
+		BitSet set = new BitSet(ALL_BITS);
+		if (node._zeroWidth) {
+			return set;
+		}
+		switch (node._type) {
+			case Node.SET:
+				return node._set;
+			case Node.SEQ:
+				for (Node child : node._children) {
+					set.or(first(child));
+					if (minLength(child) > 0) {
+						break;
+					}
+				}
+				return set;
+			case Node.REPEAT:
+				return (node._max == 0 ? set : first(node._children.get(0)));
+			default:
+				for (Node child : node._children) {
+					set.or(first(child));
+				}
+				return set;
+		}
+	}
+
+	/**
+	 * @return the number of templates aborted
+	 */
+	static public long getAborted() {
+		return _aborted.sum();
+	}
+
+	/**
+	 * Return the number of templates aborted in the Prometheus text exposition
+	 * format
+	 * 
+	 * @return metrics text
+	 */
+	static public String getPrometheusText() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("# HELP masker_template_aborted_total Template matches aborted by the regex step budget.\n");
+		sb.append("# TYPE masker_template_aborted_total counter\n");
+		sb.append("masker_template_aborted_total ").append(getAborted()).append("\n");
+		return sb.toString();
+	}
+
+	/**
+	 * @param node
+	 *             alternative
+	 * @return true if the alternative is a single character or contains a
+	 *         variable repetition, so overlapping alternatives can match the same
+	 *         text
+	 */
+	static boolean isFlexible(Node node) {
+		while ((node._type == Node.SEQ || node._type == Node.GROUP) && node._children.size() == 1
+				&& !node._zeroWidth) {
+			node = node._children.get(0);
+		}
+		if (node._type == Node.SET) {
+			return true;
+		}
+		if (node._type == Node.REPEAT && isVariable(node)) {
+			return true;
+		}
+		for (Node child : node._children) {
+			if (child._type != Node.SET && isFlexible(child)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @param node
+	 *             node to be examined
+	 * @return true if the node is a backtracking repetition of varying length
+	 */
+	static boolean isVariable(Node node) {
+		return node._type == Node.REPEAT && !node._possessive && node._max != node._min;
+	}
+
+	/**
+	 * @param node
+	 *             node to be examined
+	 * @return the sets of the characters the node must match
+	 */
+	static List<BitSet> mandatory(Node node) {
+		List<BitSet> sets = new ArrayList<BitSet>();
+		if (node._zeroWidth) {
+			return sets;
+		}
+		switch (node._type) {
+			case Node.SET:
+				sets.add(node._set);
+				break;
+			case Node.SEQ:
+			case Node.GROUP:
+				for (Node child : node._children) {
+					sets.addAll(mandatory(child));
+				}
+				break;
+			case Node.REPEAT:
+				if (node._min > 0) {
+					sets.addAll(mandatory(node._children.get(0)));
+				}
+				break;
+			default:
+				break;
+		}
+		return sets;
+	}
+
+	/**
+	 * Create a matcher for the template whose matching is limited by the step
+	 * budget
+	 * 
+	 * @param pattern
+	 *                template
+	 * @param text
+	 *                text to be matched
+	 * @return matcher for the text
+	 */
+	static public Matcher matcher(Pattern pattern, CharSequence text) {
+		long budget = _minSteps + _stepsPerChar * text.length();
+		return pattern.matcher(new BudgetedCharSequence(text, pattern, budget));
+	}
+
+	/**
+	 * @param node
+	 *             node to be examined
+	 * @return the fewest characters the node can match
+	 */
+	static int minLength(Node node) {
+		if (node._zeroWidth) {
+			return 0;
+		}
+		switch (node._type) {
+			case Node.SET:
+				return 1;
+			case Node.EMPTY:
+				return 0;
+			case Node.ALT: {
+				int min = Integer.MAX_VALUE;
+				for (Node child : node._children) {
+					min = Math.min(min, minLength(child));
+				}
+				return min;
+			}
+			case Node.REPEAT:
+				return node._min * minLength(node._children.get(0));
+			default: {
+				int min = 0;
+				for (Node child : node._children) {
+					min += minLength(child);
+				}
+				return min;
+			}
+		}
+	}
+
+	/**
+	 * Replace the template's matches in the text within the step budget
+	 * 
+	 * @param pattern
+	 *                    template
+	 * @param text
+	 *                    text to be masked
+	 * @param replacement
+	 *                    replacement for the matches
+	 * @return the text with the matches replaced, or null if the template was
+	 *         not found
+	 * @throws BudgetExceededException
+	 *                                 if the template exceeded its budget,
+	 *                                 exhausted the stack, or the thread was
+	 *                                 interrupted
+	 */
+	static public String replaceAll(Pattern pattern, String text, String replacement) {
+		try {
+			Matcher matcher = matcher(pattern, text);
+			if (!matcher.find()) {
+				return null;
+			}
+			return matcher.replaceAll(replacement);
+		} catch (StackOverflowError e) {
+			_aborted.increment();
+			throw new BudgetExceededException(pattern.pattern(),
+					"exhausted the stack on a line of " + text.length() + " characters");
+		}
+	}
+}
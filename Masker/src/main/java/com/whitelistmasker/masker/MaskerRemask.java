@@ -0,0 +1,162 @@
+/**
+ * (c) Copyright 2020-2023 IBM Corporation
+ * 1 New Orchard Road, 
+ * Armonk, New York, 10504-1722
+ * United States
+ * +1 914 499 1900
+ * Nathaniel Mills wnm3@us.ibm.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package com.whitelistmasker.masker;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Applies a change to a tenant's lexicon (e.g., words added to the whitelist
+ * via override-words.txt, or names removed) to a corpus already masked with
+ * the Masker's token index enabled. The lexicon snapshot saved for each file's
+ * prior run is compared with the current lexicon, and only the files whose
+ * indexed tokens are masked differently are masked again. The other finished
+ * files are recorded in the run manifest as finished with the current lexicon.
+ * Files not finished with the current templates and settings (new, changed or
+ * failed files) are left for the Masker.
+ */
+public class MaskerRemask {
+
+	static public final String CHANGED_LEXICON = "--changed-lexicon";
+
+	/**
+	 * Main entry point to mask again the files affected by a lexicon change
+	 * 
+	 * @param args
+	 *             --changed-lexicon followed by the Masker arguments used for
+	 *             the prior runs (tenant ID, input and output directories,
+	 *             lexicon files, minimum dialogs, mask numbers, and the output
+	 *             format and compression). The token index is always updated.
+	 */
+	public static void main(String[] args) {
+		if (args == null || args.length < 1 || CHANGED_LEXICON.equals(args[0]) == false) {
+			System.out.println("Usage: MaskerRemask " + CHANGED_LEXICON + " [Masker arguments]");
+			System.out.println("Goodbye");
+			return;
+		}
+		Masker pgm = new Masker();
+		if (pgm.getParams(Arrays.copyOfRange(args, 1, args.length))) {
+			pgm._indexTokens = true;
+			System.out.println("\nFiles in " + pgm._inputPath + " masked into " + pgm._outputPath
+					+ " with a prior lexicon will be masked again with the current " + Masker._tenantID
+					+ " lexicon if they contain a token it masks differently.");
+			if (MaskerUtils.prompt("Press q to quit or press Enter to continue	").length() == 0) {
+				try {
+					remask(pgm);
+				} catch (Exception e) {
+					System.out.println("Can not remask files in " + pgm._inputPath + " reason: " + e.getLocalizedMessage());
+				}
+			}
+			System.out.println();
+		}
+		System.out.println("Goodbye");
+	}
+
+	/**
+	 * Mask again the finished files whose tokens are masked differently by the
+	 * current lexicon than by the lexicon used to finish them
+	 * 
+	 * @param pgm
+	 *            Masker initialized with the run's parameters
+	 * @throws Exception
+	 *                   if the manifest, lexicons or token index can not be read
+	 *                   or written
+	 */
+	static void remask(Masker pgm) throws Exception {
+		MaskerRunManifest manifest = pgm.createRunManifest();
+		MaskerTokenIndex index = pgm.createTokenIndex(manifest);
+		try {
+			// group the files finished with another lexicon by that lexicon
+			Map<String, List<Path>> priorFiles = new HashMap<String, List<Path>>();
+			int current = 0;
+			int unfinished = 0;
+			for (Path file : pgm.listInputFiles()) {
+				String lexiconHash = manifest.getFinishedLexiconHash(file);
+				if (lexiconHash == null) {
+					unfinished++;
+				} else if (lexiconHash.equals(manifest.getLexiconHash())) {
+					current++;
+				} else {
+					List<Path> files = priorFiles.get(lexiconHash);
+					if (files == null) {
+						files = new ArrayList<Path>();
+						priorFiles.put(lexiconHash, files);
+					}
+					files.add(file);
+				}
+			}
+			TenantLexicon lexicon = null;
+			int remasked = 0;
+			int relabeled = 0;
+			for (String lexiconHash : priorFiles.keySet()) {
+				List<Path> files = priorFiles.get(lexiconHash);
+				TenantLexicon priorLexicon = TenantLexicon.loadSnapshot(pgm._outputPath, lexiconHash);
+				Set<String> affected = null;
+				if (priorLexicon == null) {
+					System.out.println("No snapshot of lexicon " + lexiconHash + " so its " + files.size()
+							+ " files will be masked again.");
+				} else {
+					if (lexicon == null) {
+						lexicon = TenantLexicon.load(pgm.getLexiconFileNames());
+					}
+					Set<String> changed = priorLexicon.diff(lexicon);
+					affected = (changed.isEmpty() ? new HashSet<String>() : index.findFiles(changed));
+					System.out.println(changed.size() + " tokens are masked differently than with lexicon " + lexiconHash
+							+ ", affecting " + affected.size() + " indexed files.");
+				}
+				for (Path file : files) {
+					if (MaskerRunManifest.STATUS_COMPLETED.equals(manifest.getStatus(file)) == false) {
+						// no output was written, so the lexicon can not change it
+						manifest.relabel(file);
+						relabeled++;
+					} else if (affected == null || manifest.isIndexed(file) == false
+							|| affected.contains(file.getFileName().toString())) {
+						pgm.maskFile(file, manifest, index);
+						remasked++;
+					} else {
+						manifest.relabel(file);
+						relabeled++;
+					}
+				}
+			}
+			System.out.println("Masked " + remasked + " files again and kept " + relabeled
+					+ " files unaffected by the lexicon change. " + current
+					+ " files were already masked with the current lexicon.");
+			if (unfinished != 0) {
+				System.out.println(unfinished + " files not finished with the current templates and settings were "
+						+ "skipped. Run the Masker to process them.");
+			}
+		} finally {
+			manifest.close();
+			index.close();
+		}
+	}
+
+}
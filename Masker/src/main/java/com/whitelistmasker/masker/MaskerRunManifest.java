@@ -0,0 +1,484 @@
+/**
+ * (c) Copyright 2020-2023 IBM Corporation
+ * 1 New Orchard Road, 
+ * Armonk, New York, 10504-1722
+ * United States
+ * +1 914 499 1900
+ * Nathaniel Mills wnm3@us.ibm.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package com.whitelistmasker.masker;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.api.json.JSONObject;
+
+/**
+ * Checkpoint of a Masker run, kept as a maskerRunManifest.jsonl file in the
+ * output directory. A line is appended (and flushed) as each input file is
+ * finished, recording the file's size, modification time and SHA-256 content
+ * hash, the hashes of the lexicon and templates used to mask it, the settings
+ * of the run, and the outcome. When the Masker is rerun into the same output
+ * directory, files whose last outcome was final (completed, or with no or too
+ * few dialogs to be written) with the same content, lexicon, templates and
+ * settings are skipped, so only new, changed or failed files are masked again.
+ * The counts of the words masked in each finished file are kept in the
+ * maskerMaskedWords directory so a rerun can still count the words of the files
+ * it skips. Delete the manifest to force every file to be masked again.
+ */
+public class MaskerRunManifest {
+
+	static public final String MANIFEST_FILE = "maskerRunManifest.jsonl";
+
+	static public final String MASKED_WORDS_DIR = "maskerMaskedWords";
+
+	static public final String STATUS_COMPLETED = "completed";
+
+	static public final String STATUS_FAILED = "failed";
+
+	static public final String STATUS_NO_DIALOGS = "noDialogs";
+
+	static public final String STATUS_TOO_FEW_DIALOGS = "tooFewDialogs";
+
+	/**
+	 * Add the bytes of the file to the digest
+	 * 
+	 * @param digest
+	 *               digest to be updated
+	 * @param file
+	 *               file to be read
+	 * @throws IOException
+	 *                     if the file can not be read
+	 */
+	static void digestFile(MessageDigest digest, Path file) throws IOException {
+		byte[] buffer = new byte[MaskerUtils.IO_BUFFER_SIZE];
+		InputStream is = Files.newInputStream(file);
+		try {
+			int read = 0;
+			while ((read = is.read(buffer)) > 0) {
+				digest.update(buffer, 0, read);
+			}
+		} finally {
+			is.close();
+		}
+	}
+
+	/**
+	 * @param file
+	 *             file to be hashed
+	 * @return hex SHA-256 hash of the file's (possibly compressed) bytes
+	 * @throws Exception
+	 *                   if the file can not be read
+	 */
+	static public String sha256(Path file) throws Exception {
+		MessageDigest digest = MessageDigest.getInstance("SHA-256");
+		digestFile(digest, file);
+		return toHex(digest.digest());
+	}
+	/**
+	 * Compute the SHA-256 hash of the content of the files (and their names) in
+	 * the order supplied
+	 * 
+	 * @param fileNames
+	 *                  names of the files to be hashed
+	 * @return hex SHA-256 hash
+	 * @throws Exception
+	 *                   if a file can not be read
+	 */
+	static public String hashFiles(List<String> fileNames) throws Exception {
+		MessageDigest digest = MessageDigest.getInstance("SHA-256");
+		for (String fileName : fileNames) {
+			digest.update(new File(fileName).getName().getBytes(StandardCharsets.UTF_8));
+			digest.update((byte) 0);
+			digestFile(digest, Paths.get(fileName));
+			digest.update((byte) 0);
+		}
+		return toHex(digest.digest());
+	}
+
+	/**
+	 * Compute the SHA-256 hash of the strings in the order supplied
+	 * 
+	 * @param values
+	 *               strings to be hashed
+	 * @return hex SHA-256 hash
+	 * @throws Exception
+	 *                   if SHA-256 is not available
+	 */
+	static public String hashStrings(List<String> values) throws Exception {
+		MessageDigest digest = MessageDigest.getInstance("SHA-256");
+		for (String value : values) {
+			digest.update(String.valueOf(value).getBytes(StandardCharsets.UTF_8));
+			digest.update((byte) 0);
+		}
+		return toHex(digest.digest());
+	}
+
+	/**
+	 * @param bytes
+	 *              bytes to be formatted
+	 * @return lowercase hexadecimal form of the bytes
+	 */
+	static String toHex(byte[] bytes) {
+		StringBuilder sb = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+			sb.append(Character.forDigit(b & 0xF, 16));
+		}
+		return sb.toString();
+	}
+
+	// last entry recorded for each input file name
+	final Map<String, JSONObject> _entries = new HashMap<String, JSONObject>();
+	final String _lexiconHash;
+	final Path _manifestPath;
+	final String _outputPath;
+	final String _settings;
+	final String _templatesHash;
+	final long _templateVersion;
+	BufferedWriter _writer = null;
+
+	/**
+	 * Load the manifest of prior runs (if any) from the output directory
+	 * 
+	 * @param outputPath
+	 *                        output directory of the run (ending with the file
+	 *                        separator)
+	 * @param lexiconHash
+	 *                        hash of the lexicon files used for masking
+	 * @param templatesHash
+	 *                        hash of the mask templates used for masking
+	 * @param templateVersion
+	 *                        version of the mask templates used for masking
+	 * @param settings
+	 *                        other settings affecting the output (e.g., minimum
+	 *                        dialogs and output format)
+	 * @throws Exception
+	 *                   if the manifest can not be read
+	 */
+	public MaskerRunManifest(String outputPath, String lexiconHash, String templatesHash, long templateVersion,
+			String settings) throws Exception {
+		_outputPath = outputPath;
+		_lexiconHash = lexiconHash;
+		_templatesHash = templatesHash;
+		_templateVersion = templateVersion;
+		_settings = settings;
+		_manifestPath = Paths.get(outputPath, MANIFEST_FILE);
+		if (Files.exists(_manifestPath)) {
+			byte[] bytes = Files.readAllBytes(_manifestPath);
+			int start = 0;
+			int lineNumber = 0;
+			for (int i = 0; i < bytes.length; i++) {
+				if (bytes[i] != '\n') {
+					continue;
+				}
+				lineNumber++;
+				String line = new String(bytes, start, i - start, StandardCharsets.UTF_8).trim();
+				start = i + 1;
+				if (line.length() == 0) {
+					continue;
+				}
+				try {
+					JSONObject entry = JSONObject.parse(line);
+					_entries.put((String) entry.get("file"), entry);
+				} catch (Exception e) {
+					System.out.println("Ignoring unreadable line " + lineNumber + " of " + _manifestPath);
+				}
+			}
+			if (start < bytes.length) {
+				// a run killed while appending leaves a partial last line
+				System.out.println("Removing incomplete last line of " + _manifestPath);
+				FileChannel channel = FileChannel.open(_manifestPath, StandardOpenOption.WRITE);
+				try {
+					channel.truncate(start);
+				} finally {
+					channel.close();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Close the manifest
+	 */
+	public void close() {
+		if (_writer != null) {
+			MaskerUtils.closeTextFile(_writer);
+			_writer = null;
+		}
+	}
+
+	/**
+	 * @return the number of input files recorded in the manifest
+	 */
+	public int getEntryCount() {
+		return _entries.size();
+	}
+
+	/**
+	 * @return the hash of the lexicon files used for this run
+	 */
+	public String getLexiconHash() {
+		return _lexiconHash;
+	}
+
+	/**
+	 * Determine which lexicon a prior run with the same templates and settings
+	 * used to finish the input file, provided the file's content has not
+	 * changed since. The content hash is only computed when the size matches but
+	 * the modification time differs (e.g., the file was copied), in which case
+	 * the new modification time is recorded so the next run need not hash it
+	 * again.
+	 * 
+	 * @param file
+	 *             input file
+	 * @return the hash of the lexicon used to finish the file, or null if it was
+	 *         not finished with the current templates and settings or has
+	 *         changed since
+	 * @throws Exception
+	 *                   if the file can not be read
+	 */
+	public String getFinishedLexiconHash(Path file) throws Exception {
+		JSONObject entry = _entries.get(file.getFileName().toString());
+		if (entry == null || _templatesHash.equals(entry.get("templatesHash")) == false
+				|| _settings.equals(entry.get("settings")) == false) {
+			return null;
+		}
+		String status = (String) entry.get("status");
+		if (STATUS_COMPLETED.equals(status)) {
+			String output = (String) entry.get("output");
+			if (output == null || Files.exists(Paths.get(_outputPath, output)) == false) {
+				return null;
+			}
+		} else if (STATUS_NO_DIALOGS.equals(status) == false && STATUS_TOO_FEW_DIALOGS.equals(status) == false) {
+			return null;
+		}
+		if (((Number) entry.get("size")).longValue() != Files.size(file)) {
+			return null;
+		}
+		long mtime = Files.getLastModifiedTime(file).toMillis();
+		if (((Number) entry.get("mtime")).longValue() != mtime) {
+			if (sha256(file).equals(entry.get("sha256")) == false) {
+				return null;
+			}
+			entry.put("mtime", mtime);
+			append(entry);
+		}
+		return (String) entry.get("lexiconHash");
+	}
+
+	/**
+	 * @param file
+	 *             input file
+	 * @return the path of the file holding the counts of the words masked in the
+	 *         input file
+	 */
+	Path getMaskedWordsPath(Path file) {
+		return Paths.get(_outputPath, MASKED_WORDS_DIR, file.getFileName().toString() + ".json");
+	}
+
+	/**
+	 * @param file
+	 *             input file
+	 * @return the status last recorded for the input file, or null if it has not
+	 *         been recorded
+	 */
+	public String getStatus(Path file) {
+		JSONObject entry = _entries.get(file.getFileName().toString());
+		return (entry == null ? null : (String) entry.get("status"));
+	}
+
+	/**
+	 * Determine whether the input file was finished by a prior run with the same
+	 * content, lexicon, templates and settings (see
+	 * {@link #getFinishedLexiconHash(Path)})
+	 * 
+	 * @param file
+	 *             input file
+	 * @return true if the file need not be masked again
+	 * @throws Exception
+	 *                   if the file can not be read
+	 */
+	public boolean isComplete(Path file) throws Exception {
+		JSONObject entry = _entries.get(file.getFileName().toString());
+		if (entry == null || _lexiconHash.equals(entry.get("lexiconHash")) == false) {
+			return false;
+		}
+		return getFinishedLexiconHash(file) != null;
+	}
+
+	/**
+	 * @param file
+	 *             input file
+	 * @return true if the tokens of the input file were added to the token index
+	 *         when it was last recorded
+	 */
+	public boolean isIndexed(Path file) {
+		JSONObject entry = _entries.get(file.getFileName().toString());
+		return entry != null && Boolean.TRUE.equals(entry.get("indexed"));
+	}
+
+	/**
+	 * @param file
+	 *             input file
+	 * @return the counts of the words masked in the input file when it was last
+	 *         finished, or null if they were not saved (e.g., by a run predating
+	 *         them)
+	 * @throws Exception
+	 *                   if the counts can not be read
+	 */
+	public Map<String, Integer> loadMaskedWords(Path file) throws Exception {
+		Path path = getMaskedWordsPath(file);
+		if (Files.exists(path) == false) {
+			return null;
+		}
+		JSONObject counts = MaskerUtils.loadJSONFile(path.toString());
+		Map<String, Integer> maskedWords = new HashMap<String, Integer>();
+		for (Object key : counts.keySet()) {
+			maskedWords.put(key.toString(), ((Number) counts.get(key)).intValue());
+		}
+		return maskedWords;
+	}
+
+	/**
+	 * Record that the input file's outcome is unchanged by this run's lexicon so
+	 * it is treated as finished with it
+	 * 
+	 * @param file
+	 *             input file previously recorded
+	 * @throws Exception
+	 *                   if the manifest can not be written
+	 */
+	public void relabel(Path file) throws Exception {
+		JSONObject entry = _entries.get(file.getFileName().toString());
+		if (entry == null) {
+			throw new Exception("No manifest entry for " + file.getFileName());
+		}
+		JSONObject relabeled = new JSONObject();
+		relabeled.putAll(entry);
+		relabeled.put("lexiconHash", _lexiconHash);
+		relabeled.put("recorded", new MaskerDate().toStringDateTime());
+		append(relabeled);
+	}
+
+	/**
+	 * Record the outcome of masking the input file
+	 * 
+	 * @param file
+	 *                   input file
+	 * @param status
+	 *                   one of the STATUS_ values
+	 * @param outputFile
+	 *                   the output file written (or null if none was written)
+	 * @throws Exception
+	 *                   if the input file can not be read or the manifest can
+	 *                   not be written
+	 */
+	public void record(Path file, String status, String outputFile) throws Exception {
+		record(file, status, outputFile, false);
+	}
+
+	/**
+	 * Record the outcome of masking the input file
+	 * 
+	 * @param file
+	 *                   input file
+	 * @param status
+	 *                   one of the STATUS_ values
+	 * @param outputFile
+	 *                   the output file written (or null if none was written)
+	 * @param indexed
+	 *                   whether the tokens of the input file were added to the
+	 *                   token index
+	 * @throws Exception
+	 *                   if the input file can not be read or the manifest can
+	 *                   not be written
+	 */
+	public void record(Path file, String status, String outputFile, boolean indexed) throws Exception {
+		JSONObject entry = new JSONObject();
+		entry.put("file", file.getFileName().toString());
+		entry.put("size", Files.size(file));
+		entry.put("mtime", Files.getLastModifiedTime(file).toMillis());
+		entry.put("sha256", sha256(file));
+		entry.put("lexiconHash", _lexiconHash);
+		entry.put("templatesHash", _templatesHash);
+		entry.put("templateVersion", _templateVersion);
+		entry.put("settings", _settings);
+		entry.put("status", status);
+		if (outputFile != null) {
+			entry.put("output", new File(outputFile).getName());
+		}
+		if (indexed) {
+			entry.put("indexed", Boolean.TRUE);
+		}
+		entry.put("recorded", new MaskerDate().toStringDateTime());
+		append(entry);
+	}
+
+	/**
+	 * Save the counts of the words masked in the input file. They are saved before
+	 * its outcome is recorded, so a file recorded as finished has its counts.
+	 * 
+	 * @param file
+	 *                    input file
+	 * @param maskedWords
+	 *                    counts of the words masked in the input file
+	 * @throws Exception
+	 *                   if the counts can not be written
+	 */
+	public void saveMaskedWords(Path file, Map<String, Integer> maskedWords) throws Exception {
+		Path path = getMaskedWordsPath(file);
+		Files.createDirectories(path.getParent());
+		JSONObject counts = new JSONObject();
+		counts.putAll(maskedWords);
+		MaskerUtils.saveJSONFile(path.toString(), counts, false, MaskerUtils.COMPRESSION_NONE);
+	}
+
+	/**
+	 * Append the entry to the manifest and flush it so it survives the run being
+	 * killed
+	 * 
+	 * @param entry
+	 *              manifest entry
+	 * @throws IOException
+	 *                     if the manifest can not be written
+	 */
+	void append(JSONObject entry) throws IOException {
+		if (_writer == null) {
+			_writer = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(_manifestPath,
+					StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.WRITE),
+					StandardCharsets.UTF_8));
+		}
+		_writer.write(entry.serialize(false));
+		_writer.write("\n");
+		_writer.flush();
+		_entries.put((String) entry.get("file"), entry);
+	}}
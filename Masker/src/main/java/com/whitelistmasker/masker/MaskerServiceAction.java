@@ -0,0 +1,303 @@
+/**
+ * (c) Copyright 2020-2023 IBM Corporation
+ * 1 New Orchard Road, 
+ * Armonk, New York, 10504-1722
+ * United States
+ * +1 914 499 1900
+ * Nathaniel Mills wnm3@us.ibm.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package com.whitelistmasker.masker;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import com.api.json.JSONArray;
+import com.api.json.JSONObject;
+
+/**
+ * An action from the Masker_RESTServicesSchema.json services schema resolved to
+ * a method handle invoker and parameter extractors, so requests do not need to
+ * reflect on the action's class, method and parameter classes. Used by the
+ * MaskWebServices and by the {@link MaskerHttpServer}.
+ */
+public class MaskerServiceAction {
+
+	/**
+	 * A parameter definition (either a constant String or a path:ClassName) with
+	 * its path split and class resolved once so values can be extracted from
+	 * requests without reparsing the definition or loading the class.
+	 */
+	static public class ParameterExtractor {
+
+		final String _className;
+		final String _constant;
+		final String _methodName;
+		final String _param;
+		final Class<?> _paramClass;
+		final String[] _path;
+
+		ParameterExtractor(String className, String methodName, String param, String constant, String[] path,
+				Class<?> paramClass) {
+			_className = className;
+			_methodName = methodName;
+			_param = param;
+			_constant = constant;
+			_path = path;
+			_paramClass = paramClass;
+		}
+
+		/**
+		 * Extract the parameter's value from the supplied json object
+		 * 
+		 * @param json
+		 *             object containing parameter data
+		 * @return the parameter value
+		 * @throws Exception
+		 *                   if the path is not found or its value is not of the
+		 *                   expected class
+		 */
+		public Object extract(JSONObject json) throws Exception {
+			if (_path == null) {
+				// just treat as a constant String
+				return _constant;
+			}
+			String pastPart = "";
+			Object ret = json;
+			for (String part : _path) {
+				// first time below passes since original object is a JSONObject
+				if (ret instanceof JSONObject == false) {
+					throw new Exception(
+							_className + ":" + _methodName + ": No JSONObject for " + pastPart + " path \"" + _param + "\"");
+				}
+				ret = ((JSONObject) ret).get(part);
+				if (ret == null) {
+					throw new Exception(
+							_className + ":" + _methodName + ": No entry for path \"" + _param + "\" in " + json);
+				}
+				// ret might not be a JSONObject but if this is the last part of the
+				// path that is okay
+				pastPart = part;
+			}
+			if (ret.getClass() != _paramClass && ret.getClass().getName().equals(_paramClass.getName()) == false) {
+				throw new Exception(_className + ":" + _methodName + ": Actual class \"" + ret.getClass().getName()
+						+ "\" differs from expected \"" + _paramClass.getName() + "\"");
+			}
+			return ret;
+		}
+
+		/**
+		 * @return the class of the parameter's value
+		 */
+		public Class<?> getParameterClass() {
+			return _paramClass;
+		}
+	}
+
+	/**
+	 * Parse a parameter definition and resolve its class
+	 * 
+	 * @param className
+	 *                   name of the class whose method receives the parameter
+	 * @param methodName
+	 *                   name of the method receiving the parameter
+	 * @param param
+	 *                   parameter definition: either a constant String, or a
+	 *                   slash delimited path and class name separated by a colon
+	 *                   (e.g., request:com.api.json.JSONObject)
+	 * @return extractor for the parameter
+	 * @throws ClassNotFoundException
+	 *                                if the parameter's class can not be loaded
+	 * @throws Exception
+	 *                                if the definition is malformed
+	 */
+	static public ParameterExtractor compileParameter(String className, String methodName, String param)
+			throws Exception {
+		if (param == null) {
+			throw new Exception(className + ":" + methodName + ": null parameter passed");
+		}
+		String[] paramTypes = param.split(":");
+		if (paramTypes.length == 1) {
+			return new ParameterExtractor(className, methodName, param, paramTypes[0], null, String.class);
+		}
+		if (paramTypes.length != 2) {
+			throw new Exception(className + ":" + methodName
+					+ ": Malformed parameter (missing class name or too many colon delimiters?)");
+		}
+		Class<?> cls = null;
+		try {
+			cls = Class.forName(paramTypes[1]);
+		} catch (ClassNotFoundException e) {
+			throw new ClassNotFoundException(className + ":" + methodName + ": Can not load \"" + paramTypes[1] + "\"",
+					e);
+		}
+		return new ParameterExtractor(className, methodName, param, null, paramTypes[0].split("/"), cls);
+	}
+
+	final String _className;
+	final ParameterExtractor[] _extractors;
+	final MethodHandle _invoker; // (Object[])Object, null if no method
+	final String _methodName;
+	final String _retKey;
+
+	/**
+	 * Resolve the schema action's class, method and parameters
+	 * 
+	 * @param action
+	 *                    action from the services schema
+	 * @param classLoader
+	 *                    class loader used to load the action's class
+	 * @throws ClassNotFoundException
+	 *                                if the action's class (or a parameter's
+	 *                                class) is not on the classpath
+	 * @throws Exception
+	 *                                if the method can not be resolved, or a
+	 *                                parameter definition is malformed
+	 */
+	public MaskerServiceAction(JSONObject action, ClassLoader classLoader) throws Exception {
+		if (action == null) {
+			throw new Exception("null action received.");
+		}
+		// parse the action into its components
+		_className = (String) action.get("class"); // must exist
+		if (_className == null) {
+			throw new Exception("Action is missing a class name.");
+		}
+		Class<?> cls = null;
+		try {
+			cls = Class.forName(_className, false, classLoader);
+		} catch (ClassNotFoundException e) {
+			throw new ClassNotFoundException("Can not load class \"" + _className + "\"", e);
+		}
+		_methodName = (String) action.get("method"); // may be null
+		_retKey = (String) action.get("return"); // may be null..
+		// get parameter class names
+		JSONArray paramArray = (JSONArray) action.get("params"); // may be null
+		List<Class<?>> paramClasses = new ArrayList<Class<?>>();
+		List<ParameterExtractor> extractors = new ArrayList<ParameterExtractor>();
+		StringBuffer sb = new StringBuffer();
+		if (paramArray != null) {
+			for (Iterator<?> it = paramArray.iterator(); it.hasNext();) {
+				ParameterExtractor extractor = compileParameter(_className, _methodName, it.next().toString());
+				extractors.add(extractor);
+				paramClasses.add(extractor.getParameterClass());
+				sb.append(extractor.getParameterClass().getName());
+				sb.append(",");
+			}
+		} else if (_methodName == null) {
+			throw new Exception("Can not find method named \"" + _methodName + "\" in class " + cls.getName());
+		}
+		_extractors = extractors.toArray(new ParameterExtractor[0]);
+		if (_methodName == null) {
+			_invoker = null;
+			return;
+		}
+		Method method = null;
+		try {
+			method = cls.getMethod(_methodName, paramClasses.toArray(new Class<?>[0]));
+		} catch (Exception e) {
+			throw new Exception(_className + ":" + _methodName + ": Can not find method named \"" + _methodName
+					+ "\" with parameters " + (sb.length() == 0 ? "" : sb.substring(0, sb.length() - 1))
+					+ " in class " + cls.getName());
+		}
+		if (Modifier.isStatic(method.getModifiers()) == false) {
+			throw new Exception(_className + ":" + _methodName + ": Method named \"" + _methodName + "\" in class "
+					+ cls.getName() + " must be static.");
+		}
+		method.setAccessible(true);
+		MethodHandle handle = MethodHandles.lookup().unreflect(method);
+		_invoker = handle.asType(handle.type().generic()).asSpreader(Object[].class, _extractors.length);
+	}
+
+	/**
+	 * @return the name of the action's class
+	 */
+	public String getClassName() {
+		return _className;
+	}
+
+	/**
+	 * @return the name of the action's method, or null if it has none
+	 */
+	public String getMethodName() {
+		return _methodName;
+	}
+
+	/**
+	 * @return the key the action's result is returned under, or null if it is not
+	 *         returned
+	 */
+	public String getReturnKey() {
+		return _retKey;
+	}
+
+	/**
+	 * Invoke the action using the parameters extracted from the request, placing
+	 * the result in the actionResponse under the action's return key
+	 * 
+	 * @param request
+	 *                       request providing parameter values
+	 * @param actionResponse
+	 *                       object receiving the result
+	 * @throws Exception
+	 *                   if parameters are missing or the invoked method fails
+	 */
+	public void perform(JSONObject request, JSONObject actionResponse) throws Exception {
+		Object[] paramData = new Object[_extractors.length];
+		for (int i = 0; i < _extractors.length; i++) {
+			paramData[i] = _extractors[i].extract(request);
+		}
+		if (_invoker == null) {
+			return;
+		}
+		Object retVal = null;
+		try {
+			retVal = (Object) _invoker.invokeExact(paramData);
+		} catch (Throwable t) {
+			StringBuffer sbData = new StringBuffer();
+			for (Object obj : paramData) {
+				if (obj != null) {
+					sbData.append(obj.toString());
+				} else {
+					sbData.append("null");
+				}
+				sbData.append(",");
+			}
+			throw new Exception(_className + ":" + _methodName + ": Error invoking method \"" + _methodName
+					+ "\" with parameters " + (sbData.length() == 0 ? "" : sbData.substring(0, sbData.length() - 1))
+					+ "   Cause: " + t, t);
+		}
+		if (_retKey != null) {
+			// check to see if the retKey is already in the retVal and return
+			// it
+			if (retVal instanceof JSONObject) {
+				if (((JSONObject) retVal).get(_retKey) != null) {
+					actionResponse.put(_retKey, ((JSONObject) retVal).get(_retKey));
+				} else {
+					actionResponse.put(_retKey, retVal);
+				}
+			} else {
+				// store whatever was returned
+				actionResponse.put(_retKey, retVal);
+			}
+		}
+	}
+}
@@ -0,0 +1,459 @@
+/**
+ * (c) Copyright 2020-2023 IBM Corporation
+ * 1 New Orchard Road, 
+ * Armonk, New York, 10504-1722
+ * United States
+ * +1 914 499 1900
+ * Nathaniel Mills wnm3@us.ibm.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package com.whitelistmasker.masker;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.api.json.JSONArray;
+import com.api.json.JSONObject;
+
+/**
+ * Append only journal of the template changes made by
+ * {@link Masker#updateMaskTemplates(JSONObject)}, kept per tenant in a
+ * maskTemplates.journal file next to its maskTemplates.json file. Each line is
+ * a JSON object with the template version it creates and the templates it
+ * removed and added. Replicas sharing the properties directory serialize their
+ * updates with an exclusive lock on the journal, first applying any entries
+ * they have not yet seen so versions are assigned in order. The journals are
+ * applied once when the tenants are loaded, and the servers start a daemon
+ * thread polling them to apply the changes made by other replicas (batch
+ * programs keep the templates they started with). Once a
+ * journal holds {@link #_compactEntries} entries, the templates are written to
+ * the maskTemplates.json file (with their templateVersion) and the journal is
+ * emptied. The first line of a journal names its generation, which changes with
+ * each compaction so replicas can tell a compacted journal from the one they
+ * were reading even when it has grown back past their offset.
+ */
+public class MaskerTemplateJournal {
+
+	static public final String JOURNAL_FILE = "maskTemplates.journal";
+
+	/**
+	 * number of journal entries prompting compaction into maskTemplates.json
+	 */
+	static public int _compactEntries = 100;
+
+	/**
+	 * milliseconds between checks of the journals for changes by other replicas
+	 */
+	static public long _pollMillis = 2000L;
+
+	// per tenant number of entries in its journal
+	static final Map<String, Integer> _entries = new HashMap<String, Integer>();
+	// per tenant generation of the journal whose bytes have been applied
+	static final Map<String, Long> _generations = new HashMap<String, Long>();
+	// per tenant bytes of its journal that have been applied
+	static final Map<String, Long> _offsets = new HashMap<String, Long>();
+	static Thread _poller = null;
+	static List<String> _tenantIDs = new ArrayList<String>();
+
+	static public final String GENERATION = "generation";
+
+	/**
+	 * Apply the journal entries not yet applied by this replica. If the journal
+	 * has been compacted by another replica (its generation differs from the one
+	 * read before), or skips a version, the templates are first reloaded from the
+	 * maskTemplates.json file.
+	 * 
+	 * @param tenantID
+	 *                 tenant whose journal is read
+	 * @throws Exception
+	 *                   if the journal or templates file can not be read
+	 */
+	static synchronized void catchUp(String tenantID) throws Exception {
+		Path journal = getJournalPath(tenantID);
+		if (Files.exists(journal) == false) {
+			return;
+		}
+		long offset = getOffset(tenantID);
+		FileChannel channel = FileChannel.open(journal, StandardOpenOption.READ);
+		try {
+			if (channel.size() == 0L) {
+				// nothing journaled yet, or a compaction is writing the header
+				return;
+			}
+			Long generation = readGeneration(channel);
+			if (generation == null) {
+				// the header is still being written
+				return;
+			}
+			Long previous = _generations.get(tenantID);
+			if (previous == null) {
+				// first read of the journal
+				_generations.put(tenantID, generation);
+			} else if (previous.equals(generation) == false || channel.size() < offset) {
+				// compacted by another replica
+				reload(tenantID);
+				_generations.put(tenantID, generation);
+				_entries.put(tenantID, 0);
+				offset = 0L;
+			}
+			if (channel.size() == offset) {
+				_offsets.put(tenantID, offset);
+				return;
+			}
+			ByteBuffer buffer = ByteBuffer.allocate((int) (channel.size() - offset));
+			while (buffer.hasRemaining() && channel.read(buffer, offset + buffer.position()) > 0) {
+				;
+			}
+			byte[] bytes = buffer.array();
+			int start = 0;
+			int entries = 0;
+			for (int i = 0; i < buffer.position(); i++) {
+				if (bytes[i] != '\n') {
+					continue;
+				}
+				// only complete lines are applied (a replica may be appending the last)
+				String line = new String(bytes, start, i - start, StandardCharsets.UTF_8).trim();
+				start = i + 1;
+				if (line.length() == 0) {
+					continue;
+				}
+				JSONObject entry = JSONObject.parse(line);
+				if (entry.containsKey(GENERATION)) {
+					// the header
+					continue;
+				}
+				entries++;
+				long version = ((Number) entry.get("version")).longValue();
+				long current = Masker.getTemplateVersion(tenantID);
+				if (version <= current) {
+					// already in this replica's templates
+					continue;
+				}
+				if (version > current + 1L) {
+					// missed entries that were compacted into maskTemplates.json
+					current = reload(tenantID);
+					if (version <= current) {
+						continue;
+					}
+				}
+				JSONArray removals = (JSONArray) entry.get("removals");
+				JSONArray updates = (JSONArray) entry.get("updates");
+				if (Masker.applyTemplateChanges(tenantID, removals, updates, new JSONArray(), new JSONArray(),
+						new JSONArray(), version) == false) {
+					// keep the version in step even if this replica's templates already
+					// reflected the change
+					Masker._mapTemplateVersions.put(tenantID, version);
+				}
+				System.out.println("Applied template version " + version + " for tenant " + tenantID);
+			}
+			_offsets.put(tenantID, offset + start);
+			_entries.put(tenantID, getEntries(tenantID) + entries);
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Write the tenant's templates and version to its maskTemplates.json file
+	 * (keeping its other settings) and empty its journal, leaving only the header
+	 * of its next generation. The caller holds the journal's lock.
+	 * 
+	 * @param tenantID
+	 *                 tenant whose journal is compacted
+	 * @param channel
+	 *                 locked channel of the tenant's journal
+	 * @throws Exception
+	 *                   if the templates file can not be written
+	 */
+	static synchronized void compact(String tenantID, FileChannel channel) throws Exception {
+		String templatesFileName = getTenantDirectory(tenantID) + Masker._maskTemplatesFile;
+		JSONObject maskTemplates = MaskerUtils.loadJSONFile(templatesFileName);
+		maskTemplates.put("templates", Masker.getTemplates(tenantID));
+		maskTemplates.put("templateVersion", Masker.getTemplateVersion(tenantID));
+		// replace the file in one step so other replicas never read a partial file
+		String tempFileName = templatesFileName + ".tmp";
+		MaskerUtils.saveJSONFile(tempFileName, maskTemplates);
+		Files.move(Paths.get(tempFileName), Paths.get(templatesFileName), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		Long generation = readGeneration(channel);
+		channel.truncate(0L);
+		writeGeneration(tenantID, channel, generation == null ? 0L : generation);
+		_entries.put(tenantID, 0);
+		System.out.println("Compacted the template journal for tenant " + tenantID + " at version "
+				+ Masker.getTemplateVersion(tenantID));
+	}
+
+	/**
+	 * @param tenantID
+	 *                 tenant whose journal is referenced
+	 * @return the number of entries in the tenant's journal
+	 */
+	static int getEntries(String tenantID) {
+		Integer entries = _entries.get(tenantID);
+		return entries == null ? 0 : entries;
+	}
+
+	/**
+	 * @param tenantID
+	 *                 tenant whose journal is referenced
+	 * @return the path of the tenant's journal file
+	 */
+	static Path getJournalPath(String tenantID) {
+		return Paths.get(getTenantDirectory(tenantID) + JOURNAL_FILE);
+	}
+
+	/**
+	 * @param tenantID
+	 *                 tenant whose journal is referenced
+	 * @return the number of bytes of the tenant's journal that have been applied
+	 */
+	static long getOffset(String tenantID) {
+		Long offset = _offsets.get(tenantID);
+		return offset == null ? 0L : offset;
+	}
+
+	/**
+	 * @param tenantID
+	 *                 tenant whose directory is referenced
+	 * @return the tenant's properties directory (ending with a file separator)
+	 */
+	static String getTenantDirectory(String tenantID) {
+		return "." + File.separator + MaskerConstants.Masker_DIR_PROPERTIES + tenantID + File.separator;
+	}
+
+	/**
+	 * Check each tenant's journal for entries appended by other replicas
+	 */
+	static void poll() {
+		List<String> tenantIDs = null;
+		synchronized (MaskerTemplateJournal.class) {
+			tenantIDs = new ArrayList<String>(_tenantIDs);
+		}
+		for (String tenantID : tenantIDs) {
+			try {
+				// the length alone can not tell whether the journal was compacted
+				catchUp(tenantID);
+			} catch (Exception e) {
+				System.out.println("Can not apply the template journal for tenant " + tenantID + ": "
+						+ e.getLocalizedMessage());
+			}
+		}
+	}
+
+	/**
+	 * @param channel
+	 *                channel of a journal that is not empty
+	 * @return the generation named by the journal's header (0 for journals written
+	 *         without one), or null if the header is not yet complete
+	 * @throws Exception
+	 *                   if the journal can not be read
+	 */
+	static Long readGeneration(FileChannel channel) throws Exception {
+		ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(channel.size(), 256L));
+		while (buffer.hasRemaining() && channel.read(buffer, buffer.position()) > 0) {
+			;
+		}
+		byte[] bytes = buffer.array();
+		for (int i = 0; i < buffer.position(); i++) {
+			if (bytes[i] == '\n') {
+				JSONObject header = JSONObject.parse(new String(bytes, 0, i, StandardCharsets.UTF_8));
+				Object generation = header.get(GENERATION);
+				return (generation instanceof Number ? ((Number) generation).longValue() : 0L);
+			}
+		}
+		// a first line this long is an entry of a journal written without a header
+		return (buffer.position() == 256 ? Long.valueOf(0L) : null);
+	}
+
+	/**
+	 * Reload the tenant's templates from its maskTemplates.json file
+	 * 
+	 * @param tenantID
+	 *                 tenant whose templates are reloaded
+	 * @return the template version of the reloaded templates
+	 * @throws Exception
+	 *                   if the file can not be read
+	 */
+	static long reload(String tenantID) throws Exception {
+		long version = Masker.reloadTemplates(tenantID);
+		System.out.println("Reloaded templates version " + version + " for tenant " + tenantID);
+		return version;
+	}
+
+	/**
+	 * Apply the journals of the tenants, which are followed once
+	 * {@link #start()} is called
+	 * 
+	 * @param tenantIDs
+	 *                  tenants whose journals are applied
+	 */
+	static void load(Collection<String> tenantIDs) {
+		synchronized (MaskerTemplateJournal.class) {
+			_tenantIDs = new ArrayList<String>(tenantIDs);
+		}
+		poll();
+	}
+
+	/**
+	 * Start polling the journals of the loaded tenants for changes made by other
+	 * replicas. Only servers call this, so a batch run masks all of its files with
+	 * the templates recorded in its manifest.
+	 */
+	static public void start() {
+		synchronized (MaskerTemplateJournal.class) {
+			if (_poller != null || _pollMillis <= 0L) {
+				return;
+			}
+			_poller = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					while (true) {
+						try {
+							Thread.sleep(_pollMillis);
+						} catch (InterruptedException e) {
+							return;
+						}
+						poll();
+					}
+				}
+			}, "masker-template-journal");
+			_poller.setDaemon(true);
+			_poller.start();
+		}
+	}
+
+	/**
+	 * Write the header of a new generation to an empty journal. The caller holds
+	 * the journal's lock.
+	 * 
+	 * @param tenantID
+	 *                   tenant whose journal is written
+	 * @param channel
+	 *                   locked channel of the tenant's empty journal
+	 * @param previous
+	 *                   generation of the journal being replaced (0 if none)
+	 * @throws Exception
+	 *                   if the journal can not be written
+	 */
+	static void writeGeneration(String tenantID, FileChannel channel, long previous) throws Exception {
+		// distinct from the generations of earlier journals, even ones deleted
+		long generation = Math.max(System.currentTimeMillis(), previous + 1L);
+		JSONObject header = new JSONObject();
+		header.put(GENERATION, generation);
+		ByteBuffer buffer = ByteBuffer.wrap((header.toString() + "\n").getBytes(StandardCharsets.UTF_8));
+		long position = 0L;
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+		channel.force(true);
+		_generations.put(tenantID, generation);
+		_offsets.put(tenantID, position);
+	}
+
+	/**
+	 * Apply and journal changes to a tenant's templates. The journal is locked
+	 * while the entries of other replicas are applied, the changes are made, and
+	 * the entry recording them is appended with the next version. If the journal
+	 * can not be written the changes are only applied to this replica.
+	 * 
+	 * @param tenantID
+	 *                 tenant whose templates are changed
+	 * @param removals
+	 *                 array of templates to be removed
+	 * @param updates
+	 *                 array of objects with a template and a mask to be added
+	 * @param removed
+	 *                 array receiving the template and mask objects removed
+	 * @param updated
+	 *                 array receiving the update objects added
+	 * @param errors
+	 *                 array receiving the updates that could not be used
+	 * @return the tenant's template version after the changes
+	 * @throws Exception
+	 *                   if the journal entries of other replicas can not be
+	 *                   applied
+	 */
+	static synchronized long update(String tenantID, JSONArray removals, JSONArray updates, JSONArray removed,
+			JSONArray updated, JSONArray errors) throws Exception {
+		FileChannel channel = null;
+		try {
+			channel = FileChannel.open(getJournalPath(tenantID), StandardOpenOption.CREATE, StandardOpenOption.READ,
+					StandardOpenOption.WRITE);
+		} catch (IOException e) {
+			System.out.println("Can not open the template journal for tenant " + tenantID
+					+ " so the changes only apply to this replica: " + e.getLocalizedMessage());
+			Masker.applyTemplateChanges(tenantID, removals, updates, removed, updated, errors,
+					Masker.getTemplateVersion(tenantID) + 1L);
+			return Masker.getTemplateVersion(tenantID);
+		}
+		try {
+			FileLock lock = channel.lock();
+			try {
+				catchUp(tenantID);
+				if (channel.size() == 0L) {
+					writeGeneration(tenantID, channel, 0L);
+				} else if (channel.size() > getOffset(tenantID)) {
+					// drop the partial entry of a replica that failed while appending it
+					channel.truncate(getOffset(tenantID));
+				}
+				long version = Masker.getTemplateVersion(tenantID) + 1L;
+				if (Masker.applyTemplateChanges(tenantID, removals, updates, removed, updated, errors, version)) {
+					// record the templates actually removed and added
+					JSONArray removedTemplates = new JSONArray();
+					for (Object obj : removed) {
+						removedTemplates.add(((JSONObject) obj).get("template"));
+					}
+					JSONObject entry = new JSONObject();
+					entry.put("version", version);
+					entry.put("removals", removedTemplates);
+					entry.put("updates", updated);
+					byte[] bytes = (entry.toString() + "\n").getBytes(StandardCharsets.UTF_8);
+					long position = channel.size();
+					ByteBuffer buffer = ByteBuffer.wrap(bytes);
+					while (buffer.hasRemaining()) {
+						position += channel.write(buffer, position);
+					}
+					channel.force(true);
+					_offsets.put(tenantID, position);
+					_entries.put(tenantID, getEntries(tenantID) + 1);
+					if (getEntries(tenantID) >= _compactEntries) {
+						compact(tenantID, channel);
+					}
+				}
+			} finally {
+				lock.release();
+			}
+		} finally {
+			channel.close();
+		}
+		return Masker.getTemplateVersion(tenantID);
+	}
+}
@@ -0,0 +1,310 @@
+/**
+ * (c) Copyright 2020-2023 IBM Corporation
+ * 1 New Orchard Road, 
+ * Armonk, New York, 10504-1722
+ * United States
+ * +1 914 499 1900
+ * Nathaniel Mills wnm3@us.ibm.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package com.whitelistmasker.masker;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Sidecar inverted index from the lowercase tokens checked against the lexicon
+ * (whether masked or not) to the input files containing them, kept in the
+ * maskerTokenIndex directory of the output directory. Tokens are spread by hash
+ * across 256 bucket files of tab separated token and input file name lines, so
+ * finding the files holding a few changed tokens only reads their buckets.
+ * Lines are only appended: a file masked again adds its current tokens, so the
+ * index may name a file for a token it no longer holds but never misses one.
+ * Delete the directory (with the run manifest) to rebuild the index.
+ */
+public class MaskerTokenIndex {
+
+	static public final int BUCKETS = 256;
+
+	static public final String INDEX_DIR = "maskerTokenIndex";
+
+	// tokens of the file being masked on this thread (when indexing)
+	static final ThreadLocal<Set<String>> _collector = new ThreadLocal<Set<String>>();
+
+	/**
+	 * @param token
+	 *              lowercase token
+	 * @return the bucket holding the token
+	 */
+	static int bucket(String token) {
+		return token.hashCode() & (BUCKETS - 1);
+	}
+
+	/**
+	 * Record the token checked against the lexicon if this thread is collecting
+	 * tokens
+	 * 
+	 * @param token
+	 *              lowercase token
+	 */
+	static public void collect(String token) {
+		Set<String> tokens = _collector.get();
+		if (tokens != null) {
+			tokens.add(token);
+		}
+	}
+
+	/**
+	 * Record the tokens collected on another thread (e.g., masking a dialog of
+	 * the file) if this thread is collecting tokens
+	 * 
+	 * @param collected
+	 *                  lowercase tokens
+	 */
+	static public void collectAll(Set<String> collected) {
+		Set<String> tokens = _collector.get();
+		if (tokens != null) {
+			tokens.addAll(collected);
+		}
+	}
+
+	/**
+	 * Record the word if it references a URL (and so depends on the URL filters)
+	 * and this thread is collecting tokens
+	 * 
+	 * @param word
+	 *             lowercase word
+	 */
+	static public void collectURL(String word) {
+		Set<String> tokens = _collector.get();
+		if (tokens != null && word.contains("http")) {
+			tokens.add(word);
+			tokens.add(TenantLexicon.URL_TOKEN);
+		}
+	}
+
+	/**
+	 * Escape the characters used to delimit the index lines
+	 * 
+	 * @param token
+	 *              lowercase token
+	 * @return the token as written in the index
+	 */
+	static String escape(String token) {
+		if (token.indexOf('\\') == -1 && token.indexOf('\t') == -1 && token.indexOf('\n') == -1
+				&& token.indexOf('\r') == -1) {
+			return token;
+		}
+		return token.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+	}
+
+	/**
+	 * @return true if this thread is collecting tokens
+	 */
+	static public boolean isCollecting() {
+		return _collector.get() != null;
+	}
+
+	/**
+	 * Begin collecting the tokens checked against the lexicon on this thread
+	 */
+	static public void startCollecting() {
+		_collector.set(new HashSet<String>());
+	}
+
+	/**
+	 * Stop collecting tokens on this thread
+	 * 
+	 * @return the tokens collected since {@link #startCollecting()}
+	 */
+	static public Set<String> stopCollecting() {
+		Set<String> tokens = _collector.get();
+		_collector.remove();
+		return (tokens == null ? new HashSet<String>() : tokens);
+	}
+
+	final Path _indexPath;
+	final BufferedWriter[] _writers = new BufferedWriter[BUCKETS];
+
+	/**
+	 * Constructor
+	 * 
+	 * @param outputPath
+	 *                   output directory of the Masker run (ending with the file
+	 *                   separator)
+	 * @throws Exception
+	 *                   if the index directory can not be created
+	 */
+	public MaskerTokenIndex(String outputPath) throws Exception {
+		_indexPath = Paths.get(outputPath, INDEX_DIR);
+		Files.createDirectories(_indexPath);
+	}
+
+	/**
+	 * Add the tokens of the input file to the index, flushing them before
+	 * returning so they are in the index before the file is recorded in the run
+	 * manifest
+	 * 
+	 * @param fileName
+	 *                 name of the input file (without its directory)
+	 * @param tokens
+	 *                 lowercase tokens of the file
+	 * @throws IOException
+	 *                     if the index can not be written
+	 */
+	public void add(String fileName, Set<String> tokens) throws IOException {
+		boolean[] dirty = new boolean[BUCKETS];
+		for (String token : tokens) {
+			int bucket = bucket(token);
+			BufferedWriter writer = getWriter(bucket);
+			writer.write(escape(token));
+			writer.write('\t');
+			writer.write(fileName);
+			writer.write('\n');
+			dirty[bucket] = true;
+		}
+		for (int i = 0; i < BUCKETS; i++) {
+			if (dirty[i]) {
+				_writers[i].flush();
+			}
+		}
+	}
+
+	/**
+	 * Close the index
+	 */
+	public void close() {
+		for (int i = 0; i < BUCKETS; i++) {
+			if (_writers[i] != null) {
+				MaskerUtils.closeTextFile(_writers[i]);
+				_writers[i] = null;
+			}
+		}
+	}
+
+	/**
+	 * Find the input files containing any of the tokens
+	 * 
+	 * @param tokens
+	 *               lowercase tokens
+	 * @return names of the input files (without their directory)
+	 * @throws IOException
+	 *                     if the index can not be read
+	 */
+	public Set<String> findFiles(Set<String> tokens) throws IOException {
+		List<Set<String>> bucketTokens = new ArrayList<Set<String>>(BUCKETS);
+		for (int i = 0; i < BUCKETS; i++) {
+			bucketTokens.add(null);
+		}
+		for (String token : tokens) {
+			int bucket = bucket(token);
+			if (bucketTokens.get(bucket) == null) {
+				bucketTokens.set(bucket, new HashSet<String>());
+			}
+			bucketTokens.get(bucket).add(escape(token));
+		}
+		Set<String> fileNames = new HashSet<String>();
+		for (int i = 0; i < BUCKETS; i++) {
+			Set<String> wanted = bucketTokens.get(i);
+			Path bucketPath = getBucketPath(i);
+			if (wanted == null || Files.exists(bucketPath) == false) {
+				continue;
+			}
+			if (_writers[i] != null) {
+				_writers[i].flush();
+			}
+			BufferedReader br = Files.newBufferedReader(bucketPath, StandardCharsets.UTF_8);
+			try {
+				String line = br.readLine();
+				while (line != null) {
+					int tab = line.lastIndexOf('\t');
+					if (tab != -1 && wanted.contains(line.substring(0, tab))) {
+						fileNames.add(line.substring(tab + 1));
+					}
+					line = br.readLine();
+				}
+			} finally {
+				br.close();
+			}
+		}
+		return fileNames;
+	}
+
+	/**
+	 * @param bucket
+	 *               bucket number
+	 * @return path of the bucket's file
+	 */
+	Path getBucketPath(int bucket) {
+		return _indexPath.resolve(String.format("%02x.tsv", bucket));
+	}
+
+	/**
+	 * Open the bucket's file for appending, first removing a partial last line
+	 * left by a run killed while writing it
+	 * 
+	 * @param bucket
+	 *               bucket number
+	 * @return writer appending to the bucket's file
+	 * @throws IOException
+	 *                     if the file can not be opened
+	 */
+	BufferedWriter getWriter(int bucket) throws IOException {
+		BufferedWriter writer = _writers[bucket];
+		if (writer != null) {
+			return writer;
+		}
+		Path bucketPath = getBucketPath(bucket);
+		if (Files.exists(bucketPath)) {
+			RandomAccessFile raf = new RandomAccessFile(bucketPath.toFile(), "rw");
+			try {
+				long end = raf.length();
+				while (end > 0) {
+					raf.seek(end - 1);
+					if (raf.read() == '\n') {
+						break;
+					}
+					end--;
+				}
+				if (end != raf.length()) {
+					FileChannel channel = raf.getChannel();
+					channel.truncate(end);
+				}
+			} finally {
+				raf.close();
+			}
+		}
+		writer = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(bucketPath, StandardOpenOption.CREATE,
+				StandardOpenOption.APPEND, StandardOpenOption.WRITE), StandardCharsets.UTF_8));
+		_writers[bucket] = writer;
+		return writer;
+	}
+
+}
@@ -0,0 +1,206 @@
+/**
+ * (c) Copyright 2020-2023 IBM Corporation
+ * 1 New Orchard Road, 
+ * Armonk, New York, 10504-1722
+ * United States
+ * +1 914 499 1900
+ * Nathaniel Mills wnm3@us.ibm.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package com.whitelistmasker.masker;
+
+import java.io.File;
+import java.net.URI;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import com.api.json.JSONArray;
+import com.api.json.JSONObject;
+
+/**
+ * Training workload run when creating a class data sharing (AppCDS) archive: it
+ * masks each tenant's Unmasked.txt and UnmaskedMessages.json files directly,
+ * then through the {@link MaskerHttpServer} using the {@link MaskerClient} and
+ * MaskerUtils.sendRequest, so the classes of API4JSON, Jackson, Gson, the JDK's
+ * HTTP server and client, and the masker used on startup and by the first
+ * requests are loaded before the JVM exits and writes the archive (e.g., when
+ * run with -XX:ArchiveClassesAtExit=Masker.jsa).
+ */
+public class MaskerTraining {
+
+	/**
+	 * Create a doMasking or doMessageMasking request body for the tenant's sample
+	 * content
+	 * 
+	 * @param tenantID
+	 *                 tenant whose sample content is masked
+	 * @param key
+	 *                 "unmasked" or "messages"
+	 * @param content
+	 *                 array of lines or messages to be masked
+	 * @return request body
+	 */
+	static JSONObject getRequestBody(String tenantID, String key, JSONArray content) {
+		JSONArray templates = new JSONArray();
+		JSONObject usPhoneTemplate = new JSONObject();
+		usPhoneTemplate.put("template", "\\+?1? *\\(?\\d{3}\\)? *[\\-\\.]?(\\d{3}) *[\\-\\.]? *\\d{4}");
+		usPhoneTemplate.put("mask", "~Phone");
+		templates.add(usPhoneTemplate);
+		JSONObject request = new JSONObject();
+		request.put("tenantID", tenantID);
+		request.put("maskNumbers", Boolean.TRUE);
+		request.put("includeCounts", Boolean.TRUE);
+		request.put("templates", templates);
+		request.put(key, content);
+		JSONObject body = new JSONObject();
+		body.put("request", request);
+		return body;
+	}
+
+	/**
+	 * Run the training workload
+	 * 
+	 * @param args
+	 *             optional services schema file used to start the embedded server
+	 *             (default properties/Masker_RESTServicesSchema.json; the server
+	 *             is not exercised if it does not exist) and the number of times
+	 *             the samples are masked (default 3)
+	 */
+	public static void main(String[] args) {
+		long startNanos = System.nanoTime();
+		String schemaFileName = MaskerHttpServer.DEFAULT_SCHEMA;
+		int iterations = 3;
+		if (args.length > 0) {
+			schemaFileName = args[0];
+		}
+		if (args.length > 1) {
+			try {
+				iterations = Integer.parseInt(args[1]);
+			} catch (NumberFormatException e) {
+				System.out.println("Usage: MaskerTraining [schemaFile [iterations]] " + e.getLocalizedMessage());
+				System.exit(1);
+			}
+		}
+		int exitCode = 0;
+		try {
+			List<String> tenantIDs = new ArrayList<String>(Masker._setTenantIDs);
+			Collections.sort(tenantIDs);
+			List<JSONObject> maskingBodies = new ArrayList<JSONObject>();
+			List<JSONObject> messageBodies = new ArrayList<JSONObject>();
+			for (String tenantID : tenantIDs) {
+				String filePrefix = MaskerConstants.Masker_DIR_PROPERTIES + tenantID + File.separator;
+				if (new File(filePrefix + "Unmasked.txt").exists()) {
+					JSONArray unmasked = new JSONArray();
+					unmasked.addAll(MaskerUtils.loadTextFile(filePrefix + "Unmasked.txt"));
+					maskingBodies.add(getRequestBody(tenantID, "unmasked", unmasked));
+				}
+				if (new File(filePrefix + "UnmaskedMessages.json").exists()) {
+					JSONObject messagesObj = MaskerUtils.loadJSONFile(filePrefix + "UnmaskedMessages.json");
+					JSONArray messages = (JSONArray) messagesObj.get("messages");
+					if (messages != null) {
+						messageBodies.add(getRequestBody(tenantID, "messages", messages));
+					}
+				}
+			}
+			for (int i = 0; i < iterations; i++) {
+				for (JSONObject body : maskingBodies) {
+					JSONObject.parse(Masker.maskContent((JSONObject) body.get("request")).serialize(true));
+				}
+				for (JSONObject body : messageBodies) {
+					JSONObject.parse(Masker.maskMessageContent((JSONObject) body.get("request")).serialize(true));
+				}
+			}
+			System.out.println("Masked " + maskingBodies.size() + " text and " + messageBodies.size()
+					+ " message samples " + iterations + " times.");
+			if (new File(schemaFileName).exists()) {
+				trainServer(schemaFileName, iterations, maskingBodies, messageBodies);
+			} else {
+				System.out.println("Skipping the embedded server as " + schemaFileName + " does not exist.");
+			}
+		} catch (Exception e) {
+			System.out.println("Training failed: " + e.getLocalizedMessage());
+			exitCode = 1;
+		}
+		System.out.println("Training completed in " + ((System.nanoTime() - startNanos) / 1000000L) + " ms");
+		System.exit(exitCode);
+	}
+
+	/**
+	 * Send the sample requests to an embedded server started on an ephemeral port
+	 * 
+	 * @param schemaFileName
+	 *                       services schema file
+	 * @param iterations
+	 *                       number of times the samples are sent
+	 * @param maskingBodies
+	 *                       doMasking request bodies
+	 * @param messageBodies
+	 *                       doMessageMasking request bodies
+	 * @throws Exception
+	 *                   if the server can not be started or a request fails
+	 */
+	static void trainServer(String schemaFileName, int iterations, List<JSONObject> maskingBodies,
+			List<JSONObject> messageBodies) throws Exception {
+		MaskerHttpServer server = new MaskerHttpServer(schemaFileName);
+		server.start(0, 2);
+		MaskerClient client = new MaskerClient(new URI("http://localhost:" + server.getPort() + "/MaskWebServices/v1/"),
+				null, null, Duration.ofSeconds(100));
+		JSONObject service = new JSONObject();
+		service.put("protocol", "http");
+		service.put("domain", "localhost");
+		service.put("portnumber", "" + server.getPort());
+		service.put("endpoint", "/MaskWebServices/v1/" + MaskerClient.DO_MASKING);
+		service.put("username", "mask");
+		service.put("password", "password");
+		service.put("apitimeout", "100000");
+		try {
+			for (int i = 0; i < iterations; i++) {
+				for (JSONObject body : maskingBodies) {
+					JSONObject request = (JSONObject) body.get("request");
+					client.post(MaskerClient.DO_MASKING, body);
+					MaskerUtils.sendRequest("POST", service, body);
+					List<String> unmasked = new ArrayList<String>();
+					for (Object line : (JSONArray) request.get("unmasked")) {
+						unmasked.add(line.toString());
+					}
+					client.mask((String) request.get("tenantID"), unmasked, Boolean.TRUE,
+							(JSONArray) request.get("templates"));
+					List<CompletableFuture<String>> futures = new ArrayList<CompletableFuture<String>>();
+					for (String line : unmasked) {
+						futures.add(client.maskUtterance((String) request.get("tenantID"), line));
+					}
+					for (CompletableFuture<String> future : futures) {
+						MaskerClient.get(future);
+					}
+				}
+				for (JSONObject body : messageBodies) {
+					JSONObject request = (JSONObject) body.get("request");
+					client.post(MaskerClient.DO_MESSAGE_MASKING, body);
+					client.maskMessages((String) request.get("tenantID"), (JSONArray) request.get("messages"),
+							Boolean.TRUE, (JSONArray) request.get("templates"));
+				}
+			}
+			System.out.println("Sent the samples to the embedded server " + iterations + " times.");
+		} finally {
+			client.close();
+			server.stop(0);
+		}
+	}
+}
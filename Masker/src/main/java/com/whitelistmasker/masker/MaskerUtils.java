@@ -22,16 +22,21 @@
 
 package com.whitelistmasker.masker;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.InvalidObjectException;
 import java.io.OutputStream;
 import java.io.Serializable;
+import java.lang.reflect.Constructor;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLEncoder;
@@ -46,6 +51,8 @@ import java.util.Base64;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 import javax.management.modelmbean.InvalidTargetObjectTypeException;
 import com.api.json.JSON;
 import com.api.json.JSONObject;
@@ -66,14 +73,41 @@ public class MaskerUtils implements Serializable {
 
    private static final long serialVersionUID = 7829338567692523456L;
 
+   /**
+    * Compression written for (and read from) files ending with
+    * {@link #GZIP_EXTENSION}
+    */
+   static public final String COMPRESSION_GZIP = "gzip";
+
+   /**
+    * No compression
+    */
+   static public final String COMPRESSION_NONE = "none";
+
+   /**
+    * Compression written for (and read from) files ending with
+    * {@link #ZSTD_EXTENSION}. Requires com.github.luben:zstd-jni on the
+    * classpath.
+    */
+   static public final String COMPRESSION_ZSTD = "zstd";
+
+   static public final String GZIP_EXTENSION = ".gz";
+
    static public final int iDayMilliseconds = 86400000;
 
    static public final int iHourMilliseconds = 3600000;
 
    static public final int iMinuteMilliseconds = 60000;
 
+   /**
+    * Size of the buffers used when streaming files
+    */
+   static public final int IO_BUFFER_SIZE = 65536;
+
    static final public Charset UTF8_CHARSET = Charset.forName("UTF-8");
 
+   static public final String ZSTD_EXTENSION = ".zst";
+
    static boolean s_debug = false; // true;
 
    static Gson s_gson = new GsonBuilder().create();
@@ -229,76 +263,38 @@ public class MaskerUtils implements Serializable {
          return result;
       }
       word = trimSpaces(word);
-      if (word.length() == 0) {
+      int len = word.length();
+      if (len == 0) {
          result[1] = word;
          return result;
       }
-      // clean front
+      // clean front, skipping words starting with \n
       int index = 0;
-      int len = word.length();
-      StringBuffer sb = new StringBuffer();
-      // check for words starting with \n
-      while (word.startsWith("\\n")) {
-         sb.append("\\n");
-         word = word.substring("\\n".length());
-      }
-      if (word.length() > 0) {
-         char wordchar = word.charAt(index);
-         // numbers, letters, some quotes, but not @ (to block emails)
-         while (wordchar < 0x0030
-            || (wordchar > 0x0039 && wordchar < 0x0061 && wordchar != 0x0040)
-            || (wordchar > 0x007a && wordchar <= 0x007f) || wordchar == '\u2003'
-            || wordchar == '\u2013' || wordchar == '\u2018'
-            || wordchar == '\u2019' || wordchar == '\u201C'
-            || wordchar == '\u201D' || wordchar == '\u2022'
-            || wordchar == '\u2026' || wordchar == '\u2028'
-            || wordchar == '\u202A' || wordchar == '\u202C'
-            || wordchar == '\u202F' || wordchar == '\u223C') {
-            sb.append(wordchar);
-            index++;
-            if (index == word.length()) {
-               break;
-            }
-            wordchar = word.charAt(index);
-         }
-         result[0] = sb.toString();
-         if (index == word.length()) {
-            return result;
-         }
-         word = word.substring(index);
-         sb.setLength(0); // clear the accumulator
-         // check for words ending with /n
-         while (word.length() >= "\\n".length() && word.endsWith("\\n")) {
-            sb.append("n\\"); // gets reversed later
-            word = word.substring(0, word.length()-"\\n".length());
-         }
-         len = word.length();
-         if (len > 0) {
-            index = len - 1;
-            wordchar = word.charAt(index);
-            while (wordchar < 0x0030
-               || (wordchar > 0x0039 && wordchar < 0x0061 && wordchar != 0x0040)
-               || (wordchar > 0x007a && wordchar <= 0x007f)
-               || wordchar == '\u2003' || wordchar == '\u2013'
-               || wordchar == '\u2018' || wordchar == '\u2019'
-               || wordchar == '\u201C' || wordchar == '\u201D'
-               || wordchar == '\u2022' || wordchar == '\u2026'
-               || wordchar == '\u2028' || wordchar == '\u202A'
-               || wordchar == '\u202C' || wordchar == '\u202F'
-               || wordchar == '\u223C') {
-
-               sb.append(wordchar);
-               index--;
-               if (index == 0) {
-                  break;
-               }
-               wordchar = word.charAt(index);
-            }
-            result[2] = sb.reverse().toString();
-            word = word.substring(0, index + 1);
-            result[1] = word;
-         }
+      while (word.startsWith("\\n", index)) {
+         index += "\\n".length();
+      }
+      if (index == len) {
+         return result;
+      }
+      // numbers, letters, some quotes, but not @ (to block emails)
+      while (index < len && MaskerCharClass.isCleanable(word.charAt(index))) {
+         index++;
+      }
+      result[0] = word.substring(0, index);
+      if (index == len) {
+         return result;
       }
+      // check for words ending with \n
+      int end = len;
+      while (end - index >= "\\n".length() && word.startsWith("\\n", end - "\\n".length())) {
+         end -= "\\n".length();
+      }
+      // clean back (the first character is known not to be cleanable)
+      while (end - 1 > index && MaskerCharClass.isCleanable(word.charAt(end - 1))) {
+         end--;
+      }
+      result[1] = word.substring(index, end);
+      result[2] = word.substring(end);
       return result;
    }
 
@@ -404,6 +400,76 @@ public class MaskerUtils implements Serializable {
       return iMillisecs;
    }
 
+   /**
+    * Determine the compression of a file from its name
+    * 
+    * @param fileName
+    *           name of the file
+    * @return {@link #COMPRESSION_GZIP} if the name ends with
+    *         {@link #GZIP_EXTENSION}, {@link #COMPRESSION_ZSTD} if the name ends
+    *         with {@link #ZSTD_EXTENSION}, otherwise {@link #COMPRESSION_NONE}
+    */
+   static public String getCompression(String fileName) {
+      if (fileName != null) {
+         String lowerName = fileName.toLowerCase();
+         if (lowerName.endsWith(GZIP_EXTENSION)) {
+            return COMPRESSION_GZIP;
+         }
+         if (lowerName.endsWith(ZSTD_EXTENSION)) {
+            return COMPRESSION_ZSTD;
+         }
+      }
+      return COMPRESSION_NONE;
+   }
+
+   /**
+    * Get the file extension to be appended to files written with the supplied
+    * compression
+    * 
+    * @param compression
+    *           {@link #COMPRESSION_NONE}, {@link #COMPRESSION_GZIP} or
+    *           {@link #COMPRESSION_ZSTD} (a null is treated as
+    *           {@link #COMPRESSION_NONE})
+    * @return the extension (empty for no compression)
+    * @throws Exception
+    *            if the compression is not recognized
+    */
+   static public String getCompressionExtension(String compression)
+      throws Exception {
+      if (compression == null || COMPRESSION_NONE.equalsIgnoreCase(compression)) {
+         return "";
+      }
+      if (COMPRESSION_GZIP.equalsIgnoreCase(compression)) {
+         return GZIP_EXTENSION;
+      }
+      if (COMPRESSION_ZSTD.equalsIgnoreCase(compression)) {
+         return ZSTD_EXTENSION;
+      }
+      throw new Exception("Unrecognized compression \"" + compression
+         + "\". Expected " + COMPRESSION_NONE + ", " + COMPRESSION_GZIP + " or "
+         + COMPRESSION_ZSTD);
+   }
+
+   /**
+    * Load a zstd-jni stream class. zstd-jni is an optional dependency so it is
+    * only referenced reflectively.
+    * 
+    * @param simpleName
+    *           ZstdInputStream or ZstdOutputStream
+    * @return the class
+    * @throws Exception
+    *            if zstd-jni is not on the classpath
+    */
+   static Class<?> getZstdClass(String simpleName) throws Exception {
+      try {
+         return Class.forName("com.github.luben.zstd." + simpleName);
+      } catch (ClassNotFoundException e) {
+         throw new Exception(
+            "zstd compression requires com.github.luben:zstd-jni on the classpath",
+            e);
+      }
+   }
+
    /**
     * Transform a fully qualified Class' name into just the name of the class
     * without the leading package. For example,
@@ -597,17 +663,18 @@ public class MaskerUtils implements Serializable {
    }
 
    /**
+    * Open a buffered input stream for the file, decompressing it if its name
+    * ends with {@link #GZIP_EXTENSION} or {@link #ZSTD_EXTENSION}
+    * 
     * @param fqFilename
-    *           fully qualified name of the text file to be opened
-    * @return open buffered reader to allow individual lines of a text file to
-    *         be read
+    *           fully qualified filename
+    * @return input stream of the (uncompressed) file content
     * @throws Exception
-    * @see #closeTextFile(BufferedReader) to close the reader returned by this
-    *      function
+    *            if the file does not exist, can not be read, or is compressed
+    *            with zstd and zstd-jni is not on the classpath
     */
-   static public BufferedReader openTextFile(String fqFilename)
+   static public InputStream openInputStream(String fqFilename)
       throws Exception {
-      BufferedReader input = null;
       File inputFile = new File(fqFilename);
       if (inputFile.exists() == false) {
          throw new Exception(inputFile.getCanonicalPath() + " does not exist.");
@@ -622,8 +689,84 @@ public class MaskerUtils implements Serializable {
             "Can not read file " + inputFile.getCanonicalPath() + File.separator
                + inputFile.getName());
       }
-      input = new BufferedReader(new FileReader(inputFile));
-      return input;
+      InputStream input = new FileInputStream(inputFile);
+      try {
+         String compression = getCompression(fqFilename);
+         if (COMPRESSION_GZIP.equals(compression)) {
+            return new GZIPInputStream(input, IO_BUFFER_SIZE);
+         }
+         if (COMPRESSION_ZSTD.equals(compression)) {
+            input = (InputStream) getZstdClass("ZstdInputStream")
+               .getConstructor(InputStream.class).newInstance(input);
+         }
+         return new BufferedInputStream(input, IO_BUFFER_SIZE);
+      } catch (Exception e) {
+         input.close();
+         throw e;
+      }
+   }
+
+   /**
+    * Open a buffered output stream to the file, compressing what is written to
+    * it
+    * 
+    * @param fqFilename
+    *           fully qualified filename
+    * @param compression
+    *           {@link #COMPRESSION_NONE}, {@link #COMPRESSION_GZIP} or
+    *           {@link #COMPRESSION_ZSTD} (a null is treated as
+    *           {@link #COMPRESSION_NONE})
+    * @return output stream to the file. It must be closed to complete the
+    *         compressed content.
+    * @throws Exception
+    *            if the file can not be created, the compression is not
+    *            recognized, or zstd is requested and zstd-jni is not on the
+    *            classpath
+    */
+   static public OutputStream openOutputStream(String fqFilename,
+      String compression) throws Exception {
+      // validate the compression before the file is created
+      getCompressionExtension(compression);
+      Constructor<?> zstdConstructor = null;
+      if (COMPRESSION_ZSTD.equalsIgnoreCase(compression)) {
+         zstdConstructor = getZstdClass("ZstdOutputStream")
+            .getConstructor(OutputStream.class);
+      }
+      OutputStream output = new BufferedOutputStream(
+         new FileOutputStream(fqFilename), IO_BUFFER_SIZE);
+      try {
+         if (COMPRESSION_GZIP.equalsIgnoreCase(compression)) {
+            return new GZIPOutputStream(output, IO_BUFFER_SIZE);
+         }
+         if (zstdConstructor != null) {
+            return new BufferedOutputStream(
+               (OutputStream) zstdConstructor.newInstance(output),
+               IO_BUFFER_SIZE);
+         }
+         return output;
+      } catch (Exception e) {
+         output.close();
+         throw e;
+      }
+   }
+
+   /**
+    * Open a UTF-8 text file, decompressing it if its name ends with
+    * {@link #GZIP_EXTENSION} or {@link #ZSTD_EXTENSION}
+    * 
+    * @param fqFilename
+    *           fully qualified name of the text file to be opened
+    * @return open buffered reader to allow individual lines of a text file to
+    *         be read
+    * @throws Exception
+    * @see #closeTextFile(BufferedReader) to close the reader returned by this
+    *      function
+    */
+   static public BufferedReader openTextFile(String fqFilename)
+      throws Exception {
+      return new BufferedReader(
+         new InputStreamReader(openInputStream(fqFilename), UTF8_CHARSET),
+         IO_BUFFER_SIZE);
    }
 
    /**
@@ -1068,8 +1211,31 @@ public class MaskerUtils implements Serializable {
    }
 
    /**
-    * Save the specified JSONObject in serialized form to the specified file or
-    * throw the appropriate exception.
+    * Remove a trailing {@link #GZIP_EXTENSION} or {@link #ZSTD_EXTENSION} from
+    * the file name (e.g., dialogs-2019-12-19.json.gz becomes
+    * dialogs-2019-12-19.json)
+    * 
+    * @param fileName
+    *           name of the file
+    * @return the file name without its compression extension
+    */
+   static public String removeCompressionExtension(String fileName) {
+      String compression = getCompression(fileName);
+      if (COMPRESSION_GZIP.equals(compression)) {
+         return fileName.substring(0,
+            fileName.length() - GZIP_EXTENSION.length());
+      }
+      if (COMPRESSION_ZSTD.equals(compression)) {
+         return fileName.substring(0,
+            fileName.length() - ZSTD_EXTENSION.length());
+      }
+      return fileName;
+   }
+
+   /**
+    * Save the specified JSONObject in pretty printed serialized form to the
+    * specified file or throw the appropriate exception. The file is compressed
+    * if its name ends with {@link #GZIP_EXTENSION} or {@link #ZSTD_EXTENSION}.
     * 
     * @param jsonFileName
     *           fully qualified name of the JSON file to be saved
@@ -1081,6 +1247,33 @@ public class MaskerUtils implements Serializable {
     */
    static public JSONObject saveJSONFile(String jsonFileName,
       JSONObject jsonData) throws Exception {
+      return saveJSONFile(jsonFileName, jsonData, true,
+         getCompression(jsonFileName));
+   }
+
+   /**
+    * Save the specified JSONObject in serialized form to the specified file or
+    * throw the appropriate exception. The UTF-8 serialization is streamed to
+    * the file rather than built as a String first.
+    * 
+    * @param jsonFileName
+    *           fully qualified name of the JSON file to be saved (including
+    *           any compression extension)
+    * @param jsonData
+    *           the JSONObject to be saved to a file.
+    * @param pretty
+    *           true if the JSON should be indented for readability, false for
+    *           compact JSON
+    * @param compression
+    *           {@link #COMPRESSION_NONE}, {@link #COMPRESSION_GZIP} or
+    *           {@link #COMPRESSION_ZSTD}
+    * @return the jsonData that was saved
+    * @throws Exception
+    *            {@link IOException}) if there is a problem writing the file
+    */
+   static public JSONObject saveJSONFile(String jsonFileName,
+      JSONObject jsonData, boolean pretty, String compression)
+      throws Exception {
       if (jsonData == null) {
          throw new InvalidObjectException("jsonData is null");
       }
@@ -1088,22 +1281,23 @@ public class MaskerUtils implements Serializable {
          throw new InvalidTargetObjectTypeException(
             "Output filename is null or empty.");
       }
-      BufferedWriter br = null;
+      OutputStream os = null;
       try {
-         File outputFile = new File(jsonFileName);
+         os = openOutputStream(jsonFileName, compression);
          // write the JSON file
-         br = new BufferedWriter(new FileWriter(outputFile));
-         br.write(jsonData.serialize(true));
+         jsonData.serialize(os, pretty);
+         os.close();
+         os = null;
       } catch (IOException e) {
          throw new IOException("Can not write file \"" + jsonFileName + "\"",
             e);
       } finally {
          try {
-            if (br != null) {
-               br.close();
+            if (os != null) {
+               os.close();
             }
          } catch (IOException e) {
-            // error trying to close writer ...
+            // error trying to close stream ...
          }
       }
 
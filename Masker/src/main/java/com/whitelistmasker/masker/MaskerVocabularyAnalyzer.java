@@ -0,0 +1,797 @@
+/**
+ * (c) Copyright 2020-2023 IBM Corporation
+ * 1 New Orchard Road, 
+ * Armonk, New York, 10504-1722
+ * United States
+ * +1 914 499 1900
+ * Nathaniel Mills wnm3@us.ibm.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package com.whitelistmasker.masker;
+
+import java.io.File;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.text.NumberFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.regex.Pattern;
+
+import com.api.json.JSONArray;
+import com.api.json.JSONObject;
+
+/**
+ * Scans a corpus of dialog files in parallel to rank the words the Masker
+ * would mask, by category, as candidates for whitelist curation. Messages are
+ * masked by {@link Masker#maskMessage(String, JSONObject, int, JSONObject,
+ * JSONObject, JSONObject, JSONObject, List, List, List, List, List, Boolean)}
+ * while this thread collects the tokens it masks and their categories, so the
+ * tokens are exactly those the Masker would mask. The first pass counts every masked token in a fixed size Count-Min sketch
+ * and keeps a bounded set of the tokens with the highest estimates in each
+ * category. The second pass counts those candidates exactly and collects
+ * example contexts, so memory stays fixed however many tokens the corpus
+ * holds. Tokens outside the head are only reflected in the sketch, whose
+ * estimates never undercount.
+ */
+public class MaskerVocabularyAnalyzer {
+
+	/**
+	 * Count-Min sketch of token counts shared by the scanning threads
+	 */
+	static class CountMinSketch {
+
+		final AtomicLongArray _counts;
+		final int _depth;
+		final int _mask;
+		final int _width;
+
+		/**
+		 * Constructor
+		 * 
+		 * @param width
+		 *              counters per row (rounded up to a power of 2)
+		 * @param depth
+		 *              number of rows (independent hashes)
+		 */
+		CountMinSketch(int width, int depth) {
+			int w = Integer.highestOneBit(Math.max(width, 2) - 1) << 1;
+			_width = w;
+			_mask = w - 1;
+			_depth = depth;
+			_counts = new AtomicLongArray(w * depth);
+		}
+
+		/**
+		 * Add to the token's count
+		 * 
+		 * @param token
+		 *              token to be counted
+		 * @param count
+		 *              occurrences to add
+		 * @return the token's estimated count after adding
+		 */
+		long add(String token, long count) {
+			long hash = hash64(token);
+			long estimate = Long.MAX_VALUE;
+			for (int row = 0; row < _depth; row++) {
+				long value = _counts.addAndGet(row * _width + index(hash, row), count);
+				if (value < estimate) {
+					estimate = value;
+				}
+			}
+			return estimate;
+		}
+
+		/**
+		 * @param token
+		 *              token to be estimated
+		 * @return the token's estimated count (never less than its actual count)
+		 */
+		long estimate(String token) {
+			long hash = hash64(token);
+			long estimate = Long.MAX_VALUE;
+			for (int row = 0; row < _depth; row++) {
+				long value = _counts.get(row * _width + index(hash, row));
+				if (value < estimate) {
+					estimate = value;
+				}
+			}
+			return estimate;
+		}
+
+		/**
+		 * @param hash
+		 *             64 bit hash of the token
+		 * @param row
+		 *             row of the sketch
+		 * @return the token's counter in the row
+		 */
+		int index(long hash, int row) {
+			long x = hash + (row + 1) * 0x9E3779B97F4A7C15L;
+			x = (x ^ (x >>> 33)) * 0xFF51AFD7ED558CCDL;
+			x = (x ^ (x >>> 33)) * 0xC4CEB9FE1A85EC53L;
+			x ^= x >>> 33;
+			return (int) x & _mask;
+		}
+
+		/**
+		 * @return the number of counters per row
+		 */
+		int getWidth() {
+			return _width;
+		}
+	}
+
+	/**
+	 * Bounded set of the tokens in a category with the highest estimated counts
+	 */
+	static class HeadCandidates {
+
+		final Map<String, Long> _estimates = new HashMap<String, Long>();
+		final int _keep;
+		volatile long _threshold = 0L;
+
+		/**
+		 * Constructor
+		 * 
+		 * @param keep
+		 *             number of candidates kept when the set is pruned (it may
+		 *             grow to twice this size between prunings)
+		 */
+		HeadCandidates(int keep) {
+			_keep = keep;
+		}
+
+		/**
+		 * @return the candidate tokens
+		 */
+		synchronized List<String> getTokens() {
+			prune(_keep);
+			return new ArrayList<String>(_estimates.keySet());
+		}
+
+		/**
+		 * Offer the token with its current estimate
+		 * 
+		 * @param token
+		 *                 token
+		 * @param estimate
+		 *                 estimated count of the token
+		 */
+		void offer(String token, long estimate) {
+			if (estimate < _threshold) {
+				return;
+			}
+			synchronized (this) {
+				_estimates.put(token, estimate);
+				if (_estimates.size() >= 2 * _keep) {
+					prune(_keep);
+				}
+			}
+		}
+
+		/**
+		 * Keep only the tokens with the highest estimates, raising the threshold a
+		 * token must reach to be offered
+		 * 
+		 * @param keep
+		 *             number of tokens kept
+		 */
+		void prune(int keep) {
+			if (_estimates.size() <= keep) {
+				return;
+			}
+			List<Map.Entry<String, Long>> entries = new ArrayList<Map.Entry<String, Long>>(_estimates.entrySet());
+			Collections.sort(entries, new Comparator<Map.Entry<String, Long>>() {
+
+				@Override
+				public int compare(Map.Entry<String, Long> o1, Map.Entry<String, Long> o2) {
+					// reverse sort largest first
+					return Long.compare(o2.getValue(), o1.getValue());
+				}
+
+			});
+			for (int i = keep; i < entries.size(); i++) {
+				_estimates.remove(entries.get(i).getKey());
+			}
+			_threshold = entries.get(keep - 1).getValue();
+		}
+	}
+
+	/**
+	 * Exact count and earliest example contexts of a head token
+	 */
+	static class HeadToken {
+
+		final int _category;
+		long _count = 0L;
+		final List<long[]> _exampleOrder = new ArrayList<long[]>();
+		final List<String> _examples = new ArrayList<String>();
+		final String _token;
+
+		HeadToken(String token, int category) {
+			_token = token;
+			_category = category;
+		}
+
+		/**
+		 * Add the file's occurrences of the token and keep the examples found
+		 * earliest in the corpus (so the report does not depend on thread timing)
+		 * 
+		 * @param count
+		 *                 occurrences in the file
+		 * @param order
+		 *                 position of each example in the corpus
+		 * @param examples
+		 *                 example contexts from the file
+		 */
+		synchronized void add(long count, List<long[]> order, List<String> examples) {
+			_count += count;
+			for (int i = 0; i < examples.size(); i++) {
+				int insert = _examples.size();
+				while (insert > 0 && compareOrder(order.get(i), _exampleOrder.get(insert - 1)) < 0) {
+					insert--;
+				}
+				if (insert < MAX_EXAMPLES) {
+					_exampleOrder.add(insert, order.get(i));
+					_examples.add(insert, examples.get(i));
+					if (_examples.size() > MAX_EXAMPLES) {
+						_exampleOrder.remove(MAX_EXAMPLES);
+						_examples.remove(MAX_EXAMPLES);
+					}
+				}
+			}
+		}
+	}
+
+	static public final int BAD = 2;
+
+	static public final String[] CATEGORIES = { "name", "geo", "bad", "num", "misc", "url" };
+
+	static final int CONTEXT_CHARS = 40;
+
+	static public final int DEFAULT_HEAD_SIZE = 1000;
+
+	static public final int DEFAULT_SKETCH_DEPTH = 4;
+
+	static public final int DEFAULT_SKETCH_WIDTH = 1 << 22;
+
+	static public final int GEO = 1;
+
+	static final int MAX_EXAMPLES = 3;
+
+	static public final int MISC = 4;
+
+	static public final int NAME = 0;
+
+	static public final int NUM = 3;
+
+	static public final int URL = 5;
+
+	// counts (category and count) of the tokens masked on this thread (when
+	// analyzing)
+	static final ThreadLocal<Map<String, long[]>> _collector = new ThreadLocal<Map<String, long[]>>();
+
+	/**
+	 * Count the token masked by the Masker if this thread is collecting masked
+	 * tokens
+	 * 
+	 * @param token
+	 *                 lowercase token
+	 * @param category
+	 *                 index of the token's category in {@link #CATEGORIES}
+	 */
+	static public void collect(String token, int category) {
+		Map<String, long[]> counts = _collector.get();
+		if (counts != null) {
+			long[] count = counts.get(token);
+			if (count == null) {
+				count = new long[] { category, 0L };
+				counts.put(token, count);
+			}
+			count[1]++;
+		}
+	}
+
+	/**
+	 * @return true if this thread is collecting masked tokens
+	 */
+	static public boolean isCollecting() {
+		return _collector.get() != null;
+	}
+
+	/**
+	 * @param o1
+	 *           first corpus position (file, message)
+	 * @param o2
+	 *           second corpus position (file, message)
+	 * @return negative, zero or positive as o1 is before, at or after o2
+	 */
+	static int compareOrder(long[] o1, long[] o2) {
+		if (o1[0] != o2[0]) {
+			return Long.compare(o1[0], o2[0]);
+		}
+		return Long.compare(o1[1], o2[1]);
+	}
+
+	/**
+	 * @param token
+	 *              token to be hashed
+	 * @return 64 bit FNV-1a hash of the token's characters
+	 */
+	static long hash64(String token) {
+		long hash = 0xCBF29CE484222325L;
+		for (int i = 0; i < token.length(); i++) {
+			hash ^= token.charAt(i);
+			hash *= 0x100000001B3L;
+		}
+		return hash;
+	}
+
+	/**
+	 * Main entry point to analyze the vocabulary of a dialog corpus
+	 * 
+	 * @param args
+	 *             the tenant ID, the directory containing the dialog files
+	 *             (ending with .json, .json.gz or .json.zst), the output
+	 *             directory for the reports, and optionally the number of
+	 *             threads (default the number of processors), the number of
+	 *             candidates reported per category (default 1000) and the width
+	 *             of the Count-Min sketch (default 4194304 counters per row).
+	 *             Missing required arguments are prompted for.
+	 */
+	public static void main(String[] args) {
+		System.out.println("Masker Vocabulary Analyzer");
+		String tenantID = "companyA";
+		String inputPath = "." + File.separator + "Dialogs";
+		String outputPath = "." + File.separator + "Masked";
+		String tmp = null;
+		if (args.length >= 1) {
+			tenantID = args[0];
+		} else {
+			tmp = MaskerUtils.prompt("Enter tenant id or q to quit (" + tenantID + "):");
+			if ("q".equalsIgnoreCase(tmp)) {
+				System.out.println("Goodbye");
+				return;
+			}
+			if (tmp.length() != 0) {
+				tenantID = tmp;
+			}
+		}
+		if (args.length >= 2) {
+			inputPath = args[1].trim();
+		} else {
+			tmp = MaskerUtils.prompt(
+					"Enter the fully qualified path to directory containing dialog files, or q to exit (" + inputPath + "):");
+			if ("q".equalsIgnoreCase(tmp)) {
+				System.out.println("Goodbye");
+				return;
+			}
+			if (tmp.length() != 0) {
+				inputPath = tmp;
+			}
+		}
+		if (args.length >= 3) {
+			outputPath = args[2].trim();
+		} else {
+			tmp = MaskerUtils.prompt(
+					"Enter the fully qualified path to the output directory, or q to exit (" + outputPath + "):");
+			if ("q".equalsIgnoreCase(tmp)) {
+				System.out.println("Goodbye");
+				return;
+			}
+			if (tmp.length() != 0) {
+				outputPath = tmp;
+			}
+		}
+		if (outputPath.endsWith(File.separator) == false) {
+			outputPath += File.separator;
+		}
+		int threads = Runtime.getRuntime().availableProcessors();
+		int headSize = DEFAULT_HEAD_SIZE;
+		int sketchWidth = DEFAULT_SKETCH_WIDTH;
+		try {
+			if (args.length >= 4) {
+				threads = Integer.valueOf(args[3].trim());
+			}
+			if (args.length >= 5) {
+				headSize = Integer.valueOf(args[4].trim());
+			}
+			if (args.length >= 6) {
+				sketchWidth = Integer.valueOf(args[5].trim());
+			}
+			if (threads < 1 || headSize < 1 || sketchWidth < 2) {
+				throw new NumberFormatException();
+			}
+		} catch (NumberFormatException nfe) {
+			System.out.println("The threads, candidates per category and sketch width must be positive integers.");
+			System.out.println("Goodbye");
+			return;
+		}
+		if (new File(outputPath).isDirectory() == false) {
+			System.out.println("The output directory \"" + outputPath + "\" must be an existing directory.");
+			System.out.println("Goodbye");
+			return;
+		}
+		try {
+			MaskerVocabularyAnalyzer analyzer = new MaskerVocabularyAnalyzer(tenantID, headSize, sketchWidth,
+					DEFAULT_SKETCH_DEPTH);
+			List<Path> files = MaskerUtils.listSourceFiles(FileSystems.getDefault().getPath(inputPath),
+					"json,json" + MaskerUtils.GZIP_EXTENSION + ",json" + MaskerUtils.ZSTD_EXTENSION);
+			Collections.sort(files);
+			analyzer.analyze(files, threads);
+			analyzer.writeReports(outputPath);
+		} catch (Exception e) {
+			System.out.println("Can not analyze the dialogs in " + inputPath + " reason: " + e.getLocalizedMessage());
+		}
+		System.out.println("Goodbye");
+	}
+
+	final long[] _categoryTotals = new long[CATEGORIES.length];
+	final HeadCandidates[] _candidates = new HeadCandidates[CATEGORIES.length];
+	final List<String> _domainPrefixList;
+	final List<String> _domainSuffixList;
+	final AtomicLong _failedFiles = new AtomicLong();
+	final NumberFormat _formatter = NumberFormat.getInstance(Locale.US);
+	final JSONObject _geolocations;
+	Map<String, HeadToken> _head = null;
+	final int _headSize;
+	final List<String> _masks;
+	final boolean _maskNumbers;
+	final JSONObject _names;
+	final List<Pattern> _patterns;
+	final JSONObject _profanities;
+	final List<String> _queryStringContainsList;
+	final CountMinSketch _sketch;
+	final AtomicLong _tokens = new AtomicLong();
+	final JSONObject _whitelist;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param tenantID
+	 *                    tenant whose lexicon and templates are used
+	 * @param headSize
+	 *                    number of candidates reported per category
+	 * @param sketchWidth
+	 *                    counters per row of the Count-Min sketch
+	 * @param sketchDepth
+	 *                    rows of the Count-Min sketch
+	 * @throws Exception
+	 *                   if the tenant is not known
+	 */
+	public MaskerVocabularyAnalyzer(String tenantID, int headSize, int sketchWidth, int sketchDepth)
+			throws Exception {
+		_whitelist = Masker._mapWhitelistObjs.get(tenantID);
+		if (_whitelist == null) {
+			throw new Exception("No lexicon was loaded for the tenantID \"" + tenantID + "\"");
+		}
+		_names = Masker._mapNameObjs.get(tenantID);
+		_geolocations = Masker._mapGeoLocationsObjs.get(tenantID);
+		_profanities = Masker._mapProfanityObjs.get(tenantID);
+		_domainPrefixList = Masker._mapDomainPrefixLists.get(tenantID);
+		_domainSuffixList = Masker._mapDomainSuffixLists.get(tenantID);
+		_queryStringContainsList = Masker._mapQueryStringLists.get(tenantID);
+		synchronized (Masker._initializing) {
+			_patterns = new ArrayList<Pattern>(Masker._mapPatternsList.get(tenantID));
+			_masks = new ArrayList<String>(Masker._mapMasksList.get(tenantID));
+		}
+		Boolean maskNumbers = Masker._mapMaskNumbers.get(tenantID);
+		_maskNumbers = (maskNumbers == null ? true : maskNumbers);
+		_headSize = headSize;
+		_sketch = new CountMinSketch(sketchWidth, sketchDepth);
+		for (int i = 0; i < CATEGORIES.length; i++) {
+			_candidates[i] = new HeadCandidates(2 * headSize);
+		}
+		_formatter.setMaximumFractionDigits(2);
+		_formatter.setMinimumFractionDigits(2);
+	}
+
+	/**
+	 * Scan the files in two passes: first to estimate the counts of all masked
+	 * tokens and find the candidates for each category's head, then to count the
+	 * candidates exactly and collect their examples
+	 * 
+	 * @param files
+	 *                dialog files to be scanned
+	 * @param threads
+	 *                number of files scanned concurrently
+	 * @throws Exception
+	 *                   if a scan is interrupted
+	 */
+	public void analyze(List<Path> files, int threads) throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			int _count = 0;
+
+			@Override
+			public synchronized Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "masker-vocabulary-" + (++_count));
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		try {
+			long start = System.currentTimeMillis();
+			System.out.println("Estimating masked token counts in " + files.size() + " files using " + threads
+					+ " threads.");
+			runPass(executor, files, false);
+			System.out.println("Scanned " + _tokens.get() + " tokens in " + (System.currentTimeMillis() - start)
+					+ " ms. Counting the candidates exactly.");
+			_head = new HashMap<String, HeadToken>();
+			for (int i = 0; i < CATEGORIES.length; i++) {
+				for (String token : _candidates[i].getTokens()) {
+					_head.put(token, new HeadToken(token, i));
+				}
+			}
+			runPass(executor, files, true);
+			System.out.println("Finished in " + (System.currentTimeMillis() - start) + " ms.");
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * @param message
+	 *                message with templates applied
+	 * @param token
+	 *                lowercase token found in the message
+	 * @return the text surrounding the token's first occurrence
+	 */
+	String getContext(String message, String token) {
+		int index = message.toLowerCase().indexOf(token);
+		if (index == -1) {
+			index = 0;
+		}
+		int start = Math.max(0, index - CONTEXT_CHARS);
+		int end = Math.min(message.length(), index + token.length() + CONTEXT_CHARS);
+		String context = message.substring(start, end).replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+		return (start > 0 ? "..." : "") + context + (end < message.length() ? "..." : "");
+	}
+
+	/**
+	 * Apply the tenant's templates to the message as Masker.maskMessage does (so
+	 * examples do not show the content the templates mask)
+	 * 
+	 * @param msg
+	 *            message
+	 * @return message with template matches replaced by their masks
+	 */
+	String applyTemplates(String msg) {
+		for (int i = 0; i < _patterns.size(); i++) {
+			String maskedMsg = Masker.applyTemplate(_patterns.get(i), msg, _masks.get(i));
+			if (maskedMsg != null) {
+				msg = maskedMsg;
+			}
+		}
+		return msg;
+	}
+
+	/**
+	 * Scan all files in parallel
+	 * 
+	 * @param executor
+	 *                 executor running the scans
+	 * @param files
+	 *                 dialog files
+	 * @param exact
+	 *                 false to estimate all counts, true to count the head
+	 *                 candidates exactly
+	 * @throws Exception
+	 *                   if the scan is interrupted
+	 */
+	void runPass(ExecutorService executor, List<Path> files, final boolean exact) throws Exception {
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		for (int i = 0; i < files.size(); i++) {
+			final Path file = files.get(i);
+			final int fileIndex = i;
+			futures.add(executor.submit(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						scanFile(file, fileIndex, exact);
+					} catch (Exception e) {
+						if (exact == false) {
+							_failedFiles.incrementAndGet();
+						}
+						System.out.println("Skipping " + file + ": " + e.getLocalizedMessage());
+					}
+				}
+			}));
+		}
+		for (Future<?> future : futures) {
+			future.get();
+		}
+	}
+
+	/**
+	 * Scan the messages of a dialog file, adding its masked tokens to the sketch
+	 * (first pass) or its head tokens to their exact counts (second pass)
+	 * 
+	 * @param file
+	 *                  dialog file
+	 * @param fileIndex
+	 *                  position of the file in the corpus
+	 * @param exact
+	 *                  false for the first pass, true for the second
+	 * @throws Exception
+	 *                   if the file can not be read
+	 */
+	void scanFile(Path file, int fileIndex, boolean exact) throws Exception {
+		JSONObject dialogsObj = MaskerUtils.loadJSONFile(file.toString());
+		JSONArray dialogs = (dialogsObj == null ? null : (JSONArray) dialogsObj.get("dialogs"));
+		if (dialogs == null) {
+			return;
+		}
+		Map<String, long[]> counts = new HashMap<String, long[]>();
+		Map<String, List<long[]>> exampleOrder = new HashMap<String, List<long[]>>();
+		Map<String, List<String>> examples = new HashMap<String, List<String>>();
+		JSONObject maskCounts = Masker.newCounts();
+		long messageIndex = 0L;
+		for (Object dialogObject : dialogs) {
+			JSONObject dialogContent = (JSONObject) ((JSONObject) dialogObject).get("dialogContent");
+			JSONArray volleys = (dialogContent == null ? null : (JSONArray) dialogContent.get("dialog"));
+			if (volleys == null) {
+				continue;
+			}
+			int volleyCount = 0;
+			for (Object volleyObject : volleys) {
+				String msg = (String) ((JSONObject) volleyObject).get("message");
+				if (msg == null) {
+					continue;
+				}
+				Map<String, long[]> messageCounts = (exact ? new HashMap<String, long[]>() : counts);
+				// collect the tokens as the Masker masks them
+				_collector.set(messageCounts);
+				try {
+					Masker.maskMessage(msg, maskCounts, volleyCount++, _whitelist, _names, _geolocations,
+							_profanities, _queryStringContainsList, _domainPrefixList, _domainSuffixList, _patterns,
+							_masks, _maskNumbers);
+				} finally {
+					_collector.remove();
+				}
+				if (exact) {
+					if (messageCounts.isEmpty() == false) {
+						msg = applyTemplates(msg);
+					}
+					for (Map.Entry<String, long[]> entry : messageCounts.entrySet()) {
+						String token = entry.getKey();
+						if (_head.containsKey(token) == false) {
+							continue;
+						}
+						long[] count = counts.get(token);
+						if (count == null) {
+							counts.put(token, entry.getValue());
+						} else {
+							count[1] += entry.getValue()[1];
+						}
+						List<String> tokenExamples = examples.get(token);
+						if (tokenExamples == null) {
+							tokenExamples = new ArrayList<String>();
+							examples.put(token, tokenExamples);
+							exampleOrder.put(token, new ArrayList<long[]>());
+						}
+						if (tokenExamples.size() < MAX_EXAMPLES) {
+							tokenExamples.add(getContext(msg, token));
+							exampleOrder.get(token).add(new long[] { fileIndex, messageIndex });
+						}
+					}
+				}
+				messageIndex++;
+			}
+		}
+		if (exact) {
+			for (Map.Entry<String, long[]> entry : counts.entrySet()) {
+				String token = entry.getKey();
+				_head.get(token).add(entry.getValue()[1], exampleOrder.get(token), examples.get(token));
+			}
+			return;
+		}
+		_tokens.addAndGet((Long) maskCounts.get("words"));
+		long[] categoryTotals = new long[CATEGORIES.length];
+		for (Map.Entry<String, long[]> entry : counts.entrySet()) {
+			long[] count = entry.getValue();
+			int category = (int) count[0];
+			categoryTotals[category] += count[1];
+			_candidates[category].offer(entry.getKey(), _sketch.add(entry.getKey(), count[1]));
+		}
+		synchronized (_categoryTotals) {
+			for (int i = 0; i < CATEGORIES.length; i++) {
+				_categoryTotals[i] += categoryTotals[i];
+			}
+		}
+	}
+
+	/**
+	 * Write a report for each category ranking its head tokens by their exact
+	 * counts with example contexts, as tab separated rank, count, token and
+	 * examples (separated by " | ")
+	 * 
+	 * @param outputPath
+	 *                   directory for the reports (ending with the file
+	 *                   separator)
+	 * @throws Exception
+	 *                   if a report can not be written
+	 */
+	public void writeReports(String outputPath) throws Exception {
+		List<List<HeadToken>> ranked = new ArrayList<List<HeadToken>>();
+		for (int i = 0; i < CATEGORIES.length; i++) {
+			ranked.add(new ArrayList<HeadToken>());
+		}
+		for (HeadToken headToken : _head.values()) {
+			if (headToken._count > 0) {
+				ranked.get(headToken._category).add(headToken);
+			}
+		}
+		long masked = 0L;
+		for (long categoryTotal : _categoryTotals) {
+			masked += categoryTotal;
+		}
+		long errorBound = (long) Math.ceil(Math.E * masked / _sketch.getWidth());
+		System.out.println("Count-Min estimates exceed exact counts by at most " + errorBound
+				+ " with probability " + _formatter.format(100.0d * (1.0d - Math.exp(-_sketch._depth))) + "%");
+		for (int i = 0; i < CATEGORIES.length; i++) {
+			List<HeadToken> tokens = ranked.get(i);
+			Collections.sort(tokens, new Comparator<HeadToken>() {
+
+				@Override
+				public int compare(HeadToken o1, HeadToken o2) {
+					// reverse sort largest first, then alphabetically
+					int result = Long.compare(o2._count, o1._count);
+					return (result != 0 ? result : o1._token.compareTo(o2._token));
+				}
+
+			});
+			StringBuffer sb = new StringBuffer();
+			long headTotal = 0L;
+			for (int rank = 0; rank < tokens.size() && rank < _headSize; rank++) {
+				HeadToken headToken = tokens.get(rank);
+				headTotal += headToken._count;
+				sb.append(rank + 1).append('\t').append(headToken._count).append('\t').append(headToken._token)
+						.append('\t');
+				for (int j = 0; j < headToken._examples.size(); j++) {
+					if (j > 0) {
+						sb.append(" | ");
+					}
+					sb.append(headToken._examples.get(j));
+				}
+				sb.append('\n');
+			}
+			String fileName = outputPath + "vocabulary-" + CATEGORIES[i] + ".tsv";
+			MaskerUtils.saveTextFile(fileName, sb.toString());
+			double pct = (_categoryTotals[i] == 0L ? 0.0d : (100.0d * headTotal) / _categoryTotals[i]);
+			System.out.println("Wrote " + fileName + " ranking " + Math.min(tokens.size(), _headSize) + " tokens covering "
+					+ headTotal + " of " + _categoryTotals[i] + " masked " + CATEGORIES[i] + " occurrences ("
+					+ _formatter.format(pct) + "%)");
+		}
+		if (_failedFiles.get() != 0L) {
+			System.out.println(_failedFiles.get() + " files could not be read.");
+		}
+	}
+
+}
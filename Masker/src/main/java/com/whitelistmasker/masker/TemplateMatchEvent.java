@@ -0,0 +1,58 @@
+/**
+ * (c) Copyright 2020-2023 IBM Corporation
+ * 1 New Orchard Road, 
+ * Armonk, New York, 10504-1722
+ * United States
+ * +1 914 499 1900
+ * Nathaniel Mills wnm3@us.ibm.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.whitelistmasker.masker;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java Flight Recorder event committed for each template applied to a line,
+ * recording whether the template matched (and its mask was applied) or was
+ * skipped. It is disabled by default because it is committed per line and per
+ * template; enable it in the recording settings (e.g.,
+ * com.whitelistmasker.TemplateMatch#enabled=true) to find slow templates.
+ */
+@Name("com.whitelistmasker.TemplateMatch")
+@Label("Template Match")
+@Category({ "WhitelistMasker" })
+@Description("Regex template applied to a line being masked")
+@StackTrace(false)
+@Enabled(false)
+public class TemplateMatchEvent extends jdk.jfr.Event {
+
+	@Label("Tenant")
+	String tenant;
+
+	@Label("Template")
+	String template;
+
+	@Label("Mask")
+	String mask;
+
+	@Label("Matched")
+	@Description("true if the template matched and was applied, false if it was skipped")
+	boolean matched;
+}
@@ -0,0 +1,263 @@
+/**
+ * (c) Copyright 2020-2023 IBM Corporation
+ * 1 New Orchard Road, 
+ * Armonk, New York, 10504-1722
+ * United States
+ * +1 914 499 1900
+ * Nathaniel Mills wnm3@us.ibm.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package com.whitelistmasker.masker;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.api.json.JSONObject;
+
+/**
+ * The lexicon used to mask a tenant's words: the whitelist, names,
+ * geolocations and profanities, and the URL domain prefix, domain suffix and
+ * query string filters. When the Masker writes a token index, a snapshot of
+ * the lexicon files is kept in the maskerLexicon directory of the output
+ * directory (named by the lexicon hash recorded in the run manifest) so a later
+ * lexicon can be compared with the one used to mask each file.
+ */
+public class TenantLexicon {
+
+	static public final String LEXICON_DIR = "maskerLexicon";
+
+	/**
+	 * Names of the files in a lexicon snapshot, in the order of
+	 * {@link Masker#getLexiconFileNames()}
+	 */
+	static public final String[] SNAPSHOT_FILES = { "whitelist-words.json", "names.json", "geolocations.json",
+			"profanities.json", "DomainPrefixes.txt", "DomainSuffixes.txt", "QueryStringContains.txt" };
+
+	/**
+	 * Token reported by {@link #diff(TenantLexicon)} when the URL filters change,
+	 * and indexed for every file containing a URL. It contains a space so it can
+	 * not collide with a word.
+	 */
+	static public final String URL_TOKEN = " url";
+
+	/**
+	 * Load the lexicon from its files
+	 * 
+	 * @param fileNames
+	 *                  fully qualified names of the whitelist, names,
+	 *                  geolocations, profanities, domain prefixes, domain
+	 *                  suffixes and query string contains files (in that order)
+	 * @return the lexicon
+	 * @throws Exception
+	 *                   if a file can not be loaded
+	 */
+	static public TenantLexicon load(List<String> fileNames) throws Exception {
+		if (fileNames.size() != SNAPSHOT_FILES.length) {
+			throw new Exception(
+					"Expected " + SNAPSHOT_FILES.length + " lexicon files but received " + fileNames.size());
+		}
+		JSONObject whitelist = MaskerUtils.loadJSONFile(fileNames.get(0));
+		if (whitelist == null) {
+			throw new Exception("Can not find the whitelist key in the file " + fileNames.get(0));
+		}
+		return new TenantLexicon(whitelist, MaskerUtils.loadJSONFile(fileNames.get(1)),
+				MaskerUtils.loadJSONFile(fileNames.get(2)), MaskerUtils.loadJSONFile(fileNames.get(3)),
+				loadFilters(fileNames.get(4)), loadFilters(fileNames.get(5)), loadFilters(fileNames.get(6)));
+	}
+
+	/**
+	 * Load the lowercase filters from the file, ignoring lines starting with an
+	 * underscore
+	 * 
+	 * @param fileName
+	 *                 fully qualified name of the filter file
+	 * @return list of filters
+	 * @throws Exception
+	 *                   if the file can not be read
+	 */
+	static List<String> loadFilters(String fileName) throws Exception {
+		List<String> filters = new ArrayList<String>();
+		for (String filter : MaskerUtils.loadTextFile(fileName)) {
+			if (filter.startsWith("_")) {
+				continue;
+			}
+			filters.add(filter.toLowerCase());
+		}
+		return filters;
+	}
+
+	/**
+	 * Load the lexicon snapshot saved for the lexicon hash
+	 * 
+	 * @param outputPath
+	 *                    output directory of the Masker run (ending with the file
+	 *                    separator)
+	 * @param lexiconHash
+	 *                    hash of the lexicon files recorded in the run manifest
+	 * @return the lexicon, or null if no snapshot was saved for the hash
+	 * @throws Exception
+	 *                   if the snapshot can not be loaded
+	 */
+	static public TenantLexicon loadSnapshot(String outputPath, String lexiconHash) throws Exception {
+		Path snapshotDir = Paths.get(outputPath, LEXICON_DIR, lexiconHash);
+		if (Files.isDirectory(snapshotDir) == false) {
+			return null;
+		}
+		List<String> fileNames = new ArrayList<String>();
+		for (String snapshotFile : SNAPSHOT_FILES) {
+			fileNames.add(snapshotDir.resolve(snapshotFile).toString());
+		}
+		return load(fileNames);
+	}
+
+	/**
+	 * Save a snapshot of the lexicon files unless one was already saved for the
+	 * lexicon hash. The files are copied to a temporary directory that is renamed
+	 * once complete so a partial snapshot is never used.
+	 * 
+	 * @param outputPath
+	 *                    output directory of the Masker run (ending with the file
+	 *                    separator)
+	 * @param lexiconHash
+	 *                    hash of the lexicon files recorded in the run manifest
+	 * @param fileNames
+	 *                    fully qualified names of the lexicon files in the order
+	 *                    of {@link #SNAPSHOT_FILES}
+	 * @throws Exception
+	 *                   if the files can not be copied
+	 */
+	static public void saveSnapshot(String outputPath, String lexiconHash, List<String> fileNames) throws Exception {
+		Path snapshotDir = Paths.get(outputPath, LEXICON_DIR, lexiconHash);
+		if (Files.isDirectory(snapshotDir)) {
+			return;
+		}
+		Path tempDir = Paths.get(outputPath, LEXICON_DIR, lexiconHash + ".tmp");
+		Files.createDirectories(tempDir);
+		for (int i = 0; i < SNAPSHOT_FILES.length; i++) {
+			Files.copy(Paths.get(fileNames.get(i)), tempDir.resolve(SNAPSHOT_FILES[i]),
+					StandardCopyOption.REPLACE_EXISTING);
+		}
+		Files.move(tempDir, snapshotDir, StandardCopyOption.ATOMIC_MOVE);
+		System.out.println("Saved lexicon snapshot to " + snapshotDir + File.separator);
+	}
+
+	final List<String> _domainPrefixList;
+	final List<String> _domainSuffixList;
+	final JSONObject _geolocations;
+	final JSONObject _names;
+	final JSONObject _profanities;
+	final List<String> _queryStringContainsList;
+	final JSONObject _whitelist;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param whitelist
+	 *                                whitelist words
+	 * @param names
+	 *                                name words
+	 * @param geolocations
+	 *                                geolocation words
+	 * @param profanities
+	 *                                profanity words
+	 * @param domainPrefixList
+	 *                                domain prefix filters
+	 * @param domainSuffixList
+	 *                                domain suffix filters
+	 * @param queryStringContainsList
+	 *                                query string contains filters
+	 */
+	public TenantLexicon(JSONObject whitelist, JSONObject names, JSONObject geolocations, JSONObject profanities,
+			List<String> domainPrefixList, List<String> domainSuffixList, List<String> queryStringContainsList) {
+		_whitelist = whitelist;
+		_names = (names == null ? new JSONObject() : names);
+		_geolocations = (geolocations == null ? new JSONObject() : geolocations);
+		_profanities = (profanities == null ? new JSONObject() : profanities);
+		_domainPrefixList = domainPrefixList;
+		_domainSuffixList = domainSuffixList;
+		_queryStringContainsList = queryStringContainsList;
+	}
+
+	/**
+	 * Determine how the Masker treats the lowercase token with this lexicon
+	 * (ignoring the mask templates, which are not part of the lexicon)
+	 * 
+	 * @param token
+	 *              lowercase token
+	 * @return null if the token is whitelisted, otherwise the mask used for the
+	 *         token (with {@link Masker#_maskMisc} standing for both numbers and
+	 *         other words)
+	 */
+	public String classify(String token) {
+		if (_whitelist.get(token) != null) {
+			return null;
+		}
+		if (_names.get(token) != null) {
+			return Masker._maskName;
+		}
+		if (_geolocations.get(token) != null) {
+			return Masker._maskGeo;
+		}
+		if (_profanities.get(token) != null) {
+			return Masker._maskBad;
+		}
+		return Masker._maskMisc;
+	}
+
+	/**
+	 * Find the tokens masked differently by the newer lexicon. Only words in one
+	 * of the lexicons' whitelists, names, geolocations or profanities can change,
+	 * and {@link #URL_TOKEN} is included if any URL filter changed.
+	 * 
+	 * @param newer
+	 *              lexicon to compare with this one
+	 * @return the lowercase tokens whose masking changed
+	 */
+	public Set<String> diff(TenantLexicon newer) {
+		Set<String> changed = new HashSet<String>();
+		Set<Object> checked = new HashSet<Object>();
+		JSONObject[] words = new JSONObject[] { _whitelist, _names, _geolocations, _profanities, newer._whitelist,
+				newer._names, newer._geolocations, newer._profanities };
+		for (JSONObject wordObj : words) {
+			for (Object key : wordObj.keySet()) {
+				if (checked.add(key) == false) {
+					continue;
+				}
+				String token = (String) key;
+				String oldMask = classify(token);
+				String newMask = newer.classify(token);
+				if (oldMask == null ? newMask != null : oldMask.equals(newMask) == false) {
+					changed.add(token);
+				}
+			}
+		}
+		if (_domainPrefixList.equals(newer._domainPrefixList) == false
+				|| _domainSuffixList.equals(newer._domainSuffixList) == false
+				|| _queryStringContainsList.equals(newer._queryStringContainsList) == false) {
+			changed.add(URL_TOKEN);
+		}
+		return changed;
+	}
+
+}
@@ -0,0 +1,56 @@
+/**
+ * (c) Copyright 2020-2023 IBM Corporation
+ * 1 New Orchard Road, 
+ * Armonk, New York, 10504-1722
+ * United States
+ * +1 914 499 1900
+ * Nathaniel Mills wnm3@us.ibm.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.whitelistmasker.masker;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java Flight Recorder event committed for each tenant resource file loaded by
+ * init() and for each template update applied by updateMaskTemplates. The event
+ * duration covers reading and parsing the resource.
+ */
+@Name("com.whitelistmasker.TenantLoad")
+@Label("Tenant Load")
+@Category({ "WhitelistMasker" })
+@Description("Tenant masking resource loaded")
+@StackTrace(false)
+public class TenantLoadEvent extends jdk.jfr.Event {
+
+	@Label("Tenant")
+	String tenant;
+
+	@Label("File")
+	String file;
+
+	@Label("Bytes")
+	@DataAmount(DataAmount.BYTES)
+	long bytes;
+
+	@Label("Templates")
+	@Description("Number of active templates after loading (template resources only)")
+	int templates;
+}
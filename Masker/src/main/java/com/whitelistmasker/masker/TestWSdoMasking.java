@@ -39,6 +39,9 @@ public class TestWSdoMasking implements Serializable {
 
 	private static final long serialVersionUID = 6442272576397186034L;
 
+	transient MaskerClient _client = null;
+	transient Properties _clientProperties = null;
+
 	/**
 	 * Constructor
 	 */
@@ -190,20 +193,6 @@ public class TestWSdoMasking implements Serializable {
                unmasked.add(line);
             }
             unmaskedFile = filename;
-            JSONObject service = new JSONObject();
-            service.put("protocol", propFile.getProperty("protocol", "http"));
-            service.put("domain",
-               propFile.getProperty("hostname", "localhost"));
-            service.put("portnumber", propFile.getProperty("port", "9080"));
-            service.put("endpoint",
-               "/" + propFile.getProperty("servletname", "MaskWebServices")
-                  + "/" + propFile.getProperty("version", "v1")
-                  + "/masker/doMasking");
-            service.put("username", propFile.getProperty("username", "mask"));
-            service.put("password",
-               propFile.getProperty("password", "password"));
-            service.put("apitimeout",
-               propFile.getProperty("apitimeout", "100000")); // 100 seconds
             JSONObject request = new JSONObject();
             request.put("tenantID", tenantID);
             request.put("maskNumbers", maskNumbers);
@@ -212,7 +201,12 @@ public class TestWSdoMasking implements Serializable {
             JSONObject body = new JSONObject();
             body.put("request", request);
             System.out.println("Sending Request:\n" + body.serialize(true));
-            response = MaskerUtils.sendRequest("POST", service, body);
+            // reuse the client (and its connection) while the properties are unchanged
+            if (_client == null || propFile.equals(_clientProperties) == false) {
+               _client = MaskerClient.fromProperties(propFile);
+               _clientProperties = propFile;
+            }
+            response = _client.post("masker/doMasking", body);
             break;
          } catch (Exception e) {
             System.err.println("Error calling service: "
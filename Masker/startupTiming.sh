@@ -0,0 +1,44 @@
+#! /bin/bash
+# Reports how long the MaskerHttpServer takes to accept requests and to return
+# its first masked response without class data sharing, with only the JDK's
+# default archive, and with the Masker.jsa archive made by makeAppCDS.sh.
+# Pass the number of runs of each (default 5) and the port (default 9080).
+cd /store/WAAExec/Masker
+RUNS=${1:-5}
+PORT=${2:-9080}
+URL="http://localhost:$PORT/MaskWebServices/v1"
+BODY='{"request":{"tenantID":"companyA","unmasked":["Bill 12"]}}'
+
+now_ms() {
+   echo $(( $(date +%s%N) / 1000000 ))
+}
+
+time_runs() {
+   local label=$1
+   shift
+   local total_ready=0
+   local total_masked=0
+   for (( run=1; run<=RUNS; run++ )); do
+      start=$(now_ms)
+      java "$@" -cp "./*" com.whitelistmasker.masker.MaskerHttpServer $PORT > /dev/null 2>&1 &
+      pid=$!
+      until curl -s -o /dev/null "$URL/metrics"; do sleep 0.01; done
+      ready=$(( $(now_ms) - start ))
+      until curl -s -f -o /dev/null -X POST "$URL/masker/doMasking" -d "$BODY"; do sleep 0.01; done
+      masked=$(( $(now_ms) - start ))
+      kill $pid
+      wait $pid 2>/dev/null
+      echo "$label run $run: accepting requests in $ready ms, first masked response in $masked ms"
+      total_ready=$(( total_ready + ready ))
+      total_masked=$(( total_masked + masked ))
+   done
+   echo "$label average: accepting requests in $(( total_ready / RUNS )) ms, first masked response in $(( total_masked / RUNS )) ms"
+}
+
+time_runs "No class sharing" -Xshare:off
+time_runs "JDK archive" -Xshare:auto
+if [ -f Masker.jsa ]; then
+   time_runs "Masker archive" -XX:SharedArchiveFile=Masker.jsa
+else
+   echo "No Masker.jsa found; run makeAppCDS.sh to create it."
+fi